@@ -0,0 +1,158 @@
+package com.gotcake.collections.immutable;
+
+import com.squareup.javapoet.*;
+
+import javax.lang.model.element.Modifier;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Generates the fixed arity nodes Node1...NodeN and their factory FixedArityNodes into the source directory given as
+ * the first argument. The build runs it at generate-sources into target/generated-sources/fixed-arity, so the nodes
+ * always match FixedArityNode and MAX_ARITY.
+ * @author Aaron Cake
+ */
+public class GenerateFixedArityNodes {
+
+    private static final String PACKAGE = "com.gotcake.collections.immutable";
+    private static final int MAX_ARITY = 8;
+    private static final String FILE_COMMENT = "Generated by GenerateFixedArityNodes, do not edit";
+
+    private static final TypeVariableName K = TypeVariableName.get("K");
+    private static final TypeVariableName V = TypeVariableName.get("V");
+    private static final ClassName NODE = ClassName.get(PACKAGE, "Node");
+    private static final ClassName FIXED_ARITY_NODE = ClassName.get(PACKAGE, "FixedArityNode");
+    private static final ClassName HASH_STRATEGY = ClassName.get(PACKAGE, "HashStrategy");
+
+    public static void main(String[] args) throws IOException {
+        final File sourceDir = new File(args[0]);
+        for (int arity = 1; arity <= MAX_ARITY; arity++) {
+            write(sourceDir, generateNode(arity));
+        }
+        write(sourceDir, generateFactory());
+    }
+
+    private static void write(final File sourceDir, final TypeSpec type) throws IOException {
+        JavaFile.builder(PACKAGE, type)
+                .addFileComment(FILE_COMMENT)
+                .indent("    ")
+                .skipJavaLangImports(true)
+                .build()
+                .writeTo(sourceDir);
+    }
+
+    private static TypeSpec generateNode(final int arity) {
+        final TypeSpec.Builder type = TypeSpec.classBuilder("Node" + arity)
+                .addJavadoc("A node of the PackedArrayDualNode layout with exactly $L slot$L held in fields\n",
+                        arity, arity == 1 ? "" : "s")
+                .addModifiers(Modifier.FINAL)
+                .addTypeVariable(K)
+                .addTypeVariable(V)
+                .superclass(ParameterizedTypeName.get(FIXED_ARITY_NODE, K, V));
+
+        final MethodSpec.Builder constructor = MethodSpec.constructorBuilder()
+                .addParameter(int.class, "mask", Modifier.FINAL)
+                .addParameter(Object[].class, "packedArray", Modifier.FINAL)
+                .addParameter(int[].class, "hashPrefixes", Modifier.FINAL)
+                .addStatement("super(mask)");
+        for (int slot = 0; slot < arity; slot++) {
+            type.addField(Object.class, "key" + slot, Modifier.PRIVATE, Modifier.FINAL);
+            type.addField(Object.class, "value" + slot, Modifier.PRIVATE, Modifier.FINAL);
+            type.addField(int.class, "prefix" + slot, Modifier.PRIVATE, Modifier.FINAL);
+            constructor.addStatement("this.key$L = packedArray[$L]", slot, slot * 2);
+            constructor.addStatement("this.value$L = packedArray[$L]", slot, slot * 2 + 1);
+            constructor.addStatement("this.prefix$L = hashPrefixes[$L]", slot, slot);
+        }
+        type.addMethod(constructor.build());
+
+        final MethodSpec.Builder get = MethodSpec.methodBuilder("get")
+                .addAnnotation(Override.class)
+                .addModifiers(Modifier.PUBLIC)
+                .returns(V)
+                .addParameter(K, "key")
+                .addParameter(int.class, "prefix")
+                .addParameter(ParameterizedTypeName.get(HASH_STRATEGY, WildcardTypeName.supertypeOf(K)), "equivalence")
+                .addStatement("final int bit = 1 << (prefix >>> 27)")
+                .beginControlFlow("if ((bit & mask) == 0)")
+                .addStatement("return null")
+                .endControlFlow()
+                .beginControlFlow("switch (Integer.bitCount(mask & (bit - 1)))");
+        for (int slot = 0; slot < arity; slot++) {
+            get.addCode("case $L:\n$>", slot)
+                    .addStatement("return getInSlot(key$L, value$L, prefix$L, key, prefix, equivalence)", slot, slot, slot)
+                    .addCode("$<");
+        }
+        get.addCode("default:\n$>")
+                .addStatement("throw new IllegalStateException()")
+                .addCode("$<")
+                .endControlFlow();
+        type.addMethod(get.build());
+
+        type.addMethod(MethodSpec.methodBuilder("slotCount")
+                .addAnnotation(Override.class)
+                .addModifiers(Modifier.PUBLIC)
+                .returns(int.class)
+                .addStatement("return $L", arity)
+                .build());
+        type.addMethod(generateSlotAccessor("slotKey", Object.class, "key", arity, true));
+        type.addMethod(generateSlotAccessor("slotValue", Object.class, "value", arity, true));
+        type.addMethod(generateSlotAccessor("slotPrefix", int.class, "prefix", arity, false));
+        return type.build();
+    }
+
+    private static MethodSpec generateSlotAccessor(final String name, final Class<?> returnType, final String field,
+                                                   final int arity, final boolean isPublic) {
+        final MethodSpec.Builder method = MethodSpec.methodBuilder(name)
+                .addAnnotation(Override.class)
+                .returns(returnType)
+                .addParameter(int.class, "slot")
+                .beginControlFlow("switch (slot)");
+        if (isPublic) {
+            method.addModifiers(Modifier.PUBLIC);
+        }
+        for (int slot = 0; slot < arity; slot++) {
+            method.addCode("case $L:\n$>", slot)
+                    .addStatement("return $L$L", field, slot)
+                    .addCode("$<");
+        }
+        return method.addCode("default:\n$>")
+                .addStatement("throw new IndexOutOfBoundsException(String.valueOf(slot))")
+                .addCode("$<")
+                .endControlFlow()
+                .build();
+    }
+
+    private static TypeSpec generateFactory() {
+        final MethodSpec.Builder create = MethodSpec.methodBuilder("create")
+                .addJavadoc("Creates a fixed arity node holding the given slots, of which there must be at most MAX_ARITY\n")
+                .addModifiers(Modifier.STATIC)
+                .addTypeVariable(K)
+                .addTypeVariable(V)
+                .returns(ParameterizedTypeName.get(NODE, K, V))
+                .addParameter(int.class, "mask", Modifier.FINAL)
+                .addParameter(Object[].class, "packedArray", Modifier.FINAL)
+                .addParameter(int[].class, "hashPrefixes", Modifier.FINAL)
+                .beginControlFlow("switch (hashPrefixes.length)");
+        for (int arity = 1; arity <= MAX_ARITY; arity++) {
+            create.addCode("case $L:\n$>", arity)
+                    .addStatement("return new Node$L<>(mask, packedArray, hashPrefixes)", arity)
+                    .addCode("$<");
+        }
+        create.addCode("default:\n$>")
+                .addStatement("throw new IllegalArgumentException($S + hashPrefixes.length)", "no fixed arity node with slot count ")
+                .addCode("$<")
+                .endControlFlow();
+
+        return TypeSpec.classBuilder("FixedArityNodes")
+                .addJavadoc("Creates the generated fixed arity nodes\n")
+                .addModifiers(Modifier.FINAL)
+                .addField(FieldSpec.builder(int.class, "MAX_ARITY", Modifier.STATIC, Modifier.FINAL)
+                        .addJavadoc("The largest number of slots a fixed arity node is generated for\n")
+                        .initializer("$L", MAX_ARITY)
+                        .build())
+                .addMethod(MethodSpec.constructorBuilder().addModifiers(Modifier.PRIVATE).build())
+                .addMethod(create.build())
+                .build();
+    }
+
+}
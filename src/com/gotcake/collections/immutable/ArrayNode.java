@@ -0,0 +1,686 @@
+package com.gotcake.collections.immutable;
+
+import java.util.Objects;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import static com.gotcake.collections.immutable.Util.*;
+
+/**
+ * A node of the PackedArrayDualNode layout for densely populated levels, like the ones near the root of a large map.
+ * Each of the 32 slots has a fixed place in the array, indexed directly by the 5 bits of the hash prefix at this depth,
+ * so accessing a slot needs no popcount and adding one needs no shifting of the slots after it.
+ * A PackedArrayDualNode which grows to MIN_SLOTS slots becomes an ArrayNode, and an ArrayNode which shrinks to
+ * MAX_SLOTS_TO_PACK slots becomes a PackedArrayDualNode again. The gap between the two keeps a node from switching
+ * back and forth when entries are added and removed around one size.
+ * The operations over whole subtrees work on a packed copy of this node.
+ * @author Aaron Cake
+ */
+class ArrayNode<K, V> implements Node<K, V> {
+
+    /**
+     * The number of slots at which a PackedArrayDualNode becomes an ArrayNode
+     */
+    static final int MIN_SLOTS = 16;
+    /**
+     * The number of slots at which an ArrayNode becomes a PackedArrayDualNode
+     */
+    static final int MAX_SLOTS_TO_PACK = 8;
+
+    /**
+     * The occupied slots, which gives the slot order for iteration
+     */
+    int mask;
+    /**
+     * A [key, value] or [null, child] pair for each slot, at twice its bit index, or [null, null] for an empty slot
+     */
+    Object[] array;
+    /**
+     * The hash prefix of the key in each slot, or 0 for a child or an empty slot, following the same sharing rules as
+     * PackedArrayDualNode.hashPrefixes
+     */
+    int[] hashPrefixes;
+    final EditOwner owner;
+
+    private ArrayNode(final EditOwner owner, final int mask, final Object[] array, final int[] hashPrefixes) {
+        this.owner = owner;
+        this.mask = mask;
+        this.array = array;
+        this.hashPrefixes = hashPrefixes;
+    }
+
+    /**
+     * Creates an ArrayNode with the slots of a PackedArrayDualNode
+     */
+    static <K, V> ArrayNode<K, V> fromPackedArray(final EditOwner owner, final int mask, final Object[] packedArray,
+                                                  final int[] packedPrefixes) {
+        final Object[] array = new Object[64];
+        final int[] hashPrefixes = new int[32];
+        int remaining = mask;
+        for (int offset = 0; offset < packedArray.length; offset += 2) {
+            final int bitIndex = Integer.numberOfTrailingZeros(remaining);
+            remaining &= remaining - 1;
+            array[bitIndex << 1] = packedArray[offset];
+            array[(bitIndex << 1) + 1] = packedArray[offset + 1];
+            hashPrefixes[bitIndex] = packedPrefixes[offset >>> 1];
+        }
+        return new ArrayNode<>(owner, mask, array, hashPrefixes);
+    }
+
+    /**
+     * Copies this node into a PackedArrayDualNode with the same slots, for the operations over whole subtrees
+     */
+    PackedArrayDualNode<K, V> pack() {
+        return new PackedArrayDualNode<>(null, mask, packedSlots(0), packedPrefixes(0));
+    }
+
+    /**
+     * Copies the slots into a packed array, leaving out the slots of the given bits
+     */
+    private Object[] packedSlots(final int excludedBits) {
+        final int slotsMask = mask & ~excludedBits;
+        final Object[] packedArray = new Object[Integer.bitCount(slotsMask) * 2];
+        int remaining = slotsMask;
+        for (int offset = 0; remaining != 0; offset += 2) {
+            final int index = Integer.numberOfTrailingZeros(remaining) << 1;
+            remaining &= remaining - 1;
+            packedArray[offset] = array[index];
+            packedArray[offset + 1] = array[index + 1];
+        }
+        return packedArray;
+    }
+
+    /**
+     * Copies the hash prefixes into a packed array, leaving out the slots of the given bits
+     */
+    private int[] packedPrefixes(final int excludedBits) {
+        final int slotsMask = mask & ~excludedBits;
+        final int[] packedPrefixes = new int[Integer.bitCount(slotsMask)];
+        int remaining = slotsMask;
+        for (int slot = 0; remaining != 0; slot++) {
+            packedPrefixes[slot] = hashPrefixes[Integer.numberOfTrailingZeros(remaining)];
+            remaining &= remaining - 1;
+        }
+        return packedPrefixes;
+    }
+
+    @Override
+    public V get(K key, int prefix, HashStrategy<? super K> equivalence) {
+
+        final int index = (prefix >>> 27) << 1;
+        final Object keyOrNull = array[index];
+
+        if (keyOrNull == null) {
+            // we have a child or nothing
+            @SuppressWarnings("unchecked")
+            Node<K, V> child = (Node<K, V>)array[index + 1];
+            if (child == null) {
+                return null;
+            }
+            int childPrefix = prefix << 5;
+            if (child instanceof CompressedPathNode) {
+                // skip the compressed levels here, so the call below keeps seeing only a few node types
+                final CompressedPathNode<K, V> path = (CompressedPathNode<K, V>)child;
+                if (!path.isFollowedBy(childPrefix)) {
+                    return null;
+                }
+                childPrefix <<= 5 * path.levels;
+                child = path.child;
+            }
+            return child.get(key, childPrefix, equivalence);
+        }
+
+        if (hashPrefixes[index >>> 1] == prefix && keysEqual(keyOrNull, key, equivalence)) {
+            // key matches, return value
+            @SuppressWarnings("unchecked")
+            final V value = (V)array[index + 1];
+            return value;
+        }
+
+        // key does not match, return null
+        return null;
+
+    }
+
+    @Override
+    public Node<K, V> set(EditOwner owner, K key, V value, int prefix, int depth, SizeChangeSink size, HashStrategy<? super K> equivalence) {
+
+        final int bitIndex = prefix >>> 27;
+        final int index = bitIndex << 1;
+        final Object keyOrNull = array[index];
+
+        if (keyOrNull == null) {
+            @SuppressWarnings("unchecked")
+            final Node<K, V> child = (Node<K, V>)array[index + 1];
+            if (child == null) {
+                // slot is empty, insert entry
+                size.sizeChange++;
+                size.hashChange += entryHash(key, value, equivalence);
+                return nodeBySettingSlot(owner, bitIndex, key, value, prefix);
+            }
+            // we have a child, descend further
+            final Node<K, V> newChild = child.set(owner, key, value, prefix << 5, depth + 1, size, equivalence);
+            if (child != newChild) {
+                // child changed, replace child
+                return nodeBySettingSlot(owner, bitIndex, null, newChild, 0);
+            }
+            // child did not change or was edited in place, return this
+            return this;
+        }
+
+        final int ourPrefix = hashPrefixes[bitIndex];
+        if (ourPrefix == prefix && keysEqual(keyOrNull, key, equivalence)) {
+            // key matches
+            if (array[index + 1].equals(value)) {
+                // value matches, do nothing
+                return this;
+            }
+            // value doesn't match, replace it
+            size.hashChange += entryHash(key, value, equivalence) - entryHash(keyOrNull, array[index + 1], equivalence);
+            return nodeBySettingSlot(owner, bitIndex, key, value, prefix);
+        }
+
+        // key does not match, create new branch
+        @SuppressWarnings("unchecked")
+        final K ourKey = (K)keyOrNull;
+        @SuppressWarnings("unchecked")
+        final V ourValue = (V)array[index + 1];
+        final Node<K, V> newNode = NodeFactory.createNodeWithTwoEntries(
+                owner,
+                depth + 1,
+                prefix << 5, key, value,
+                ourPrefix << 5, ourKey, ourValue
+        );
+        size.sizeChange++;
+        size.hashChange += entryHash(key, value, equivalence);
+        return nodeBySettingSlot(owner, bitIndex, null, newNode, 0);
+
+    }
+
+    @Override
+    public Node<K, V> setIfExists(K key, V value, int prefix, int depth, SizeChangeSink size, HashStrategy<? super K> equivalence) {
+
+        final int bitIndex = prefix >>> 27;
+        final int index = bitIndex << 1;
+        final Object keyOrNull = array[index];
+
+        if (keyOrNull == null) {
+            @SuppressWarnings("unchecked")
+            final Node<K, V> child = (Node<K, V>)array[index + 1];
+            if (child == null) {
+                // slot is empty, return this
+                return this;
+            }
+            // we have a child, descend further
+            final Node<K, V> newChild = child.setIfExists(key, value, prefix << 5, depth + 1, size, equivalence);
+            if (child != newChild) {
+                // child changed, replace child
+                return nodeBySettingSlot(null, bitIndex, null, newChild, 0);
+            }
+            // child did not change, return this
+            return this;
+        }
+
+        if (hashPrefixes[bitIndex] == prefix && keysEqual(keyOrNull, key, equivalence)) {
+            // key matches
+            if (array[index + 1].equals(value)) {
+                // value matches, do nothing
+                return this;
+            }
+            // value doesn't match, replace it
+            size.hashChange += entryHash(key, value, equivalence) - entryHash(keyOrNull, array[index + 1], equivalence);
+            return nodeBySettingSlot(null, bitIndex, key, value, prefix);
+        }
+
+        // key does not match, return this
+        return this;
+
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Node<K, V> setIfNotExists(K key, V value, int prefix, int depth, HashStrategy<? super K> equivalence) {
+
+        final int bitIndex = prefix >>> 27;
+        final int index = bitIndex << 1;
+        final Object keyOrNull = array[index];
+
+        if (keyOrNull == null) {
+            final Node<K, V> child = (Node<K, V>)array[index + 1];
+            if (child == null) {
+                // slot is empty, insert entry
+                return nodeBySettingSlot(null, bitIndex, key, value, prefix);
+            }
+            // we have a child, descend further
+            final Node<K, V> newChild = child.setIfNotExists(key, value, prefix << 5, depth + 1, equivalence);
+            if (child != newChild) {
+                // child changed, replace child
+                return nodeBySettingSlot(null, bitIndex, null, newChild, 0);
+            }
+            // child did not change, return this
+            return this;
+        }
+
+        final int ourPrefix = hashPrefixes[bitIndex];
+        if (ourPrefix == prefix && keysEqual(keyOrNull, key, equivalence)) {
+            // key matches, do nothing
+            return this;
+        }
+
+        // key does not match, create new branch
+        final Node<K, V> newNode = NodeFactory.createNodeWithTwoEntries(
+                depth + 1,
+                prefix << 5, key, value,
+                ourPrefix << 5, (K)keyOrNull, (V)array[index + 1]
+        );
+        return nodeBySettingSlot(null, bitIndex, null, newNode, 0);
+
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Node<K, V> delete(EditOwner owner, K key, int prefix, int depth, SizeChangeSink size, HashStrategy<? super K> equivalence) {
+
+        final int bitIndex = prefix >>> 27;
+        final int index = bitIndex << 1;
+        final Object keyOrNull = array[index];
+
+        if (keyOrNull == null) {
+            final Node<K, V> child = (Node<K, V>)array[index + 1];
+            if (child == null) {
+                // slot is empty, return this
+                return this;
+            }
+            // we have a child, descend further
+            final Node<K, V> newChild = child.delete(owner, key, prefix << 5, depth + 1, size, equivalence);
+            return nodeByReplacingChild(owner, bitIndex, child, newChild);
+        }
+
+        if (hashPrefixes[bitIndex] == prefix && keysEqual(keyOrNull, key, equivalence)) {
+            // key matches, remove entry
+            size.sizeChange--;
+            size.hashChange -= entryHash(keyOrNull, array[index + 1], equivalence);
+            return nodeByRemovingSlot(owner, bitIndex);
+        }
+
+        // key does not match, return this
+        return this;
+
+    }
+
+    @Override
+    public Node<K, V> update(EditOwner owner, K key, int prefix, int depth, BiFunction<? super K, ? super V, ? extends V> updateFn, SizeChangeSink size, HashStrategy<? super K> equivalence) {
+
+        final int bitIndex = prefix >>> 27;
+        final int index = bitIndex << 1;
+        @SuppressWarnings("unchecked")
+        final K keyOrNull = (K)array[index];
+
+        if (keyOrNull == null) {
+            @SuppressWarnings("unchecked")
+            final Node<K, V> child = (Node<K, V>)array[index + 1];
+            if (child == null) {
+                // slot is empty, possibly insert entry
+                final V newValue = updateFn.apply(key, null);
+                if (newValue != null) {
+                    size.sizeChange++;
+                    size.hashChange += entryHash(key, newValue, equivalence);
+                    return nodeBySettingSlot(owner, bitIndex, key, newValue, prefix);
+                }
+                return this;
+            }
+            // we have a child, descend further
+            final Node<K, V> newChild = child.update(owner, key, prefix << 5, depth + 1, updateFn, size, equivalence);
+            return nodeByReplacingChild(owner, bitIndex, child, newChild);
+        }
+
+        final int ourPrefix = hashPrefixes[bitIndex];
+        if (ourPrefix == prefix && keysEqual(keyOrNull, key, equivalence)) {
+            // key matches
+
+            @SuppressWarnings("unchecked")
+            final V curValue = (V)array[index + 1];
+            final V newValue = updateFn.apply(key, curValue);
+
+            if (newValue == null) {
+                size.sizeChange--;
+                size.hashChange -= entryHash(keyOrNull, curValue, equivalence);
+                return nodeByRemovingSlot(owner, bitIndex);
+            }
+
+            if (newValue.equals(curValue)) {
+                // value matches, do nothing
+                return this;
+            }
+            // value doesn't match, replace it
+            size.hashChange += entryHash(key, newValue, equivalence) - entryHash(keyOrNull, curValue, equivalence);
+            return nodeBySettingSlot(owner, bitIndex, key, newValue, prefix);
+        }
+
+        // key does not match, create new branch
+        final V newValue = updateFn.apply(key, null);
+        if (newValue != null) {
+            size.sizeChange++;
+            size.hashChange += entryHash(key, newValue, equivalence);
+            @SuppressWarnings("unchecked")
+            final V ourValue = (V)array[index + 1];
+            final Node<K, V> newNode = NodeFactory.createNodeWithTwoEntries(
+                    owner,
+                    depth + 1,
+                    prefix << 5, key, newValue,
+                    ourPrefix << 5, keyOrNull, ourValue
+            );
+            return nodeBySettingSlot(owner, bitIndex, null, newNode, 0);
+        }
+
+        return this;
+
+    }
+
+    /**
+     * Checks if this node belongs to the given transient batch, and so may be changed in place
+     */
+    private boolean isEditableBy(final EditOwner owner) {
+        return owner != null && owner == this.owner;
+    }
+
+    /**
+     * Puts the result of changing the child in a slot in its place, removing the slot if the child was removed,
+     * and collapsing a lone entry into the slot
+     */
+    private Node<K, V> nodeByReplacingChild(final EditOwner owner, final int bitIndex, final Node<K, V> child,
+                                            final Node<K, V> newChild) {
+        if (child == newChild) {
+            // child did not change or was edited in place, return this
+            return this;
+        }
+        if (newChild == null) {
+            // child removed
+            return nodeByRemovingSlot(owner, bitIndex);
+        }
+        if (newChild instanceof SingleEntryNode) {
+            // collapse entry into this node
+            final SingleEntryNode<K, V> entry = (SingleEntryNode<K, V>)newChild;
+            return nodeBySettingSlot(owner, bitIndex, entry.key, entry.value, entry.prefixInParent(1 << bitIndex));
+        }
+        // child changed, replace child
+        return nodeBySettingSlot(owner, bitIndex, null, newChild, 0);
+    }
+
+    private Node<K, V> nodeBySettingSlot(final EditOwner owner, final int bitIndex,
+                                         final Object o1, final Object o2, final int prefix) {
+        final int index = bitIndex << 1;
+        if (isEditableBy(owner)) {
+            mask |= 1 << bitIndex;
+            array[index] = o1;
+            array[index + 1] = o2;
+            hashPrefixes[bitIndex] = prefix;
+            return this;
+        }
+        final Object[] newArray = array.clone();
+        newArray[index] = o1;
+        newArray[index + 1] = o2;
+        // an editable copy needs its own prefixes, otherwise they can be shared while unchanged
+        int[] newPrefixes = hashPrefixes;
+        if (owner != null || hashPrefixes[bitIndex] != prefix) {
+            newPrefixes = hashPrefixes.clone();
+            newPrefixes[bitIndex] = prefix;
+        }
+        return new ArrayNode<>(owner, mask | (1 << bitIndex), newArray, newPrefixes);
+    }
+
+    private Node<K, V> nodeByRemovingSlot(final EditOwner owner, final int bitIndex) {
+        final int bit = 1 << bitIndex;
+        if (Integer.bitCount(mask) - 1 <= MAX_SLOTS_TO_PACK) {
+            // few enough slots left to pack them again
+            return NodeFactory.createPackedNode(owner, mask & ~bit, packedSlots(bit), packedPrefixes(bit));
+        }
+        final int index = bitIndex << 1;
+        if (isEditableBy(owner)) {
+            mask &= ~bit;
+            array[index] = null;
+            array[index + 1] = null;
+            hashPrefixes[bitIndex] = 0;
+            return this;
+        }
+        final Object[] newArray = array.clone();
+        newArray[index] = null;
+        newArray[index + 1] = null;
+        int[] newPrefixes = hashPrefixes;
+        if (owner != null || hashPrefixes[bitIndex] != 0) {
+            newPrefixes = hashPrefixes.clone();
+            newPrefixes[bitIndex] = 0;
+        }
+        return new ArrayNode<>(owner, mask & ~bit, newArray, newPrefixes);
+    }
+
+    /**
+     * Gets the result of an operation on the packed copy of this node, which is this node if nothing changed
+     */
+    private Node<K, V> resultOf(final PackedArrayDualNode<K, V> packed, final Node<K, V> result) {
+        return result == packed ? this : result;
+    }
+
+    @Override
+    public Node<K, V> merge(Node<K, V> other, int depth, BiFunction<? super V, ? super V, ? extends V> resolver, SizeChangeSink size) {
+        if (other == this) {
+            // shared subtree, every key resolves to its own value
+            return this;
+        }
+        final PackedArrayDualNode<K, V> packed = pack();
+        return resultOf(packed, packed.merge(other, depth, resolver, size));
+    }
+
+    @Override
+    public void diff(Node<K, V> other, int depth, ImmutableMap.DiffVisitor<? super K, ? super V> visitor) {
+        if (other != this) {
+            pack().diff(other, depth, visitor);
+        }
+    }
+
+    @Override
+    public Node<K, V> intersect(Node<K, ?> other, int depth, SizeChangeSink size) {
+        if (other == this) {
+            // shared subtree, everything is kept
+            size.sizeChange += computeSize();
+            return this;
+        }
+        final PackedArrayDualNode<K, V> packed = pack();
+        return resultOf(packed, packed.intersect(other, depth, size));
+    }
+
+    @Override
+    public Node<K, V> subtract(Node<K, ?> other, int depth, SizeChangeSink size) {
+        if (other == this) {
+            // shared subtree, everything is removed
+            size.sizeChange -= computeSize();
+            return null;
+        }
+        final PackedArrayDualNode<K, V> packed = pack();
+        return resultOf(packed, packed.subtract(other, depth, size));
+    }
+
+    @Override
+    public Node<K, V> updateAll(int depth, BiFunction<? super K, ? super V, ? extends V> updateFn, SizeChangeSink size) {
+        final PackedArrayDualNode<K, V> packed = pack();
+        return resultOf(packed, packed.updateAll(depth, updateFn, size));
+    }
+
+    @Override
+    public <R> Node<K, R> mapValues(Function<? super V, ? extends R> mapperFn) {
+        return pack().mapValues(mapperFn);
+    }
+
+    @Override
+    public Node<K, V> replaceSlots(Object[] slots, int depth) {
+        final PackedArrayDualNode<K, V> packed = pack();
+        return resultOf(packed, packed.replaceSlots(slots, depth));
+    }
+
+    @Override
+    public int computeSize() {
+        int total = 0;
+        int remaining = mask;
+        while (remaining != 0) {
+            final int index = Integer.numberOfTrailingZeros(remaining) << 1;
+            remaining &= remaining - 1;
+            if (array[index] == null) {
+                @SuppressWarnings("unchecked")
+                final Node<K, V> child = (Node<K, V>)array[index + 1];
+                total += child.computeSize();
+            } else {
+                total++;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public void forEachEntry(BiConsumer<? super K, ? super V> action) {
+        int remaining = mask;
+        while (remaining != 0) {
+            final int index = Integer.numberOfTrailingZeros(remaining) << 1;
+            remaining &= remaining - 1;
+            @SuppressWarnings("unchecked")
+            final K keyOrNull = (K)array[index];
+            if (keyOrNull == null) {
+                @SuppressWarnings("unchecked")
+                final Node<K, V> child = (Node<K, V>)array[index + 1];
+                child.forEachEntry(action);
+            } else {
+                @SuppressWarnings("unchecked")
+                final V value = (V)array[index + 1];
+                action.accept(keyOrNull, value);
+            }
+        }
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        int remaining = mask;
+        while (remaining != 0) {
+            final int index = Integer.numberOfTrailingZeros(remaining) << 1;
+            remaining &= remaining - 1;
+            if (array[index] == null) {
+                @SuppressWarnings("unchecked")
+                final Node<K, V> child = (Node<K, V>)array[index + 1];
+                if (child.containsValue(value)) {
+                    return true;
+                }
+            } else if (array[index + 1].equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int slotCount() {
+        return Integer.bitCount(mask);
+    }
+
+    /**
+     * Gets the index in the array of the nth occupied slot
+     */
+    private int indexOfSlot(final int slot) {
+        if (mask == -1) {
+            // every slot is occupied, which is the usual case near the root
+            return slot << 1;
+        }
+        int remaining = mask;
+        for (int i = 0; i < slot; i++) {
+            remaining &= remaining - 1;
+        }
+        return Integer.numberOfTrailingZeros(remaining) << 1;
+    }
+
+    @Override
+    public Object slotKey(int slot) {
+        return array[indexOfSlot(slot)];
+    }
+
+    @Override
+    public Object slotValue(int slot) {
+        return array[indexOfSlot(slot) + 1];
+    }
+
+    /**
+     * Compares the slots of this node with another node of the PackedArrayDualNode layout, in any representation
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        final int thatMask;
+        if (o instanceof ArrayNode) {
+            thatMask = ((ArrayNode<?, ?>)o).mask;
+        } else if (o instanceof PackedArrayDualNode) {
+            thatMask = ((PackedArrayDualNode<?, ?>)o).mask;
+        } else {
+            // fixed arity nodes never have enough slots
+            return false;
+        }
+        if (mask != thatMask) return false;
+        final Node<?, ?> that = (Node<?, ?>)o;
+        int remaining = mask;
+        for (int slot = 0; remaining != 0; slot++) {
+            final int index = Integer.numberOfTrailingZeros(remaining) << 1;
+            remaining &= remaining - 1;
+            if (!Objects.equals(array[index], that.slotKey(slot)) || !Objects.equals(array[index + 1], that.slotValue(slot))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Computes the same hash as PackedArrayDualNode.hashCode() does for the same slots
+     */
+    @Override
+    public int hashCode() {
+        int result = 1;
+        result = result * 31 + mask;
+        int remaining = mask;
+        while (remaining != 0) {
+            final int index = Integer.numberOfTrailingZeros(remaining) << 1;
+            remaining &= remaining - 1;
+            final Object keyOrNull = array[index];
+            result = result * 31 + (keyOrNull == null ? 0 : keyOrNull.hashCode());
+            result = result * 31 + array[index + 1].hashCode();
+        }
+        return result;
+    }
+
+    @Override
+    public int assertValidAndComputeSize(int suffix, int depth) {
+        int total = 0;
+        assertNotNull("array must not be null", array);
+        assertEqual("array must have a pair for every possible slot", 64, array.length);
+        assertNotNull("hashPrefixes must not be null", hashPrefixes);
+        assertEqual("hashPrefixes must have a prefix for every possible slot", 32, hashPrefixes.length);
+        assertThat("an ArrayNode must have more slots than it is packed at", Integer.bitCount(mask) > MAX_SLOTS_TO_PACK);
+        for (int bitIndex = 0; bitIndex < 32; bitIndex++) {
+            final Object keyOrNull = array[bitIndex << 1];
+            final Object valueOrChild = array[(bitIndex << 1) + 1];
+            if ((mask & (1 << bitIndex)) == 0) {
+                assertThat("an empty slot must hold nothing", keyOrNull == null && valueOrChild == null);
+                continue;
+            }
+            if (keyOrNull == null) {
+                if (!(valueOrChild instanceof FixedArityNode)) {
+                    assertValidType("child", valueOrChild, false, PackedArrayDualNode.class, ArrayNode.class, CompressedPathNode.class, PackedArrayCollisionNode.class);
+                }
+                @SuppressWarnings("unchecked")
+                final Node<K, V> child = (Node<K, V>)valueOrChild;
+                total += child.assertValidAndComputeSize(computeChildHashSuffix(suffix, bitIndex, depth), depth + 1);
+            } else {
+                total++;
+                assertThat("if key is not null, value must not be a node", !(valueOrChild instanceof Node));
+                assertEqualBinary("computed hash suffix must match structural location", suffix, computeHashSuffix(keyOrNull, depth));
+                assertEqualBinary("stored hash prefix must match the key", computeHashPrefix(keyOrNull, depth), hashPrefixes[bitIndex]);
+            }
+        }
+        return total;
+    }
+
+}
@@ -0,0 +1,1235 @@
+package com.gotcake.collections.immutable;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import static com.gotcake.collections.immutable.Util.*;
+
+/**
+ * A node using the Compressed Hash-Array Mapped Prefix-tree (CHAMP) layout described at
+ * https://michael.steindorfer.name/publications/oopsla15.pdf
+ * Entries and children are tracked by separate bitmaps, and all the entries are stored before all the children,
+ * so lookups and iteration never have to test a slot to find out whether it holds a child.
+ * The node is always kept in its canonical compacted form: below the root, a node never holds just a single entry,
+ * so two tries with the same entries have the same shape, and can be compared structurally.
+ * Like PackedArrayDualNode, a node created by a transient batch may be edited in place by it.
+ * @author Aaron Cake
+ */
+class ChampNode<K, V> implements Node<K, V> {
+
+    int dataMap;
+    int nodeMap;
+    /**
+     * The entries as [key, value] pairs followed by the children, each in bit order
+     */
+    Object[] content;
+    /**
+     * The hash prefix of each entry at the depth of this node, as in PackedArrayDualNode.
+     * Its length is the number of entries.
+     */
+    int[] hashPrefixes;
+    final EditOwner owner;
+
+    ChampNode(final EditOwner owner, final int prefix, final K key, final V value) {
+        this.owner = owner;
+        this.dataMap = 1 << (prefix >>> 27);
+        this.content = new Object[]{ key, value };
+        this.hashPrefixes = new int[]{ prefix };
+    }
+
+    ChampNode(final EditOwner owner, final int bitIndex, final Node<K, V> child) {
+        this.owner = owner;
+        this.nodeMap = 1 << bitIndex;
+        this.content = new Object[]{ child };
+        this.hashPrefixes = new int[0];
+    }
+
+    ChampNode(final EditOwner owner,
+              final int prefix1, final K key1, final V value1,
+              final int prefix2, final K key2, final V value2) {
+        this.owner = owner;
+        final int bitIndex1 = prefix1 >>> 27;
+        final int bitIndex2 = prefix2 >>> 27;
+        this.dataMap = (1 << bitIndex1) | (1 << bitIndex2);
+        if (bitIndex1 > bitIndex2) {
+            this.content = new Object[]{ key2, value2, key1, value1 };
+            this.hashPrefixes = new int[]{ prefix2, prefix1 };
+        } else {
+            this.content = new Object[]{ key1, value1, key2, value2 };
+            this.hashPrefixes = new int[]{ prefix1, prefix2 };
+        }
+    }
+
+    ChampNode(final EditOwner owner, final int dataMap, final int nodeMap, final Object[] content, final int[] hashPrefixes) {
+        this.owner = owner;
+        this.dataMap = dataMap;
+        this.nodeMap = nodeMap;
+        this.content = content;
+        this.hashPrefixes = hashPrefixes;
+    }
+
+    /**
+     * Creates a node from slots packed like a PackedArrayDualNode: [key, value] for an entry or [null, child] for a child,
+     * in bit order
+     */
+    static <K, V> ChampNode<K, V> fromPackedArray(final int mask, final Object[] packedArray, final int[] prefixes,
+                                                  final int length) {
+        int dataMap = 0;
+        int dataCount = 0;
+        for (int offset = 0, remaining = mask; offset < length; offset += 2) {
+            final int bit = remaining & -remaining;
+            remaining ^= bit;
+            if (packedArray[offset] != null) {
+                dataMap |= bit;
+                dataCount++;
+            }
+        }
+        final Object[] content = new Object[dataCount + (length >>> 1)];
+        final int[] hashPrefixes = new int[dataCount];
+        int dataIndex = 0;
+        int childOffset = dataCount << 1;
+        for (int offset = 0; offset < length; offset += 2) {
+            if (packedArray[offset] != null) {
+                content[dataIndex << 1] = packedArray[offset];
+                content[(dataIndex << 1) + 1] = packedArray[offset + 1];
+                hashPrefixes[dataIndex++] = prefixes[offset >>> 1];
+            } else {
+                content[childOffset++] = packedArray[offset + 1];
+            }
+        }
+        return new ChampNode<>(null, dataMap, mask & ~dataMap, content, hashPrefixes);
+    }
+
+    /**
+     * Gets the offset in content of the child at the given bit
+     */
+    private int childOffset(final int bit) {
+        return (hashPrefixes.length << 1) + Integer.bitCount(nodeMap & (bit - 1));
+    }
+
+    @Override
+    public V get(K key, int prefix, HashStrategy<? super K> equivalence) {
+
+        final int bit = 1 << (prefix >>> 27);
+
+        if ((dataMap & bit) != 0) {
+            final int index = Integer.bitCount(dataMap & (bit - 1));
+            if (hashPrefixes[index] == prefix && keysEqual(content[index << 1], key, equivalence)) {
+                @SuppressWarnings("unchecked")
+                final V value = (V)content[(index << 1) + 1];
+                return value;
+            }
+            return null;
+        }
+
+        if ((nodeMap & bit) != 0) {
+            @SuppressWarnings("unchecked")
+            final Node<K, V> child = (Node<K, V>)content[childOffset(bit)];
+            return child.get(key, prefix << 5, equivalence);
+        }
+
+        return null;
+
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Node<K, V> set(EditOwner owner, K key, V value, int prefix, int depth, SizeChangeSink size, HashStrategy<? super K> equivalence) {
+
+        final int bit = 1 << (prefix >>> 27);
+
+        if ((dataMap & bit) != 0) {
+            final int index = Integer.bitCount(dataMap & (bit - 1));
+            final K ourKey = (K)content[index << 1];
+            final V ourValue = (V)content[(index << 1) + 1];
+            final int ourPrefix = hashPrefixes[index];
+            if (ourPrefix == prefix && keysEqual(ourKey, key, equivalence)) {
+                if (ourValue.equals(value)) {
+                    return this;
+                }
+                size.hashChange += entryHash(key, value, equivalence) - entryHash(ourKey, ourValue, equivalence);
+                return nodeBySettingEntry(owner, index, key, value);
+            }
+            // key does not match, push both entries down into a new child
+            size.sizeChange++;
+            size.hashChange += entryHash(key, value, equivalence);
+            final Node<K, V> child = NodeFactory.createChampNodeWithTwoEntries(
+                    owner,
+                    depth + 1,
+                    prefix << 5, key, value,
+                    ourPrefix << 5, ourKey, ourValue
+            );
+            return nodeByMigratingEntryToChild(owner, bit, index, child);
+        }
+
+        if ((nodeMap & bit) != 0) {
+            final int offset = childOffset(bit);
+            final Node<K, V> child = (Node<K, V>)content[offset];
+            final Node<K, V> newChild = child.set(owner, key, value, prefix << 5, depth + 1, size, equivalence);
+            if (newChild != child) {
+                return nodeBySettingChild(owner, offset, newChild);
+            }
+            // child did not change or was edited in place
+            return this;
+        }
+
+        size.sizeChange++;
+        size.hashChange += entryHash(key, value, equivalence);
+        return nodeByInsertingEntry(owner, bit, key, value, prefix);
+
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Node<K, V> setIfExists(K key, V value, int prefix, int depth, SizeChangeSink size, HashStrategy<? super K> equivalence) {
+
+        final int bit = 1 << (prefix >>> 27);
+
+        if ((dataMap & bit) != 0) {
+            final int index = Integer.bitCount(dataMap & (bit - 1));
+            if (hashPrefixes[index] == prefix && keysEqual(content[index << 1], key, equivalence)
+                    && !content[(index << 1) + 1].equals(value)) {
+                size.hashChange += entryHash(key, value, equivalence) - entryHash(content[index << 1], content[(index << 1) + 1], equivalence);
+                return nodeBySettingEntry(null, index, key, value);
+            }
+            return this;
+        }
+
+        if ((nodeMap & bit) != 0) {
+            final int offset = childOffset(bit);
+            final Node<K, V> child = (Node<K, V>)content[offset];
+            final Node<K, V> newChild = child.setIfExists(key, value, prefix << 5, depth + 1, size, equivalence);
+            if (newChild != child) {
+                return nodeBySettingChild(null, offset, newChild);
+            }
+        }
+
+        return this;
+
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Node<K, V> setIfNotExists(K key, V value, int prefix, int depth, HashStrategy<? super K> equivalence) {
+
+        final int bit = 1 << (prefix >>> 27);
+
+        if ((dataMap & bit) != 0) {
+            final int index = Integer.bitCount(dataMap & (bit - 1));
+            final K ourKey = (K)content[index << 1];
+            final int ourPrefix = hashPrefixes[index];
+            if (ourPrefix == prefix && keysEqual(ourKey, key, equivalence)) {
+                return this;
+            }
+            final Node<K, V> child = NodeFactory.createChampNodeWithTwoEntries(
+                    null,
+                    depth + 1,
+                    prefix << 5, key, value,
+                    ourPrefix << 5, ourKey, (V)content[(index << 1) + 1]
+            );
+            return nodeByMigratingEntryToChild(null, bit, index, child);
+        }
+
+        if ((nodeMap & bit) != 0) {
+            final int offset = childOffset(bit);
+            final Node<K, V> child = (Node<K, V>)content[offset];
+            final Node<K, V> newChild = child.setIfNotExists(key, value, prefix << 5, depth + 1, equivalence);
+            if (newChild != child) {
+                return nodeBySettingChild(null, offset, newChild);
+            }
+            return this;
+        }
+
+        return nodeByInsertingEntry(null, bit, key, value, prefix);
+
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Node<K, V> delete(EditOwner owner, K key, int prefix, int depth, SizeChangeSink size, HashStrategy<? super K> equivalence) {
+
+        final int bit = 1 << (prefix >>> 27);
+
+        if ((dataMap & bit) != 0) {
+            final int index = Integer.bitCount(dataMap & (bit - 1));
+            final Object ourKey = content[index << 1];
+            if (hashPrefixes[index] == prefix && keysEqual(ourKey, key, equivalence)) {
+                size.sizeChange--;
+                size.hashChange -= entryHash(ourKey, content[(index << 1) + 1], equivalence);
+                return nodeByRemovingEntry(owner, bit, index, depth);
+            }
+            return this;
+        }
+
+        if ((nodeMap & bit) != 0) {
+            final int offset = childOffset(bit);
+            final Node<K, V> child = (Node<K, V>)content[offset];
+            final Node<K, V> newChild = child.delete(owner, key, prefix << 5, depth + 1, size, equivalence);
+            if (newChild != child) {
+                return nodeByReplacingChild(owner, bit, offset, newChild, depth);
+            }
+        }
+
+        return this;
+
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Node<K, V> update(EditOwner owner, K key, int prefix, int depth, BiFunction<? super K, ? super V, ? extends V> updateFn, SizeChangeSink size, HashStrategy<? super K> equivalence) {
+
+        final int bit = 1 << (prefix >>> 27);
+
+        if ((dataMap & bit) != 0) {
+            final int index = Integer.bitCount(dataMap & (bit - 1));
+            final K ourKey = (K)content[index << 1];
+            final V ourValue = (V)content[(index << 1) + 1];
+            final int ourPrefix = hashPrefixes[index];
+            if (ourPrefix == prefix && keysEqual(ourKey, key, equivalence)) {
+                final V newValue = updateFn.apply(key, ourValue);
+                if (newValue == null) {
+                    size.sizeChange--;
+                    size.hashChange -= entryHash(ourKey, ourValue, equivalence);
+                    return nodeByRemovingEntry(owner, bit, index, depth);
+                }
+                if (newValue.equals(ourValue)) {
+                    return this;
+                }
+                size.hashChange += entryHash(key, newValue, equivalence) - entryHash(ourKey, ourValue, equivalence);
+                return nodeBySettingEntry(owner, index, key, newValue);
+            }
+            final V newValue = updateFn.apply(key, null);
+            if (newValue == null) {
+                return this;
+            }
+            size.sizeChange++;
+            size.hashChange += entryHash(key, newValue, equivalence);
+            final Node<K, V> child = NodeFactory.createChampNodeWithTwoEntries(
+                    owner,
+                    depth + 1,
+                    prefix << 5, key, newValue,
+                    ourPrefix << 5, ourKey, ourValue
+            );
+            return nodeByMigratingEntryToChild(owner, bit, index, child);
+        }
+
+        if ((nodeMap & bit) != 0) {
+            final int offset = childOffset(bit);
+            final Node<K, V> child = (Node<K, V>)content[offset];
+            final Node<K, V> newChild = child.update(owner, key, prefix << 5, depth + 1, updateFn, size, equivalence);
+            if (newChild != child) {
+                return nodeByReplacingChild(owner, bit, offset, newChild, depth);
+            }
+            return this;
+        }
+
+        final V newValue = updateFn.apply(key, null);
+        if (newValue == null) {
+            return this;
+        }
+        size.sizeChange++;
+        size.hashChange += entryHash(key, newValue, equivalence);
+        return nodeByInsertingEntry(owner, bit, key, newValue, prefix);
+
+    }
+
+    /**
+     * Checks if this node belongs to the given transient batch, and so may be changed in place
+     */
+    private boolean isEditableBy(final EditOwner owner) {
+        return owner != null && owner == this.owner;
+    }
+
+    private ChampNode<K, V> withContent(final EditOwner owner, final int newDataMap, final int newNodeMap,
+                                        final Object[] newContent, final int[] newPrefixes) {
+        if (isEditableBy(owner)) {
+            dataMap = newDataMap;
+            nodeMap = newNodeMap;
+            content = newContent;
+            hashPrefixes = newPrefixes;
+            return this;
+        }
+        return new ChampNode<>(owner, newDataMap, newNodeMap, newContent, newPrefixes);
+    }
+
+    private ChampNode<K, V> nodeBySettingEntry(final EditOwner owner, final int index, final Object key, final Object value) {
+        if (isEditableBy(owner)) {
+            content[index << 1] = key;
+            content[(index << 1) + 1] = value;
+            return this;
+        }
+        final Object[] newContent = content.clone();
+        newContent[index << 1] = key;
+        newContent[(index << 1) + 1] = value;
+        // an editable copy needs its own prefixes, otherwise they can be shared since the key's prefix is unchanged
+        return new ChampNode<>(owner, dataMap, nodeMap, newContent, owner == null ? hashPrefixes : hashPrefixes.clone());
+    }
+
+    private ChampNode<K, V> nodeBySettingChild(final EditOwner owner, final int offset, final Node<K, V> child) {
+        if (isEditableBy(owner)) {
+            content[offset] = child;
+            return this;
+        }
+        final Object[] newContent = content.clone();
+        newContent[offset] = child;
+        return new ChampNode<>(owner, dataMap, nodeMap, newContent, owner == null ? hashPrefixes : hashPrefixes.clone());
+    }
+
+    private ChampNode<K, V> nodeByInsertingEntry(final EditOwner owner, final int bit, final Object key, final Object value,
+                                                 final int prefix) {
+        final int index = Integer.bitCount(dataMap & (bit - 1));
+        final int offset = index << 1;
+        final Object[] newContent = new Object[content.length + 2];
+        final int[] newPrefixes = new int[hashPrefixes.length + 1];
+        System.arraycopy(content, 0, newContent, 0, offset);
+        System.arraycopy(hashPrefixes, 0, newPrefixes, 0, index);
+        newContent[offset] = key;
+        newContent[offset + 1] = value;
+        newPrefixes[index] = prefix;
+        System.arraycopy(content, offset, newContent, offset + 2, content.length - offset);
+        System.arraycopy(hashPrefixes, index, newPrefixes, index + 1, hashPrefixes.length - index);
+        return withContent(owner, dataMap | bit, nodeMap, newContent, newPrefixes);
+    }
+
+    private Node<K, V> nodeByRemovingEntry(final EditOwner owner, final int bit, final int index, final int depth) {
+        final int dataCount = hashPrefixes.length;
+        if (content.length == 2) {
+            return null;
+        }
+        if (depth > 0 && dataCount == 2 && nodeMap == 0) {
+            // only one entry is left, so collapse it into the parent
+            final int other = index ^ 1;
+            @SuppressWarnings("unchecked")
+            final K key = (K)content[other << 1];
+            @SuppressWarnings("unchecked")
+            final V value = (V)content[(other << 1) + 1];
+            return new SingleEntryNode<>(key, value, hashPrefixes[other]);
+        }
+        final int offset = index << 1;
+        final Object[] newContent = new Object[content.length - 2];
+        final int[] newPrefixes = new int[dataCount - 1];
+        System.arraycopy(content, 0, newContent, 0, offset);
+        System.arraycopy(hashPrefixes, 0, newPrefixes, 0, index);
+        System.arraycopy(content, offset + 2, newContent, offset, newContent.length - offset);
+        System.arraycopy(hashPrefixes, index + 1, newPrefixes, index, newPrefixes.length - index);
+        return withContent(owner, dataMap & ~bit, nodeMap, newContent, newPrefixes);
+    }
+
+    private ChampNode<K, V> nodeByMigratingEntryToChild(final EditOwner owner, final int bit, final int index,
+                                                       final Node<K, V> child) {
+        final int offset = index << 1;
+        // the child's offset once the entry is removed
+        final int newChildOffset = ((hashPrefixes.length - 1) << 1) + Integer.bitCount(nodeMap & (bit - 1));
+        final Object[] newContent = new Object[content.length - 1];
+        final int[] newPrefixes = new int[hashPrefixes.length - 1];
+        System.arraycopy(content, 0, newContent, 0, offset);
+        System.arraycopy(content, offset + 2, newContent, offset, newChildOffset - offset);
+        newContent[newChildOffset] = child;
+        System.arraycopy(content, newChildOffset + 2, newContent, newChildOffset + 1, newContent.length - newChildOffset - 1);
+        System.arraycopy(hashPrefixes, 0, newPrefixes, 0, index);
+        System.arraycopy(hashPrefixes, index + 1, newPrefixes, index, newPrefixes.length - index);
+        return withContent(owner, dataMap & ~bit, nodeMap | bit, newContent, newPrefixes);
+    }
+
+    private ChampNode<K, V> nodeByMigratingChildToEntry(final EditOwner owner, final int bit, final int childOffset,
+                                                       final Object key, final Object value, final int prefix) {
+        final int index = Integer.bitCount(dataMap & (bit - 1));
+        final int offset = index << 1;
+        final Object[] newContent = new Object[content.length + 1];
+        final int[] newPrefixes = new int[hashPrefixes.length + 1];
+        System.arraycopy(content, 0, newContent, 0, offset);
+        newContent[offset] = key;
+        newContent[offset + 1] = value;
+        System.arraycopy(content, offset, newContent, offset + 2, childOffset - offset);
+        System.arraycopy(content, childOffset + 1, newContent, childOffset + 2, content.length - childOffset - 1);
+        System.arraycopy(hashPrefixes, 0, newPrefixes, 0, index);
+        newPrefixes[index] = prefix;
+        System.arraycopy(hashPrefixes, index, newPrefixes, index + 1, hashPrefixes.length - index);
+        return withContent(owner, dataMap | bit, nodeMap & ~bit, newContent, newPrefixes);
+    }
+
+    private Node<K, V> nodeByRemovingChild(final EditOwner owner, final int bit, final int offset, final int depth) {
+        if (content.length == 1) {
+            return null;
+        }
+        if (depth > 0 && content.length == 3) {
+            // only one entry is left, so collapse it into the parent
+            @SuppressWarnings("unchecked")
+            final K key = (K)content[0];
+            @SuppressWarnings("unchecked")
+            final V value = (V)content[1];
+            return new SingleEntryNode<>(key, value, hashPrefixes[0]);
+        }
+        final Object[] newContent = new Object[content.length - 1];
+        System.arraycopy(content, 0, newContent, 0, offset);
+        System.arraycopy(content, offset + 1, newContent, offset, newContent.length - offset);
+        return withContent(owner, dataMap, nodeMap & ~bit, newContent, owner == null ? hashPrefixes : hashPrefixes.clone());
+    }
+
+    /**
+     * Replaces the child at the given bit with the result of an operation on it, which may have removed the child,
+     * or left a single entry to be collapsed into this node
+     */
+    private Node<K, V> nodeByReplacingChild(final EditOwner owner, final int bit, final int offset,
+                                            final Node<K, V> newChild, final int depth) {
+        if (newChild == null) {
+            return nodeByRemovingChild(owner, bit, offset, depth);
+        }
+        if (newChild instanceof SingleEntryNode) {
+            final SingleEntryNode<K, V> entry = (SingleEntryNode<K, V>)newChild;
+            final int prefix = entry.prefixInParent(bit);
+            if (depth > 0 && content.length == 1) {
+                // the child was all this node held, so keep collapsing upwards
+                return new SingleEntryNode<>(entry.key, entry.value, prefix);
+            }
+            return nodeByMigratingChildToEntry(owner, bit, offset, entry.key, entry.value, prefix);
+        }
+        return nodeBySettingChild(owner, offset, newChild);
+    }
+
+    /**
+     * Creates the result of a structural operation from the first length items of a packed array in bit order,
+     * following the same conventions as the other operations: null if empty, and a SingleEntryNode if only one entry
+     * is left below the root.
+     */
+    private static <K, V> Node<K, V> nodeFromPartialArray(final int mask, final Object[] array, final int[] prefixes,
+                                                          final int length, final int depth) {
+        if (length == 0) {
+            return null;
+        }
+        if (length == 2 && depth > 0 && array[0] != null) {
+            @SuppressWarnings("unchecked")
+            final K key = (K)array[0];
+            @SuppressWarnings("unchecked")
+            final V value = (V)array[1];
+            return new SingleEntryNode<>(key, value, prefixes[0]);
+        }
+        return fromPackedArray(mask, array, prefixes, length);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Node<K, V> merge(final Node<K, V> otherNode, final int depth,
+                            final BiFunction<? super V, ? super V, ? extends V> resolver, final SizeChangeSink size) {
+
+        if (otherNode == this) {
+            // shared subtree, every key resolves to its own value
+            return this;
+        }
+
+        if (!(otherNode instanceof ChampNode)) {
+            return TrieBuilder.mergeByRebuilding(this, otherNode, depth, resolver, size);
+        }
+
+        final ChampNode<K, V> other = (ChampNode<K, V>)otherNode;
+        final int mask = dataMap | nodeMap;
+        final int otherMask = other.dataMap | other.nodeMap;
+        final Object[] newArray = new Object[Integer.bitCount(mask | otherMask) * 2];
+        final int[] newPrefixes = new int[newArray.length >>> 1];
+        int newMask = 0;
+        int newOffset = 0;
+        int index = 0;
+        int childOffset = hashPrefixes.length << 1;
+        int otherIndex = 0;
+        int otherChildOffset = other.hashPrefixes.length << 1;
+        boolean sameAsThis = true;
+        boolean sameAsOther = true;
+
+        // walk both nodes in bit order
+        int remaining = mask | otherMask;
+        while (remaining != 0) {
+            final int bit = remaining & -remaining;
+            remaining ^= bit;
+
+            final boolean inThis = (mask & bit) != 0;
+            final boolean inOther = (otherMask & bit) != 0;
+            Object keyOrNull = null;
+            Object valueOrChild = null;
+            int prefix = 0;
+            if ((dataMap & bit) != 0) {
+                keyOrNull = content[index << 1];
+                valueOrChild = content[(index << 1) + 1];
+                prefix = hashPrefixes[index++];
+            } else if (inThis) {
+                valueOrChild = content[childOffset++];
+            }
+            Object otherKeyOrNull = null;
+            Object otherValueOrChild = null;
+            int otherPrefix = 0;
+            if ((other.dataMap & bit) != 0) {
+                otherKeyOrNull = other.content[otherIndex << 1];
+                otherValueOrChild = other.content[(otherIndex << 1) + 1];
+                otherPrefix = other.hashPrefixes[otherIndex++];
+            } else if (inOther) {
+                otherValueOrChild = other.content[otherChildOffset++];
+            }
+
+            Object newKey = null;
+            Object newValue;
+            int newPrefix = 0;
+
+            if (!inOther) {
+                // branch only exists here, keep it
+                newKey = keyOrNull;
+                newValue = valueOrChild;
+                newPrefix = prefix;
+            } else if (!inThis) {
+                // branch only exists in the other node, reuse it
+                newKey = otherKeyOrNull;
+                newValue = otherValueOrChild;
+                newPrefix = otherPrefix;
+                size.sizeChange += otherKeyOrNull == null ? ((Node<K, V>)otherValueOrChild).computeSize() : 1;
+            } else if (keyOrNull == null && otherKeyOrNull == null) {
+                // both are children, merge them
+                newValue = ((Node<K, V>)valueOrChild).merge((Node<K, V>)otherValueOrChild, depth + 1, resolver, size);
+            } else if (keyOrNull != null && otherKeyOrNull != null) {
+                if (prefix == otherPrefix && keyOrNull.equals(otherKeyOrNull)) {
+                    // same key, resolve the value
+                    newKey = keyOrNull;
+                    newPrefix = prefix;
+                    newValue = resolveMergedValue((V)valueOrChild, (V)otherValueOrChild, resolver);
+                    if (newValue == null) {
+                        size.sizeChange--;
+                    } else if (newValue == otherValueOrChild) {
+                        newKey = otherKeyOrNull;
+                    }
+                } else {
+                    // different keys, create new branch
+                    size.sizeChange++;
+                    newValue = NodeFactory.createChampNodeWithTwoEntries(
+                            null,
+                            depth + 1,
+                            prefix << 5, (K)keyOrNull, (V)valueOrChild,
+                            otherPrefix << 5, (K)otherKeyOrNull, (V)otherValueOrChild
+                    );
+                }
+            } else if (keyOrNull != null) {
+                // entry here, child in the other node, so put our entry into the other child
+                final V value = (V)valueOrChild;
+                final Node<K, V> otherChild = (Node<K, V>)otherValueOrChild;
+                final SizeChangeSink childSize = new SizeChangeSink();
+                newValue = otherChild.update(
+                        (K)keyOrNull, prefix << 5, depth + 1,
+                        (k, otherValue) -> otherValue == null ? value : resolveMergedValue(value, otherValue, resolver),
+                        childSize
+                );
+                // our entry is already counted
+                size.sizeChange += otherChild.computeSize() + childSize.sizeChange - 1;
+            } else {
+                // child here, entry in the other node, so put the other entry into our child
+                final V otherValue = (V)otherValueOrChild;
+                newValue = ((Node<K, V>)valueOrChild).update(
+                        (K)otherKeyOrNull, otherPrefix << 5, depth + 1,
+                        (k, value) -> value == null ? otherValue : resolveMergedValue(value, otherValue, resolver),
+                        size
+                );
+            }
+
+            if (newValue == null) {
+                // entry or child was removed
+                sameAsThis = false;
+                sameAsOther = false;
+                continue;
+            }
+
+            if (newValue instanceof SingleEntryNode) {
+                // collapse entry into this node
+                final SingleEntryNode<K, V> entry = (SingleEntryNode<K, V>)newValue;
+                newKey = entry.key;
+                newValue = entry.value;
+                newPrefix = entry.prefixInParent(bit);
+            }
+
+            sameAsThis &= inThis && newKey == keyOrNull && newValue == valueOrChild;
+            sameAsOther &= inOther && newKey == otherKeyOrNull && newValue == otherValueOrChild;
+            newMask |= bit;
+            newArray[newOffset] = newKey;
+            newArray[newOffset + 1] = newValue;
+            newPrefixes[newOffset >>> 1] = newPrefix;
+            newOffset += 2;
+        }
+
+        if (sameAsThis) {
+            return this;
+        }
+        if (sameAsOther) {
+            return other;
+        }
+        return nodeFromPartialArray(newMask, newArray, newPrefixes, newOffset, depth);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Node<K, V> intersect(final Node<K, ?> otherNode, final int depth, final SizeChangeSink size) {
+
+        if (otherNode == this) {
+            // shared subtree, everything is kept
+            size.sizeChange += computeSize();
+            return this;
+        }
+
+        if (!(otherNode instanceof ChampNode)) {
+            return TrieBuilder.intersectByRebuilding(this, otherNode, depth, size);
+        }
+
+        final ChampNode<K, ?> other = (ChampNode<K, ?>)otherNode;
+        final int mask = dataMap | nodeMap;
+        final int common = mask & (other.dataMap | other.nodeMap);
+        final Object[] newArray = new Object[Integer.bitCount(common) * 2];
+        final int[] newPrefixes = new int[newArray.length >>> 1];
+        int newMask = 0;
+        int newOffset = 0;
+        // branches which only exist here are dropped
+        boolean sameAsThis = common == mask;
+
+        int remaining = common;
+        while (remaining != 0) {
+            final int bit = remaining & -remaining;
+            remaining ^= bit;
+
+            Object keyOrNull = null;
+            final Object valueOrChild;
+            int prefix = 0;
+            if ((dataMap & bit) != 0) {
+                final int index = Integer.bitCount(dataMap & (bit - 1));
+                keyOrNull = content[index << 1];
+                valueOrChild = content[(index << 1) + 1];
+                prefix = hashPrefixes[index];
+            } else {
+                valueOrChild = content[childOffset(bit)];
+            }
+
+            Object newKey = keyOrNull;
+            Object newValue = null;
+            int newPrefix = prefix;
+
+            if ((other.dataMap & bit) != 0) {
+                final int otherIndex = Integer.bitCount(other.dataMap & (bit - 1));
+                final Object otherKey = other.content[otherIndex << 1];
+                final int otherPrefix = other.hashPrefixes[otherIndex];
+                if (keyOrNull != null) {
+                    // both are entries, keep ours if the keys match
+                    if (prefix == otherPrefix && keyOrNull.equals(otherKey)) {
+                        size.sizeChange++;
+                        newValue = valueOrChild;
+                    }
+                } else {
+                    // child here, entry in the other node, keep the entry if our child contains it
+                    final V value = ((Node<K, V>)valueOrChild).get((K)otherKey, otherPrefix << 5);
+                    if (value != null) {
+                        size.sizeChange++;
+                        newKey = otherKey;
+                        newValue = value;
+                        newPrefix = otherPrefix;
+                    }
+                }
+            } else {
+                final Node<K, ?> otherChild = (Node<K, ?>)other.content[other.childOffset(bit)];
+                if (keyOrNull == null) {
+                    // both are children, intersect them
+                    newValue = ((Node<K, V>)valueOrChild).intersect(otherChild, depth + 1, size);
+                } else if (otherChild.get((K)keyOrNull, prefix << 5) != null) {
+                    // entry here, and the other child contains it
+                    size.sizeChange++;
+                    newValue = valueOrChild;
+                }
+            }
+
+            if (newValue == null) {
+                // entry or child was dropped
+                sameAsThis = false;
+                continue;
+            }
+
+            if (newValue instanceof SingleEntryNode) {
+                // collapse entry into this node
+                final SingleEntryNode<K, V> entry = (SingleEntryNode<K, V>)newValue;
+                newKey = entry.key;
+                newValue = entry.value;
+                newPrefix = entry.prefixInParent(bit);
+            }
+
+            sameAsThis &= newKey == keyOrNull && newValue == valueOrChild;
+            newMask |= bit;
+            newArray[newOffset] = newKey;
+            newArray[newOffset + 1] = newValue;
+            newPrefixes[newOffset >>> 1] = newPrefix;
+            newOffset += 2;
+        }
+
+        if (sameAsThis) {
+            return this;
+        }
+        return nodeFromPartialArray(newMask, newArray, newPrefixes, newOffset, depth);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Node<K, V> subtract(final Node<K, ?> otherNode, final int depth, final SizeChangeSink size) {
+
+        if (otherNode == this) {
+            // shared subtree, everything is removed
+            size.sizeChange -= computeSize();
+            return null;
+        }
+
+        if (!(otherNode instanceof ChampNode)) {
+            return TrieBuilder.subtractByRebuilding(this, otherNode, depth, size);
+        }
+
+        final ChampNode<K, ?> other = (ChampNode<K, ?>)otherNode;
+        final int mask = dataMap | nodeMap;
+        final int common = mask & (other.dataMap | other.nodeMap);
+        if (common == 0) {
+            // no branches in common, nothing to remove
+            return this;
+        }
+
+        final Object[] newArray = new Object[Integer.bitCount(mask) * 2];
+        final int[] newPrefixes = new int[newArray.length >>> 1];
+        int newMask = 0;
+        int newOffset = 0;
+        int index = 0;
+        int childOffset = hashPrefixes.length << 1;
+        boolean sameAsThis = true;
+
+        int remaining = mask;
+        while (remaining != 0) {
+            final int bit = remaining & -remaining;
+            remaining ^= bit;
+
+            Object keyOrNull = null;
+            final Object valueOrChild;
+            int prefix = 0;
+            if ((dataMap & bit) != 0) {
+                keyOrNull = content[index << 1];
+                valueOrChild = content[(index << 1) + 1];
+                prefix = hashPrefixes[index++];
+            } else {
+                valueOrChild = content[childOffset++];
+            }
+            Object newKey = keyOrNull;
+            Object newValue = valueOrChild;
+            int newPrefix = prefix;
+
+            if ((common & bit) != 0) {
+                if ((other.dataMap & bit) != 0) {
+                    final int otherIndex = Integer.bitCount(other.dataMap & (bit - 1));
+                    final Object otherKey = other.content[otherIndex << 1];
+                    final int otherPrefix = other.hashPrefixes[otherIndex];
+                    if (keyOrNull != null) {
+                        // both are entries, remove ours if the keys match
+                        if (prefix == otherPrefix && keyOrNull.equals(otherKey)) {
+                            size.sizeChange--;
+                            newValue = null;
+                        }
+                    } else {
+                        // child here, entry in the other node, delete the entry from our child
+                        newValue = ((Node<K, V>)valueOrChild).delete((K)otherKey, otherPrefix << 5, depth + 1, size);
+                    }
+                } else {
+                    final Node<K, ?> otherChild = (Node<K, ?>)other.content[other.childOffset(bit)];
+                    if (keyOrNull == null) {
+                        // both are children, subtract them
+                        newValue = ((Node<K, V>)valueOrChild).subtract(otherChild, depth + 1, size);
+                    } else if (otherChild.get((K)keyOrNull, prefix << 5) != null) {
+                        // entry here, and the other child contains it
+                        size.sizeChange--;
+                        newValue = null;
+                    }
+                }
+
+                if (newValue == null) {
+                    // entry or child was removed
+                    sameAsThis = false;
+                    continue;
+                }
+
+                if (newValue instanceof SingleEntryNode) {
+                    // collapse entry into this node
+                    final SingleEntryNode<K, V> entry = (SingleEntryNode<K, V>)newValue;
+                    newKey = entry.key;
+                    newValue = entry.value;
+                    newPrefix = entry.prefixInParent(bit);
+                }
+
+                sameAsThis &= newKey == keyOrNull && newValue == valueOrChild;
+            }
+
+            newMask |= bit;
+            newArray[newOffset] = newKey;
+            newArray[newOffset + 1] = newValue;
+            newPrefixes[newOffset >>> 1] = newPrefix;
+            newOffset += 2;
+        }
+
+        if (sameAsThis) {
+            return this;
+        }
+        return nodeFromPartialArray(newMask, newArray, newPrefixes, newOffset, depth);
+    }
+
+    @Override
+    public Node<K, V> replaceSlots(final Object[] slots, final int depth) {
+        final int dataCount = hashPrefixes.length;
+        final Object[] newArray = new Object[slotCount() << 1];
+        final int[] newPrefixes = new int[slotCount()];
+        int newMask = 0;
+        int newOffset = 0;
+        int index = 0;
+        int childSlot = dataCount;
+        boolean sameAsThis = true;
+        int remaining = dataMap | nodeMap;
+        while (remaining != 0) {
+            final int bit = remaining & -remaining;
+            remaining ^= bit;
+            final int slot;
+            int newPrefix = 0;
+            if ((dataMap & bit) != 0) {
+                // keys stay in their slots, so their prefixes are unchanged
+                newPrefix = hashPrefixes[index];
+                slot = index++;
+            } else {
+                slot = childSlot++;
+            }
+            Object newKey = slots[slot << 1];
+            Object newValue = slots[(slot << 1) + 1];
+            if (newValue == null) {
+                // slot was removed
+                sameAsThis = false;
+                continue;
+            }
+            if (newValue instanceof SingleEntryNode) {
+                // collapse entry into this node
+                @SuppressWarnings("unchecked")
+                final SingleEntryNode<K, V> entry = (SingleEntryNode<K, V>)newValue;
+                newKey = entry.key;
+                newValue = entry.value;
+                newPrefix = entry.prefixInParent(bit);
+            }
+            sameAsThis &= newKey == slotKey(slot) && newValue == slotValue(slot);
+            newMask |= bit;
+            newArray[newOffset] = newKey;
+            newArray[newOffset + 1] = newValue;
+            newPrefixes[newOffset >>> 1] = newPrefix;
+            newOffset += 2;
+        }
+        if (sameAsThis) {
+            return this;
+        }
+        return nodeFromPartialArray(newMask, newArray, newPrefixes, newOffset, depth);
+    }
+
+    @Override
+    public Node<K, V> updateAll(final int depth, final BiFunction<? super K, ? super V, ? extends V> updateFn,
+                                final SizeChangeSink size) {
+        final int dataEnd = hashPrefixes.length << 1;
+        // only allocated once something changes, with removed slots left as null
+        Object[] newContent = null;
+        for (int offset = 0; offset < dataEnd; offset += 2) {
+            @SuppressWarnings("unchecked")
+            final K key = (K)content[offset];
+            @SuppressWarnings("unchecked")
+            final V value = (V)content[offset + 1];
+            final V newValue = updateFn.apply(key, value);
+            if (newValue == null) {
+                size.sizeChange--;
+                size.hashChange -= entryHash(key, value);
+            } else if (newValue.equals(value)) {
+                continue;
+            } else {
+                size.hashChange += entryHash(key, newValue) - entryHash(key, value);
+            }
+            if (newContent == null) {
+                newContent = content.clone();
+            }
+            newContent[offset + 1] = newValue;
+        }
+        for (int offset = dataEnd; offset < content.length; offset++) {
+            @SuppressWarnings("unchecked")
+            final Node<K, V> child = (Node<K, V>)content[offset];
+            final Node<K, V> newChild = child.updateAll(depth + 1, updateFn, size);
+            if (newChild != child) {
+                if (newContent == null) {
+                    newContent = content.clone();
+                }
+                newContent[offset] = newChild;
+            }
+        }
+        if (newContent == null) {
+            return this;
+        }
+        // collapsed children are left as SingleEntryNodes for replaceSlots to move into the entries
+        return replaceSlots(toSlots(newContent), depth);
+    }
+
+    /**
+     * Packs content laid out like this node's into slots, as expected by replaceSlots
+     */
+    private Object[] toSlots(final Object[] newContent) {
+        final int dataEnd = hashPrefixes.length << 1;
+        final Object[] slots = new Object[slotCount() << 1];
+        System.arraycopy(newContent, 0, slots, 0, dataEnd);
+        for (int offset = dataEnd, slot = hashPrefixes.length; offset < newContent.length; offset++, slot++) {
+            slots[(slot << 1) + 1] = newContent[offset];
+        }
+        return slots;
+    }
+
+    @Override
+    public <R> Node<K, R> mapValues(final Function<? super V, ? extends R> mapperFn) {
+        final int dataEnd = hashPrefixes.length << 1;
+        final Object[] newContent = new Object[content.length];
+        for (int offset = 0; offset < dataEnd; offset += 2) {
+            newContent[offset] = content[offset];
+            @SuppressWarnings("unchecked")
+            final V value = (V)content[offset + 1];
+            final R newValue = mapperFn.apply(value);
+            if (newValue == null) throw new NullPointerException();
+            newContent[offset + 1] = newValue;
+        }
+        for (int offset = dataEnd; offset < content.length; offset++) {
+            @SuppressWarnings("unchecked")
+            final Node<K, V> child = (Node<K, V>)content[offset];
+            newContent[offset] = child.mapValues(mapperFn);
+        }
+        // the new node is never edited in place, and the keys are the same, so the prefixes can be shared
+        return new ChampNode<>(null, dataMap, nodeMap, newContent, hashPrefixes);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void diff(final Node<K, V> otherNode, final int depth,
+                     final ImmutableMap.DiffVisitor<? super K, ? super V> visitor) {
+
+        if (otherNode == this) {
+            // shared subtree, nothing changed
+            return;
+        }
+
+        if (!(otherNode instanceof ChampNode)) {
+            diffEntries(this, otherNode, visitor);
+            return;
+        }
+
+        final ChampNode<K, V> other = (ChampNode<K, V>)otherNode;
+        final int mask = dataMap | nodeMap;
+        final int otherMask = other.dataMap | other.nodeMap;
+
+        // walk both nodes in bit order
+        int remaining = mask | otherMask;
+        while (remaining != 0) {
+            final int bit = remaining & -remaining;
+            remaining ^= bit;
+
+            K key = null;
+            V value = null;
+            Node<K, V> child = null;
+            int prefix = 0;
+            if ((dataMap & bit) != 0) {
+                final int index = Integer.bitCount(dataMap & (bit - 1));
+                key = (K)content[index << 1];
+                value = (V)content[(index << 1) + 1];
+                prefix = hashPrefixes[index];
+            } else if ((nodeMap & bit) != 0) {
+                child = (Node<K, V>)content[childOffset(bit)];
+            }
+            K otherKey = null;
+            V otherValue = null;
+            Node<K, V> otherChild = null;
+            int otherPrefix = 0;
+            if ((other.dataMap & bit) != 0) {
+                final int index = Integer.bitCount(other.dataMap & (bit - 1));
+                otherKey = (K)other.content[index << 1];
+                otherValue = (V)other.content[(index << 1) + 1];
+                otherPrefix = other.hashPrefixes[index];
+            } else if ((other.nodeMap & bit) != 0) {
+                otherChild = (Node<K, V>)other.content[other.childOffset(bit)];
+            }
+
+            if ((otherMask & bit) == 0) {
+                // branch was removed
+                if (child != null) {
+                    child.forEachEntry(visitor::removed);
+                } else {
+                    visitor.removed(key, value);
+                }
+            } else if ((mask & bit) == 0) {
+                // branch was added
+                if (otherChild != null) {
+                    otherChild.forEachEntry(visitor::added);
+                } else {
+                    visitor.added(otherKey, otherValue);
+                }
+            } else if (child != null && otherChild != null) {
+                // both are children, compare them
+                child.diff(otherChild, depth + 1, visitor);
+            } else if (child == null && otherChild == null) {
+                if (prefix == otherPrefix && key.equals(otherKey)) {
+                    if (!value.equals(otherValue)) {
+                        visitor.changed(key, value, otherValue);
+                    }
+                } else {
+                    visitor.removed(key, value);
+                    visitor.added(otherKey, otherValue);
+                }
+            } else if (child == null) {
+                // entry became a child, which may or may not still contain the entry
+                final K oldKey = key;
+                final V newValue = otherChild.get(oldKey, prefix << 5);
+                otherChild.forEachEntry((k, v) -> {
+                    if (v != newValue || !k.equals(oldKey)) {
+                        visitor.added(k, v);
+                    }
+                });
+                if (newValue == null) {
+                    visitor.removed(oldKey, value);
+                } else if (!value.equals(newValue)) {
+                    visitor.changed(oldKey, value, newValue);
+                }
+            } else {
+                // child was collapsed into an entry, which may or may not have been in the child
+                final K newKey = otherKey;
+                final V oldValue = child.get(newKey, otherPrefix << 5);
+                child.forEachEntry((k, v) -> {
+                    if (v != oldValue || !k.equals(newKey)) {
+                        visitor.removed(k, v);
+                    }
+                });
+                if (oldValue == null) {
+                    visitor.added(newKey, otherValue);
+                } else if (!oldValue.equals(otherValue)) {
+                    visitor.changed(newKey, oldValue, otherValue);
+                }
+            }
+        }
+    }
+
+    @Override
+    public int computeSize() {
+        int total = hashPrefixes.length;
+        for (int offset = hashPrefixes.length << 1; offset < content.length; offset++) {
+            @SuppressWarnings("unchecked")
+            final Node<K, V> child = (Node<K, V>)content[offset];
+            total += child.computeSize();
+        }
+        return total;
+    }
+
+    @Override
+    public void forEachEntry(final BiConsumer<? super K, ? super V> action) {
+        final int dataEnd = hashPrefixes.length << 1;
+        for (int offset = 0; offset < dataEnd; offset += 2) {
+            @SuppressWarnings("unchecked")
+            final K key = (K)content[offset];
+            @SuppressWarnings("unchecked")
+            final V value = (V)content[offset + 1];
+            action.accept(key, value);
+        }
+        for (int offset = dataEnd; offset < content.length; offset++) {
+            @SuppressWarnings("unchecked")
+            final Node<K, V> child = (Node<K, V>)content[offset];
+            child.forEachEntry(action);
+        }
+    }
+
+    @Override
+    public boolean containsValue(final Object value) {
+        final int dataEnd = hashPrefixes.length << 1;
+        for (int offset = 1; offset < dataEnd; offset += 2) {
+            if (content[offset].equals(value)) {
+                return true;
+            }
+        }
+        for (int offset = dataEnd; offset < content.length; offset++) {
+            @SuppressWarnings("unchecked")
+            final Node<K, V> child = (Node<K, V>)content[offset];
+            if (child.containsValue(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int slotCount() {
+        return content.length - hashPrefixes.length;
+    }
+
+    @Override
+    public Object slotKey(int slot) {
+        return slot < hashPrefixes.length ? content[slot << 1] : null;
+    }
+
+    @Override
+    public Object slotValue(int slot) {
+        final int dataCount = hashPrefixes.length;
+        return slot < dataCount ? content[(slot << 1) + 1] : content[slot + dataCount];
+    }
+
+    /**
+     * Compares two subtrees structurally, which is exact since both are in canonical form.
+     * The hash prefixes are compared first, which rules out most differences without calling equals on any key.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ChampNode)) return false;
+        final ChampNode<?, ?> that = (ChampNode<?, ?>) o;
+        if (dataMap != that.dataMap || nodeMap != that.nodeMap) return false;
+        if (!Arrays.equals(hashPrefixes, that.hashPrefixes)) return false;
+        for (int i = 0; i < content.length; i++) {
+            if (!Objects.equals(content[i], that.content[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = 1;
+        result = result * 31 + dataMap;
+        result = result * 31 + nodeMap;
+        for (final Object el : content) {
+            result = result * 31 + el.hashCode();
+        }
+        return result;
+    }
+
+    @Override
+    public int assertValidAndComputeSize(int suffix, int depth) {
+        int total = 0;
+        final int dataCount = hashPrefixes.length;
+        assertEqual("dataMap and nodeMap must not overlap", 0, dataMap & nodeMap);
+        assertNotEqual("node must not be empty", 0, dataMap | nodeMap);
+        assertEqual("hashPrefixes length must match set dataMap bits", Integer.bitCount(dataMap), dataCount);
+        assertEqual("content length must match set bits", dataCount * 2 + Integer.bitCount(nodeMap), content.length);
+        assertThat("a node below the root must not hold a single entry", depth == 0 || dataCount > 1 || nodeMap != 0);
+        for (int index = 0; index < dataCount; index++) {
+            final Object key = content[index << 1];
+            final Object value = content[(index << 1) + 1];
+            total++;
+            assertNotNull("key must not be null", key);
+            assertNotNull("value must not be null", value);
+            assertThat("value must not be a node", !(value instanceof Node));
+            assertEqualBinary("computed hash suffix must match structural location", suffix, computeHashSuffix(key, depth));
+            assertEqualBinary("stored hash prefix must match the key", computeHashPrefix(key, depth), hashPrefixes[index]);
+        }
+        int remaining = nodeMap;
+        for (int offset = dataCount << 1; offset < content.length; offset++) {
+            final int bit = remaining & -remaining;
+            remaining ^= bit;
+            final Object child = content[offset];
+            assertValidType("child", child, false, ChampNode.class, PackedArrayCollisionNode.class);
+            @SuppressWarnings("unchecked")
+            final Node<K, V> node = (Node<K, V>)child;
+            final int bitIndex = Integer.numberOfTrailingZeros(bit);
+            total += node.assertValidAndComputeSize(computeChildHashSuffix(suffix, bitIndex, depth), depth + 1);
+        }
+        return total;
+    }
+}
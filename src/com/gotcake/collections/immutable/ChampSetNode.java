@@ -0,0 +1,497 @@
+package com.gotcake.collections.immutable;
+
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import static com.gotcake.collections.immutable.Util.*;
+
+/**
+ * A set node in the CHAMP layout of ChampNode: the elements in bit order, followed by the children in bit order.
+ * Nothing is stored beside an element, not even its hash prefix, so each element costs a single reference.
+ * An element's hash is only recomputed when it has to be pushed down into a new child.
+ * Like ChampNode, a node created by a transient batch may be edited in place by it.
+ * @author Aaron Cake
+ */
+final class ChampSetNode<T> implements SetNode<T> {
+
+    int dataMap;
+    int nodeMap;
+    /**
+     * The elements followed by the children, each in bit order
+     */
+    Object[] content;
+    final EditOwner owner;
+
+    ChampSetNode(final EditOwner owner, final int dataMap, final int nodeMap, final Object[] content) {
+        this.owner = owner;
+        this.dataMap = dataMap;
+        this.nodeMap = nodeMap;
+        this.content = content;
+    }
+
+    ChampSetNode(final EditOwner owner, final int prefix, final T element) {
+        this(owner, 1 << (prefix >>> 27), 0, new Object[]{ element });
+    }
+
+    /**
+     * Creates a node at any depth holding two distinct elements, where it is not known how many bits of the
+     * prefixes collide
+     */
+    static <T> SetNode<T> createNodeWithTwoElements(final EditOwner owner, final int depth,
+                                                    final int prefix1, final Object element1,
+                                                    final int prefix2, final Object element2) {
+        if (depth == 7) {
+            // hash collision
+            return new SetCollisionNode<>(new Object[]{ element1, element2 });
+        }
+        final int bitIndex1 = prefix1 >>> 27;
+        final int bitIndex2 = prefix2 >>> 27;
+        if (bitIndex1 == bitIndex2) {
+            return new ChampSetNode<>(owner, 0, 1 << bitIndex1, new Object[]{
+                    createNodeWithTwoElements(owner, depth + 1, prefix1 << 5, element1, prefix2 << 5, element2)
+            });
+        }
+        return new ChampSetNode<>(
+                owner,
+                (1 << bitIndex1) | (1 << bitIndex2),
+                0,
+                bitIndex1 < bitIndex2 ? new Object[]{ element1, element2 } : new Object[]{ element2, element1 }
+        );
+    }
+
+    /**
+     * Computes the hash prefix of an element at the given depth, which is unused by the collision nodes at depth 7
+     */
+    static int prefixAt(final Object element, final int depth) {
+        return depth < 7 ? computeHashPrefix(element, depth) : 0;
+    }
+
+    /**
+     * Gets the mask of the hash bits which lead to a node at the given depth
+     */
+    static int pathMask(final int depth) {
+        return 5 * depth >= 32 ? -1 : ~(-1 >>> (5 * depth));
+    }
+
+    private int childOffset(final int bit) {
+        return Integer.bitCount(dataMap) + Integer.bitCount(nodeMap & (bit - 1));
+    }
+
+    @SuppressWarnings("unchecked")
+    private SetNode<T> childAt(final int bit) {
+        return (SetNode<T>)content[childOffset(bit)];
+    }
+
+    private Object elementAt(final int bit) {
+        return content[Integer.bitCount(dataMap & (bit - 1))];
+    }
+
+    @Override
+    public boolean contains(final Object element, final int prefix) {
+        final int bit = 1 << (prefix >>> 27);
+        if ((dataMap & bit) != 0) {
+            return elementAt(bit).equals(element);
+        }
+        if ((nodeMap & bit) != 0) {
+            return childAt(bit).contains(element, prefix << 5);
+        }
+        return false;
+    }
+
+    @Override
+    public SetNode<T> insert(final EditOwner owner, final T element, final int prefix, final int depth,
+                             final SizeChangeSink size) {
+
+        final int bit = 1 << (prefix >>> 27);
+
+        if ((dataMap & bit) != 0) {
+            final int index = Integer.bitCount(dataMap & (bit - 1));
+            final Object ourElement = content[index];
+            if (ourElement.equals(element)) {
+                return this;
+            }
+            // push both elements down into a new child
+            size.sizeChange++;
+            size.hashChange += element.hashCode();
+            final SetNode<T> child = createNodeWithTwoElements(
+                    owner,
+                    depth + 1,
+                    prefix << 5, element,
+                    prefixAt(ourElement, depth + 1), ourElement
+            );
+            return nodeByMigratingElementToChild(owner, bit, index, child);
+        }
+
+        if ((nodeMap & bit) != 0) {
+            final int offset = childOffset(bit);
+            @SuppressWarnings("unchecked")
+            final SetNode<T> child = (SetNode<T>)content[offset];
+            final SetNode<T> newChild = child.insert(owner, element, prefix << 5, depth + 1, size);
+            if (newChild != child) {
+                return nodeBySettingChild(owner, offset, newChild);
+            }
+            // child did not change or was edited in place
+            return this;
+        }
+
+        size.sizeChange++;
+        size.hashChange += element.hashCode();
+        return nodeByInsertingElement(owner, bit, element);
+
+    }
+
+    @Override
+    public SetNode<T> delete(final EditOwner owner, final Object element, final int prefix, final int depth,
+                             final SizeChangeSink size) {
+
+        final int bit = 1 << (prefix >>> 27);
+
+        if ((dataMap & bit) != 0) {
+            final int index = Integer.bitCount(dataMap & (bit - 1));
+            final Object ourElement = content[index];
+            if (ourElement.equals(element)) {
+                size.sizeChange--;
+                size.hashChange -= ourElement.hashCode();
+                return nodeByRemovingElement(owner, bit, index);
+            }
+            return this;
+        }
+
+        if ((nodeMap & bit) != 0) {
+            final int offset = childOffset(bit);
+            @SuppressWarnings("unchecked")
+            final SetNode<T> child = (SetNode<T>)content[offset];
+            final SetNode<T> newChild = child.delete(owner, element, prefix << 5, depth + 1, size);
+            // a child edited in place returns itself, even when it is left with a single element to inline
+            if (newChild != child || newChild.isSingleElement()) {
+                return nodeByReplacingChild(owner, bit, offset, newChild, depth);
+            }
+        }
+
+        return this;
+
+    }
+
+    /**
+     * Checks if this node belongs to the given transient batch, and so may be changed in place
+     */
+    private boolean isEditableBy(final EditOwner owner) {
+        return owner != null && owner == this.owner;
+    }
+
+    private ChampSetNode<T> withContent(final EditOwner owner, final int newDataMap, final int newNodeMap,
+                                        final Object[] newContent) {
+        if (isEditableBy(owner)) {
+            dataMap = newDataMap;
+            nodeMap = newNodeMap;
+            content = newContent;
+            return this;
+        }
+        return new ChampSetNode<>(owner, newDataMap, newNodeMap, newContent);
+    }
+
+    private ChampSetNode<T> nodeBySettingChild(final EditOwner owner, final int offset, final SetNode<T> child) {
+        if (isEditableBy(owner)) {
+            content[offset] = child;
+            return this;
+        }
+        final Object[] newContent = content.clone();
+        newContent[offset] = child;
+        return new ChampSetNode<>(owner, dataMap, nodeMap, newContent);
+    }
+
+    private ChampSetNode<T> nodeByInsertingElement(final EditOwner owner, final int bit, final Object element) {
+        final int index = Integer.bitCount(dataMap & (bit - 1));
+        final Object[] newContent = new Object[content.length + 1];
+        System.arraycopy(content, 0, newContent, 0, index);
+        newContent[index] = element;
+        System.arraycopy(content, index, newContent, index + 1, content.length - index);
+        return withContent(owner, dataMap | bit, nodeMap, newContent);
+    }
+
+    private ChampSetNode<T> nodeByRemovingElement(final EditOwner owner, final int bit, final int index) {
+        if (content.length == 1) {
+            return null;
+        }
+        // a single element left below the root is inlined by the parent
+        final Object[] newContent = new Object[content.length - 1];
+        System.arraycopy(content, 0, newContent, 0, index);
+        System.arraycopy(content, index + 1, newContent, index, newContent.length - index);
+        return withContent(owner, dataMap & ~bit, nodeMap, newContent);
+    }
+
+    private ChampSetNode<T> nodeByMigratingElementToChild(final EditOwner owner, final int bit, final int index,
+                                                          final SetNode<T> child) {
+        // the element and the child swap places, so the length is the same and an editable node can shift in place
+        final int newChildOffset = Integer.bitCount(dataMap) - 1 + Integer.bitCount(nodeMap & (bit - 1));
+        final Object[] newContent = isEditableBy(owner) ? content : content.clone();
+        System.arraycopy(content, index + 1, newContent, index, newChildOffset - index);
+        newContent[newChildOffset] = child;
+        return withContent(owner, dataMap & ~bit, nodeMap | bit, newContent);
+    }
+
+    private ChampSetNode<T> nodeByMigratingChildToElement(final EditOwner owner, final int bit, final int childOffset,
+                                                          final Object element) {
+        final int index = Integer.bitCount(dataMap & (bit - 1));
+        final Object[] newContent = isEditableBy(owner) ? content : content.clone();
+        System.arraycopy(content, index, newContent, index + 1, childOffset - index);
+        newContent[index] = element;
+        return withContent(owner, dataMap | bit, nodeMap & ~bit, newContent);
+    }
+
+    private ChampSetNode<T> nodeByRemovingChild(final EditOwner owner, final int bit, final int offset) {
+        if (content.length == 1) {
+            return null;
+        }
+        final Object[] newContent = new Object[content.length - 1];
+        System.arraycopy(content, 0, newContent, 0, offset);
+        System.arraycopy(content, offset + 1, newContent, offset, newContent.length - offset);
+        return withContent(owner, dataMap, nodeMap & ~bit, newContent);
+    }
+
+    /**
+     * Replaces the child at the given bit with the result of an operation on it, which may have removed the child,
+     * or left a single element to be inlined into this node
+     */
+    private SetNode<T> nodeByReplacingChild(final EditOwner owner, final int bit, final int offset,
+                                            final SetNode<T> newChild, final int depth) {
+        if (newChild == null) {
+            return nodeByRemovingChild(owner, bit, offset);
+        }
+        if (newChild.isSingleElement()) {
+            if (depth > 0 && content.length == 1) {
+                // the child was all this node held, so keep collapsing upwards
+                return newChild;
+            }
+            return nodeByMigratingChildToElement(owner, bit, offset, newChild.slot(0));
+        }
+        return nodeBySettingChild(owner, offset, newChild);
+    }
+
+    /**
+     * Collects the slots kept by filter or retain, in bit order. Kept elements fill the scratch array from the front,
+     * and kept children from the back, so it never needs more room than the node being filtered.
+     */
+    private static final class Kept<T> {
+
+        final Object[] scratch;
+        int dataMap;
+        int nodeMap;
+        int elementCount;
+        int childCount;
+        boolean changed;
+
+        Kept(final int capacity) {
+            scratch = new Object[capacity];
+        }
+
+        void element(final int bit, final Object element, final boolean keep, final SizeChangeSink size) {
+            if (keep) {
+                size.sizeChange++;
+                dataMap |= bit;
+                scratch[elementCount++] = element;
+            } else {
+                changed = true;
+            }
+        }
+
+        void child(final int bit, final SetNode<T> child, final SetNode<T> newChild) {
+            if (newChild != child) {
+                changed = true;
+            }
+            if (newChild == null) {
+                return;
+            }
+            if (newChild.isSingleElement()) {
+                dataMap |= bit;
+                scratch[elementCount++] = newChild.slot(0);
+            } else {
+                nodeMap |= bit;
+                scratch[scratch.length - ++childCount] = newChild;
+            }
+        }
+
+        SetNode<T> toNode(final ChampSetNode<T> original) {
+            if (!changed) {
+                return original;
+            }
+            if (elementCount + childCount == 0) {
+                return null;
+            }
+            final Object[] content = new Object[elementCount + childCount];
+            System.arraycopy(scratch, 0, content, 0, elementCount);
+            for (int i = 0; i < childCount; i++) {
+                content[elementCount + i] = scratch[scratch.length - 1 - i];
+            }
+            return new ChampSetNode<>(null, dataMap, nodeMap, content);
+        }
+
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public SetNode<T> filter(final Predicate<? super T> predicate, final int depth, final SizeChangeSink size) {
+        final Kept<T> kept = new Kept<>(content.length);
+        int dataIndex = 0;
+        int childIndex = Integer.bitCount(dataMap);
+        for (int remaining = dataMap | nodeMap; remaining != 0; remaining &= remaining - 1) {
+            final int bit = remaining & -remaining;
+            if ((dataMap & bit) != 0) {
+                final T element = (T)content[dataIndex++];
+                kept.element(bit, element, predicate.test(element), size);
+            } else {
+                final SetNode<T> child = (SetNode<T>)content[childIndex++];
+                kept.child(bit, child, child.filter(predicate, depth + 1, size));
+            }
+        }
+        return kept.toNode(this);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public SetNode<T> retain(final SetNode<?> other, final boolean keepCommon, final int depth,
+                             final SizeChangeSink size) {
+
+        if (other == this) {
+            // shared subtree, every element is in both
+            if (keepCommon) {
+                size.sizeChange += computeSize();
+                return this;
+            }
+            return null;
+        }
+
+        // nodes above depth 7 are always ChampSetNodes
+        final ChampSetNode<?> that = (ChampSetNode<?>)other;
+        final Kept<T> kept = new Kept<>(content.length);
+        int dataIndex = 0;
+        int childIndex = Integer.bitCount(dataMap);
+        for (int remaining = dataMap | nodeMap; remaining != 0; remaining &= remaining - 1) {
+            final int bit = remaining & -remaining;
+            if ((dataMap & bit) != 0) {
+                final Object element = content[dataIndex++];
+                final boolean inOther;
+                if ((that.dataMap & bit) != 0) {
+                    inOther = element.equals(that.elementAt(bit));
+                } else {
+                    inOther = (that.nodeMap & bit) != 0 && that.childAt(bit).contains(element, prefixAt(element, depth + 1));
+                }
+                kept.element(bit, element, inOther == keepCommon, size);
+            } else {
+                final SetNode<T> child = (SetNode<T>)content[childIndex++];
+                final SetNode<T> newChild;
+                if ((that.nodeMap & bit) != 0) {
+                    newChild = child.retain(that.childAt(bit), keepCommon, depth + 1, size);
+                } else if ((that.dataMap & bit) != 0) {
+                    final Object otherElement = that.elementAt(bit);
+                    newChild = child.filter(element -> element.equals(otherElement) == keepCommon, depth + 1, size);
+                } else if (keepCommon) {
+                    newChild = null;
+                } else {
+                    size.sizeChange += child.computeSize();
+                    newChild = child;
+                }
+                kept.child(bit, child, newChild);
+            }
+        }
+        return kept.toNode(this);
+
+    }
+
+    @Override
+    public boolean equalTo(final SetNode<?> other) {
+        if (other == this) {
+            return true;
+        }
+        if (!(other instanceof ChampSetNode)) {
+            return false;
+        }
+        final ChampSetNode<?> that = (ChampSetNode<?>)other;
+        if (dataMap != that.dataMap || nodeMap != that.nodeMap) {
+            return false;
+        }
+        final int elementCount = Integer.bitCount(dataMap);
+        for (int i = 0; i < elementCount; i++) {
+            if (!content[i].equals(that.content[i])) {
+                return false;
+            }
+        }
+        for (int i = elementCount; i < content.length; i++) {
+            if (!((SetNode<?>)content[i]).equalTo((SetNode<?>)that.content[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int slotCount() {
+        return content.length;
+    }
+
+    @Override
+    public int elementCount() {
+        return Integer.bitCount(dataMap);
+    }
+
+    @Override
+    public Object slot(final int index) {
+        return content[index];
+    }
+
+    @Override
+    public boolean isSingleElement() {
+        return content.length == 1 && dataMap != 0;
+    }
+
+    @Override
+    public int computeSize() {
+        final int elementCount = Integer.bitCount(dataMap);
+        int size = elementCount;
+        for (int i = elementCount; i < content.length; i++) {
+            size += ((SetNode<?>)content[i]).computeSize();
+        }
+        return size;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEach(final Consumer<? super T> action) {
+        final int elementCount = Integer.bitCount(dataMap);
+        for (int i = 0; i < elementCount; i++) {
+            action.accept((T)content[i]);
+        }
+        for (int i = elementCount; i < content.length; i++) {
+            ((SetNode<T>)content[i]).forEach(action);
+        }
+    }
+
+    @Override
+    public int assertValidAndComputeSize(final int depth, final int path) {
+        assertThat("depth must be less than 7", depth < 7);
+        assertThat("data and node maps must not overlap", (dataMap & nodeMap) == 0);
+        assertEqual("content length must match the maps", Integer.bitCount(dataMap) + Integer.bitCount(nodeMap), content.length);
+        assertThat("node must not be empty", content.length > 0);
+        assertThat("a node below the root must hold more than one element", depth == 0 || !isSingleElement());
+        int size = 0;
+        int dataIndex = 0;
+        int childIndex = Integer.bitCount(dataMap);
+        for (int remaining = dataMap | nodeMap; remaining != 0; remaining &= remaining - 1) {
+            final int bit = remaining & -remaining;
+            final int childPath = path | ((Integer.numberOfTrailingZeros(bit) << 27) >>> (5 * depth));
+            if ((dataMap & bit) != 0) {
+                final Object element = content[dataIndex++];
+                assertNotNull("element must not be null", element);
+                assertThat("element must not be a node", !(element instanceof SetNode));
+                assertEqualBinary("element must be at its hash prefix", childPath, computeSmearHash(element) & pathMask(depth + 1));
+                size++;
+            } else {
+                final Object child = content[childIndex++];
+                assertThat("child must be a node", child instanceof SetNode);
+                size += ((SetNode<?>)child).assertValidAndComputeSize(depth + 1, childPath);
+            }
+        }
+        return size;
+    }
+
+}
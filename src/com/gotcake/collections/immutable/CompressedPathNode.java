@@ -0,0 +1,343 @@
+package com.gotcake.collections.immutable;
+
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import static com.gotcake.collections.immutable.Util.*;
+
+/**
+ * Replaces a chain of PackedArrayDualNodes below the root which each hold a single child, as created for keys sharing a
+ * long hash prefix. It stores the bits of the prefix the chain consumed and the number of levels it spans, so a lookup
+ * checks them in one comparison and jumps to the node at the end of the chain.
+ * The chain is split where a new key's prefix diverges from it, and is extended again when a node below it is left
+ * with a single child. Operations over whole subtrees are done on an expanded copy of the first level, which
+ * re-compresses its result.
+ * @author Aaron Cake
+ */
+final class CompressedPathNode<K, V> implements Node<K, V> {
+
+    /**
+     * The prefix bits consumed by the chain, at the top of the int, followed by zeros
+     */
+    final int skippedPrefix;
+    /**
+     * The number of 5 bit levels the chain spans, between 1 and 6, since it never starts at the root
+     */
+    final int levels;
+    Node<K, V> child;
+    final EditOwner owner;
+
+    CompressedPathNode(final EditOwner owner, final int skippedPrefix, final int levels, final Node<K, V> child) {
+        this.owner = owner;
+        this.skippedPrefix = skippedPrefix;
+        this.levels = levels;
+        this.child = child;
+    }
+
+    /**
+     * Creates the node standing in for a node below the root whose only slot is the child at bitIndex,
+     * absorbing the child if it is a compressed path itself
+     */
+    static <K, V> Node<K, V> compress(final EditOwner owner, final int bitIndex, final Node<K, V> child) {
+        if (child instanceof CompressedPathNode) {
+            final CompressedPathNode<K, V> path = (CompressedPathNode<K, V>)child;
+            return new CompressedPathNode<>(owner, (bitIndex << 27) | (path.skippedPrefix >>> 5), path.levels + 1, path.child);
+        }
+        return new CompressedPathNode<>(owner, bitIndex << 27, 1, child);
+    }
+
+    private static int levelMask(final int levels) {
+        return -1 << (32 - 5 * levels);
+    }
+
+    /**
+     * Gets the first level at which the prefix leaves the chain, or levels if it follows the whole chain
+     */
+    private int divergingLevel(final int prefix) {
+        final int diff = (prefix ^ skippedPrefix) & levelMask(levels);
+        return diff == 0 ? levels : Integer.numberOfLeadingZeros(diff) / 5;
+    }
+
+    /**
+     * Checks if a prefix at the depth of this node follows the whole path. Parents check this themselves and descend
+     * straight to the child, so their call to get only ever sees the node types which end a path.
+     */
+    boolean isFollowedBy(final int prefix) {
+        return ((prefix ^ skippedPrefix) & levelMask(levels)) == 0;
+    }
+
+    @Override
+    public V get(K key, int prefix, HashStrategy<? super K> equivalence) {
+        if (!isFollowedBy(prefix)) {
+            return null;
+        }
+        return child.get(key, prefix << (5 * levels), equivalence);
+    }
+
+    @Override
+    public Node<K, V> set(EditOwner owner, K key, V value, int prefix, int depth, SizeChangeSink size, HashStrategy<? super K> equivalence) {
+        final int level = divergingLevel(prefix);
+        if (level < levels) {
+            size.sizeChange++;
+            size.hashChange += entryHash(key, value, equivalence);
+            return nodeBySplitting(owner, level, key, value, prefix);
+        }
+        return nodeByReplacingChild(owner, child.set(owner, key, value, prefix << (5 * levels), depth + levels, size, equivalence));
+    }
+
+    @Override
+    public Node<K, V> setIfExists(K key, V value, int prefix, int depth, SizeChangeSink size, HashStrategy<? super K> equivalence) {
+        if (divergingLevel(prefix) < levels) {
+            return this;
+        }
+        return nodeByReplacingChild(null, child.setIfExists(key, value, prefix << (5 * levels), depth + levels, size, equivalence));
+    }
+
+    @Override
+    public Node<K, V> setIfNotExists(K key, V value, int prefix, int depth, HashStrategy<? super K> equivalence) {
+        final int level = divergingLevel(prefix);
+        if (level < levels) {
+            return nodeBySplitting(null, level, key, value, prefix);
+        }
+        return nodeByReplacingChild(null, child.setIfNotExists(key, value, prefix << (5 * levels), depth + levels, equivalence));
+    }
+
+    @Override
+    public Node<K, V> delete(EditOwner owner, K key, int prefix, int depth, SizeChangeSink size, HashStrategy<? super K> equivalence) {
+        if (divergingLevel(prefix) < levels) {
+            return this;
+        }
+        return nodeByReplacingChild(owner, child.delete(owner, key, prefix << (5 * levels), depth + levels, size, equivalence));
+    }
+
+    @Override
+    public Node<K, V> update(EditOwner owner, K key, int prefix, int depth, BiFunction<? super K, ? super V, ? extends V> updateFn, SizeChangeSink size, HashStrategy<? super K> equivalence) {
+        final int level = divergingLevel(prefix);
+        if (level < levels) {
+            final V newValue = updateFn.apply(key, null);
+            if (newValue == null) {
+                return this;
+            }
+            size.sizeChange++;
+            size.hashChange += entryHash(key, newValue, equivalence);
+            return nodeBySplitting(owner, level, key, newValue, prefix);
+        }
+        return nodeByReplacingChild(owner, child.update(owner, key, prefix << (5 * levels), depth + levels, updateFn, size, equivalence));
+    }
+
+    /**
+     * Expands the chain at the level where the key's prefix leaves it, into a node holding the new entry
+     * and the rest of the chain, below what is left of the chain above it
+     */
+    private Node<K, V> nodeBySplitting(final EditOwner owner, final int level, final K key, final V value, final int prefix) {
+        final int entryPrefix = prefix << (5 * level);
+        final int chainPrefix = skippedPrefix << (5 * level);
+        final int remainingLevels = levels - level - 1;
+        final Node<K, V> rest = remainingLevels == 0
+                ? child
+                : new CompressedPathNode<>(owner, chainPrefix << 5, remainingLevels, child);
+        final int entryBitIndex = entryPrefix >>> 27;
+        final int chainBitIndex = chainPrefix >>> 27;
+        final Object[] packedArray;
+        final int[] hashPrefixes;
+        if (entryBitIndex < chainBitIndex) {
+            packedArray = new Object[]{ key, value, null, rest };
+            hashPrefixes = new int[]{ entryPrefix, 0 };
+        } else {
+            packedArray = new Object[]{ null, rest, key, value };
+            hashPrefixes = new int[]{ 0, entryPrefix };
+        }
+        final Node<K, V> branch = NodeFactory.createPackedNode(owner, (1 << entryBitIndex) | (1 << chainBitIndex), packedArray, hashPrefixes);
+        if (level == 0) {
+            return branch;
+        }
+        return new CompressedPathNode<>(owner, skippedPrefix & levelMask(level), level, branch);
+    }
+
+    /**
+     * Puts the result of an operation on the child below this chain, collapsing a lone entry out of it,
+     * and absorbing the child if it became a compressed path itself
+     */
+    private Node<K, V> nodeByReplacingChild(final EditOwner owner, final Node<K, V> newChild) {
+        if (newChild == child) {
+            // child did not change or was edited in place, return this
+            return this;
+        }
+        if (newChild == null) {
+            return null;
+        }
+        if (newChild instanceof SingleEntryNode) {
+            final SingleEntryNode<K, V> entry = (SingleEntryNode<K, V>)newChild;
+            return new SingleEntryNode<>(entry.key, entry.value, skippedPrefix | (entry.prefix >>> (5 * levels)));
+        }
+        if (newChild instanceof CompressedPathNode) {
+            final CompressedPathNode<K, V> path = (CompressedPathNode<K, V>)newChild;
+            return new CompressedPathNode<>(owner, skippedPrefix | (path.skippedPrefix >>> (5 * levels)),
+                    levels + path.levels, path.child);
+        }
+        if (owner != null && owner == this.owner) {
+            child = newChild;
+            return this;
+        }
+        return new CompressedPathNode<>(owner, skippedPrefix, levels, newChild);
+    }
+
+    /**
+     * Copies the first level of the chain into a PackedArrayDualNode with a single child
+     */
+    PackedArrayDualNode<K, V> expand() {
+        final Node<K, V> rest = levels == 1 ? child : new CompressedPathNode<>(null, skippedPrefix << 5, levels - 1, child);
+        return new PackedArrayDualNode<>(null, skippedPrefix >>> 27, rest);
+    }
+
+    /**
+     * Gets the result of an operation on the expanded copy of this node, which is this node if nothing changed
+     */
+    private Node<K, V> resultOf(final PackedArrayDualNode<K, V> expanded, final Node<K, V> result) {
+        return result == expanded ? this : result;
+    }
+
+    /**
+     * Checks if the other node is a chain over the same prefix bits, so the nodes below both chains can be combined directly
+     */
+    private boolean isSamePath(final Node<?, ?> other) {
+        if (!(other instanceof CompressedPathNode)) {
+            return false;
+        }
+        final CompressedPathNode<?, ?> that = (CompressedPathNode<?, ?>)other;
+        return that.levels == levels && that.skippedPrefix == skippedPrefix;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Node<K, V> merge(Node<K, V> other, int depth, BiFunction<? super V, ? super V, ? extends V> resolver, SizeChangeSink size) {
+        if (other == this) {
+            return this;
+        }
+        if (isSamePath(other)) {
+            final CompressedPathNode<K, V> that = (CompressedPathNode<K, V>)other;
+            final Node<K, V> merged = child.merge(that.child, depth + levels, resolver, size);
+            return merged == that.child ? that : nodeByReplacingChild(null, merged);
+        }
+        final PackedArrayDualNode<K, V> expanded = expand();
+        return resultOf(expanded, expanded.merge(other, depth, resolver, size));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void diff(Node<K, V> other, int depth, ImmutableMap.DiffVisitor<? super K, ? super V> visitor) {
+        if (other == this) {
+            return;
+        }
+        if (isSamePath(other)) {
+            child.diff(((CompressedPathNode<K, V>)other).child, depth + levels, visitor);
+        } else {
+            expand().diff(other, depth, visitor);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Node<K, V> intersect(Node<K, ?> other, int depth, SizeChangeSink size) {
+        if (isSamePath(other)) {
+            return nodeByReplacingChild(null, child.intersect(((CompressedPathNode<K, ?>)other).child, depth + levels, size));
+        }
+        final PackedArrayDualNode<K, V> expanded = expand();
+        return resultOf(expanded, expanded.intersect(other, depth, size));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Node<K, V> subtract(Node<K, ?> other, int depth, SizeChangeSink size) {
+        if (isSamePath(other)) {
+            return nodeByReplacingChild(null, child.subtract(((CompressedPathNode<K, ?>)other).child, depth + levels, size));
+        }
+        final PackedArrayDualNode<K, V> expanded = expand();
+        return resultOf(expanded, expanded.subtract(other, depth, size));
+    }
+
+    @Override
+    public Node<K, V> updateAll(int depth, BiFunction<? super K, ? super V, ? extends V> updateFn, SizeChangeSink size) {
+        return nodeByReplacingChild(null, child.updateAll(depth + levels, updateFn, size));
+    }
+
+    @Override
+    public <R> Node<K, R> mapValues(Function<? super V, ? extends R> mapperFn) {
+        return new CompressedPathNode<>(null, skippedPrefix, levels, child.mapValues(mapperFn));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Node<K, V> replaceSlots(Object[] slots, int depth) {
+        return nodeByReplacingChild(null, (Node<K, V>)slots[1]);
+    }
+
+    @Override
+    public int computeSize() {
+        return child.computeSize();
+    }
+
+    @Override
+    public void forEachEntry(BiConsumer<? super K, ? super V> action) {
+        child.forEachEntry(action);
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        return child.containsValue(value);
+    }
+
+    /**
+     * A compressed path has a single slot holding the node at the end of the chain
+     */
+    @Override
+    public int slotCount() {
+        return 1;
+    }
+
+    @Override
+    public Object slotKey(int slot) {
+        return null;
+    }
+
+    @Override
+    public Object slotValue(int slot) {
+        return child;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof CompressedPathNode)) return false;
+        final CompressedPathNode<?, ?> that = (CompressedPathNode<?, ?>)o;
+        return isSamePath(that) && child.equals(that.child);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = skippedPrefix;
+        result = result * 31 + levels;
+        result = result * 31 + child.hashCode();
+        return result;
+    }
+
+    @Override
+    public int assertValidAndComputeSize(int suffix, int depth) {
+        assertThat("a compressed path must not start at the root", depth > 0);
+        assertThat("a compressed path must span at least one level", levels > 0);
+        assertThat("a compressed path must not go past the collision nodes", depth + levels <= 7);
+        assertEqualBinary("bits past the end of the path must be 0", 0, skippedPrefix & ~levelMask(levels));
+        assertNotNull("child must not be null", child);
+        if (depth + levels == 7) {
+            assertValidType("child", child, false, PackedArrayCollisionNode.class);
+        } else if (!(child instanceof FixedArityNode)) {
+            assertValidType("child", child, false, PackedArrayDualNode.class, ArrayNode.class);
+        }
+        for (int level = 0; level < levels; level++) {
+            suffix = computeChildHashSuffix(suffix, (skippedPrefix << (5 * level)) >>> 27, depth + level);
+        }
+        return child.assertValidAndComputeSize(suffix, depth + levels);
+    }
+
+}
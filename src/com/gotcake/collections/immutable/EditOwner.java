@@ -0,0 +1,11 @@
+package com.gotcake.collections.immutable;
+
+/**
+ * A token identifying the transient batch that owns a node. Nodes created while a batch is open carry that batch's
+ * token and may be changed in place by it; every other node is copied on write as usual.
+ * Once the batch is made persistent its token is discarded, so the nodes it created can never be edited again.
+ * @author Aaron Cake
+ */
+final class EditOwner {
+
+}
@@ -30,6 +30,11 @@ final class EmptyImmutableMap<K, V> implements ImmutableMap<K, V> {
         return Iterators.empty();
     }
 
+    @Override
+    public MapCursor<K, V> cursor() {
+        return Iterators.emptyCursor();
+    }
+
     @Override
     public Iterator<K> keyIterator() {
         return Iterators.empty();
@@ -111,11 +116,29 @@ final class EmptyImmutableMap<K, V> implements ImmutableMap<K, V> {
         return Spliterators.emptySpliterator();
     }
 
+    public Spliterator<Map.Entry<K, V>> entrySpliterator() {
+        return Spliterators.emptySpliterator();
+    }
+
     @Override
     public ImmutableMap<K, V> set(final K key, final V value) {
         return ImmutableMap.of(key, value);
     }
 
+    @Override
+    public ImmutableMap<K, V> setAll(final Map<? extends K, ? extends V> sourceMap) {
+        return ImmutableMap.of(sourceMap);
+    }
+
+    @Override
+    public ImmutableMap<K, V> merge(final ImmutableMap<K, V> other,
+                                    final BiFunction<? super V, ? super V, ? extends V> resolver) {
+        if (resolver == null) {
+            throw new NullPointerException();
+        }
+        return other;
+    }
+
     @Override
     public ImmutableMap<K, V> setIfAbsent(final K key, final V value) {
         return ImmutableMap.of(key, value);
@@ -0,0 +1,320 @@
+package com.gotcake.collections.immutable;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static com.gotcake.collections.immutable.Util.*;
+
+/**
+ * An ImmutableMap with a {@link LookupFilter} over its keys, made by {@link ImmutableMap#withLookupFilter()}.
+ * get, getOrDefault, containsKey and containsEntry check the filter first, so most keys which are not in the map
+ * are rejected without reading the map at all. Everything else goes straight to the map.
+ * <p>
+ * The filter is shared across versions for as long as it still covers every key:
+ * <ul>
+ *     <li>Deleting keys and changing values keep the filter, since it may let through keys which are gone, but
+ *     never rejects a key which is there. Once the map is down to a quarter of the keys the filter was built for,
+ *     it is rebuilt to give back the memory.</li>
+ *     <li>New keys are collected in a set of keys added since the filter was built, which is checked after the
+ *     filter. Once that set holds more than an eighth of the keys the filter was built for, the filter is rebuilt
+ *     over all the keys, so the rebuilds cost a constant amount per key added.</li>
+ * </ul>
+ * @author Aaron Cake
+ */
+final class FilteredImmutableMap<K, V> implements ImmutableMap<K, V>, Validatable {
+
+    final ImmutableMap<K, V> map;
+    final LookupFilter filter;
+
+    /**
+     * The keys set since the filter was built, which may include keys that have been deleted since
+     */
+    final ImmutableSet<K> added;
+
+    FilteredImmutableMap(final ImmutableMap<K, V> map, final LookupFilter filter, final ImmutableSet<K> added) {
+        this.map = map;
+        this.filter = filter;
+        this.added = added;
+    }
+
+    /**
+     * Builds a filter over the keys of a map
+     * @return the filtered map, or the map itself if it is empty
+     */
+    static <K, V> ImmutableMap<K, V> of(final ImmutableMap<K, V> map) {
+        if (map.isEmpty()) {
+            return map;
+        }
+        return new FilteredImmutableMap<>(map, LookupFilter.ofKeys(map), ImmutableSet.of());
+    }
+
+    private boolean mightContain(final Object key, final int smearHash) {
+        return filter.mightContain(smearHash) || (!added.isEmpty() && added.contains(key));
+    }
+
+    private boolean mightContain(final Object key) {
+        return key != null && mightContain(key, computeSmearHash(key));
+    }
+
+    /**
+     * Wraps the result of a write to the map, reusing this map if nothing changed. The keys the write may have
+     * added are collected, and keys which were already in the map may be passed too, since they only bring the
+     * next rebuild forward.
+     */
+    ImmutableMap<K, V> derive(final ImmutableMap<K, V> newMap, final Collection<? extends K> addedKeys) {
+        if (newMap == map) {
+            return this;
+        }
+        if (newMap.isEmpty()) {
+            return newMap;
+        }
+        if (newMap.size() < filter.keyCount / 4 || added.size() + addedKeys.size() > filter.keyCount / 8) {
+            return of(newMap);
+        }
+        return new FilteredImmutableMap<>(newMap, filter, addedKeys.isEmpty() ? added : added.insertAll(addedKeys));
+    }
+
+    private ImmutableMap<K, V> withKeysRemoved(final ImmutableMap<K, V> newMap) {
+        return derive(newMap, Collections.emptyList());
+    }
+
+    private ImmutableMap<K, V> withKeyAdded(final ImmutableMap<K, V> newMap, final K key) {
+        return derive(newMap, newMap.size() > map.size() ? Collections.singletonList(key) : Collections.emptyList());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> ImmutableMap<K, V> unwrap(final ImmutableMap<K, V> other) {
+        return other instanceof FilteredImmutableMap ? ((FilteredImmutableMap<K, V>)other).map : other;
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return false;
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return mightContain(key) && map.containsKey(key);
+    }
+
+    @Override
+    public boolean containsEntry(final K key, final V value) {
+        return mightContain(key) && map.containsEntry(key, value);
+    }
+
+    @Override
+    public boolean containsValue(final Object value) {
+        return map.containsValue(value);
+    }
+
+    @Override
+    public V get(final Object key) {
+        return mightContain(key) ? map.get(key) : null;
+    }
+
+    @Override
+    public V get(final HashedKey<? extends K> key) {
+        if (!key.isHashedBy(HashStrategies.STANDARD)) {
+            return get((Object)key.key);
+        }
+        return mightContain(key.key, key.hash) ? map.get(key) : null;
+    }
+
+    @Override
+    public V getOrDefault(final Object key, final V defaultValue) {
+        return mightContain(key) ? map.getOrDefault(key, defaultValue) : defaultValue;
+    }
+
+    @Override
+    public ImmutableMap<K, V> withLookupFilter() {
+        return this;
+    }
+
+    /**
+     * Freezes the map, keeping the filter since the keys are the same
+     */
+    @Override
+    public ImmutableMap<K, V> freeze() {
+        final ImmutableMap<K, V> frozen = map.freeze();
+        return frozen == map ? this : new FilteredImmutableMap<>(frozen, filter, added);
+    }
+
+    @Override
+    public ImmutableMap<K, V> thaw() {
+        final ImmutableMap<K, V> thawed = map.thaw();
+        return thawed == map ? this : new FilteredImmutableMap<>(thawed, filter, added);
+    }
+
+    @Override
+    public ImmutableMap<K, V> set(final K key, final V value) {
+        return withKeyAdded(map.set(key, value), key);
+    }
+
+    @Override
+    public ImmutableMap<K, V> setIfAbsent(final K key, final V value) {
+        return withKeyAdded(map.setIfAbsent(key, value), key);
+    }
+
+    @Override
+    public ImmutableMap<K, V> setIfPresent(final K key, final V value) {
+        return withKeysRemoved(map.setIfPresent(key, value));
+    }
+
+    @Override
+    public ImmutableMap<K, V> update(final K key, final BiFunction<? super K, ? super V, ? extends V> mapperFn) {
+        return withKeyAdded(map.update(key, mapperFn), key);
+    }
+
+    @Override
+    public ImmutableMap<K, V> delete(final K key) {
+        return withKeysRemoved(map.delete(key));
+    }
+
+    @Override
+    public ImmutableMap<K, V> deleteAll(final Collection<? extends K> keys) {
+        return withKeysRemoved(map.deleteAll(keys));
+    }
+
+    @Override
+    public ImmutableMap<K, V> setAll(final Map<? extends K, ? extends V> sourceMap) {
+        return derive(map.setAll(sourceMap), sourceMap.keySet());
+    }
+
+    @Override
+    public ImmutableMap<K, V> merge(final ImmutableMap<K, V> other,
+                                    final BiFunction<? super V, ? super V, ? extends V> resolver) {
+        return derive(map.merge(unwrap(other), resolver), other.keySet());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public ImmutableMap<K, V> intersect(final ImmutableMap<? extends K, ?> other) {
+        return withKeysRemoved(map.intersect(unwrap((ImmutableMap<K, Object>)other)));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public ImmutableMap<K, V> subtract(final ImmutableMap<? extends K, ?> other) {
+        return withKeysRemoved(map.subtract(unwrap((ImmutableMap<K, Object>)other)));
+    }
+
+    @Override
+    public void diff(final ImmutableMap<K, V> other, final DiffVisitor<? super K, ? super V> visitor) {
+        map.diff(unwrap(other), visitor);
+    }
+
+    @Override
+    public ImmutableMap<K, V> updateAll(final BiFunction<? super K, ? super V, ? extends V> mapperFn) {
+        return withKeysRemoved(map.updateAll(mapperFn));
+    }
+
+    @Override
+    public ImmutableMap<K, V> parallelUpdateAll(final BiFunction<? super K, ? super V, ? extends V> mapperFn) {
+        return withKeysRemoved(map.parallelUpdateAll(mapperFn));
+    }
+
+    @Override
+    public <R> ImmutableMap<K, R> mapValues(final Function<? super V, ? extends R> mapperFn) {
+        return new FilteredImmutableMap<>(map.mapValues(mapperFn), filter, added);
+    }
+
+    @Override
+    public TransientMap<K, V> toTransient() {
+        return new TransientFilteredMap<>(this);
+    }
+
+    @Override
+    public void forEach(final BiConsumer<? super K, ? super V> action) {
+        map.forEach(action);
+    }
+
+    @Override
+    public void forEachKey(final Consumer<? super K> action) {
+        map.forEachKey(action);
+    }
+
+    @Override
+    public void forEachValue(final Consumer<? super V> action) {
+        map.forEachValue(action);
+    }
+
+    @Override
+    public void parallelForEach(final BiConsumer<? super K, ? super V> action) {
+        map.parallelForEach(action);
+    }
+
+    @Override
+    public <R> R parallelReduce(final R identity, final BiFunction<? super K, ? super V, ? extends R> mapper,
+                                final BinaryOperator<R> combiner) {
+        return map.parallelReduce(identity, mapper, combiner);
+    }
+
+    @Override
+    public Iterator<K> keyIterator() {
+        return map.keyIterator();
+    }
+
+    @Override
+    public Iterator<V> valueIterator() {
+        return map.valueIterator();
+    }
+
+    @Override
+    public Iterator<Map.Entry<K, V>> entryIterator() {
+        return map.entryIterator();
+    }
+
+    @Override
+    public MapCursor<K, V> cursor() {
+        return map.cursor();
+    }
+
+    @Override
+    public Spliterator<K> keySpliterator() {
+        return map.keySpliterator();
+    }
+
+    @Override
+    public Spliterator<V> valueSpliterator() {
+        return map.valueSpliterator();
+    }
+
+    @Override
+    public Spliterator<Map.Entry<K, V>> entrySpliterator() {
+        return map.entrySpliterator();
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        return other == this || map.equals(other instanceof FilteredImmutableMap ? ((FilteredImmutableMap<?, ?>)other).map : other);
+    }
+
+    @Override
+    public int hashCode() {
+        return map.hashCode();
+    }
+
+    @Override
+    public void assertValid() {
+        Validatable.tryAssertValid(map);
+        assertThat("a filtered map must not be empty", !map.isEmpty());
+        final MapCursor<K, V> cursor = map.cursor();
+        while (cursor.advance()) {
+            assertThat("the filter must not reject a key of the map", mightContain(cursor.key()));
+        }
+    }
+
+}
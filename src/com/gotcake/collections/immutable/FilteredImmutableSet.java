@@ -0,0 +1,170 @@
+package com.gotcake.collections.immutable;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import static com.gotcake.collections.immutable.Util.*;
+
+/**
+ * An ImmutableSet with a {@link LookupFilter} over its elements, made by {@link ImmutableSet#withLookupFilter()}.
+ * contains checks the filter first, and everything else goes straight to the set. The filter is carried over to
+ * derived sets and rebuilt the same way as in FilteredImmutableMap.
+ * @author Aaron Cake
+ */
+final class FilteredImmutableSet<T> extends AbstractImmutableSet<T> implements Validatable {
+
+    final ImmutableSet<T> set;
+    final LookupFilter filter;
+
+    /**
+     * The elements inserted since the filter was built, which may include elements that have been deleted since
+     */
+    final ImmutableSet<T> added;
+
+    private FilteredImmutableSet(final ImmutableSet<T> set, final LookupFilter filter, final ImmutableSet<T> added) {
+        this.set = set;
+        this.filter = filter;
+        this.added = added;
+    }
+
+    /**
+     * Builds a filter over the elements of a set
+     * @return the filtered set, or the set itself if it is empty
+     */
+    static <T> ImmutableSet<T> of(final ImmutableSet<T> set) {
+        if (set.isEmpty()) {
+            return set;
+        }
+        return new FilteredImmutableSet<>(set, LookupFilter.ofElements(set), ImmutableSet.of());
+    }
+
+    /**
+     * Wraps the result of a change to the set, reusing this set if nothing changed. See FilteredImmutableMap.derive.
+     */
+    private ImmutableSet<T> derive(final ImmutableSet<T> newSet, final Collection<? extends T> addedElements) {
+        if (newSet == set) {
+            return this;
+        }
+        if (newSet.isEmpty()) {
+            return newSet;
+        }
+        if (newSet.size() < filter.keyCount / 4 || added.size() + addedElements.size() > filter.keyCount / 8) {
+            return of(newSet);
+        }
+        return new FilteredImmutableSet<>(newSet, filter,
+                addedElements.isEmpty() ? added : added.insertAll(addedElements));
+    }
+
+    private ImmutableSet<T> withElementsRemoved(final ImmutableSet<T> newSet) {
+        return derive(newSet, Collections.emptyList());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> ImmutableSet<T> unwrap(final ImmutableSet<T> other) {
+        return other instanceof FilteredImmutableSet ? ((FilteredImmutableSet<T>)other).set : other;
+    }
+
+    @Override
+    public int size() {
+        return set.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return false;
+    }
+
+    @Override
+    public boolean contains(final Object o) {
+        return o != null
+                && (filter.mightContain(computeSmearHash(o)) || (!added.isEmpty() && added.contains(o)))
+                && set.contains(o);
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return set.iterator();
+    }
+
+    @Override
+    public Spliterator<T> spliterator() {
+        return set.spliterator();
+    }
+
+    @Override
+    public void forEach(final Consumer<? super T> action) {
+        set.forEach(action);
+    }
+
+    @Override
+    public ImmutableSet<T> withLookupFilter() {
+        return this;
+    }
+
+    @Override
+    public ImmutableSet<T> insert(final T element) {
+        final ImmutableSet<T> newSet = set.insert(element);
+        return derive(newSet, newSet.size() > set.size() ? Collections.singletonList(element) : Collections.emptyList());
+    }
+
+    @Override
+    public ImmutableSet<T> delete(final T element) {
+        return withElementsRemoved(set.delete(element));
+    }
+
+    @Override
+    public ImmutableSet<T> filter(final Predicate<T> predicate) {
+        return withElementsRemoved(set.filter(predicate));
+    }
+
+    @Override
+    public ImmutableSet<T> insertAll(final Collection<? extends T> elements) {
+        return derive(set.insertAll(elements), elements);
+    }
+
+    @Override
+    public ImmutableSet<T> deleteAll(final Collection<? extends T> elements) {
+        return withElementsRemoved(set.deleteAll(elements));
+    }
+
+    @Override
+    public ImmutableSet<T> keepAll(final Collection<? extends T> elements) {
+        return withElementsRemoved(set.keepAll(elements));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public ImmutableSet<T> intersect(final ImmutableSet<? extends T> other) {
+        return withElementsRemoved(set.intersect(unwrap((ImmutableSet<T>)other)));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public ImmutableSet<T> subtract(final ImmutableSet<? extends T> other) {
+        return withElementsRemoved(set.subtract(unwrap((ImmutableSet<T>)other)));
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        return o == this || set.equals(o instanceof FilteredImmutableSet ? ((FilteredImmutableSet<?>)o).set : o);
+    }
+
+    @Override
+    public int hashCode() {
+        return set.hashCode();
+    }
+
+    @Override
+    public void assertValid() {
+        Validatable.tryAssertValid(set);
+        assertThat("a filtered set must not be empty", !set.isEmpty());
+        for (final T element: set) {
+            assertThat("the filter must not reject an element of the set", contains(element));
+        }
+    }
+
+}
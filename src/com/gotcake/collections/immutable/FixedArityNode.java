@@ -0,0 +1,257 @@
+package com.gotcake.collections.immutable;
+
+import java.util.Objects;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * The base of the generated Node1...NodeN classes, which hold the slots of a small PackedArrayDualNode in fields instead
+ * of arrays, saving the array headers and a pointer hop per slot access.
+ * The generated classes only implement the reads. Every operation which changes a node is done on an expanded copy
+ * in a PackedArrayDualNode, which creates its results through NodeFactory, so small results are specialized again.
+ * These nodes are never owned by a transient batch, so a batch always replaces them with PackedArrayDualNodes it can edit.
+ * @see GenerateFixedArityNodes
+ * @author Aaron Cake
+ */
+abstract class FixedArityNode<K, V> implements Node<K, V> {
+
+    final int mask;
+
+    FixedArityNode(final int mask) {
+        this.mask = mask;
+    }
+
+    /**
+     * Gets the hash prefix of the key in the given slot, or 0 if the slot holds a child
+     */
+    abstract int slotPrefix(int slot);
+
+    /**
+     * Looks up a key in a single slot of a node, descending into the slot if it holds a child
+     */
+    @SuppressWarnings("unchecked")
+    static <K, V> V getInSlot(final Object slotKey, final Object slotValue, final int slotPrefix,
+                              final K key, final int prefix, final HashStrategy<? super K> equivalence) {
+        if (slotKey == null) {
+            Node<K, V> child = (Node<K, V>)slotValue;
+            int childPrefix = prefix << 5;
+            if (child instanceof CompressedPathNode) {
+                final CompressedPathNode<K, V> path = (CompressedPathNode<K, V>)child;
+                if (!path.isFollowedBy(childPrefix)) {
+                    return null;
+                }
+                childPrefix <<= 5 * path.levels;
+                child = path.child;
+            }
+            return child.get(key, childPrefix, equivalence);
+        }
+        if (slotPrefix == prefix && Util.keysEqual(slotKey, key, equivalence)) {
+            return (V)slotValue;
+        }
+        return null;
+    }
+
+    /**
+     * Copies this node into a PackedArrayDualNode with the same slots
+     */
+    PackedArrayDualNode<K, V> expand() {
+        final int count = slotCount();
+        final Object[] packedArray = new Object[count * 2];
+        final int[] hashPrefixes = new int[count];
+        for (int slot = 0; slot < count; slot++) {
+            packedArray[slot * 2] = slotKey(slot);
+            packedArray[slot * 2 + 1] = slotValue(slot);
+            hashPrefixes[slot] = slotPrefix(slot);
+        }
+        return new PackedArrayDualNode<>(null, mask, packedArray, hashPrefixes);
+    }
+
+    /**
+     * Gets the result of an operation on the expanded copy of this node, which is this node if nothing changed
+     */
+    private Node<K, V> resultOf(final PackedArrayDualNode<K, V> expanded, final Node<K, V> result) {
+        return result == expanded ? this : result;
+    }
+
+    @Override
+    public Node<K, V> set(EditOwner owner, K key, V value, int prefix, int depth, SizeChangeSink size, HashStrategy<? super K> equivalence) {
+        final PackedArrayDualNode<K, V> expanded = expand();
+        return resultOf(expanded, expanded.set(owner, key, value, prefix, depth, size, equivalence));
+    }
+
+    @Override
+    public Node<K, V> setIfExists(K key, V value, int prefix, int depth, SizeChangeSink size, HashStrategy<? super K> equivalence) {
+        final PackedArrayDualNode<K, V> expanded = expand();
+        return resultOf(expanded, expanded.setIfExists(key, value, prefix, depth, size, equivalence));
+    }
+
+    @Override
+    public Node<K, V> setIfNotExists(K key, V value, int prefix, int depth, HashStrategy<? super K> equivalence) {
+        final PackedArrayDualNode<K, V> expanded = expand();
+        return resultOf(expanded, expanded.setIfNotExists(key, value, prefix, depth, equivalence));
+    }
+
+    @Override
+    public Node<K, V> delete(EditOwner owner, K key, int prefix, int depth, SizeChangeSink size, HashStrategy<? super K> equivalence) {
+        final PackedArrayDualNode<K, V> expanded = expand();
+        return resultOf(expanded, expanded.delete(owner, key, prefix, depth, size, equivalence));
+    }
+
+    @Override
+    public Node<K, V> update(EditOwner owner, K key, int prefix, int depth, BiFunction<? super K, ? super V, ? extends V> updateFn, SizeChangeSink size, HashStrategy<? super K> equivalence) {
+        final PackedArrayDualNode<K, V> expanded = expand();
+        return resultOf(expanded, expanded.update(owner, key, prefix, depth, updateFn, size, equivalence));
+    }
+
+    @Override
+    public Node<K, V> merge(Node<K, V> other, int depth, BiFunction<? super V, ? super V, ? extends V> resolver, SizeChangeSink size) {
+        if (other == this) {
+            return this;
+        }
+        final PackedArrayDualNode<K, V> expanded = expand();
+        return resultOf(expanded, expanded.merge(other, depth, resolver, size));
+    }
+
+    @Override
+    public void diff(Node<K, V> other, int depth, ImmutableMap.DiffVisitor<? super K, ? super V> visitor) {
+        if (other != this) {
+            expand().diff(other, depth, visitor);
+        }
+    }
+
+    @Override
+    public Node<K, V> intersect(Node<K, ?> other, int depth, SizeChangeSink size) {
+        if (other == this) {
+            size.sizeChange += computeSize();
+            return this;
+        }
+        final PackedArrayDualNode<K, V> expanded = expand();
+        return resultOf(expanded, expanded.intersect(other, depth, size));
+    }
+
+    @Override
+    public Node<K, V> subtract(Node<K, ?> other, int depth, SizeChangeSink size) {
+        if (other == this) {
+            size.sizeChange -= computeSize();
+            return null;
+        }
+        final PackedArrayDualNode<K, V> expanded = expand();
+        return resultOf(expanded, expanded.subtract(other, depth, size));
+    }
+
+    @Override
+    public Node<K, V> updateAll(int depth, BiFunction<? super K, ? super V, ? extends V> updateFn, SizeChangeSink size) {
+        final PackedArrayDualNode<K, V> expanded = expand();
+        return resultOf(expanded, expanded.updateAll(depth, updateFn, size));
+    }
+
+    @Override
+    public <R> Node<K, R> mapValues(Function<? super V, ? extends R> mapperFn) {
+        return expand().mapValues(mapperFn);
+    }
+
+    @Override
+    public Node<K, V> replaceSlots(Object[] slots, int depth) {
+        final PackedArrayDualNode<K, V> expanded = expand();
+        return resultOf(expanded, expanded.replaceSlots(slots, depth));
+    }
+
+    @Override
+    public int computeSize() {
+        int total = 0;
+        for (int slot = 0, count = slotCount(); slot < count; slot++) {
+            if (slotKey(slot) == null) {
+                @SuppressWarnings("unchecked")
+                final Node<K, V> child = (Node<K, V>)slotValue(slot);
+                total += child.computeSize();
+            } else {
+                total++;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public void forEachEntry(BiConsumer<? super K, ? super V> action) {
+        for (int slot = 0, count = slotCount(); slot < count; slot++) {
+            @SuppressWarnings("unchecked")
+            final K keyOrNull = (K)slotKey(slot);
+            if (keyOrNull == null) {
+                @SuppressWarnings("unchecked")
+                final Node<K, V> child = (Node<K, V>)slotValue(slot);
+                child.forEachEntry(action);
+            } else {
+                @SuppressWarnings("unchecked")
+                final V value = (V)slotValue(slot);
+                action.accept(keyOrNull, value);
+            }
+        }
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        for (int slot = 0, count = slotCount(); slot < count; slot++) {
+            final Object valueOrChild = slotValue(slot);
+            if (slotKey(slot) == null) {
+                @SuppressWarnings("unchecked")
+                final Node<K, V> child = (Node<K, V>)valueOrChild;
+                if (child.containsValue(value)) {
+                    return true;
+                }
+            } else if (valueOrChild.equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compares the slots of this node with another node of the PackedArrayDualNode layout, in either representation
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        final Node<?, ?> that;
+        final int thatMask;
+        if (o instanceof FixedArityNode) {
+            thatMask = ((FixedArityNode<?, ?>)o).mask;
+        } else if (o instanceof PackedArrayDualNode) {
+            thatMask = ((PackedArrayDualNode<?, ?>)o).mask;
+        } else {
+            return false;
+        }
+        that = (Node<?, ?>)o;
+        if (mask != thatMask) return false;
+        for (int slot = 0, count = slotCount(); slot < count; slot++) {
+            if (!Objects.equals(slotKey(slot), that.slotKey(slot)) || !Objects.equals(slotValue(slot), that.slotValue(slot))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Computes the same hash as PackedArrayDualNode.hashCode() does for the same slots
+     */
+    @Override
+    public int hashCode() {
+        int result = 1;
+        result = result * 31 + mask;
+        for (int slot = 0, count = slotCount(); slot < count; slot++) {
+            final Object keyOrNull = slotKey(slot);
+            result = result * 31 + (keyOrNull == null ? 0 : keyOrNull.hashCode());
+            result = result * 31 + slotValue(slot).hashCode();
+        }
+        return result;
+    }
+
+    @Override
+    public int assertValidAndComputeSize(int suffix, int depth) {
+        Util.assertThat("a fixed arity node must not have more slots than the largest generated node",
+                slotCount() <= FixedArityNodes.MAX_ARITY);
+        Util.assertEqual("slot count must match set mask bits", Integer.bitCount(mask), slotCount());
+        return expand().assertValidAndComputeSize(suffix, depth);
+    }
+
+}
@@ -0,0 +1,472 @@
+package com.gotcake.collections.immutable;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static com.gotcake.collections.immutable.Util.*;
+
+/**
+ * A read-only map compiled from another map by {@link ImmutableMap#freeze()}, for maps which are built once and
+ * then read many times. The entries are stored in an open addressed table with linear probing, with keys and values
+ * side by side in one flat array, and the smeared hash of each key in a parallel int array. A lookup reads the hash
+ * of its home slot and usually the key beside it, instead of walking a node per level of a trie, and a key is only
+ * compared with equals when its hash matches. The table is never more than half full, so probe sequences stay short.
+ * Writes thaw the map into a trie first, which copies every entry, so a map which is still changing should be
+ * thawed once and frozen again after the changes.
+ * @author Aaron Cake
+ */
+final class FrozenImmutableMap<K, V> implements ImmutableMap<K, V>, Validatable {
+
+    /**
+     * The smeared hash of the key in each slot
+     */
+    final int[] hashes;
+
+    /**
+     * The key and value of each slot side by side, with null for the key of an empty slot
+     */
+    final Object[] table;
+
+    private final int mask;
+    private final int size;
+
+    /**
+     * The sum of the entry hashes, computed while freezing
+     */
+    private final int hash;
+
+    private FrozenImmutableMap(final int[] hashes, final Object[] table, final int size, final int hash) {
+        this.hashes = hashes;
+        this.table = table;
+        this.mask = hashes.length - 1;
+        this.size = size;
+        this.hash = hash;
+    }
+
+    /**
+     * Compiles a map into a table, which must not be empty
+     */
+    static <K, V> FrozenImmutableMap<K, V> copyOf(final ImmutableMap<K, V> map) {
+        final int size = map.size();
+        int capacity = 2;
+        while (capacity < size * 2) {
+            capacity <<= 1;
+        }
+        final int mask = capacity - 1;
+        final int[] hashes = new int[capacity];
+        final Object[] table = new Object[capacity * 2];
+        int hash = 0;
+        final MapCursor<K, V> cursor = map.cursor();
+        while (cursor.advance()) {
+            final K key = cursor.key();
+            final V value = cursor.value();
+            final int smearHash = computeSmearHash(key);
+            int index = smearHash & mask;
+            // the keys are already distinct, so the first empty slot is the right one
+            while (table[index << 1] != null) {
+                index = (index + 1) & mask;
+            }
+            hashes[index] = smearHash;
+            table[index << 1] = key;
+            table[(index << 1) + 1] = value;
+            hash += entryHash(key, value);
+        }
+        return new FrozenImmutableMap<>(hashes, table, size, hash);
+    }
+
+    /**
+     * Finds the slot of a key
+     * @return the slot, or -1 if the key isn't in the map
+     */
+    private int indexOf(final Object key, final int smearHash) {
+        int index = smearHash & mask;
+        Object candidate;
+        while ((candidate = table[index << 1]) != null) {
+            if (hashes[index] == smearHash && candidate.equals(key)) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int indexOf(final Object key) {
+        return key == null ? -1 : indexOf(key, computeSmearHash(key));
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Always returns false since FrozenImmutableMap cannot be empty
+     */
+    @Override
+    public boolean isEmpty() {
+        return false;
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public boolean containsEntry(final K key, final V value) {
+        if (value == null) {
+            return false;
+        }
+        final int index = indexOf(key);
+        return index >= 0 && table[(index << 1) + 1].equals(value);
+    }
+
+    /**
+     * Returns true if the map contains the given value.
+     * WARNING: this executes in linear O(n) time.
+     * @param value the value to search for
+     * @return true if the map contains the value, false otherwise
+     */
+    @Override
+    public boolean containsValue(final Object value) {
+        if (value == null) {
+            return false;
+        }
+        for (int i = 0; i < table.length; i += 2) {
+            if (table[i] != null && table[i + 1].equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(final Object key) {
+        final int index = indexOf(key);
+        return index < 0 ? null : (V)table[(index << 1) + 1];
+    }
+
+    /**
+     * Gets the value with the given key, using the key's hash if it was hashed by the standard strategy
+     * @param key the hashed key
+     * @return the value, or null if no entry exists
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(final HashedKey<? extends K> key) {
+        if (!key.isHashedBy(HashStrategies.STANDARD)) {
+            return get((Object)key.key);
+        }
+        final int index = indexOf(key.key, key.hash);
+        return index < 0 ? null : (V)table[(index << 1) + 1];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V getOrDefault(final Object key, final V defaultValue) {
+        final int index = indexOf(key);
+        return index < 0 ? defaultValue : (V)table[(index << 1) + 1];
+    }
+
+    @Override
+    public ImmutableMap<K, V> freeze() {
+        return this;
+    }
+
+    /**
+     * Builds a trie with the entries of this map
+     * @return the new trie map
+     */
+    @Override
+    public ImmutableMap<K, V> thaw() {
+        return RegularImmutableTrieMap.withRoot(size, buildRoot(), hash, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Node<K, V> buildRoot() {
+        final Object[] keys = new Object[size];
+        final Object[] values = new Object[size];
+        int count = 0;
+        for (int i = 0; i < table.length; i += 2) {
+            if (table[i] != null) {
+                keys[count] = table[i];
+                values[count] = table[i + 1];
+                count++;
+            }
+        }
+        return TrieBuilder.buildRoot(keys, values, null, size, new SizeChangeSink());
+    }
+
+    @Override
+    public ImmutableMap<K, V> set(final K key, final V value) {
+        if (key == null || value == null) { throw new NullPointerException(); }
+        return value.equals(get(key)) ? this : thaw().set(key, value);
+    }
+
+    @Override
+    public ImmutableMap<K, V> setIfAbsent(final K key, final V value) {
+        if (key == null || value == null) { throw new NullPointerException(); }
+        return containsKey(key) ? this : thaw().setIfAbsent(key, value);
+    }
+
+    @Override
+    public ImmutableMap<K, V> setIfPresent(final K key, final V value) {
+        if (key == null || value == null) { throw new NullPointerException(); }
+        final V existingValue = get(key);
+        if (existingValue == null || existingValue.equals(value)) {
+            return this;
+        }
+        return thaw().setIfPresent(key, value);
+    }
+
+    @Override
+    public ImmutableMap<K, V> update(final K key, final BiFunction<? super K, ? super V, ? extends V> mapperFn) {
+        if (key == null || mapperFn == null) throw new NullPointerException();
+        final V oldValue = get(key);
+        final V newValue = mapperFn.apply(key, oldValue);
+        if (newValue == null) {
+            return oldValue == null ? this : thaw().delete(key);
+        }
+        return newValue.equals(oldValue) ? this : thaw().set(key, newValue);
+    }
+
+    @Override
+    public ImmutableMap<K, V> delete(final K key) {
+        return containsKey(key) ? thaw().delete(key) : this;
+    }
+
+    @Override
+    public ImmutableMap<K, V> updateAll(final BiFunction<? super K, ? super V, ? extends V> mapperFn) {
+        if (mapperFn == null) throw new NullPointerException();
+        final ImmutableMap<K, V> thawed = thaw();
+        final ImmutableMap<K, V> result = thawed.updateAll(mapperFn);
+        return result == thawed ? this : result;
+    }
+
+    /**
+     * Computes a new frozen map with the same table as this map, with only the values replaced.
+     * @param mapperFn a function which maps each value, which must not return null
+     * @param <R> the new value type
+     * @return the new map instance
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public <R> ImmutableMap<K, R> mapValues(final Function<? super V, ? extends R> mapperFn) {
+        if (mapperFn == null) throw new NullPointerException();
+        final Object[] newTable = new Object[table.length];
+        int newHash = 0;
+        for (int i = 0; i < table.length; i += 2) {
+            final Object key = table[i];
+            if (key != null) {
+                final R value = mapperFn.apply((V)table[i + 1]);
+                if (value == null) { throw new NullPointerException(); }
+                newTable[i] = key;
+                newTable[i + 1] = value;
+                newHash += entryHash(key, value);
+            }
+        }
+        return new FrozenImmutableMap<>(hashes, newTable, size, newHash);
+    }
+
+    /**
+     * Opens a batch over a trie built from this map. If the batch changes nothing, persistent returns this map.
+     */
+    @Override
+    public TransientMap<K, V> toTransient() {
+        return new TransientTrieMap<>(this, buildRoot(), size, hash, true);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEach(final BiConsumer<? super K, ? super V> action) {
+        for (int i = 0; i < table.length; i += 2) {
+            if (table[i] != null) {
+                action.accept((K)table[i], (V)table[i + 1]);
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEachKey(final Consumer<? super K> action) {
+        for (int i = 0; i < table.length; i += 2) {
+            if (table[i] != null) {
+                action.accept((K)table[i]);
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEachValue(final Consumer<? super V> action) {
+        for (int i = 0; i < table.length; i += 2) {
+            if (table[i] != null) {
+                action.accept((V)table[i + 1]);
+            }
+        }
+    }
+
+    @Override
+    public Iterator<K> keyIterator() {
+        final MapCursor<K, V> cursor = cursor();
+        return new CursorIterator<K>(size) {
+            @Override
+            K read() {
+                cursor.advance();
+                return cursor.key();
+            }
+        };
+    }
+
+    @Override
+    public Iterator<V> valueIterator() {
+        final MapCursor<K, V> cursor = cursor();
+        return new CursorIterator<V>(size) {
+            @Override
+            V read() {
+                cursor.advance();
+                return cursor.value();
+            }
+        };
+    }
+
+    /**
+     * Returns an iterator over all of the entries in this map.
+     * WARNING: This will create a new Map.Entry object for each entry iterated over, use cursor to avoid this.
+     * @return an iterator over entries
+     */
+    @Override
+    public Iterator<Map.Entry<K, V>> entryIterator() {
+        final MapCursor<K, V> cursor = cursor();
+        return new CursorIterator<Map.Entry<K, V>>(size) {
+            @Override
+            Map.Entry<K, V> read() {
+                cursor.advance();
+                return new Entry<>(cursor.key(), cursor.value());
+            }
+        };
+    }
+
+    @Override
+    public MapCursor<K, V> cursor() {
+        return new SlotCursor<>(table);
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        if (this == other) return true;
+        if (!(other instanceof Map)) return false;
+        final Map<?, ?> map = (Map<?, ?>)other;
+        if (size != map.size()) return false;
+        if (other instanceof FrozenImmutableMap && ((FrozenImmutableMap<?, ?>)other).hash != hash) return false;
+        for (int i = 0; i < table.length; i += 2) {
+            if (table[i] != null && !table[i + 1].equals(map.get(table[i]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public void assertValid() {
+        assertEqual("table must hold a key and value per slot", hashes.length * 2, table.length);
+        assertEqual("capacity must be a power of two", 0, hashes.length & mask);
+        assertThat("table must be at most half full", size * 2 <= hashes.length);
+        int count = 0;
+        int computedHash = 0;
+        for (int index = 0; index < hashes.length; index++) {
+            final Object key = table[index << 1];
+            if (key == null) {
+                assertThat("empty slot must not have a value", table[(index << 1) + 1] == null);
+                continue;
+            }
+            assertNotNull("value must not be null", table[(index << 1) + 1]);
+            assertEqualBinary("slot must hold the hash of its key", computeSmearHash(key), hashes[index]);
+            // a probe for the key must reach this slot before an empty one
+            assertEqual("key must be found in its slot", index, indexOf(key, hashes[index]));
+            computedHash += entryHash(key, table[(index << 1) + 1]);
+            count++;
+        }
+        assertEqual("size must match the table", size, count);
+        assertEqualBinary("hash must match the entries", computedHash, hash);
+    }
+
+    /**
+     * Moves through the occupied slots of the table
+     */
+    private static final class SlotCursor<K, V> implements MapCursor<K, V> {
+
+        private final Object[] table;
+        private int offset = -2;
+
+        SlotCursor(final Object[] table) {
+            this.table = table;
+        }
+
+        @Override
+        public boolean advance() {
+            do {
+                offset += 2;
+            } while (offset < table.length && table[offset] == null);
+            if (offset >= table.length) {
+                offset = table.length;
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public K key() {
+            return (K)table[offset];
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V value() {
+            return (V)table[offset + 1];
+        }
+
+    }
+
+    /**
+     * An iterator which reads a known number of items from a cursor
+     */
+    private static abstract class CursorIterator<T> implements Iterator<T> {
+
+        private int remaining;
+
+        CursorIterator(final int size) {
+            this.remaining = size;
+        }
+
+        abstract T read();
+
+        @Override
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        @Override
+        public T next() {
+            if (remaining <= 0) {
+                throw new NoSuchElementException();
+            }
+            remaining--;
+            return read();
+        }
+
+    }
+
+}
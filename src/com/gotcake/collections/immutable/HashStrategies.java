@@ -0,0 +1,52 @@
+package com.gotcake.collections.immutable;
+
+/**
+ * The built in HashStrategies, which compare keys with equals, apart from IDENTITY
+ * @author Aaron Cake
+ */
+enum HashStrategies implements HashStrategy<Object> {
+
+    STANDARD {
+        @Override
+        public int hash(final Object key) {
+            return Util.computeSmearHash(key);
+        }
+    },
+
+    UNMIXED {
+        @Override
+        public int hash(final Object key) {
+            return key.hashCode();
+        }
+    },
+
+    AVALANCHE {
+        @Override
+        public int hash(final Object key) {
+            int h = key.hashCode();
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            h *= 0xc2b2ae35;
+            return h ^ (h >>> 16);
+        }
+    },
+
+    IDENTITY {
+        @Override
+        public int hash(final Object key) {
+            return Util.computeSmearHash(System.identityHashCode(key));
+        }
+
+        @Override
+        public boolean equivalent(final Object key1, final Object key2) {
+            return key1 == key2;
+        }
+    };
+
+    @Override
+    public boolean equivalent(final Object key1, final Object key2) {
+        return key1.equals(key2);
+    }
+
+}
@@ -0,0 +1,80 @@
+package com.gotcake.collections.immutable;
+
+/**
+ * Decides how the keys of a map are hashed and compared. A map takes its strategy when it is created,
+ * and every map derived from it keeps the same strategy.
+ * The hash indexes the trie as it is, 5 bits per level starting from the highest bits, so it should spread its
+ * bits evenly. Keys which are equivalent must have the same hash.
+ * @author Aaron Cake
+ */
+public interface HashStrategy<K> {
+
+    /**
+     * Computes the hash the trie is indexed by
+     * @param key the key, which is never null
+     * @return the hash
+     */
+    int hash(K key);
+
+    /**
+     * Checks if two keys are the same key
+     * @param key1 the first key, which is never null
+     * @param key2 the second key, which is never null
+     * @return true if the keys are equivalent
+     */
+    boolean equivalent(K key1, K key2);
+
+    /**
+     * Hashes a key once, so it can be looked up in many maps of this strategy without hashing it again
+     * @param key the key
+     * @return a handle holding the key and its hash
+     * @throws NullPointerException if key is null
+     */
+    default HashedKey<K> hashed(final K key) {
+        if (key == null) throw new NullPointerException();
+        return new HashedKey<>(key, hash(key), this);
+    }
+
+    /**
+     * Gets the strategy of maps created without one, which mixes hashCode with {@link Util#computeSmearHash(Object)},
+     * and compares keys with equals
+     * @return the standard strategy
+     */
+    @SuppressWarnings("unchecked")
+    static <K> HashStrategy<K> standard() {
+        return (HashStrategy<K>)HashStrategies.STANDARD;
+    }
+
+    /**
+     * Gets a strategy which uses hashCode as it is, and compares keys with equals.
+     * It is cheaper than the standard strategy for keys whose hashCode already spreads its bits evenly,
+     * but keys whose hashes only differ in their low bits, like small Integers, all share the same path.
+     * @return the unmixed strategy
+     */
+    @SuppressWarnings("unchecked")
+    static <K> HashStrategy<K> unmixed() {
+        return (HashStrategy<K>)HashStrategies.UNMIXED;
+    }
+
+    /**
+     * Gets a strategy which mixes hashCode with the finalizer of MurmurHash3, so every bit of hashCode affects
+     * every bit of the hash, and compares keys with equals.
+     * It costs a little more than the standard strategy, and spreads keys with patterned hashes more evenly.
+     * @return the avalanche strategy
+     */
+    @SuppressWarnings("unchecked")
+    static <K> HashStrategy<K> avalanche() {
+        return (HashStrategy<K>)HashStrategies.AVALANCHE;
+    }
+
+    /**
+     * Gets a strategy which hashes keys with System.identityHashCode and compares them with ==, so the keys' own
+     * hashCode and equals are never called. Keys which are equal but not the same object are different keys.
+     * @return the identity strategy
+     */
+    @SuppressWarnings("unchecked")
+    static <K> HashStrategy<K> identity() {
+        return (HashStrategy<K>)HashStrategies.IDENTITY;
+    }
+
+}
@@ -0,0 +1,72 @@
+package com.gotcake.collections.immutable;
+
+/**
+ * A key together with its hash under a {@link HashStrategy}, created with {@link HashStrategy#hashed(Object)}.
+ * Maps of the same strategy accept it in get, set and delete without calling hashCode or mixing the hash again,
+ * which pays off when the same key is looked up in many versions of a map. Maps of another strategy hash the key
+ * as usual.
+ * Two handles are equal if they have the same strategy and their keys are equivalent under it,
+ * and their hashCode is the strategy's hash.
+ * @author Aaron Cake
+ */
+public final class HashedKey<K> {
+
+    final K key;
+    final int hash;
+    final HashStrategy<K> strategy;
+
+    HashedKey(final K key, final int hash, final HashStrategy<K> strategy) {
+        this.key = key;
+        this.hash = hash;
+        this.strategy = strategy;
+    }
+
+    /**
+     * Hashes a key with the standard strategy, see {@link HashStrategy#standard()}
+     * @param key the key
+     * @return a handle holding the key and its hash
+     * @throws NullPointerException if key is null
+     */
+    public static <K> HashedKey<K> of(final K key) {
+        return HashStrategy.<K>standard().hashed(key);
+    }
+
+    public K key() {
+        return key;
+    }
+
+    public int hash() {
+        return hash;
+    }
+
+    public HashStrategy<K> strategy() {
+        return strategy;
+    }
+
+    /**
+     * Checks if the handle was hashed by the given strategy, so its hash can be used as it is
+     */
+    boolean isHashedBy(final HashStrategy<?> strategy) {
+        return this.strategy == strategy;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (!(o instanceof HashedKey)) return false;
+        final HashedKey<?> that = (HashedKey<?>)o;
+        return hash == that.hash && strategy == that.strategy && strategy.equivalent(key, (K)that.key);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return key.toString();
+    }
+
+}
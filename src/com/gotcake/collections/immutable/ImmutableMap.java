@@ -2,6 +2,7 @@ package com.gotcake.collections.immutable;
 
 import java.util.*;
 import java.util.function.*;
+import java.util.stream.StreamSupport;
 
 /**
  * @author Aaron Cake (acake)
@@ -14,10 +15,16 @@ public interface ImmutableMap<K, V> extends Map<K, V> {
     }
 
     static <K, V> ImmutableMap<K, V> of(K key, V value) {
+        if (SmallImmutableMap.enabled) {
+            return SmallImmutableMap.of(key, value);
+        }
         return new RegularImmutableTrieMap<>(key, value);
     }
 
     static <K, V> ImmutableMap<K, V> of(K key1, V value1, K key2, V value2) {
+        if (SmallImmutableMap.enabled) {
+            return SmallImmutableMap.of(key1, value1).set(key2, value2);
+        }
         return new RegularImmutableTrieMap<>(key1, value1, key2, value2);
     }
 
@@ -25,10 +32,126 @@ public interface ImmutableMap<K, V> extends Map<K, V> {
         return of(key1, value1, key2, value2).set(key3, value3);
     }
 
+    /**
+     * Creates an ImmutableMap with all the entries of the given map.
+     * A map of up to 8 entries is stored flat, and a larger trie is built bottom-up, so each node is allocated
+     * once at its final size.
+     * @param map the source map
+     * @return the new map, or the given map if it is already an ImmutableMap which compares keys with equals.
+     * A map with another {@link HashStrategy} is copied, so the result always compares keys with equals.
+     * @throws NullPointerException if a key or value is null
+     */
+    @SuppressWarnings("unchecked")
     static <K, V> ImmutableMap<K, V> of(final Map<? extends K, ? extends V> map) {
+        if (map instanceof ImmutableMap && !(map instanceof StrategyImmutableMap)) {
+            return (ImmutableMap<K, V>)map;
+        }
+        if (map.isEmpty()) {
+            return EmptyImmutableMap.getInstance();
+        }
+        if (SmallImmutableMap.fits(map.size())) {
+            return SmallImmutableMap.copyOf(map);
+        }
         return new RegularImmutableTrieMap<>(map);
     }
 
+    /**
+     * Creates an ImmutableMap from parallel arrays of keys and values.
+     * If a key appears more than once, the last value wins.
+     * Up to 8 entries are stored flat, and a larger trie is built bottom-up, so each node is allocated once at
+     * its final size.
+     * @param keys the keys
+     * @param values the values
+     * @return the new map
+     * @throws IllegalArgumentException if the arrays have different lengths
+     * @throws NullPointerException if a key or value is null
+     */
+    static <K, V> ImmutableMap<K, V> ofArrays(final K[] keys, final V[] values) {
+        if (keys.length != values.length) {
+            throw new IllegalArgumentException("keys and values must have the same length");
+        }
+        if (keys.length == 0) {
+            return EmptyImmutableMap.getInstance();
+        }
+        if (SmallImmutableMap.fits(keys.length)) {
+            return SmallImmutableMap.copyOf(keys, values, keys.length);
+        }
+        return new RegularImmutableTrieMap<>(keys, values, keys.length);
+    }
+
+    /**
+     * Gets an empty map over a 64-way trie, which branches on 6 bits of the hash per level instead of 5.
+     * The trie is at most 6 levels deep, which makes lookups in large maps cheaper and changes more expensive.
+     * Maps derived from it with set, delete and the other single entry operations keep the wide layout.
+     * @return an empty wide map
+     */
+    static <K, V> ImmutableMap<K, V> wide() {
+        return WideImmutableTrieMap.empty();
+    }
+
+    /**
+     * Creates a map over a 64-way trie with all the entries of the given map, see {@link #wide()}
+     * @param map the source map
+     * @return the new map
+     * @throws NullPointerException if a key or value is null
+     */
+    static <K, V> ImmutableMap<K, V> wide(final Map<? extends K, ? extends V> map) {
+        return WideImmutableTrieMap.copyOf(map);
+    }
+
+    /**
+     * Gets an empty map which compares keys by reference, like IdentityHashMap, see {@link HashStrategy#identity()}.
+     * Apart from that it behaves like any other map, and maps derived from it compare keys by reference as well.
+     * Values are still compared with equals, so its hashCode sums System.identityHashCode(key) ^ value.hashCode()
+     * over the entries.
+     * @return an empty identity map
+     */
+    static <K, V> ImmutableMap<K, V> identity() {
+        return withStrategy(HashStrategy.identity());
+    }
+
+    /**
+     * Creates a map which compares keys by reference with all the entries of the given map, see {@link #identity()}
+     * @param map the source map
+     * @return the new map
+     * @throws NullPointerException if a key or value is null
+     */
+    static <K, V> ImmutableMap<K, V> identity(final Map<? extends K, ? extends V> map) {
+        return withStrategy(HashStrategy.identity(), map);
+    }
+
+    /**
+     * Gets an empty map which hashes and compares its keys with the given strategy.
+     * Maps derived from it keep the strategy, and its views follow the strategy rather than equals and hashCode.
+     * @param strategy the strategy
+     * @return an empty map, which is a regular map for the standard strategy
+     * @throws NullPointerException if strategy is null
+     */
+    @SuppressWarnings("unchecked")
+    static <K, V> ImmutableMap<K, V> withStrategy(final HashStrategy<K> strategy) {
+        if (strategy == null) throw new NullPointerException();
+        if (strategy == HashStrategy.standard()) {
+            return EmptyImmutableMap.getInstance();
+        }
+        return StrategyImmutableMap.empty(strategy);
+    }
+
+    /**
+     * Creates a map with all the entries of the given map, which hashes and compares its keys with the given strategy,
+     * see {@link #withStrategy(HashStrategy)}. If keys of the source are equivalent under the strategy, the value
+     * of the last one seen wins.
+     * @param strategy the strategy
+     * @param map the source map
+     * @return the new map
+     * @throws NullPointerException if strategy is null, or a key or value is null
+     */
+    static <K, V> ImmutableMap<K, V> withStrategy(final HashStrategy<K> strategy, final Map<? extends K, ? extends V> map) {
+        if (strategy == HashStrategy.standard()) {
+            return of(map);
+        }
+        return ImmutableMap.<K, V>withStrategy(strategy).setAll(map);
+    }
+
     /**
      * A generic Entry class
      * @author Aaron Cake
@@ -75,8 +198,44 @@ public interface ImmutableMap<K, V> extends Map<K, V> {
 
     }
 
+    /**
+     * Receives the differences found by {@link ImmutableMap#diff(ImmutableMap, DiffVisitor)}
+     * @author Aaron Cake
+     */
+    interface DiffVisitor<K, V> {
+
+        /**
+         * Called for an entry which is only in the new map
+         * @param key the key
+         * @param value the value in the new map
+         */
+        void added(K key, V value);
+
+        /**
+         * Called for an entry which is only in the old map
+         * @param key the key
+         * @param value the value in the old map
+         */
+        void removed(K key, V value);
+
+        /**
+         * Called for a key which is in both maps, with values that are not equal
+         * @param key the key
+         * @param oldValue the value in the old map
+         * @param newValue the value in the new map
+         */
+        void changed(K key, V oldValue, V newValue);
+
+    }
+
     boolean containsEntry(final K key, final V value);
     Iterator<Map.Entry<K, V>> entryIterator();
+
+    /**
+     * Gets a cursor over the entries of this map, which doesn't create an object per entry like entryIterator does
+     * @return a cursor positioned before the first entry
+     */
+    MapCursor<K, V> cursor();
     Iterator<K> keyIterator();
     Iterator<V> valueIterator();
     void forEachKey(Consumer<? super K> action);
@@ -93,6 +252,46 @@ public interface ImmutableMap<K, V> extends Map<K, V> {
      */
     ImmutableMap<K, V> update(final K key, final BiFunction<? super K, ? super V, ? extends V> mapperFn);
 
+    /**
+     * Creates a TransientMap holding the entries of this map, for applying a batch of changes in place.
+     * This map is never modified by changes made to the transient.
+     * @return a new TransientMap
+     */
+    default TransientMap<K, V> toTransient() {
+        return new TransientTrieMap<K, V>(EmptyImmutableMap.getInstance(), null, 0, 0, true).setAll(this);
+    }
+
+    /**
+     * Compiles this map into a read-only table for maps which are built once and then read many times.
+     * Keys and values are stored side by side in an open addressed table, so a lookup usually reads one slot
+     * instead of a node per level of the trie. The frozen map supports every operation, but a write thaws it into a
+     * trie first, which copies every entry, so writes should be batched on {@link #thaw()} instead.
+     * @return the frozen map, or this map if it is already frozen or empty
+     */
+    default ImmutableMap<K, V> freeze() {
+        return isEmpty() ? this : FrozenImmutableMap.copyOf(this);
+    }
+
+    /**
+     * Turns a map made by {@link #freeze()} back into a trie, which is cheap to write to
+     * @return the trie map, or this map if it isn't frozen
+     */
+    default ImmutableMap<K, V> thaw() {
+        return this;
+    }
+
+    /**
+     * Attaches a filter over the keys of this map, for maps where most lookups are for keys which are not there.
+     * get, getOrDefault, containsKey and containsEntry check the filter first, which rules out about 99 of every
+     * 100 missing keys by reading a single word, before any node or table of the map is read. The filter takes
+     * 2 bytes per key, and maps derived from the filtered map keep it up to date, rebuilding it after enough keys
+     * have been added or deleted.
+     * @return the filtered map, or this map if it is already filtered or empty
+     */
+    default ImmutableMap<K, V> withLookupFilter() {
+        return FilteredImmutableMap.of(this);
+    }
+
     /**
      * Computes new values for all the entries in this map.
      * If computeFn returns the existing value,
@@ -102,13 +301,24 @@ public interface ImmutableMap<K, V> extends Map<K, V> {
      * @throws NullPointerException if key and/or mapperFn is null
      */
     default ImmutableMap<K, V> updateAll(final BiFunction<? super K, ? super V, ? extends V> mapperFn) {
-        ImmutableMap<K, V> map = this;
+        if (mapperFn == null) throw new NullPointerException();
+        final TransientMap<K, V> map = toTransient();
         final Iterator<K> it = this.keyIterator();
         while (it.hasNext()) {
-            final K key = it.next();
-            map = map.update(key, mapperFn);
+            map.update(it.next(), mapperFn);
         }
-        return map;
+        return map.persistent();
+    }
+
+    /**
+     * Computes new values for all the entries in this map like updateAll, using multiple threads of the common ForkJoinPool.
+     * The order of calls is unspecified, and mapperFn must be safe to call concurrently.
+     * @param mapperFn a function which maps the value, or returns null to remove the entry
+     * @return the new map instance, or the this instance if no modifications were necessary
+     * @throws NullPointerException if mapperFn is null
+     */
+    default ImmutableMap<K, V> parallelUpdateAll(final BiFunction<? super K, ? super V, ? extends V> mapperFn) {
+        return updateAll(mapperFn);
     }
 
     /**
@@ -169,14 +379,100 @@ public interface ImmutableMap<K, V> extends Map<K, V> {
      * @throws NullPointerException the map, or a key or value in the map were empty
      */
     default ImmutableMap<K, V> setAll(final Map<? extends K, ? extends V> sourceMap) {
-        ImmutableMap<K, V> map = this;
-        for (final K key: sourceMap.keySet()) {
-            map = map.set(key, sourceMap.get(key));
+        if (sourceMap.isEmpty()) {
+            return this;
         }
-        return map;
+        return toTransient().setAll(sourceMap).persistent();
     }
 
 
+    /**
+     * Computes a new map containing the entries of both this map and the other map.
+     * For keys present in both maps with values that are not equal, resolver is called with this map's value
+     * and the other map's value, and returns the value to keep, or null to remove the entry.
+     * Entries found in only one of the maps are kept as they are, and subtrees shared by both maps are reused.
+     * If no modifications were necessary, this instance is returned.
+     * @param other the map to merge into this map
+     * @param resolver a function which resolves conflicting values
+     * @return the new map instance, or this instance if no modifications were necessary
+     * @throws NullPointerException if other and/or resolver is null
+     */
+    default ImmutableMap<K, V> merge(final ImmutableMap<K, V> other,
+                                     final BiFunction<? super V, ? super V, ? extends V> resolver) {
+        if (resolver == null) throw new NullPointerException();
+        if (other.isEmpty()) {
+            return this;
+        }
+        final TransientMap<K, V> map = toTransient();
+        other.forEach((key, otherValue) -> map.update(key, (theKey, value) ->
+                value == null ? otherValue : Util.resolveMergedValue(value, otherValue, resolver)));
+        return map.persistent();
+    }
+
+    /**
+     * Computes a new map keeping only the entries of this map whose keys are also in the other map.
+     * Trie-backed maps are combined node by node, reusing the subtrees they share.
+     * If no modifications were necessary, this instance is returned.
+     * @param other the map whose keys to keep
+     * @return the new map instance, or this instance if no modifications were necessary
+     * @throws NullPointerException if other is null
+     */
+    default ImmutableMap<K, V> intersect(final ImmutableMap<? extends K, ?> other) {
+        if (other == this || isEmpty()) {
+            return this;
+        }
+        if (other.isEmpty()) {
+            return EmptyImmutableMap.getInstance();
+        }
+        return filterKeys(other::containsKey);
+    }
+
+    /**
+     * Computes a new map without the entries of this map whose keys are in the other map.
+     * Trie-backed maps are combined node by node, reusing the subtrees they share.
+     * If no modifications were necessary, this instance is returned.
+     * @param other the map whose keys to delete
+     * @return the new map instance, or this instance if no modifications were necessary
+     * @throws NullPointerException if other is null
+     */
+    default ImmutableMap<K, V> subtract(final ImmutableMap<? extends K, ?> other) {
+        if (isEmpty() || other.isEmpty()) {
+            return this;
+        }
+        if (other.size() < size()) {
+            return deleteAll(other.keySet());
+        }
+        return filterKeys(key -> !other.containsKey(key));
+    }
+
+    /**
+     * Reports the entries which were added, removed or changed going from this map to the other map.
+     * Trie-backed maps compare both tries together and skip subtrees they share,
+     * so the cost follows the size of the change rather than the size of the maps.
+     * @param other the new version of this map
+     * @param visitor the visitor to report differences to
+     * @throws NullPointerException if other and/or visitor is null
+     */
+    default void diff(final ImmutableMap<K, V> other, final DiffVisitor<? super K, ? super V> visitor) {
+        if (visitor == null) throw new NullPointerException();
+        if (other == this) {
+            return;
+        }
+        forEach((key, value) -> {
+            final V otherValue = other.get(key);
+            if (otherValue == null) {
+                visitor.removed(key, value);
+            } else if (!value.equals(otherValue)) {
+                visitor.changed(key, value, otherValue);
+            }
+        });
+        other.forEach((key, otherValue) -> {
+            if (!containsKey(key)) {
+                visitor.added(key, otherValue);
+            }
+        });
+    }
+
     /**
      * Computes the a new map with the given key-value pair only if there is no value for the given key.
      * If this internal already contains the given key, this internal is returned,
@@ -233,6 +529,40 @@ public interface ImmutableMap<K, V> extends Map<K, V> {
      */
     ImmutableMap<K, V> delete(final K key);
 
+    /**
+     * Gets the value with the given key, which has been hashed ahead of time.
+     * Maps of the handle's strategy use its hash instead of hashing the key again.
+     * @param key the hashed key
+     * @return the value, or null if no entry exists
+     * @throws NullPointerException if key is null
+     */
+    default V get(final HashedKey<? extends K> key) {
+        return get((Object)key.key);
+    }
+
+    /**
+     * Computes a new map with the given key-value pair like {@link #set(Object, Object)}, for a key which has been
+     * hashed ahead of time. Maps of the handle's strategy use its hash instead of hashing the key again.
+     * @param key the hashed key
+     * @param value the value to set
+     * @return the new map instance, or the this instance if no modifications were necessary
+     * @throws NullPointerException if key and/or value are null
+     */
+    default ImmutableMap<K, V> set(final HashedKey<? extends K> key, final V value) {
+        return set(key.key, value);
+    }
+
+    /**
+     * Deletes an entry like {@link #delete(Object)}, for a key which has been hashed ahead of time.
+     * Maps of the handle's strategy use its hash instead of hashing the key again.
+     * @param key the hashed key
+     * @return the new map, or this object if no modification was required
+     * @throws NullPointerException if key is null
+     */
+    default ImmutableMap<K, V> delete(final HashedKey<? extends K> key) {
+        return delete(key.key);
+    }
+
     /**
      * Deletes all entiries specified by the given keys, if they exist.
      * If a modification is required, a new map is returned, otherwise this object is returned.
@@ -240,11 +570,14 @@ public interface ImmutableMap<K, V> extends Map<K, V> {
      * @return the new map, or this object if no modification was required
      */
     default ImmutableMap<K, V> deleteAll(final Collection<? extends K> keys) {
-        ImmutableMap<K, V> map = this;
+        if (isEmpty() || keys.isEmpty()) {
+            return this;
+        }
+        final TransientMap<K, V> map = toTransient();
         for (final K key: keys) {
-            map = map.delete(key);
+            map.delete(key);
         }
-        return map;
+        return map.persistent();
     }
 
     /**
@@ -276,6 +609,31 @@ public interface ImmutableMap<K, V> extends Map<K, V> {
         return updateAll((k, v) -> predicate.test(k, v) ? v : null);
     }
 
+    /**
+     * Filters the entries of this map like filter, using multiple threads of the common ForkJoinPool.
+     * The order of calls is unspecified, and predicate must be safe to call concurrently.
+     * @param predicate a function called for each key-value pair, returning true to keep, or false to remove
+     * @return the new map, or this object if no modification was required
+     */
+    default ImmutableMap<K, V> parallelFilter(final BiPredicate<K, V> predicate) {
+        return parallelUpdateAll((k, v) -> predicate.test(k, v) ? v : null);
+    }
+
+    /**
+     * Computes a new map with the same keys as this map, and values mapped by mapperFn.
+     * Trie-backed maps keep the structure of the trie, and only replace the values.
+     * @param mapperFn a function which maps each value, which must not return null
+     * @param <R> the new value type
+     * @return the new map instance
+     * @throws NullPointerException if mapperFn is null, or returns null
+     */
+    default <R> ImmutableMap<K, R> mapValues(final Function<? super V, ? extends R> mapperFn) {
+        if (mapperFn == null) throw new NullPointerException();
+        final TransientMap<K, R> map = ImmutableMap.<K, R>of().toTransient();
+        forEach((k, v) -> map.set(k, mapperFn.apply(v)));
+        return map.persistent();
+    }
+
     /**
      * Filters the keys of this map via the given predicate
      * @param predicate a function called for each key, returning true to keep, or false to remove
@@ -378,6 +736,34 @@ public interface ImmutableMap<K, V> extends Map<K, V> {
         throw new UnsupportedOperationException("merge is not supported");
     }
 
+    /**
+     * Calls action for every entry of this map, using multiple threads of the common ForkJoinPool.
+     * The order of calls is unspecified, and action must be safe to call concurrently.
+     * @param action the action to call for each entry
+     * @throws NullPointerException if action is null
+     */
+    default void parallelForEach(final BiConsumer<? super K, ? super V> action) {
+        if (action == null) throw new NullPointerException();
+        StreamSupport.stream(entrySpliterator(), true).forEach(entry -> action.accept(entry.getKey(), entry.getValue()));
+    }
+
+    /**
+     * Maps every entry of this map and combines the results, using multiple threads of the common ForkJoinPool.
+     * As with Stream.reduce, identity must be an identity for combiner, and combiner must be associative.
+     * @param identity the identity value for combiner
+     * @param mapper a function which maps an entry to a result
+     * @param combiner a function which combines two results
+     * @return the combined result, or identity if this map is empty
+     * @throws NullPointerException if mapper and/or combiner is null
+     */
+    default <R> R parallelReduce(final R identity, final BiFunction<? super K, ? super V, ? extends R> mapper,
+                                 final BinaryOperator<R> combiner) {
+        if (mapper == null || combiner == null) throw new NullPointerException();
+        return StreamSupport.stream(entrySpliterator(), true)
+                .<R>map(entry -> mapper.apply(entry.getKey(), entry.getValue()))
+                .reduce(identity, combiner);
+    }
+
     /**
      * Gets a Spliterator over the keys of this internal
      * @return a key spliterator
@@ -396,6 +782,15 @@ public interface ImmutableMap<K, V> extends Map<K, V> {
                 Spliterator.IMMUTABLE | Spliterator.SIZED);
     }
 
+    /**
+     * Gets a Spliterator over the entries of this internal
+     * @return an entry spliterator
+     */
+    default Spliterator<Map.Entry<K, V>> entrySpliterator() {
+        return Spliterators.spliterator(entryIterator(), size(),
+                Spliterator.IMMUTABLE | Spliterator.DISTINCT | Spliterator.SIZED);
+    }
+
     default HashMap<K, V> asHashMap() {
         // size the map so that it won't need to expand
         final HashMap<K, V> map = new HashMap<>((int)Math.ceil(size() / 0.75), 0.75f);
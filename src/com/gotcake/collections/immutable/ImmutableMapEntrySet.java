@@ -40,6 +40,11 @@ public class ImmutableMapEntrySet<K, V> extends AbstractImmutableSet<Map.Entry<K
         return (Iterator)map.entryIterator();
     }
 
+    @Override
+    public Spliterator<Map.Entry<K, V>> spliterator() {
+        return map.entrySpliterator();
+    }
+
     @Override
     public ImmutableMapEntrySet<K, V> insert(final Map.Entry<K, V> element) {
         final ImmutableMap<K, V> newMap = map.setIfAbsent(element.getKey(), element.getValue());
@@ -58,9 +63,16 @@ public class ImmutableMapEntrySet<K, V> extends AbstractImmutableSet<Map.Entry<K
         return this;
     }
 
+    /**
+     * Filters the entries of this set via the given predicate.
+     * The same Map.Entry is passed to every call of the predicate, so it must not be kept after the call returns.
+     * @param predicate a function called for each entry, returning true to keep, or false to remove
+     * @return the new set, or this object if no modification was required
+     */
     @Override
     public ImmutableMapEntrySet<K, V> filter(final Predicate<Map.Entry<K, V>> predicate) {
-        final ImmutableMap<K, V> newMap = map.filter((k, v) -> predicate.test(new ImmutableMap.Entry<>(k, v)));
+        final ReusedEntry<K, V> entry = new ReusedEntry<>();
+        final ImmutableMap<K, V> newMap = map.filter((k, v) -> predicate.test(entry.moveTo(k, v)));
         if (newMap != map) {
             return new ImmutableMapEntrySet<>(newMap);
         }
@@ -106,4 +118,77 @@ public class ImmutableMapEntrySet<K, V> extends AbstractImmutableSet<Map.Entry<K
         return map.hashCode();
     }
 
+    @Override
+    public boolean equals(final Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (o instanceof ImmutableMapEntrySet) {
+            return map.equals(((ImmutableMapEntrySet<?, ?>)o).map);
+        }
+        if (!(o instanceof Set)) {
+            return false;
+        }
+        final Set<?> set = (Set<?>)o;
+        if (set.size() != size()) {
+            return false;
+        }
+        final MapCursor<K, V> cursor = map.cursor();
+        final ReusedEntry<K, V> entry = new ReusedEntry<>();
+        try {
+            while (cursor.advance()) {
+                if (!set.contains(entry.moveTo(cursor.key(), cursor.value()))) {
+                    return false;
+                }
+            }
+        } catch (ClassCastException | NullPointerException unused) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * An entry which is moved from one key-value pair to the next, for checks which don't keep the entry
+     */
+    private static final class ReusedEntry<K, V> implements Map.Entry<K, V> {
+
+        private K key;
+        private V value;
+
+        ReusedEntry<K, V> moveTo(final K key, final V value) {
+            this.key = key;
+            this.value = value;
+            return this;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public V setValue(final V value) {
+            throw new UnsupportedOperationException("setValue is not supported");
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Map.Entry)) return false;
+            final Map.Entry<?, ?> entry = (Map.Entry<?, ?>)o;
+            return key.equals(entry.getKey()) && value.equals(entry.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() ^ value.hashCode();
+        }
+
+    }
+
 }
@@ -37,6 +37,9 @@ public class ImmutableMapKeySet<K, V> extends MapBackedImmutableTrieSet<K> {
 
     @Override
     public ImmutableMapKeySet<K, V> keepAll(final Collection<? extends K> elements) {
+        if (elements instanceof MapBackedImmutableTrieSet) {
+            return intersect((MapBackedImmutableTrieSet<? extends K>)elements);
+        }
         final Set set;
         // if input is not a set, make a copy so contains check if O(1)
         if (elements instanceof Set) {
@@ -49,6 +52,9 @@ public class ImmutableMapKeySet<K, V> extends MapBackedImmutableTrieSet<K> {
 
     @Override
     public ImmutableMapKeySet<K, V> deleteAll(final Collection<? extends K> elements) {
+        if (elements instanceof MapBackedImmutableTrieSet) {
+            return subtract((MapBackedImmutableTrieSet<? extends K>)elements);
+        }
         ImmutableMapKeySet<K, V> set = this;
         for (final K element: elements) {
             set = set.delete(element);
@@ -56,6 +62,26 @@ public class ImmutableMapKeySet<K, V> extends MapBackedImmutableTrieSet<K> {
         return set;
     }
 
+    @Override
+    public ImmutableMapKeySet<K, V> intersect(final ImmutableSet<? extends K> other) {
+        if (other instanceof MapBackedImmutableTrieSet) {
+            return keySetWithMap(getMap().intersect(((MapBackedImmutableTrieSet<? extends K>)other).map));
+        }
+        return keepAll(other);
+    }
+
+    @Override
+    public ImmutableMapKeySet<K, V> subtract(final ImmutableSet<? extends K> other) {
+        if (other instanceof MapBackedImmutableTrieSet) {
+            return keySetWithMap(getMap().subtract(((MapBackedImmutableTrieSet<? extends K>)other).map));
+        }
+        return deleteAll(other);
+    }
+
+    private ImmutableMapKeySet<K, V> keySetWithMap(final ImmutableMap<K, V> newMap) {
+        return newMap != map ? new ImmutableMapKeySet<>(newMap) : this;
+    }
+
     @SuppressWarnings("unchecked")
     public ImmutableMap<K, V> getMap() {
         return (ImmutableMap<K, V>)map;
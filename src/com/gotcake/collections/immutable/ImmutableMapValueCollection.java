@@ -1,6 +1,7 @@
 package com.gotcake.collections.immutable;
 
 import java.util.Iterator;
+import java.util.Spliterator;
 import java.util.function.Consumer;
 
 /**
@@ -39,5 +40,10 @@ class ImmutableMapValueCollection<K, V> implements ImmutableCollection<V> {
         map.forEachValue(action);
     }
 
+    @Override
+    public Spliterator<V> spliterator() {
+        return map.valueSpliterator();
+    }
+
 
 }
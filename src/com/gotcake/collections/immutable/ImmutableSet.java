@@ -15,12 +15,14 @@ public interface ImmutableSet<T> extends ImmutableCollection<T>, Set<T> {
     }
 
     static <T> ImmutableSet<T> of(final T element) {
-        if (element == null) throw new NullPointerException();
-        return new MapBackedImmutableTrieSet<>(element);
+        if (SmallImmutableMap.enabled) {
+            return SmallImmutableSet.of(element);
+        }
+        return new RegularImmutableTrieSet<>(element);
     }
 
     static <T> ImmutableSet<T> of(final T element1, final T element2) {
-        return new MapBackedImmutableTrieSet<>(element1, element2);
+        return of(Arrays.asList(element1, element2));
     }
 
     @SafeVarargs
@@ -31,14 +33,8 @@ public interface ImmutableSet<T> extends ImmutableCollection<T>, Set<T> {
         } else if (size == 1) {
             return of(elements[0]);
         } else {
-            final Set<T> keys = new HashSet<>();
-            Collections.addAll(keys, elements);
-            if (keys.contains(null)) {
-                throw new NullPointerException();
-            }
-            return new MapBackedImmutableTrieSet<>(
-                    new RegularImmutableTrieMap<>(keys, Boolean.TRUE)
-            );
+            // duplicates are dropped while inserting, so there is no need to copy into a Set first
+            return of(Arrays.asList(elements));
         }
     }
 
@@ -48,31 +44,26 @@ public interface ImmutableSet<T> extends ImmutableCollection<T>, Set<T> {
             return EmptyImmutableSet.getInstance();
         } else if (size == 1) {
             return of(elements.iterator().next());
+        } else if (SmallImmutableMap.fits(size)) {
+            return SmallImmutableSet.copyOf(elements, size);
         } else {
-            if (elements instanceof Set) {
-                @SuppressWarnings("unchecked")
-                final Set<T> keys = (Set)elements;
-                if (keys.contains(null)) {
-                    throw new NullPointerException();
-                }
-                return new MapBackedImmutableTrieSet<>(
-                        new RegularImmutableTrieMap<>(keys, Boolean.TRUE)
-                );
-            } else {
-                final Set<T> keys = new HashSet<>(elements);
-                if (keys.contains(null)) {
-                    throw new NullPointerException();
-                }
-                return new MapBackedImmutableTrieSet<>(
-                        new RegularImmutableTrieMap<>(keys, Boolean.TRUE)
-                );
-            }
+            return RegularImmutableTrieSet.copyOf(elements);
         }
     }
 
     ImmutableSet<T> insert(final T element);
     ImmutableSet<T> delete(final T element);
 
+    /**
+     * Attaches a filter over the elements of this set, for sets where most elements looked up are not there.
+     * contains checks the filter first, which rules out about 99 of every 100 missing elements by reading a single
+     * word. Sets derived from the filtered set keep it up to date, like {@link ImmutableMap#withLookupFilter()}.
+     * @return the filtered set, or this set if it is already filtered or empty
+     */
+    default ImmutableSet<T> withLookupFilter() {
+        return FilteredImmutableSet.of(this);
+    }
+
 
     /**
      * Filters the elements of this set with the given predicate
@@ -126,6 +117,28 @@ public interface ImmutableSet<T> extends ImmutableCollection<T>, Set<T> {
         return set;
     }
 
+    /**
+     * Computes a new set keeping only the elements which are also in the other set.
+     * Trie-backed sets are combined node by node, reusing the subtrees they share.
+     * Returns a new set if modifications were required, otherwise this set is returned.
+     * @param other the elements to keep
+     * @return the new set, or this set if no changes were required
+     */
+    default ImmutableSet<T> intersect(final ImmutableSet<? extends T> other) {
+        return keepAll(other);
+    }
+
+    /**
+     * Computes a new set without the elements which are in the other set.
+     * Trie-backed sets are combined node by node, reusing the subtrees they share.
+     * Returns a new set if modifications were required, otherwise this set is returned.
+     * @param other the elements to delete
+     * @return the new set, or this set if no changes were required
+     */
+    default ImmutableSet<T> subtract(final ImmutableSet<? extends T> other) {
+        return deleteAll(other);
+    }
+
     @Override
     default Object[] toArray() {
         return Iterators.toObjectArray(size(), iterator());
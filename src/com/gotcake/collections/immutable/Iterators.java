@@ -18,6 +18,13 @@ public class Iterators {
         return EMPTY_INSTANCE;
     }
 
+    private static final MapCursor<?, ?> EMPTY_CURSOR_INSTANCE = new EmptyMapCursor<>();
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> MapCursor<K, V> emptyCursor() {
+        return (MapCursor<K, V>)EMPTY_CURSOR_INSTANCE;
+    }
+
     @SuppressWarnings("unchecked")
     public static <T> Iterator<T> nonnullSingleton(T value) {
         return new NonnullSingletonIterator<>(value);
@@ -84,6 +91,26 @@ public class Iterators {
         }
     }
 
+    private static final class EmptyMapCursor<K, V> implements MapCursor<K, V> {
+
+        private EmptyMapCursor() {}
+
+        @Override
+        public boolean advance() {
+            return false;
+        }
+
+        @Override
+        public K key() {
+            return null;
+        }
+
+        @Override
+        public V value() {
+            return null;
+        }
+    }
+
     private static final class NonnullSingletonIterator<T> implements Iterator<T> {
 
         private T value;
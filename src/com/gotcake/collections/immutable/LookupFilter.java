@@ -0,0 +1,80 @@
+package com.gotcake.collections.immutable;
+
+import static com.gotcake.collections.immutable.Util.*;
+
+/**
+ * A blocked Bloom filter over the smeared hashes of a set of keys, which rules out most keys that are not in the
+ * set before anything else is read. Each key sets 4 bits in a single 64 bit word picked by the low bits of its
+ * hash, so a check reads one word, and there are 16 bits per key, which lets about 1 in 100 missing keys through.
+ * Bits are only set while the filter is built, so a filter can be shared by every version of a collection whose
+ * keys it still covers.
+ * @author Aaron Cake
+ */
+final class LookupFilter {
+
+    static final int BITS_PER_KEY = 16;
+
+    private final long[] words;
+    private final int mask;
+
+    /**
+     * The number of keys the filter was built for
+     */
+    final int keyCount;
+
+    private LookupFilter(final int keyCount) {
+        int length = 1;
+        while (length * 64L < (long)keyCount * BITS_PER_KEY) {
+            length <<= 1;
+        }
+        this.words = new long[length];
+        this.mask = length - 1;
+        this.keyCount = keyCount;
+    }
+
+    /**
+     * Builds a filter over the keys of a map
+     */
+    static LookupFilter ofKeys(final ImmutableMap<?, ?> map) {
+        final LookupFilter filter = new LookupFilter(map.size());
+        final MapCursor<?, ?> cursor = map.cursor();
+        while (cursor.advance()) {
+            filter.add(computeSmearHash(cursor.key()));
+        }
+        return filter;
+    }
+
+    /**
+     * Builds a filter over the elements of a set
+     */
+    static LookupFilter ofElements(final ImmutableSet<?> set) {
+        final LookupFilter filter = new LookupFilter(set.size());
+        for (final Object element: set) {
+            filter.add(computeSmearHash(element));
+        }
+        return filter;
+    }
+
+    /**
+     * Picks the 4 bits of a hash in its word. The index of the word comes from the low bits of the hash, so the
+     * bits come from the high bits of the hash multiplied by the golden ratio, which depend on all of its bits.
+     */
+    private static long bitsOf(final int smearHash) {
+        final int h = smearHash * 0x9E3779B9;
+        return (1L << (h >>> 26)) | (1L << (h >>> 20)) | (1L << (h >>> 14)) | (1L << (h >>> 8));
+    }
+
+    private void add(final int smearHash) {
+        words[smearHash & mask] |= bitsOf(smearHash);
+    }
+
+    /**
+     * Checks if a key with the given smeared hash may be in the set
+     * @return false if the key is definitely not in the set, or true if it may be
+     */
+    boolean mightContain(final int smearHash) {
+        final long bits = bitsOf(smearHash);
+        return (words[smearHash & mask] & bits) == bits;
+    }
+
+}
@@ -1,7 +1,9 @@
 package com.gotcake.collections.immutable;
 
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.Spliterator;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 
@@ -17,14 +19,6 @@ class MapBackedImmutableTrieSet<T> extends AbstractImmutableSet<T> {
         this.map = map;
     }
 
-    MapBackedImmutableTrieSet(final T element) {
-        this.map = new RegularImmutableTrieMap<>(element, Boolean.TRUE);
-    }
-
-    MapBackedImmutableTrieSet(final T element1, final T element2) {
-        this.map = new RegularImmutableTrieMap<>(element1, Boolean.TRUE, element2, Boolean.TRUE);
-    }
-
     @Override
     public int size() {
         return map.size();
@@ -32,7 +26,7 @@ class MapBackedImmutableTrieSet<T> extends AbstractImmutableSet<T> {
 
     @Override
     public boolean isEmpty() {
-        return false;
+        return map.isEmpty();
     }
 
     @Override
@@ -50,6 +44,11 @@ class MapBackedImmutableTrieSet<T> extends AbstractImmutableSet<T> {
         map.forEachKey(action);
     }
 
+    @Override
+    public Spliterator<T> spliterator() {
+        return map.keySpliterator();
+    }
+
     @Override
     public boolean equals(final Object obj) {
         if (obj == this) return true;
@@ -99,4 +98,46 @@ class MapBackedImmutableTrieSet<T> extends AbstractImmutableSet<T> {
         return this;
     }
 
+    @Override
+    public ImmutableSet<T> keepAll(final Collection<? extends T> elements) {
+        if (elements instanceof MapBackedImmutableTrieSet) {
+            return intersect((MapBackedImmutableTrieSet<? extends T>)elements);
+        }
+        return super.keepAll(elements);
+    }
+
+    @Override
+    public ImmutableSet<T> deleteAll(final Collection<? extends T> elements) {
+        if (elements instanceof MapBackedImmutableTrieSet) {
+            return subtract((MapBackedImmutableTrieSet<? extends T>)elements);
+        }
+        return super.deleteAll(elements);
+    }
+
+    @Override
+    public ImmutableSet<T> intersect(final ImmutableSet<? extends T> other) {
+        if (other instanceof MapBackedImmutableTrieSet) {
+            return setWithMap(map.intersect(((MapBackedImmutableTrieSet<? extends T>)other).map));
+        }
+        return super.keepAll(other);
+    }
+
+    @Override
+    public ImmutableSet<T> subtract(final ImmutableSet<? extends T> other) {
+        if (other instanceof MapBackedImmutableTrieSet) {
+            return setWithMap(map.subtract(((MapBackedImmutableTrieSet<? extends T>)other).map));
+        }
+        return super.deleteAll(other);
+    }
+
+    private ImmutableSet<T> setWithMap(final ImmutableMap<T, ?> newMap) {
+        if (newMap == map) {
+            return this;
+        }
+        if (newMap.isEmpty()) {
+            return EmptyImmutableSet.getInstance();
+        }
+        return new MapBackedImmutableTrieSet<>(newMap);
+    }
+
 }
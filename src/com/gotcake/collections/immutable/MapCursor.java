@@ -0,0 +1,35 @@
+package com.gotcake.collections.immutable;
+
+/**
+ * A cursor over the entries of an ImmutableMap, which moves through the map in place rather than creating a
+ * Map.Entry for every entry like an entry iterator does.
+ * The cursor starts before the first entry, so advance must be called before reading the first key and value.
+ * <pre>
+ * final MapCursor&lt;K, V&gt; cursor = map.cursor();
+ * while (cursor.advance()) {
+ *     use(cursor.key(), cursor.value());
+ * }
+ * </pre>
+ * @author Aaron Cake
+ */
+public interface MapCursor<K, V> {
+
+    /**
+     * Moves to the next entry
+     * @return true if the cursor is now at an entry, or false if there are no more entries
+     */
+    boolean advance();
+
+    /**
+     * Gets the key of the current entry. Only valid after advance has returned true.
+     * @return the current key
+     */
+    K key();
+
+    /**
+     * Gets the value of the current entry. Only valid after advance has returned true.
+     * @return the current value
+     */
+    V value();
+
+}
@@ -2,6 +2,7 @@ package com.gotcake.collections.immutable;
 
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
+import java.util.function.Function;
 
 /**
  * An ImmutableTrieMap tree node
@@ -9,16 +10,124 @@ import java.util.function.BiFunction;
  */
 interface Node<K, V> {
 
-    V get(K key, int prefix);
-    Node<K, V> set(K key, V value, int prefix, int depth, SizeChangeSink size);
-    Node<K, V> setIfExists(K key, V value, int prefix, int depth);
-    Node<K, V> setIfNotExists(K key, V value, int prefix, int depth);
-    Node<K, V> delete(K key, int prefix, int depth);
-    Node<K, V> update(K key, int prefix, int depth, BiFunction<? super K, ? super V, ? extends V> updateFn, SizeChangeSink size);
+    /*
+     * The key operations take the equivalence of the map's HashStrategy, or null to compare keys with equals, which the
+     * equals based built in strategies also use. The prefix is always the hash of the map's strategy.
+     */
+    V get(K key, int prefix, HashStrategy<? super K> equivalence);
+    Node<K, V> set(EditOwner owner, K key, V value, int prefix, int depth, SizeChangeSink size, HashStrategy<? super K> equivalence);
+    Node<K, V> setIfExists(K key, V value, int prefix, int depth, SizeChangeSink size, HashStrategy<? super K> equivalence);
+    Node<K, V> setIfNotExists(K key, V value, int prefix, int depth, HashStrategy<? super K> equivalence);
+    Node<K, V> delete(EditOwner owner, K key, int prefix, int depth, SizeChangeSink size, HashStrategy<? super K> equivalence);
+    Node<K, V> update(EditOwner owner, K key, int prefix, int depth, BiFunction<? super K, ? super V, ? extends V> updateFn, SizeChangeSink size, HashStrategy<? super K> equivalence);
+
+    default V get(K key, int prefix) {
+        return get(key, prefix, null);
+    }
+
+    default Node<K, V> set(EditOwner owner, K key, V value, int prefix, int depth, SizeChangeSink size) {
+        return set(owner, key, value, prefix, depth, size, null);
+    }
+
+    default Node<K, V> setIfExists(K key, V value, int prefix, int depth, SizeChangeSink size) {
+        return setIfExists(key, value, prefix, depth, size, null);
+    }
+
+    default Node<K, V> setIfNotExists(K key, V value, int prefix, int depth) {
+        return setIfNotExists(key, value, prefix, depth, null);
+    }
+
+    default Node<K, V> delete(EditOwner owner, K key, int prefix, int depth, SizeChangeSink size) {
+        return delete(owner, key, prefix, depth, size, null);
+    }
+
+    default Node<K, V> update(EditOwner owner, K key, int prefix, int depth, BiFunction<? super K, ? super V, ? extends V> updateFn, SizeChangeSink size) {
+        return update(owner, key, prefix, depth, updateFn, size, null);
+    }
+
+    default Node<K, V> set(K key, V value, int prefix, int depth, SizeChangeSink size) {
+        return set(null, key, value, prefix, depth, size);
+    }
+
+    default Node<K, V> delete(K key, int prefix, int depth, SizeChangeSink size) {
+        return delete(null, key, prefix, depth, size);
+    }
+
+    default Node<K, V> update(K key, int prefix, int depth, BiFunction<? super K, ? super V, ? extends V> updateFn, SizeChangeSink size) {
+        return update(null, key, prefix, depth, updateFn, size);
+    }
+
+    /**
+     * Merges another node at the same depth into this one. Subtrees that exist on only one side, or that are
+     * shared by both, are reused as they are. The resolver is only called for keys in both subtrees whose values
+     * are not equal, and an entry is removed if it returns null.
+     * The size change recorded is relative to this node.
+     */
+    Node<K, V> merge(Node<K, V> other, int depth, BiFunction<? super V, ? super V, ? extends V> resolver, SizeChangeSink size);
+
+    /**
+     * Reports the differences between this node and another node at the same depth to the visitor,
+     * with this node as the old version. Subtrees shared by both are skipped.
+     */
+    void diff(Node<K, V> other, int depth, ImmutableMap.DiffVisitor<? super K, ? super V> visitor);
+
+    /**
+     * Keeps only the entries of this node whose keys are also in another node at the same depth.
+     * Unlike the other operations, the number of entries kept is added to the size, since the result is bounded by the
+     * smaller of the two subtrees, while subtrees dropped from this node may be arbitrarily large.
+     */
+    Node<K, V> intersect(Node<K, ?> other, int depth, SizeChangeSink size);
+
+    /**
+     * Removes the entries of this node whose keys are in another node at the same depth.
+     * The size change recorded is relative to this node.
+     */
+    Node<K, V> subtract(Node<K, ?> other, int depth, SizeChangeSink size);
+
+    /**
+     * Computes new values for all the entries of this subtree in a single pass, so each node is copied at most once.
+     * An entry is removed if updateFn returns null, and emptied children are dropped.
+     * Returns this node if every value is unchanged.
+     */
+    Node<K, V> updateAll(int depth, BiFunction<? super K, ? super V, ? extends V> updateFn, SizeChangeSink size);
+
+    /**
+     * Creates a copy of this subtree with the same structure and keys, but with every value replaced by mapperFn.
+     * @throws NullPointerException if mapperFn returns null
+     */
+    <R> Node<K, R> mapValues(Function<? super V, ? extends R> mapperFn);
+
+    /**
+     * Counts the entries in this subtree.
+     * WARNING: this executes in linear O(n) time.
+     */
+    int computeSize();
 
     void forEachEntry(BiConsumer<? super K, ? super V> action);
+
+    /**
+     * Creates a node with the same slots as this one, but with their contents replaced.
+     * The replacements are packed like slots: [key, value] for an entry, or [null, child] for a child,
+     * where a null child removes the slot and a SingleEntryNode child is collapsed into an entry.
+     * Returns this node if every slot is unchanged.
+     */
+    Node<K, V> replaceSlots(Object[] slots, int depth);
+
+    /**
+     * Gets the number of slots in this node, where a slot is either an entry or a child, in iteration order
+     */
+    int slotCount();
+
+    /**
+     * Gets the key in the given slot, or null if the slot holds a child
+     */
+    Object slotKey(int slot);
+
+    /**
+     * Gets the value in the given slot, or the child Node if the slot holds a child
+     */
+    Object slotValue(int slot);
     boolean containsValue(Object value);
-    void computeIteration(int i, NodeEntryIterator<K, V>.Callback callback);
 
     int assertValidAndComputeSize(int suffix, int depth);
 
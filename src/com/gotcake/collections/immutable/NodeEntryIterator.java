@@ -1,82 +1,65 @@
 package com.gotcake.collections.immutable;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
 import java.util.Iterator;
 import java.util.Map;
 
 /**
- * A method for efficiently iterating over entries (or keys, or values) in a tree of Nodes
+ * A method for efficiently iterating over entries (or keys, or values) in a tree of Nodes.
+ * The path to the current entry is kept in fixed size arrays, so iterating allocates nothing after construction.
  * @author Aaron Cake
  */
 abstract class NodeEntryIterator<K, V> {
 
-    final class Callback {
+    // a trie has at most 7 levels of PackedArrayDualNodes, plus a collision node
+    static final int MAX_DEPTH = 8;
 
-        void offer(final K key, final V value) {
-            nextKey = key;
-            nextValue = value;
-            didComputeNext = true;
-        }
-
-        void enterNode(final Node<K, V> node) {
-            final StackEntry<K, V> entry = new StackEntry<>(node);
-            stack.push(entry);
-            final int index = entry.index++;
-            node.computeIteration(index, this);
-        }
-
-        void replaceNode(final Node<K, V> node) {
-            final StackEntry entry = stack.peek();
-            entry.index = 0;
-            entry.node = node;
-            final int index = entry.index++;
-            node.computeIteration(index, this);
-        }
-
-        void exitNode() {
-            stack.pop();
-            final StackEntry<K, V> entry = stack.peek();
-            if (entry != null) {
-                final int index = entry.index++;
-                entry.node.computeIteration(index, this);
-            }
-        }
-
-    }
-
-    private static class StackEntry<K, V> {
-        int index;
-        Node<K, V> node;
-        StackEntry(final Node<K, V> node) {
-            this.index = 0;
-            this.node = node;
-        }
-    }
-
-    private final Deque<StackEntry<K, V>> stack;
-    private final Callback callback;
+    // the stack of nodes being iterated, with the next slot and the number of slots of each
+    @SuppressWarnings("unchecked")
+    private final Node<K, V>[] nodes = (Node<K, V>[])new Node<?, ?>[MAX_DEPTH];
+    private final int[] positions = new int[MAX_DEPTH];
+    private final int[] slotCounts = new int[MAX_DEPTH];
+    private int top;
     protected K nextKey;
     protected V nextValue;
     protected boolean didComputeNext;
 
     protected NodeEntryIterator(final Node<K, V> node) {
-        stack = new ArrayDeque<>(10);
-        callback = new Callback();
-        stack.push(new StackEntry<>(node));
+        nodes[0] = node;
+        slotCounts[0] = node.slotCount();
+        top = 0;
     }
 
     public boolean hasNext() {
         return didComputeNext || tryComputeNext();
     }
 
+    @SuppressWarnings("unchecked")
     protected boolean tryComputeNext() {
-        final StackEntry<K, V> entry = stack.peek();
-        if (entry == null) {
-            return false;
+        while (top >= 0) {
+            final Node<K, V> node = nodes[top];
+            final int position = positions[top];
+            if (position == slotCounts[top]) {
+                // node is done, go back to its parent
+                nodes[top--] = null;
+                continue;
+            }
+            positions[top] = position + 1;
+            final Object keyOrNull = node.slotKey(position);
+            if (keyOrNull == null) {
+                // descend into child
+                final Node<K, V> child = (Node<K, V>)node.slotValue(position);
+                top++;
+                nodes[top] = child;
+                positions[top] = 0;
+                slotCounts[top] = child.slotCount();
+                continue;
+            }
+            nextKey = (K)keyOrNull;
+            nextValue = (V)node.slotValue(position);
+            didComputeNext = true;
+            return true;
         }
-        entry.node.computeIteration(entry.index++, callback);
-        return didComputeNext;
+        return false;
     }
 
     static class KeyIterator<K, V> extends NodeEntryIterator<K, V> implements Iterator<K> {
@@ -137,6 +120,28 @@ abstract class NodeEntryIterator<K, V> {
         }
     }
 
+    static class Cursor<K, V> extends NodeEntryIterator<K, V> implements MapCursor<K, V> {
+
+        Cursor(final Node<K, V> node) {
+            super(node);
+        }
+
+        @Override
+        public boolean advance() {
+            return tryComputeNext();
+        }
+
+        @Override
+        public K key() {
+            return nextKey;
+        }
+
+        @Override
+        public V value() {
+            return nextValue;
+        }
+    }
+
     static class HashIterator<K, V> extends NodeEntryIterator<K, V> {
 
         HashIterator(final Node<K, V> node) {
@@ -6,21 +6,143 @@ package com.gotcake.collections.immutable;
  */
 class NodeFactory {
 
+    /**
+     * The ways a trie's nodes can be laid out
+     */
+    enum Layout {
+        /**
+         * PackedArrayDualNode, with entries and children mixed in bit order
+         */
+        PACKED_ARRAY,
+        /**
+         * ChampNode, with entries stored before children, and a canonical shape
+         */
+        CHAMP;
+
+        /**
+         * Gets the layout a node belongs to, so subtrees rebuilt in its place match the rest of its trie
+         */
+        static Layout of(final Node<?, ?> node) {
+            return node instanceof ChampNode ? CHAMP : PACKED_ARRAY;
+        }
+    }
+
+    /**
+     * The layout used for new tries. Nodes always create children in their own layout, so an existing trie keeps
+     * the layout of its root. Set it with the system property com.gotcake.collections.immutable.layout.
+     */
+    static Layout layout = Layout.valueOf(System.getProperty("com.gotcake.collections.immutable.layout", Layout.PACKED_ARRAY.name()));
+
+    /**
+     * Whether persistent nodes of the PackedArrayDualNode layout with at most FixedArityNodes.MAX_ARITY slots are created
+     * as generated fixed arity nodes, which hold their slots in fields instead of two arrays. On by default, since most
+     * nodes of a large trie are that small; set the system property com.gotcake.collections.immutable.specializeSmallNodes
+     * to false to turn it off.
+     */
+    static boolean specializeSmallNodes = Boolean.parseBoolean(
+            System.getProperty("com.gotcake.collections.immutable.specializeSmallNodes", "true"));
+
+    /**
+     * Creates a node of the PackedArrayDualNode layout with the given slots, which is an ArrayNode when it has at least
+     * ArrayNode.MIN_SLOTS slots, and a fixed arity node when it is small, persistent, and specialization is enabled
+     */
+    static <K, V> Node<K, V> createPackedNode(final EditOwner owner, final int mask, final Object[] packedArray,
+                                              final int[] hashPrefixes) {
+        if (hashPrefixes.length >= ArrayNode.MIN_SLOTS) {
+            return ArrayNode.fromPackedArray(owner, mask, packedArray, hashPrefixes);
+        }
+        if (owner == null && specializeSmallNodes && hashPrefixes.length <= FixedArityNodes.MAX_ARITY) {
+            return FixedArityNodes.create(mask, packedArray, hashPrefixes);
+        }
+        return new PackedArrayDualNode<>(owner, mask, packedArray, hashPrefixes);
+    }
+
+    /**
+     * Swaps a newly created node with at most two slots for its fixed arity equivalent, when specialization applies
+     */
+    private static <K, V> Node<K, V> specialized(final PackedArrayDualNode<K, V> node) {
+        if (node.owner == null && specializeSmallNodes) {
+            return FixedArityNodes.create(node.mask, node.packedArray, node.hashPrefixes);
+        }
+        return node;
+    }
+
     /**
      * Creates a new node containing the given keys and values where it is not known how many bits of the
-     * prefixes collide.
+     * prefixes collide. Below the root, the levels where the prefixes are the same are compressed into a single
+     * CompressedPathNode instead of a chain of nodes with one child each.
      */
-    static <K, V> Node<K, V> createNodeWithTwoEntries(final int depth,
+    static <K, V> Node<K, V> createNodeWithTwoEntries(final EditOwner owner, final int depth,
                                                       final int prefix1, final K key1, final V value1,
                                                       final int prefix2, final K key2, final V value2) {
         int bitIndex1 = prefix1 >>> 27;
         int bitIndex2 = prefix2 >>> 27;
 
         if (bitIndex1 == bitIndex2) {
+            if (depth > 0 && depth < 7) {
+                int levels = 0;
+                int shared1 = prefix1;
+                int shared2 = prefix2;
+                while (depth + levels < 7 && shared1 >>> 27 == shared2 >>> 27) {
+                    shared1 <<= 5;
+                    shared2 <<= 5;
+                    levels++;
+                }
+                final Node<K, V> child = createNodeWithTwoEntries(
+                        owner,
+                        depth + levels,
+                        shared1, key1, value1,
+                        shared2, key2, value2
+                );
+                return new CompressedPathNode<>(owner, prefix1 & (-1 << (32 - 5 * levels)), levels, child);
+            }
             if (depth < 7) {
-                return new PackedArrayDualNode<>(
+                return specialized(new PackedArrayDualNode<>(
+                        owner,
                         bitIndex1,
                         createNodeWithTwoEntries(
+                                owner,
+                                depth + 1,
+                                prefix1 << 5, key1, value1,
+                                prefix2 << 5, key2, value2
+                        )
+                ));
+            } else {
+                // hash collision
+                return new PackedArrayCollisionNode<>(owner, key1, value1, key2, value2);
+            }
+        }
+
+        return specialized(new PackedArrayDualNode<>(
+                owner,
+                prefix1, key1, value1,
+                prefix2, key2, value2
+        ));
+
+    }
+
+    static <K, V> Node<K, V> createNodeWithTwoEntries(final int depth,
+                                                      final int prefix1, final K key1, final V value1,
+                                                      final int prefix2, final K key2, final V value2) {
+        return createNodeWithTwoEntries(null, depth, prefix1, key1, value1, prefix2, key2, value2);
+    }
+
+    /**
+     * Creates a node at any depth in the layout of ChampNode, where it is not known how many bits of the prefixes collide
+     */
+    static <K, V> Node<K, V> createChampNodeWithTwoEntries(final EditOwner owner, final int depth,
+                                                           final int prefix1, final K key1, final V value1,
+                                                           final int prefix2, final K key2, final V value2) {
+        int bitIndex1 = prefix1 >>> 27;
+        int bitIndex2 = prefix2 >>> 27;
+
+        if (bitIndex1 == bitIndex2) {
+            if (depth < 7) {
+                return new ChampNode<>(
+                        owner,
+                        bitIndex1,
+                        createChampNodeWithTwoEntries(
+                                owner,
                                 depth + 1,
                                 prefix1 << 5, key1, value1,
                                 prefix2 << 5, key2, value2
@@ -28,31 +150,65 @@ class NodeFactory {
                 );
             } else {
                 // hash collision
-                return new PackedArrayCollisionNode<>(key1, value1, key2, value2);
+                return new PackedArrayCollisionNode<>(owner, key1, value1, key2, value2);
             }
         }
 
-        return new PackedArrayDualNode<>(
-                bitIndex1, key1, value1,
-                bitIndex2, key2, value2
+        return new ChampNode<>(
+                owner,
+                prefix1, key1, value1,
+                prefix2, key2, value2
         );
+    }
+
+    /**
+     * Creates the root of a new trie with two distinct keys, in the current layout
+     */
+    static <K, V> Node<K, V> createRootWithTwoEntries(final int prefix1, final K key1, final V value1,
+                                                      final int prefix2, final K key2, final V value2) {
+        if (layout == Layout.CHAMP) {
+            return createChampNodeWithTwoEntries(null, 0, prefix1, key1, value1, prefix2, key2, value2);
+        }
+        return createNodeWithTwoEntries(0, prefix1, key1, value1, prefix2, key2, value2);
+    }
 
+    /**
+     * Creates the root of a new trie with a single key, in the current layout
+     */
+    static <K, V> Node<K, V> createNodeWithSingleEntry(final EditOwner owner, final int prefix, final K key, final V value) {
+        if (layout == Layout.CHAMP) {
+            return new ChampNode<>(owner, prefix, key, value);
+        }
+        return specialized(new PackedArrayDualNode<>(owner, prefix, key, value));
     }
 
-    static <K, V> Node<K, V> createNodeWithSingleEntry(final int bitIndex, final K key, final V value) {
-        return new PackedArrayDualNode<>(bitIndex, key, value);
+    static <K, V> Node<K, V> createNodeWithSingleEntry(final int prefix, final K key, final V value) {
+        return createNodeWithSingleEntry(null, prefix, key, value);
     }
 
     static <K, V> Node<K, V> createNodeWithSingleChild(final int bitIndex, final Node<K, V> child) {
-        return new PackedArrayDualNode<>(bitIndex, child);
+        return specialized(new PackedArrayDualNode<>(null, bitIndex, child));
     }
 
-    static <K, V> Node<K, V> createNodeWithTwoEntriesNonColliding(final int bitIndex1, final K key1, final V value1,
-                                                                  final int bitIndex2, final K key2, final V value2) {
-        return new PackedArrayDualNode<>(
-                bitIndex1, key1, value1,
-                bitIndex2, key2, value2
-        );
+    static <K, V> Node<K, V> createNodeWithTwoEntriesNonColliding(final int prefix1, final K key1, final V value1,
+                                                                  final int prefix2, final K key2, final V value2) {
+        return specialized(new PackedArrayDualNode<>(
+                null,
+                prefix1, key1, value1,
+                prefix2, key2, value2
+        ));
+    }
+
+    static <K, V> Node<K, V> createNodeFromPackedArray(final Layout layout, final int mask, final Object[] packedArray,
+                                                       final int[] hashPrefixes) {
+        if (layout == Layout.CHAMP) {
+            return ChampNode.fromPackedArray(mask, packedArray, hashPrefixes, packedArray.length);
+        }
+        return createPackedNode(null, mask, packedArray, hashPrefixes);
+    }
+
+    static <K, V> Node<K, V> createCollisionNode(final Object[] packedArray) {
+        return new PackedArrayCollisionNode<>(null, packedArray);
     }
 
 }
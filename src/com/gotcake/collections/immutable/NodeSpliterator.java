@@ -0,0 +1,160 @@
+package com.gotcake.collections.immutable;
+
+import java.util.Spliterator;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+/**
+ * A Spliterator over a tree of Nodes, which splits by handing off half of the remaining slots of a node,
+ * descending into a lone child when only one slot is left.
+ * Entry slots are counted exactly, and the rest of the estimate is shared evenly between child slots,
+ * since hashes spread entries evenly over the trie.
+ * @author Aaron Cake
+ */
+final class NodeSpliterator<K, V, T> implements Spliterator<T> {
+
+    private final BiFunction<? super K, ? super V, ? extends T> mapper;
+    private final int characteristics;
+
+    // the stack of nodes being iterated, the bottom node is only iterated up to fence
+    @SuppressWarnings("unchecked")
+    private final Node<K, V>[] nodes = (Node<K, V>[])new Node<?, ?>[NodeEntryIterator.MAX_DEPTH];
+    private final int[] positions = new int[NodeEntryIterator.MAX_DEPTH];
+    private int top;
+    private int fence;
+
+    private long estimate;
+    private boolean sized;
+
+    /**
+     * Creates a spliterator over all the entries of a map
+     * @param root the root node
+     * @param size the size of the map
+     * @param mapper creates the elements from keys and values
+     * @param characteristics the characteristics, not including SIZED
+     */
+    NodeSpliterator(final Node<K, V> root, final int size,
+                    final BiFunction<? super K, ? super V, ? extends T> mapper, final int characteristics) {
+        this(root, 0, root.slotCount(), size, mapper, characteristics);
+        this.sized = true;
+    }
+
+    private NodeSpliterator(final Node<K, V> node, final int origin, final int fence, final long estimate,
+                            final BiFunction<? super K, ? super V, ? extends T> mapper, final int characteristics) {
+        this.nodes[0] = node;
+        this.positions[0] = origin;
+        this.fence = fence;
+        this.estimate = estimate;
+        this.mapper = mapper;
+        this.characteristics = characteristics;
+        this.top = 0;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean tryAdvance(final Consumer<? super T> action) {
+        while (top >= 0) {
+            final Node<K, V> node = nodes[top];
+            final int position = positions[top];
+            if (position == (top == 0 ? fence : node.slotCount())) {
+                // node is done, go back to its parent
+                nodes[top--] = null;
+                continue;
+            }
+            positions[top] = position + 1;
+            final Object keyOrNull = node.slotKey(position);
+            if (keyOrNull == null) {
+                // descend into child
+                nodes[++top] = (Node<K, V>)node.slotValue(position);
+                positions[top] = 0;
+                continue;
+            }
+            if (estimate > 0) {
+                estimate--;
+            }
+            action.accept(mapper.apply((K)keyOrNull, (V)node.slotValue(position)));
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEachRemaining(final Consumer<? super T> action) {
+        // finish the child we are part way through, if any
+        while (top > 0) {
+            tryAdvance(action);
+        }
+        if (top < 0) {
+            return;
+        }
+        final Node<K, V> node = nodes[0];
+        final BiFunction<? super K, ? super V, ? extends T> mapper = this.mapper;
+        for (int position = positions[0]; position < fence; position++) {
+            final Object keyOrNull = node.slotKey(position);
+            if (keyOrNull == null) {
+                ((Node<K, V>)node.slotValue(position)).forEachEntry((key, value) -> action.accept(mapper.apply(key, value)));
+            } else {
+                action.accept(mapper.apply((K)keyOrNull, (V)node.slotValue(position)));
+            }
+        }
+        positions[0] = fence;
+        nodes[0] = null;
+        top = -1;
+        estimate = 0;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Spliterator<T> trySplit() {
+        if (top != 0) {
+            // part way through a child (or done), only split before starting a child
+            return null;
+        }
+        Node<K, V> node = nodes[0];
+        int origin = positions[0];
+        while (fence - origin == 1 && node.slotKey(origin) == null) {
+            // a lone child is left, split it instead
+            node = (Node<K, V>)node.slotValue(origin);
+            origin = 0;
+            fence = node.slotCount();
+            nodes[0] = node;
+            positions[0] = 0;
+        }
+        if (fence - origin < 2) {
+            return null;
+        }
+        final int middle = (origin + fence) >>> 1;
+        final int entries = countEntrySlots(node, origin, fence);
+        final int prefixEntries = countEntrySlots(node, origin, middle);
+        final int children = fence - origin - entries;
+        final int prefixChildren = middle - origin - prefixEntries;
+        final long childEstimate = Math.max(estimate - entries, 0);
+        final long prefixEstimate = prefixEntries + (children == 0 ? 0 : childEstimate * prefixChildren / children);
+        positions[0] = middle;
+        estimate -= prefixEstimate;
+        sized = false;
+        return new NodeSpliterator<>(node, origin, middle, prefixEstimate, mapper, characteristics);
+    }
+
+    private static int countEntrySlots(final Node<?, ?> node, final int from, final int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (node.slotKey(i) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public long estimateSize() {
+        return estimate;
+    }
+
+    @Override
+    public int characteristics() {
+        return sized ? characteristics | Spliterator.SIZED : characteristics;
+    }
+
+}
@@ -1,55 +1,235 @@
 package com.gotcake.collections.immutable;
 
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Arrays;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
+import java.util.function.Function;
 
 import static com.gotcake.collections.immutable.Util.*;
 
 /**
- * A node for holding multiple entries with the same hash value
+ * A node for holding multiple entries with the same hash value.
+ * Small buckets are scanned with equals. Once a bucket has MIN_SORTED_ENTRIES entries and all of its keys are of the
+ * same class, which implements Comparable of itself, the entries are kept sorted by key and found by binary search, so
+ * keys crafted to collide can't make every operation scan the whole bucket. Keys which compare as equal without being
+ * equal, like 1.0 and 1.00 as BigDecimals, are told apart by scanning the run of keys comparing equal to them.
+ * Buckets of maps with a HashStrategy that compares keys in its own way are never sorted, since compareTo need not agree
+ * with it, and are scanned with the strategy's equivalence.
+ * <p>
+ * This bounds lookups to O(log n), but not everything: buckets whose keys aren't Comparable of their own class, or
+ * mix classes, are still scanned, as are runs of keys which compare as equal. Adding or removing a key still copies
+ * the bucket, so filling a bucket of n keys copies O(n^2) references, although it only compares O(n log n) keys: new
+ * keys are inserted where the binary search left off, and a bucket is only sorted as a whole when it reaches
+ * MIN_SORTED_ENTRIES or loses the key which kept it from being sorted.
  * @author Aaron Cake
  */
 public class PackedArrayCollisionNode<K, V> implements Node<K, V> {
 
-    private final Object[] packedArray;
+    /**
+     * The number of entries at which a bucket of sortable keys switches to the sorted layout
+     */
+    static final int MIN_SORTED_ENTRIES = 8;
+
+    private Object[] packedArray;
+    /**
+     * Whether the entries are sorted by key, which implies every key is of the same sortable class
+     */
+    boolean sorted;
+    private final EditOwner owner;
 
     public PackedArrayCollisionNode(final K key1, final V value1,
                                      final K key2, final V value2) {
+        this(null, key1, value1, key2, value2);
+    }
+
+    PackedArrayCollisionNode(final EditOwner owner,
+                             final K key1, final V value1,
+                             final K key2, final V value2) {
+        this.owner = owner;
         packedArray = new Object[]{ key1, value1, key2, value2 };
     }
 
-    private PackedArrayCollisionNode(final Object[] array) {
-        packedArray = array;
+    /**
+     * Creates a node from the given entries, sorting them in place if the bucket is large enough
+     */
+    PackedArrayCollisionNode(final EditOwner owner, final Object[] array) {
+        this(owner, array, sortIfLarge(array));
     }
 
-    @Override
-    public V get(K key, int prefix) {
-        for (int i = 0; i < packedArray.length; i += 2) {
-            if (packedArray[i].equals(key)) {
-                @SuppressWarnings("unchecked")
-                final V value = (V)packedArray[i + 1];
-                return value;
+    private PackedArrayCollisionNode(final EditOwner owner, final Object[] array, final boolean sorted) {
+        this.owner = owner;
+        this.packedArray = array;
+        this.sorted = sorted;
+    }
+
+    /**
+     * Whether instances of a class can be compared to each other, which holds if the class or one of its superclasses
+     * declares that it implements Comparable of a supertype of the class, or if it is an enum
+     */
+    private static final ClassValue<Boolean> SELF_COMPARABLE = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(final Class<?> keyClass) {
+            if (Enum.class.isAssignableFrom(keyClass)) {
+                return true;
+            }
+            for (Class<?> type = keyClass; type != null; type = type.getSuperclass()) {
+                for (final Type implemented: type.getGenericInterfaces()) {
+                    if (implemented instanceof ParameterizedType &&
+                            ((ParameterizedType)implemented).getRawType() == Comparable.class) {
+                        final Type argument = ((ParameterizedType)implemented).getActualTypeArguments()[0];
+                        return argument instanceof Class && ((Class<?>)argument).isAssignableFrom(keyClass);
+                    }
+                }
             }
+            return false;
         }
-        return null;
+    };
+
+    @SuppressWarnings("unchecked")
+    private static int compareKeys(final Object key1, final Object key2) {
+        return ((Comparable<Object>)key1).compareTo(key2);
     }
 
-    private Node<K, V> nodeByReplacingValue(int index, V newValue) {
+    /**
+     * Sorts the entries of the packed array by key if there are at least MIN_SORTED_ENTRIES of them, and their keys
+     * are all of the same sortable class
+     * @return whether the entries were sorted
+     */
+    private static boolean sortIfLarge(final Object[] array) {
+        if (array.length < MIN_SORTED_ENTRIES * 2) {
+            return false;
+        }
+        final Class<?> keyClass = array[0].getClass();
+        if (!SELF_COMPARABLE.get(keyClass)) {
+            return false;
+        }
+        for (int i = 2; i < array.length; i += 2) {
+            if (array[i].getClass() != keyClass) {
+                return false;
+            }
+        }
+        final Object[][] entries = new Object[array.length >>> 1][];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = new Object[]{ array[i << 1], array[(i << 1) + 1] };
+        }
+        Arrays.sort(entries, (entry1, entry2) -> compareKeys(entry1[0], entry2[0]));
+        for (int i = 0; i < entries.length; i++) {
+            array[i << 1] = entries[i][0];
+            array[(i << 1) + 1] = entries[i][1];
+        }
+        return true;
+    }
+
+    private int offsetOf(final Object key) {
+        return offsetOf(key, null);
+    }
+
+    /**
+     * Finds the offset of the key in the packed array, comparing keys with the given equivalence, or equals if it is null.
+     * If the key isn't present, returns -(offset + 1) where offset is where the key should be inserted.
+     */
+    private int offsetOf(final Object key, final HashStrategy<?> equivalence) {
+        final Object[] array = packedArray;
+        if (sorted && equivalence == null) {
+            if (key.getClass() != array[0].getClass()) {
+                // keys of other classes are never equal, and are added at the end
+                return -(array.length + 1);
+            }
+            int low = 0;
+            int high = (array.length >>> 1) - 1;
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                final int comparison = compareKeys(array[mid << 1], key);
+                if (comparison < 0) {
+                    low = mid + 1;
+                } else if (comparison > 0) {
+                    high = mid - 1;
+                } else {
+                    return offsetAmongEqualKeys(array, mid, key);
+                }
+            }
+            return -((low << 1) + 1);
+        }
+        for (int i = 0; i < array.length; i += 2) {
+            if (keysEqual(array[i], key, equivalence)) {
+                return i;
+            }
+        }
+        return -(array.length + 1);
+    }
+
+    /**
+     * Finds the key in the run of keys which compare as equal to it around the given entry, since compareTo may not be
+     * consistent with equals. If none are equal, the key can be inserted at that entry without breaking the order.
+     */
+    private static int offsetAmongEqualKeys(final Object[] array, final int entry, final Object key) {
+        if (array[entry << 1].equals(key)) {
+            return entry << 1;
+        }
+        for (int i = (entry - 1) << 1; i >= 0 && compareKeys(array[i], key) == 0; i -= 2) {
+            if (array[i].equals(key)) {
+                return i;
+            }
+        }
+        for (int i = (entry + 1) << 1; i < array.length && compareKeys(array[i], key) == 0; i += 2) {
+            if (array[i].equals(key)) {
+                return i;
+            }
+        }
+        return -((entry << 1) + 1);
+    }
+
+    @Override
+    public V get(K key, int prefix, HashStrategy<? super K> equivalence) {
+        final int offset = offsetOf(key, equivalence);
+        if (offset < 0) {
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        final V value = (V)packedArray[offset + 1];
+        return value;
+    }
+
+    private boolean isEditableBy(final EditOwner owner) {
+        return owner != null && owner == this.owner;
+    }
+
+    private Node<K, V> nodeByReplacingValue(EditOwner owner, int index, V newValue) {
+        if (isEditableBy(owner)) {
+            packedArray[index] = newValue;
+            return this;
+        }
         Object[] newArray = packedArray.clone();
         newArray[index] = newValue;
-        return new PackedArrayCollisionNode<>(newArray);
+        return new PackedArrayCollisionNode<>(owner, newArray, sorted);
     }
 
-    private Node<K, V> nodeByAddingEntry(K key, V value) {
+    /**
+     * Adds an entry at the offset returned by offsetOf, which keeps a sorted bucket sorted unless the key is of
+     * another class
+     */
+    private Node<K, V> nodeByAddingEntry(EditOwner owner, int offset, K key, V value, HashStrategy<?> equivalence) {
         int len = packedArray.length;
         Object[] newArray = new Object[len + 2];
-        System.arraycopy(packedArray, 0, newArray, 0, len);
-        newArray[len] = key;
-        newArray[len + 1] = value;
-        return new PackedArrayCollisionNode<>(newArray);
+        System.arraycopy(packedArray, 0, newArray, 0, offset);
+        newArray[offset] = key;
+        newArray[offset + 1] = value;
+        System.arraycopy(packedArray, offset, newArray, offset + 2, len - offset);
+        // an unsorted bucket larger than this already holds keys which can't be sorted, and adding one doesn't change
+        // that, so it's only worth trying to sort when the bucket reaches the threshold
+        final boolean newSorted = equivalence == null && (sorted ? key.getClass() == packedArray[0].getClass()
+                : newArray.length == MIN_SORTED_ENTRIES * 2 && sortIfLarge(newArray));
+        if (isEditableBy(owner)) {
+            packedArray = newArray;
+            sorted = newSorted;
+            return this;
+        }
+        return new PackedArrayCollisionNode<>(owner, newArray, newSorted);
     }
 
-    private Node<K, V> nodeByRemovingEntry(int offset) {
+    private Node<K, V> nodeByRemovingEntry(EditOwner owner, int offset, HashStrategy<?> equivalence) {
         int lenMinus2 = packedArray.length - 2;
         if (lenMinus2 == 2) {
             if (offset == 0) {
@@ -57,14 +237,14 @@ public class PackedArrayCollisionNode<K, V> implements Node<K, V> {
                 final K key = (K)packedArray[2];
                 @SuppressWarnings("unchecked")
                 final V value = (V)packedArray[3];
-                return new SingleEntryNode<>(key, value);
+                return new SingleEntryNode<>(key, value, 0);
             }
             if (offset == 2) {
                 @SuppressWarnings("unchecked")
                 final K key = (K)packedArray[0];
                 @SuppressWarnings("unchecked")
                 final V value = (V)packedArray[1];
-                return new SingleEntryNode<>(key, value);
+                return new SingleEntryNode<>(key, value, 0);
             }
             throw new IndexOutOfBoundsException();
         }
@@ -75,78 +255,234 @@ public class PackedArrayCollisionNode<K, V> implements Node<K, V> {
         if (offset < lenMinus2) {
             System.arraycopy(packedArray, offset + 2, newArray, offset, lenMinus2 - offset);
         }
-        return new PackedArrayCollisionNode<>(newArray);
+        // the keys left may all be of one sortable class if the removed key was of another class than them
+        final boolean newSorted = sorted || equivalence == null &&
+                packedArray[offset].getClass() != newArray[0].getClass() && sortIfLarge(newArray);
+        if (isEditableBy(owner)) {
+            packedArray = newArray;
+            sorted = newSorted;
+            return this;
+        }
+        return new PackedArrayCollisionNode<>(owner, newArray, newSorted);
+    }
+
+    /**
+     * Creates a node holding some of the entries of this one, in the same order. Those of a sorted bucket are still
+     * sorted, but those of an unsorted one may have lost the keys which kept it from being sorted.
+     */
+    private Node<K, V> nodeWithSubsetOfEntries(Object[] array) {
+        return sorted ? new PackedArrayCollisionNode<>(null, array, true) : new PackedArrayCollisionNode<>(null, array);
     }
 
     @Override
-    public Node<K, V> set(K key, V value, int prefix, int depth, SizeChangeSink size) {
-        for (int i = 0; i < packedArray.length; i += 2) {
-            if (packedArray[i].equals(key)) {
-                if (packedArray[i + 1].equals(value)) {
-                    return this;
-                }
-                return nodeByReplacingValue(i + 1, value);
+    public Node<K, V> set(EditOwner owner, K key, V value, int prefix, int depth, SizeChangeSink size, HashStrategy<? super K> equivalence) {
+        final int i = offsetOf(key, equivalence);
+        if (i < 0) {
+            size.sizeChange++;
+            size.hashChange += entryHash(key, value, equivalence);
+            return nodeByAddingEntry(owner, -i - 1, key, value, equivalence);
+        }
+        if (packedArray[i + 1].equals(value)) {
+            return this;
+        }
+        size.hashChange += entryHash(key, value, equivalence) - entryHash(packedArray[i], packedArray[i + 1], equivalence);
+        return nodeByReplacingValue(owner, i + 1, value);
+    }
+
+    @Override
+    public Node<K, V> setIfExists(K key, V value, int prefix, int depth, SizeChangeSink size, HashStrategy<? super K> equivalence) {
+        final int i = offsetOf(key, equivalence);
+        if (i < 0 || packedArray[i + 1].equals(value)) {
+            return this;
+        }
+        size.hashChange += entryHash(packedArray[i], value, equivalence) - entryHash(packedArray[i], packedArray[i + 1], equivalence);
+        return nodeByReplacingValue(null, i + 1, value);
+    }
+
+    @Override
+    public Node<K, V> setIfNotExists(K key, V value, int prefix, int depth, HashStrategy<? super K> equivalence) {
+        final int i = offsetOf(key, equivalence);
+        if (i >= 0) {
+            return this;
+        }
+        return nodeByAddingEntry(null, -i - 1, key, value, equivalence);
+    }
+
+    @Override
+    public Node<K, V> delete(EditOwner owner, K key, int prefix, int depth, SizeChangeSink size, HashStrategy<? super K> equivalence) {
+        final int i = offsetOf(key, equivalence);
+        if (i < 0) {
+            return this;
+        }
+        size.sizeChange--;
+        size.hashChange -= entryHash(packedArray[i], packedArray[i + 1], equivalence);
+        return nodeByRemovingEntry(owner, i, equivalence);
+    }
+
+    @Override
+    public Node<K, V> update(EditOwner owner, K key, int prefix, int depth, BiFunction<? super K, ? super V, ? extends V> updateFn, SizeChangeSink size, HashStrategy<? super K> equivalence) {
+        final int i = offsetOf(key, equivalence);
+        if (i >= 0) {
+            @SuppressWarnings("unchecked")
+            final V curVal = (V)packedArray[i + 1];
+            final V newVal = updateFn.apply(key, curVal);
+            if (newVal == null) {
+                size.sizeChange--;
+                size.hashChange -= entryHash(packedArray[i], curVal, equivalence);
+                return nodeByRemovingEntry(owner, i, equivalence);
+            } else if (!newVal.equals(curVal)) {
+                size.hashChange += entryHash(key, newVal, equivalence) - entryHash(packedArray[i], curVal, equivalence);
+                return nodeByReplacingValue(owner, i + 1, newVal);
             }
+            return this;
+        }
+        final V newVal = updateFn.apply(key, null);
+        if (newVal == null) {
+            return this;
         }
         size.sizeChange++;
-        return nodeByAddingEntry(key, value);
+        size.hashChange += entryHash(key, newVal, equivalence);
+        return nodeByAddingEntry(owner, -i - 1, key, newVal, equivalence);
     }
 
     @Override
-    public Node<K, V> setIfExists(K key, V value, int prefix, int depth) {
+    @SuppressWarnings("unchecked")
+    public Node<K, V> merge(Node<K, V> otherNode, int depth, BiFunction<? super V, ? super V, ? extends V> resolver, SizeChangeSink size) {
+        if (otherNode == this) {
+            return this;
+        }
+        if (!(otherNode instanceof PackedArrayCollisionNode)) {
+            return TrieBuilder.mergeByRebuilding(this, otherNode, depth, resolver, size);
+        }
+        final PackedArrayCollisionNode<K, V> other = (PackedArrayCollisionNode<K, V>)otherNode;
+        final Object[] otherArray = other.packedArray;
+        final Object[] newArray = new Object[packedArray.length + otherArray.length];
+        int length = 0;
+        boolean changed = false;
         for (int i = 0; i < packedArray.length; i += 2) {
-            if (packedArray[i].equals(key)) {
-                if (packedArray[i + 1].equals(value)) {
-                    return this;
-                }
-                return nodeByReplacingValue(i + 1, value);
+            final V value = (V)packedArray[i + 1];
+            final int j = other.offsetOf(packedArray[i]);
+            final V newValue = j < 0 ? value : resolveMergedValue(value, (V)otherArray[j + 1], resolver);
+            if (newValue == null) {
+                size.sizeChange--;
+                changed = true;
+                continue;
             }
+            changed |= newValue != value;
+            newArray[length] = packedArray[i];
+            newArray[length + 1] = newValue;
+            length += 2;
+        }
+        for (int j = 0; j < otherArray.length; j += 2) {
+            if (offsetOf(otherArray[j]) < 0) {
+                size.sizeChange++;
+                newArray[length] = otherArray[j];
+                newArray[length + 1] = otherArray[j + 1];
+                length += 2;
+                changed = true;
+            }
+        }
+        if (!changed) {
+            return this;
+        }
+        if (length == 0) {
+            return null;
         }
-        return this;
+        if (length == 2) {
+            return new SingleEntryNode<>((K)newArray[0], (V)newArray[1], 0);
+        }
+        return new PackedArrayCollisionNode<>(null, Arrays.copyOf(newArray, length));
     }
 
     @Override
-    public Node<K, V> setIfNotExists(K key, V value, int prefix, int depth) {
+    public void diff(Node<K, V> otherNode, int depth, ImmutableMap.DiffVisitor<? super K, ? super V> visitor) {
+        if (otherNode == this) {
+            return;
+        }
+        if (!(otherNode instanceof PackedArrayCollisionNode)) {
+            diffEntries(this, otherNode, visitor);
+            return;
+        }
+        final PackedArrayCollisionNode<K, V> other = (PackedArrayCollisionNode<K, V>)otherNode;
+        final Object[] otherArray = other.packedArray;
         for (int i = 0; i < packedArray.length; i += 2) {
-            if (packedArray[i].equals(key)) {
-                return this;
+            @SuppressWarnings("unchecked")
+            final K key = (K)packedArray[i];
+            @SuppressWarnings("unchecked")
+            final V value = (V)packedArray[i + 1];
+            final int j = other.offsetOf(key);
+            if (j < 0) {
+                visitor.removed(key, value);
+                continue;
+            }
+            @SuppressWarnings("unchecked")
+            final V otherValue = (V)otherArray[j + 1];
+            if (!value.equals(otherValue)) {
+                visitor.changed(key, value, otherValue);
             }
         }
-        return nodeByAddingEntry(key, value);
+        for (int j = 0; j < otherArray.length; j += 2) {
+            if (offsetOf(otherArray[j]) >= 0) {
+                continue;
+            }
+            @SuppressWarnings("unchecked")
+            final K otherKey = (K)otherArray[j];
+            @SuppressWarnings("unchecked")
+            final V otherValue = (V)otherArray[j + 1];
+            visitor.added(otherKey, otherValue);
+        }
     }
 
     @Override
-    public Node<K, V> delete(K key, int prefix, int depth) {
-        for (int i = 0; i < packedArray.length; i += 2) {
-            if (packedArray[i].equals(key)) {
-                return nodeByRemovingEntry(i);
-            }
+    public Node<K, V> intersect(Node<K, ?> otherNode, int depth, SizeChangeSink size) {
+        if (!(otherNode instanceof PackedArrayCollisionNode)) {
+            return TrieBuilder.intersectByRebuilding(this, otherNode, depth, size);
         }
-        return this;
+        return retainEntries((PackedArrayCollisionNode<K, ?>)otherNode, true, size);
     }
 
     @Override
-    public Node<K, V> update(K key, int prefix, int depth, BiFunction<? super K, ? super V, ? extends V> updateFn, SizeChangeSink size) {
+    public Node<K, V> subtract(Node<K, ?> otherNode, int depth, SizeChangeSink size) {
+        if (!(otherNode instanceof PackedArrayCollisionNode)) {
+            return TrieBuilder.subtractByRebuilding(this, otherNode, depth, size);
+        }
+        final int oldLength = packedArray.length;
+        final Node<K, V> result = retainEntries((PackedArrayCollisionNode<K, ?>)otherNode, false, size);
+        // retainEntries counts the entries kept, make it relative to this node
+        size.sizeChange -= oldLength / 2;
+        return result;
+    }
+
+    /**
+     * Keeps the entries whose keys are (or are not) in the other node, adding the number kept to the size
+     */
+    @SuppressWarnings("unchecked")
+    private Node<K, V> retainEntries(PackedArrayCollisionNode<K, ?> other, boolean keepCommon, SizeChangeSink size) {
+        final Object[] newArray = new Object[packedArray.length];
+        int length = 0;
         for (int i = 0; i < packedArray.length; i += 2) {
-            if (packedArray[i].equals(key)) {
-                @SuppressWarnings("unchecked")
-                final V curVal = (V)packedArray[i + 1];
-                final V newVal = updateFn.apply(key, curVal);
-                if (newVal == null) {
-                    size.sizeChange--;
-                    return nodeByRemovingEntry(i);
-                } else if (!newVal.equals(curVal)) {
-                    return nodeByReplacingValue(i + 1, newVal);
-                }
-                return this;
+            if ((other.offsetOf(packedArray[i]) >= 0) == keepCommon) {
+                newArray[length] = packedArray[i];
+                newArray[length + 1] = packedArray[i + 1];
+                length += 2;
             }
         }
-        final V newVal = updateFn.apply(key, null);
-        if (newVal == null) {
+        size.sizeChange += length / 2;
+        if (length == packedArray.length) {
             return this;
         }
-        size.sizeChange++;
-        return nodeByAddingEntry(key, newVal);
+        if (length == 0) {
+            return null;
+        }
+        if (length == 2) {
+            return new SingleEntryNode<>((K)newArray[0], (V)newArray[1], 0);
+        }
+        return nodeWithSubsetOfEntries(Arrays.copyOf(newArray, length));
+    }
+
+    @Override
+    public int computeSize() {
+        return packedArray.length / 2;
     }
 
     @Override
@@ -171,17 +507,103 @@ public class PackedArrayCollisionNode<K, V> implements Node<K, V> {
     }
 
     @Override
-    public void computeIteration(int i, NodeEntryIterator<K, V>.Callback callback) {
-        final int i2 = i * 2;
-        if (i2 == packedArray.length) {
-            callback.exitNode();
-        } else {
-            @SuppressWarnings("unchecked")
-            final K key = (K)packedArray[i2];
-            @SuppressWarnings("unchecked")
-            final V value = (V)packedArray[i2 + 1];
-            callback.offer(key, value);
+    @SuppressWarnings("unchecked")
+    public Node<K, V> replaceSlots(Object[] slots, int depth) {
+        final Object[] newArray = new Object[packedArray.length];
+        int length = 0;
+        boolean sameAsThis = true;
+        for (int i = 0; i < packedArray.length; i += 2) {
+            if (slots[i + 1] == null) {
+                sameAsThis = false;
+                continue;
+            }
+            sameAsThis &= slots[i] == packedArray[i] && slots[i + 1] == packedArray[i + 1];
+            newArray[length] = slots[i];
+            newArray[length + 1] = slots[i + 1];
+            length += 2;
+        }
+        if (sameAsThis) {
+            return this;
+        }
+        if (length == 0) {
+            return null;
+        }
+        if (length == 2) {
+            return new SingleEntryNode<>((K)newArray[0], (V)newArray[1], 0);
+        }
+        return nodeWithSubsetOfEntries(Arrays.copyOf(newArray, length));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Node<K, V> updateAll(final int depth, final BiFunction<? super K, ? super V, ? extends V> updateFn,
+                                final SizeChangeSink size) {
+        Object[] newArray = null;
+        int length = 0;
+        for (int i = 0; i < packedArray.length; i += 2) {
+            final K key = (K)packedArray[i];
+            final V value = (V)packedArray[i + 1];
+            V newValue = updateFn.apply(key, value);
+            if (newValue == null) {
+                size.sizeChange--;
+                size.hashChange -= entryHash(key, value);
+            } else if (newValue.equals(value)) {
+                newValue = value;
+            } else {
+                size.hashChange += entryHash(key, newValue) - entryHash(key, value);
+            }
+            if (newArray == null) {
+                if (newValue == value) {
+                    continue;
+                }
+                newArray = new Object[packedArray.length];
+                System.arraycopy(packedArray, 0, newArray, 0, i);
+                length = i;
+            }
+            if (newValue != null) {
+                newArray[length] = key;
+                newArray[length + 1] = newValue;
+                length += 2;
+            }
+        }
+        if (newArray == null) {
+            return this;
+        }
+        if (length == 0) {
+            return null;
+        }
+        if (length == 2) {
+            return new SingleEntryNode<>((K)newArray[0], (V)newArray[1], 0);
+        }
+        return nodeWithSubsetOfEntries(length == newArray.length ? newArray : Arrays.copyOf(newArray, length));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <R> Node<K, R> mapValues(final Function<? super V, ? extends R> mapperFn) {
+        final Object[] newArray = new Object[packedArray.length];
+        for (int i = 0; i < packedArray.length; i += 2) {
+            final R newValue = mapperFn.apply((V)packedArray[i + 1]);
+            if (newValue == null) throw new NullPointerException();
+            newArray[i] = packedArray[i];
+            newArray[i + 1] = newValue;
         }
+        return new PackedArrayCollisionNode<>(null, newArray, sorted);
+    }
+
+    @Override
+    public int slotCount() {
+        return packedArray.length >>> 1;
+    }
+
+    @Override
+    public Object slotKey(int slot) {
+        return packedArray[slot << 1];
+    }
+
+    @Override
+    public Object slotValue(int slot) {
+        return packedArray[(slot << 1) + 1];
     }
 
     @Override
@@ -192,18 +614,27 @@ public class PackedArrayCollisionNode<K, V> implements Node<K, V> {
         assertEqualBinary("hash must match structural location", suffix, firstHash);
         for (int i = 2; i < packedArray.length; i += 2) {
             assertEqualBinary("hashes of all items must be equal", firstHash, computeSmearHash(packedArray[i]));
+            if (sorted) {
+                assertThat("keys of a sorted bucket must be of the same class", packedArray[i].getClass() == packedArray[0].getClass());
+                assertThat("keys of a sorted bucket must be in ascending order", compareKeys(packedArray[i - 2], packedArray[i]) <= 0);
+            }
         }
         return packedArray.length / 2;
     }
 
+    /**
+     * Small buckets are kept in insertion order, so two collision nodes holding the same entries are equal regardless
+     * of the order the entries appear in.
+     */
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || !(o instanceof PackedArrayCollisionNode)) return false;
         PackedArrayCollisionNode<?, ?> that = (PackedArrayCollisionNode<?, ?>) o;
         if (packedArray.length != that.packedArray.length) return false;
-        for (int i = 0; i < packedArray.length; i++) {
-            if (!packedArray[i].equals(that.packedArray[i])) {
+        for (int i = 0; i < packedArray.length; i += 2) {
+            final int j = that.offsetOf(packedArray[i]);
+            if (j < 0 || !packedArray[i + 1].equals(that.packedArray[j + 1])) {
                 return false;
             }
         }
@@ -212,9 +643,9 @@ public class PackedArrayCollisionNode<K, V> implements Node<K, V> {
 
     @Override
     public int hashCode() {
-        int result = 1;
-        for (final Object el : packedArray) {
-            result = result * 31 + el.hashCode();
+        int result = 0;
+        for (int i = 0; i < packedArray.length; i += 2) {
+            result += packedArray[i].hashCode() ^ packedArray[i + 1].hashCode();
         }
         return result;
     }
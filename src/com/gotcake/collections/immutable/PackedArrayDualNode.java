@@ -1,47 +1,71 @@
 package com.gotcake.collections.immutable;
 
+import java.util.Arrays;
 import java.util.Objects;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
+import java.util.function.Function;
 
 import static com.gotcake.collections.immutable.Util.*;
 
 /**
- * A leaf node for holding more than two entries
+ * A leaf node for holding more than two entries.
+ * Nodes are never changed once they are reachable from a persistent map. A node created by a transient batch
+ * carries that batch's {@link EditOwner} and is edited in place by it, so a batch copies each node at most once.
  * @author Aaron Cake
  */
 class PackedArrayDualNode<K, V> implements Node<K, V> {
 
     int mask;
-    final Object[] packedArray;
-
-    PackedArrayDualNode(final int bitIndex, final K key, final V value) {
-        this.mask = 1 << bitIndex;
+    Object[] packedArray;
+    /**
+     * The hash prefix of the key in each slot at the depth of this node, or 0 for a child.
+     * Keys are only compared with equals when their prefixes match, and splitting a slot reuses the prefix instead of
+     * hashing the key again. The bits above the prefix are the same for every key in the subtree, so equal prefixes
+     * mean equal hashes. A node which is never edited in place may share this array with other such nodes.
+     */
+    int[] hashPrefixes;
+    final EditOwner owner;
+
+    PackedArrayDualNode(final EditOwner owner, final int prefix, final K key, final V value) {
+        this.owner = owner;
+        this.mask = 1 << (prefix >>> 27);
         this.packedArray = new Object[]{ key, value };
+        this.hashPrefixes = new int[]{ prefix };
     }
 
-    PackedArrayDualNode(final int bitIndex, final Node<K, V> child) {
+    PackedArrayDualNode(final EditOwner owner, final int bitIndex, final Node<K, V> child) {
+        this.owner = owner;
         this.mask = 1 << bitIndex;
         this.packedArray = new Object[]{ null, child };
+        this.hashPrefixes = new int[1];
     }
 
-    PackedArrayDualNode(final int bitIndex1, final K key1, final V value1,
-                        final int bitIndex2, final K key2, final V value2) {
+    PackedArrayDualNode(final EditOwner owner,
+                        final int prefix1, final K key1, final V value1,
+                        final int prefix2, final K key2, final V value2) {
+        this.owner = owner;
+        final int bitIndex1 = prefix1 >>> 27;
+        final int bitIndex2 = prefix2 >>> 27;
         this.mask = (1 << bitIndex1) | (1 << bitIndex2);
         if (bitIndex1 > bitIndex2) {
             this.packedArray = new Object[]{ key2, value2, key1, value1 };
+            this.hashPrefixes = new int[]{ prefix2, prefix1 };
         } else {
             this.packedArray = new Object[]{ key1, value1, key2, value2 };
+            this.hashPrefixes = new int[]{ prefix1, prefix2 };
         }
     }
 
-    PackedArrayDualNode(final int mask, final Object[] packedArray) {
+    PackedArrayDualNode(final EditOwner owner, final int mask, final Object[] packedArray, final int[] hashPrefixes) {
+        this.owner = owner;
         this.mask = mask;
         this.packedArray = packedArray;
+        this.hashPrefixes = hashPrefixes;
     }
 
     @Override
-    public V get(K key, int prefix) {
+    public V get(K key, int prefix, HashStrategy<? super K> equivalence) {
 
         final int bit = 1 << (prefix >>> 27);
 
@@ -57,11 +81,21 @@ class PackedArrayDualNode<K, V> implements Node<K, V> {
         if (keyOrNull == null) {
             // we have a child, descend further
             @SuppressWarnings("unchecked")
-            final Node<K, V> child = (Node<K, V>)packedArray[offset + 1];
-            return child.get(key, prefix << 5);
+            Node<K, V> child = (Node<K, V>)packedArray[offset + 1];
+            int childPrefix = prefix << 5;
+            if (child instanceof CompressedPathNode) {
+                // skip the compressed levels here, so the call below keeps seeing only a few node types
+                final CompressedPathNode<K, V> path = (CompressedPathNode<K, V>)child;
+                if (!path.isFollowedBy(childPrefix)) {
+                    return null;
+                }
+                childPrefix <<= 5 * path.levels;
+                child = path.child;
+            }
+            return child.get(key, childPrefix, equivalence);
         }
 
-        if (keyOrNull.equals(key)) {
+        if (hashPrefixes[offset >>> 1] == prefix && keysEqual(keyOrNull, key, equivalence)) {
             // key matches, return value
             @SuppressWarnings("unchecked")
             final V value = (V)packedArray[offset + 1];
@@ -74,7 +108,7 @@ class PackedArrayDualNode<K, V> implements Node<K, V> {
     }
 
     @Override
-    public Node<K, V> set(K key, V value, int prefix, int depth, SizeChangeSink size) {
+    public Node<K, V> set(EditOwner owner, K key, V value, int prefix, int depth, SizeChangeSink size, HashStrategy<? super K> equivalence) {
 
         final int bit = 1 << (prefix >>> 27);
         final int offset = Integer.bitCount(mask & (bit - 1)) * 2;
@@ -82,7 +116,8 @@ class PackedArrayDualNode<K, V> implements Node<K, V> {
         if ((bit & mask) == 0) {
             // bit not set, branch does not exist, insert entry
             size.sizeChange++;
-            return nodeByInsertingAtOffset(bit, offset, key, value);
+            size.hashChange += entryHash(key, value, equivalence);
+            return nodeByInsertingAtOffset(owner, bit, offset, key, value, prefix);
         }
 
         @SuppressWarnings("unchecked")
@@ -92,42 +127,45 @@ class PackedArrayDualNode<K, V> implements Node<K, V> {
             // we have a child, descend further
             @SuppressWarnings("unchecked")
             final Node<K, V> child = (Node<K, V>)packedArray[offset + 1];
-            final Node<K, V> newChild = child.set(key, value, prefix << 5, depth + 1, size);
+            final Node<K, V> newChild = child.set(owner, key, value, prefix << 5, depth + 1, size, equivalence);
             if (child != newChild) {
                 // child changed, replace child
-                return nodeByReplacingOffset(offset, null, newChild);
+                return nodeByReplacingOffset(owner, offset, null, newChild, 0);
 
             }
-            // child did not change, return this
+            // child did not change or was edited in place, return this
             return this;
         }
 
-        if (keyOrNull.equals(key)) {
+        final int ourPrefix = hashPrefixes[offset >>> 1];
+        if (ourPrefix == prefix && keysEqual(keyOrNull, key, equivalence)) {
             // key matches
             if (packedArray[offset + 1].equals(value)) {
                 // value matches, do nothing
                 return this;
             }
             // value doesn't match, replace it
-            return nodeByReplacingOffset(offset, key, value);
+            size.hashChange += entryHash(key, value, equivalence) - entryHash(keyOrNull, packedArray[offset + 1], equivalence);
+            return nodeByReplacingOffset(owner, offset, key, value, prefix);
         }
 
         // key does not match, create new branch
-        final int ourPrefix = computeHashPrefix(keyOrNull, depth);
         @SuppressWarnings("unchecked")
         final V ourValue = (V)packedArray[offset + 1];
         final Node<K, V> newNode = NodeFactory.createNodeWithTwoEntries(
+                owner,
                 depth + 1,
                 prefix << 5, key, value,
                 ourPrefix << 5, keyOrNull, ourValue
         );
         size.sizeChange++;
-        return nodeByReplacingOffset(offset, null, newNode);
+        size.hashChange += entryHash(key, value, equivalence);
+        return nodeByReplacingOffset(owner, offset, null, newNode, 0);
 
     }
 
     @Override
-    public Node<K, V> setIfExists(K key, V value, int prefix, int depth) {
+    public Node<K, V> setIfExists(K key, V value, int prefix, int depth, SizeChangeSink size, HashStrategy<? super K> equivalence) {
 
         final int bit = 1 << (prefix >>> 27);
         final int offset = Integer.bitCount(mask & (bit - 1)) * 2;
@@ -144,23 +182,24 @@ class PackedArrayDualNode<K, V> implements Node<K, V> {
             // we have a child, descend further
             @SuppressWarnings("unchecked")
             final Node<K, V> child = (Node<K, V>)packedArray[offset + 1];
-            final Node<K, V> newChild = child.setIfExists(key, value, prefix << 5, depth + 1);
+            final Node<K, V> newChild = child.setIfExists(key, value, prefix << 5, depth + 1, size, equivalence);
             if (child != newChild) {
                 // child changed, replace child
-                return nodeByReplacingOffset(offset, null, newChild);
+                return nodeByReplacingOffset(null, offset, null, newChild, 0);
             }
             // child did not change, return this
             return this;
         }
 
-        if (keyOrNull.equals(key)) {
+        if (hashPrefixes[offset >>> 1] == prefix && keysEqual(keyOrNull, key, equivalence)) {
             // key matches
             if (packedArray[offset + 1].equals(value)) {
                 // value matches, do nothing
                 return this;
             }
             // value doesn't match, replace it
-            return nodeByReplacingOffset(offset, key, value);
+            size.hashChange += entryHash(key, value, equivalence) - entryHash(keyOrNull, packedArray[offset + 1], equivalence);
+            return nodeByReplacingOffset(null, offset, key, value, prefix);
         }
 
         // key does not match, return this
@@ -170,14 +209,14 @@ class PackedArrayDualNode<K, V> implements Node<K, V> {
 
     @Override
     @SuppressWarnings("unchecked")
-    public Node<K, V> setIfNotExists(K key, V value, int prefix, int depth) {
+    public Node<K, V> setIfNotExists(K key, V value, int prefix, int depth, HashStrategy<? super K> equivalence) {
 
         final int bit = 1 << (prefix >>> 27);
         final int offset = Integer.bitCount(mask & (bit - 1)) * 2;
 
         if ((bit & mask) == 0) {
             // bit not set, branch does not exist, insert entry
-            return nodeByInsertingAtOffset(bit, offset, key, value);
+            return nodeByInsertingAtOffset(null, bit, offset, key, value, prefix);
         }
 
         final Object keyOrNull = packedArray[offset];
@@ -185,34 +224,34 @@ class PackedArrayDualNode<K, V> implements Node<K, V> {
         if (keyOrNull == null) {
             // we have a child, descend further
             final Node<K, V> child = (Node<K, V>)packedArray[offset + 1];
-            final Node<K, V> newChild = child.setIfNotExists(key, value, prefix << 5, depth + 1);
+            final Node<K, V> newChild = child.setIfNotExists(key, value, prefix << 5, depth + 1, equivalence);
             if (child != newChild) {
                 // child changed, replace child
-                return nodeByReplacingOffset(offset, null, newChild);
+                return nodeByReplacingOffset(null, offset, null, newChild, 0);
             }
             // child did not change, return this
             return this;
         }
 
-        if (keyOrNull.equals(key)) {
+        final int ourPrefix = hashPrefixes[offset >>> 1];
+        if (ourPrefix == prefix && keysEqual(keyOrNull, key, equivalence)) {
             // key matches, do nothing
             return this;
         }
 
         // key does not match, create new branch
-        final int ourPrefix = computeHashPrefix(keyOrNull, depth);
         final Node<K, V> newNode = NodeFactory.createNodeWithTwoEntries(
                 depth + 1,
                 prefix << 5, key, value,
                 ourPrefix << 5, (K)keyOrNull, (V)packedArray[offset + 1]
         );
-        return nodeByReplacingOffset(offset, null, newNode);
+        return nodeByReplacingOffset(null, offset, null, newNode, 0);
 
     }
 
     @Override
     @SuppressWarnings("unchecked")
-    public Node<K, V> delete(K key, int prefix, int depth) {
+    public Node<K, V> delete(EditOwner owner, K key, int prefix, int depth, SizeChangeSink size, HashStrategy<? super K> equivalence) {
 
         final int bit = 1 << (prefix >>> 27);
         final int offset = Integer.bitCount(mask & (bit - 1)) * 2;
@@ -227,31 +266,33 @@ class PackedArrayDualNode<K, V> implements Node<K, V> {
         if (keyOrNull == null) {
             // we have a child, descend further
             final Node<K, V> child = (Node<K, V>)packedArray[offset + 1];
-            final Node<K, V> newChild = child.delete(key, prefix << 5, depth + 1);
+            final Node<K, V> newChild = child.delete(owner, key, prefix << 5, depth + 1, size, equivalence);
 
             if (child != newChild) {
 
                 if (newChild == null) {
                     // child deleted, remove child
-                    return nodeByRemovingOffset(offset, bit, depth);
+                    return nodeByRemovingOffset(owner, offset, bit, depth);
                 }
 
                 if (newChild instanceof SingleEntryNode) {
                     // collapse entry into this node
-                    return nodeByCollapsingNodeAtOffset(offset, (SingleEntryNode<K, V>)newChild);
+                    return nodeByCollapsingNodeAtOffset(owner, offset, bit, depth, (SingleEntryNode<K, V>)newChild);
                 }
 
                 // child changed, replace child
-                return nodeByReplacingOffset(offset, null, newChild);
+                return nodeByReplacingOffset(owner, offset, null, newChild, 0);
             }
 
-            // child did not change, return this
+            // child did not change or was edited in place, return this
             return this;
         }
 
-        if (keyOrNull.equals(key)) {
+        if (hashPrefixes[offset >>> 1] == prefix && keysEqual(keyOrNull, key, equivalence)) {
             // key matches, remove entry
-            return nodeByRemovingOffset(offset, bit, depth);
+            size.sizeChange--;
+            size.hashChange -= entryHash(keyOrNull, packedArray[offset + 1], equivalence);
+            return nodeByRemovingOffset(owner, offset, bit, depth);
         }
 
         // key does not match, return this
@@ -260,7 +301,7 @@ class PackedArrayDualNode<K, V> implements Node<K, V> {
     }
 
     @Override
-    public Node<K, V> update(K key, int prefix, int depth, BiFunction<? super K, ? super V, ? extends V> updateFn, SizeChangeSink size) {
+    public Node<K, V> update(EditOwner owner, K key, int prefix, int depth, BiFunction<? super K, ? super V, ? extends V> updateFn, SizeChangeSink size, HashStrategy<? super K> equivalence) {
 
         final int bit = 1 << (prefix >>> 27);
         final int offset = Integer.bitCount(mask & (bit - 1)) * 2;
@@ -270,7 +311,8 @@ class PackedArrayDualNode<K, V> implements Node<K, V> {
             final V newValue = updateFn.apply(key, null);
             if (newValue != null) {
                 size.sizeChange++;
-                return nodeByInsertingAtOffset(bit, offset, key, newValue);
+                size.hashChange += entryHash(key, newValue, equivalence);
+                return nodeByInsertingAtOffset(owner, bit, offset, key, newValue, prefix);
             }
             return this;
         }
@@ -282,27 +324,28 @@ class PackedArrayDualNode<K, V> implements Node<K, V> {
             // we have a child, descend further
             @SuppressWarnings("unchecked")
             final Node<K, V> child = (Node<K, V>)packedArray[offset + 1];
-            final Node<K, V> newChild = child.update(key, prefix << 5, depth + 1, updateFn, size);
+            final Node<K, V> newChild = child.update(owner, key, prefix << 5, depth + 1, updateFn, size, equivalence);
             if (child != newChild) {
 
                 if (newChild == null) {
                     // child removed
-                    return nodeByRemovingOffset(offset, bit, depth);
+                    return nodeByRemovingOffset(owner, offset, bit, depth);
                 }
 
                 if (newChild instanceof SingleEntryNode) {
                     // collapse entry into this node
-                    return nodeByCollapsingNodeAtOffset(offset, (SingleEntryNode<K, V>)newChild);
+                    return nodeByCollapsingNodeAtOffset(owner, offset, bit, depth, (SingleEntryNode<K, V>)newChild);
                 }
 
                 // child changed, replace child
-                return nodeByReplacingOffset(offset, null, newChild);
+                return nodeByReplacingOffset(owner, offset, null, newChild, 0);
             }
-            // child did not change, return this
+            // child did not change or was edited in place, return this
             return this;
         }
 
-        if (keyOrNull.equals(key)) {
+        final int ourPrefix = hashPrefixes[offset >>> 1];
+        if (ourPrefix == prefix && keysEqual(keyOrNull, key, equivalence)) {
             // key matches
 
             @SuppressWarnings("unchecked")
@@ -311,7 +354,8 @@ class PackedArrayDualNode<K, V> implements Node<K, V> {
 
             if (newValue == null) {
                 size.sizeChange--;
-                return nodeByRemovingOffset(offset, bit, depth);
+                size.hashChange -= entryHash(keyOrNull, curValue, equivalence);
+                return nodeByRemovingOffset(owner, offset, bit, depth);
             }
 
             if (newValue.equals(curValue)) {
@@ -319,56 +363,95 @@ class PackedArrayDualNode<K, V> implements Node<K, V> {
                 return this;
             }
             // value doesn't match, replace it
-            return nodeByReplacingOffset(offset, key, newValue);
+            size.hashChange += entryHash(key, newValue, equivalence) - entryHash(keyOrNull, curValue, equivalence);
+            return nodeByReplacingOffset(owner, offset, key, newValue, prefix);
         }
 
         // key does not match, create new branch
         final V newValue = updateFn.apply(key, null);
         if (newValue != null) {
             size.sizeChange++;
-            final int ourPrefix = computeHashPrefix(keyOrNull, depth);
+            size.hashChange += entryHash(key, newValue, equivalence);
             @SuppressWarnings("unchecked")
             final V ourValue = (V)packedArray[offset + 1];
             final Node<K, V> newNode = NodeFactory.createNodeWithTwoEntries(
+                    owner,
                     depth + 1,
                     prefix << 5, key, newValue,
                     ourPrefix << 5, keyOrNull, ourValue
             );
-            return nodeByReplacingOffset(offset, null, newNode);
+            return nodeByReplacingOffset(owner, offset, null, newNode, 0);
         }
 
         return this;
 
     }
 
-    private PackedArrayDualNode<K, V> nodeByInsertingAtOffset(final int bit, final int offset, final Object o1, final Object o2) {
+    /**
+     * Checks if this node belongs to the given transient batch, and so may be changed in place
+     */
+    private boolean isEditableBy(final EditOwner owner) {
+        return owner != null && owner == this.owner;
+    }
+
+    private Node<K, V> nodeByInsertingAtOffset(final EditOwner owner, final int bit, final int offset,
+                                               final Object o1, final Object o2, final int prefix) {
         final Object[] newArray = new Object[packedArray.length + 2];
+        final int[] newPrefixes = new int[hashPrefixes.length + 1];
+        final int slot = offset >>> 1;
         if (offset > 0) {
             System.arraycopy(packedArray, 0, newArray, 0, offset);
+            System.arraycopy(hashPrefixes, 0, newPrefixes, 0, slot);
         }
         newArray[offset] = o1;
         newArray[offset + 1] = o2;
+        newPrefixes[slot] = prefix;
         if (offset < packedArray.length) {
             System.arraycopy(packedArray, offset, newArray, offset + 2, packedArray.length - offset);
+            System.arraycopy(hashPrefixes, slot, newPrefixes, slot + 1, hashPrefixes.length - slot);
         }
-        return new PackedArrayDualNode<>(mask | bit, newArray);
+        // once dense enough to index slots directly, the factory switches to an ArrayNode
+        if (isEditableBy(owner) && newPrefixes.length < ArrayNode.MIN_SLOTS) {
+            mask |= bit;
+            packedArray = newArray;
+            hashPrefixes = newPrefixes;
+            return this;
+        }
+        return NodeFactory.createPackedNode(owner, mask | bit, newArray, newPrefixes);
     }
 
-    private PackedArrayDualNode<K, V> nodeByReplacingOffset(final int offset, final Object o1, final Object o2) {
+    private Node<K, V> nodeByReplacingOffset(final EditOwner owner, final int offset,
+                                             final Object o1, final Object o2, final int prefix) {
+        final int slot = offset >>> 1;
+        if (isEditableBy(owner)) {
+            packedArray[offset] = o1;
+            packedArray[offset + 1] = o2;
+            hashPrefixes[slot] = prefix;
+            return this;
+        }
         final Object[] newArray = packedArray.clone();
         newArray[offset] = o1;
         newArray[offset + 1] = o2;
-        return new PackedArrayDualNode<>(mask, newArray);
+        // an editable copy needs its own prefixes, otherwise they can be shared while unchanged
+        int[] newPrefixes = hashPrefixes;
+        if (owner != null || hashPrefixes[slot] != prefix) {
+            newPrefixes = hashPrefixes.clone();
+            newPrefixes[slot] = prefix;
+        }
+        return NodeFactory.createPackedNode(owner, mask, newArray, newPrefixes);
     }
 
-    private Node<K, V> nodeByCollapsingNodeAtOffset(final int offset, final SingleEntryNode<K, V> node) {
-        if (packedArray.length == 2) {
-            return node;
+    private Node<K, V> nodeByCollapsingNodeAtOffset(final EditOwner owner, final int offset, final int bit, final int depth,
+                                                    final SingleEntryNode<K, V> node) {
+        final int prefix = node.prefixInParent(bit);
+        // the root must always be a real node, so only collapse further when below it
+        if (packedArray.length == 2 && depth > 0) {
+            return new SingleEntryNode<>(node.key, node.value, prefix);
         }
-        return nodeByReplacingOffset(offset, node.key, node.value);
+        return nodeByReplacingOffset(owner, offset, node.key, node.value, prefix);
     }
 
-    private Node<K, V> nodeByRemovingOffset(final int offset, final int bit, final int depth) {
+    private Node<K, V> nodeByRemovingOffset(final EditOwner owner, final int offset, final int bit, final int depth) {
         final int lenMinus2 = packedArray.length - 2;
         if (lenMinus2 <= 0) {
             return null;
@@ -381,24 +464,683 @@ class PackedArrayDualNode<K, V> implements Node<K, V> {
                 final K key = (K)packedArray[2];
                 @SuppressWarnings("unchecked")
                 final V value = (V)packedArray[3];
-                return new SingleEntryNode<>(key, value);
+                return new SingleEntryNode<>(key, value, hashPrefixes[1]);
             }
             if (offset == 2 && packedArray[0] != null) {
                 @SuppressWarnings("unchecked")
                 final K key = (K)packedArray[0];
                 @SuppressWarnings("unchecked")
                 final V value = (V)packedArray[1];
-                return new SingleEntryNode<>(key, value);
+                return new SingleEntryNode<>(key, value, hashPrefixes[0]);
             }
+            // only a child is left, so this node becomes part of a compressed path
+            @SuppressWarnings("unchecked")
+            final Node<K, V> child = (Node<K, V>)packedArray[offset == 0 ? 3 : 1];
+            return CompressedPathNode.compress(owner, Integer.numberOfTrailingZeros(mask & ~bit), child);
         }
         final Object[] newArray = new Object[lenMinus2];
+        final int[] newPrefixes = new int[hashPrefixes.length - 1];
+        final int slot = offset >>> 1;
         if (offset > 0) {
             System.arraycopy(packedArray, 0, newArray, 0, offset);
+            System.arraycopy(hashPrefixes, 0, newPrefixes, 0, slot);
         }
         if (offset < lenMinus2) {
             System.arraycopy(packedArray, offset + 2, newArray, offset, lenMinus2 - offset);
+            System.arraycopy(hashPrefixes, slot + 1, newPrefixes, slot, newPrefixes.length - slot);
+        }
+        if (isEditableBy(owner)) {
+            mask &= ~bit;
+            packedArray = newArray;
+            hashPrefixes = newPrefixes;
+            return this;
+        }
+        return NodeFactory.createPackedNode(owner, mask & ~bit, newArray, newPrefixes);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Node<K, V> merge(final Node<K, V> otherNode, final int depth,
+                            final BiFunction<? super V, ? super V, ? extends V> resolver, final SizeChangeSink size) {
+
+        if (otherNode == this) {
+            // shared subtree, every key resolves to its own value
+            return this;
+        }
+
+        final PackedArrayDualNode<K, V> other = (PackedArrayDualNode<K, V>)asPackedArrayNode(otherNode);
+        if (other == null) {
+            return TrieBuilder.mergeByRebuilding(this, otherNode, depth, resolver, size);
+        }
+
+        final Object[] otherArray = other.packedArray;
+        final Object[] newArray = new Object[Integer.bitCount(mask | other.mask) * 2];
+        final int[] newPrefixes = new int[newArray.length >>> 1];
+        int newMask = 0;
+        int offset = 0;
+        int otherOffset = 0;
+        int newOffset = 0;
+        boolean sameAsThis = true;
+        boolean sameAsOther = true;
+
+        // walk both nodes in bit order
+        int remaining = mask | other.mask;
+        while (remaining != 0) {
+            final int bit = remaining & -remaining;
+            remaining ^= bit;
+
+            final boolean inThis = (mask & bit) != 0;
+            final boolean inOther = (other.mask & bit) != 0;
+            final Object keyOrNull = inThis ? packedArray[offset] : null;
+            final Object valueOrChild = inThis ? packedArray[offset + 1] : null;
+            final Object otherKeyOrNull = inOther ? otherArray[otherOffset] : null;
+            final Object otherValueOrChild = inOther ? otherArray[otherOffset + 1] : null;
+            final int prefix = inThis ? hashPrefixes[offset >>> 1] : 0;
+            final int otherPrefix = inOther ? other.hashPrefixes[otherOffset >>> 1] : 0;
+            if (inThis) offset += 2;
+            if (inOther) otherOffset += 2;
+
+            Object newKey = null;
+            Object newValue;
+            int newPrefix = 0;
+
+            if (!inOther) {
+                // branch only exists here, keep it
+                newKey = keyOrNull;
+                newValue = valueOrChild;
+                newPrefix = prefix;
+            } else if (!inThis) {
+                // branch only exists in the other node, reuse it
+                newKey = otherKeyOrNull;
+                newValue = otherValueOrChild;
+                newPrefix = otherPrefix;
+                size.sizeChange += otherKeyOrNull == null ? ((Node<K, V>)otherValueOrChild).computeSize() : 1;
+            } else if (keyOrNull == null && otherKeyOrNull == null) {
+                // both are children, merge them
+                final Node<K, V> child = (Node<K, V>)valueOrChild;
+                newValue = child.merge((Node<K, V>)otherValueOrChild, depth + 1, resolver, size);
+            } else if (keyOrNull != null && otherKeyOrNull != null) {
+                if (prefix == otherPrefix && keyOrNull.equals(otherKeyOrNull)) {
+                    // same key, resolve the value
+                    newKey = keyOrNull;
+                    newPrefix = prefix;
+                    newValue = resolveMergedValue((V)valueOrChild, (V)otherValueOrChild, resolver);
+                    if (newValue == null) {
+                        size.sizeChange--;
+                    } else if (newValue == otherValueOrChild) {
+                        newKey = otherKeyOrNull;
+                    }
+                } else {
+                    // different keys, create new branch
+                    size.sizeChange++;
+                    newValue = NodeFactory.createNodeWithTwoEntries(
+                            depth + 1,
+                            prefix << 5, (K)keyOrNull, (V)valueOrChild,
+                            otherPrefix << 5, (K)otherKeyOrNull, (V)otherValueOrChild
+                    );
+                }
+            } else if (keyOrNull != null) {
+                // entry here, child in the other node, so put our entry into the other child
+                final K key = (K)keyOrNull;
+                final V value = (V)valueOrChild;
+                final Node<K, V> otherChild = (Node<K, V>)otherValueOrChild;
+                final SizeChangeSink childSize = new SizeChangeSink();
+                newValue = otherChild.update(
+                        key, prefix << 5, depth + 1,
+                        (k, otherValue) -> otherValue == null ? value : resolveMergedValue(value, otherValue, resolver),
+                        childSize
+                );
+                // our entry is already counted
+                size.sizeChange += otherChild.computeSize() + childSize.sizeChange - 1;
+            } else {
+                // child here, entry in the other node, so put the other entry into our child
+                final K otherKey = (K)otherKeyOrNull;
+                final V otherValue = (V)otherValueOrChild;
+                final Node<K, V> child = (Node<K, V>)valueOrChild;
+                newValue = child.update(
+                        otherKey, otherPrefix << 5, depth + 1,
+                        (k, value) -> value == null ? otherValue : resolveMergedValue(value, otherValue, resolver),
+                        size
+                );
+            }
+
+            if (newValue == null) {
+                // entry or child was removed
+                sameAsThis = false;
+                sameAsOther = false;
+                continue;
+            }
+
+            if (newValue instanceof SingleEntryNode) {
+                // collapse entry into this node
+                final SingleEntryNode<K, V> entry = (SingleEntryNode<K, V>)newValue;
+                newKey = entry.key;
+                newValue = entry.value;
+                newPrefix = entry.prefixInParent(bit);
+            }
+
+            sameAsThis &= inThis && newKey == keyOrNull && newValue == valueOrChild;
+            sameAsOther &= inOther && newKey == otherKeyOrNull && newValue == otherValueOrChild;
+            newMask |= bit;
+            newArray[newOffset] = newKey;
+            newArray[newOffset + 1] = newValue;
+            newPrefixes[newOffset >>> 1] = newPrefix;
+            newOffset += 2;
+        }
+
+        if (sameAsThis) {
+            return this;
+        }
+        if (sameAsOther) {
+            return otherNode;
+        }
+        return nodeFromPartialArray(newMask, newArray, newPrefixes, newOffset, depth);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Node<K, V> intersect(final Node<K, ?> otherNode, final int depth, final SizeChangeSink size) {
+
+        if (otherNode == this) {
+            // shared subtree, everything is kept
+            size.sizeChange += computeSize();
+            return this;
+        }
+
+        final PackedArrayDualNode<K, ?> other = (PackedArrayDualNode<K, ?>)asPackedArrayNode(otherNode);
+        if (other == null) {
+            return TrieBuilder.intersectByRebuilding(this, otherNode, depth, size);
         }
-        return new PackedArrayDualNode<>(mask & ~bit, newArray);
+
+        final Object[] otherArray = other.packedArray;
+        final int common = mask & other.mask;
+        final Object[] newArray = new Object[Integer.bitCount(common) * 2];
+        final int[] newPrefixes = new int[newArray.length >>> 1];
+        int newMask = 0;
+        int newOffset = 0;
+        // branches which only exist here are dropped
+        boolean sameAsThis = common == mask;
+
+        int remaining = common;
+        while (remaining != 0) {
+            final int bit = remaining & -remaining;
+            remaining ^= bit;
+
+            final int offset = Integer.bitCount(mask & (bit - 1)) * 2;
+            final int otherOffset = Integer.bitCount(other.mask & (bit - 1)) * 2;
+            final Object keyOrNull = packedArray[offset];
+            final Object valueOrChild = packedArray[offset + 1];
+            final Object otherKeyOrNull = otherArray[otherOffset];
+            final Object otherValueOrChild = otherArray[otherOffset + 1];
+            final int prefix = hashPrefixes[offset >>> 1];
+            final int otherPrefix = other.hashPrefixes[otherOffset >>> 1];
+
+            Object newKey = keyOrNull;
+            Object newValue = null;
+            int newPrefix = prefix;
+
+            if (keyOrNull == null && otherKeyOrNull == null) {
+                // both are children, intersect them
+                final Node<K, V> child = (Node<K, V>)valueOrChild;
+                newValue = child.intersect((Node<K, ?>)otherValueOrChild, depth + 1, size);
+            } else if (keyOrNull != null && otherKeyOrNull != null) {
+                // both are entries, keep ours if the keys match
+                if (prefix == otherPrefix && keyOrNull.equals(otherKeyOrNull)) {
+                    size.sizeChange++;
+                    newValue = valueOrChild;
+                }
+            } else if (keyOrNull != null) {
+                // entry here, child in the other node, keep our entry if the child contains it
+                final Node<K, ?> otherChild = (Node<K, ?>)otherValueOrChild;
+                if (otherChild.get((K)keyOrNull, prefix << 5) != null) {
+                    size.sizeChange++;
+                    newValue = valueOrChild;
+                }
+            } else {
+                // child here, entry in the other node, keep the entry if our child contains it
+                final K otherKey = (K)otherKeyOrNull;
+                final V value = ((Node<K, V>)valueOrChild).get(otherKey, otherPrefix << 5);
+                if (value != null) {
+                    size.sizeChange++;
+                    newKey = otherKey;
+                    newValue = value;
+                    newPrefix = otherPrefix;
+                }
+            }
+
+            if (newValue == null) {
+                // entry or child was dropped
+                sameAsThis = false;
+                continue;
+            }
+
+            if (newValue instanceof SingleEntryNode) {
+                // collapse entry into this node
+                final SingleEntryNode<K, V> entry = (SingleEntryNode<K, V>)newValue;
+                newKey = entry.key;
+                newValue = entry.value;
+                newPrefix = entry.prefixInParent(bit);
+            }
+
+            sameAsThis &= newKey == keyOrNull && newValue == valueOrChild;
+            newMask |= bit;
+            newArray[newOffset] = newKey;
+            newArray[newOffset + 1] = newValue;
+            newPrefixes[newOffset >>> 1] = newPrefix;
+            newOffset += 2;
+        }
+
+        if (sameAsThis) {
+            return this;
+        }
+        return nodeFromPartialArray(newMask, newArray, newPrefixes, newOffset, depth);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Node<K, V> subtract(final Node<K, ?> otherNode, final int depth, final SizeChangeSink size) {
+
+        if (otherNode == this) {
+            // shared subtree, everything is removed
+            size.sizeChange -= computeSize();
+            return null;
+        }
+
+        final PackedArrayDualNode<K, ?> other = (PackedArrayDualNode<K, ?>)asPackedArrayNode(otherNode);
+        if (other == null) {
+            return TrieBuilder.subtractByRebuilding(this, otherNode, depth, size);
+        }
+
+        final int common = mask & other.mask;
+        if (common == 0) {
+            // no branches in common, nothing to remove
+            return this;
+        }
+
+        final Object[] otherArray = other.packedArray;
+        final Object[] newArray = new Object[packedArray.length];
+        final int[] newPrefixes = new int[hashPrefixes.length];
+        int newMask = 0;
+        int newOffset = 0;
+        int offset = 0;
+        boolean sameAsThis = true;
+
+        int remaining = mask;
+        while (remaining != 0) {
+            final int bit = remaining & -remaining;
+            remaining ^= bit;
+
+            Object newKey = packedArray[offset];
+            Object newValue = packedArray[offset + 1];
+            int newPrefix = hashPrefixes[offset >>> 1];
+            final Object keyOrNull = newKey;
+            final Object valueOrChild = newValue;
+            final int prefix = newPrefix;
+            offset += 2;
+
+            if ((common & bit) != 0) {
+                final int otherOffset = Integer.bitCount(other.mask & (bit - 1)) * 2;
+                final Object otherKeyOrNull = otherArray[otherOffset];
+                final Object otherValueOrChild = otherArray[otherOffset + 1];
+                final int otherPrefix = other.hashPrefixes[otherOffset >>> 1];
+
+                if (keyOrNull == null && otherKeyOrNull == null) {
+                    // both are children, subtract them
+                    final Node<K, V> child = (Node<K, V>)valueOrChild;
+                    newValue = child.subtract((Node<K, ?>)otherValueOrChild, depth + 1, size);
+                } else if (keyOrNull != null && otherKeyOrNull != null) {
+                    // both are entries, remove ours if the keys match
+                    if (prefix == otherPrefix && keyOrNull.equals(otherKeyOrNull)) {
+                        size.sizeChange--;
+                        newValue = null;
+                    }
+                } else if (keyOrNull != null) {
+                    // entry here, child in the other node, remove our entry if the child contains it
+                    final Node<K, ?> otherChild = (Node<K, ?>)otherValueOrChild;
+                    if (otherChild.get((K)keyOrNull, prefix << 5) != null) {
+                        size.sizeChange--;
+                        newValue = null;
+                    }
+                } else {
+                    // child here, entry in the other node, delete the entry from our child
+                    final K otherKey = (K)otherKeyOrNull;
+                    final Node<K, V> child = (Node<K, V>)valueOrChild;
+                    newValue = child.delete(otherKey, otherPrefix << 5, depth + 1, size);
+                }
+
+                if (newValue == null) {
+                    // entry or child was removed
+                    sameAsThis = false;
+                    continue;
+                }
+
+                if (newValue instanceof SingleEntryNode) {
+                    // collapse entry into this node
+                    final SingleEntryNode<K, V> entry = (SingleEntryNode<K, V>)newValue;
+                    newKey = entry.key;
+                    newValue = entry.value;
+                    newPrefix = entry.prefixInParent(bit);
+                }
+
+                sameAsThis &= newKey == keyOrNull && newValue == valueOrChild;
+            }
+
+            newMask |= bit;
+            newArray[newOffset] = newKey;
+            newArray[newOffset + 1] = newValue;
+            newPrefixes[newOffset >>> 1] = newPrefix;
+            newOffset += 2;
+        }
+
+        if (sameAsThis) {
+            return this;
+        }
+        return nodeFromPartialArray(newMask, newArray, newPrefixes, newOffset, depth);
+    }
+
+    @Override
+    public Node<K, V> replaceSlots(final Object[] slots, final int depth) {
+        final Object[] newArray = new Object[packedArray.length];
+        final int[] newPrefixes = new int[hashPrefixes.length];
+        int newMask = 0;
+        int newOffset = 0;
+        boolean sameAsThis = true;
+        int remaining = mask;
+        for (int offset = 0; offset < packedArray.length; offset += 2) {
+            final int bit = remaining & -remaining;
+            remaining ^= bit;
+            Object newKey = slots[offset];
+            Object newValue = slots[offset + 1];
+            // keys stay in their slots, so their prefixes are unchanged
+            int newPrefix = hashPrefixes[offset >>> 1];
+            if (newValue == null) {
+                // slot was removed
+                sameAsThis = false;
+                continue;
+            }
+            if (newValue instanceof SingleEntryNode) {
+                // collapse entry into this node
+                @SuppressWarnings("unchecked")
+                final SingleEntryNode<K, V> entry = (SingleEntryNode<K, V>)newValue;
+                newKey = entry.key;
+                newValue = entry.value;
+                newPrefix = entry.prefixInParent(bit);
+            }
+            sameAsThis &= newKey == packedArray[offset] && newValue == packedArray[offset + 1];
+            newMask |= bit;
+            newArray[newOffset] = newKey;
+            newArray[newOffset + 1] = newValue;
+            newPrefixes[newOffset >>> 1] = newPrefix;
+            newOffset += 2;
+        }
+        if (sameAsThis) {
+            return this;
+        }
+        return nodeFromPartialArray(newMask, newArray, newPrefixes, newOffset, depth);
+    }
+
+    @Override
+    public Node<K, V> updateAll(final int depth, final BiFunction<? super K, ? super V, ? extends V> updateFn,
+                                final SizeChangeSink size) {
+        // only allocated once something changes
+        Object[] newArray = null;
+        int[] newPrefixes = null;
+        int newMask = 0;
+        int newOffset = 0;
+        int remaining = mask;
+        for (int offset = 0; offset < packedArray.length; offset += 2) {
+            final int bit = remaining & -remaining;
+            remaining ^= bit;
+            final Object oldValue = packedArray[offset + 1];
+            Object newKey = packedArray[offset];
+            Object newValue;
+            int newPrefix = hashPrefixes[offset >>> 1];
+            if (newKey == null) {
+                @SuppressWarnings("unchecked")
+                final Node<K, V> child = (Node<K, V>)oldValue;
+                newValue = child.updateAll(depth + 1, updateFn, size);
+                if (newValue instanceof SingleEntryNode) {
+                    // collapse entry into this node
+                    @SuppressWarnings("unchecked")
+                    final SingleEntryNode<K, V> entry = (SingleEntryNode<K, V>)newValue;
+                    newKey = entry.key;
+                    newValue = entry.value;
+                    newPrefix = entry.prefixInParent(bit);
+                }
+            } else {
+                @SuppressWarnings("unchecked")
+                final K key = (K)newKey;
+                @SuppressWarnings("unchecked")
+                final V value = (V)oldValue;
+                newValue = updateFn.apply(key, value);
+                if (newValue == null) {
+                    size.sizeChange--;
+                    size.hashChange -= entryHash(key, value);
+                } else if (newValue.equals(value)) {
+                    newValue = value;
+                } else {
+                    size.hashChange += entryHash(key, newValue) - entryHash(key, value);
+                }
+            }
+            if (newArray == null) {
+                if (newValue == oldValue) {
+                    continue;
+                }
+                // first change, copy the unchanged slots before it
+                newArray = new Object[packedArray.length];
+                newPrefixes = new int[hashPrefixes.length];
+                System.arraycopy(packedArray, 0, newArray, 0, offset);
+                System.arraycopy(hashPrefixes, 0, newPrefixes, 0, offset >>> 1);
+                newMask = mask & (bit - 1);
+                newOffset = offset;
+            }
+            if (newValue != null) {
+                newMask |= bit;
+                newArray[newOffset] = newKey;
+                newArray[newOffset + 1] = newValue;
+                newPrefixes[newOffset >>> 1] = newPrefix;
+                newOffset += 2;
+            }
+        }
+        if (newArray == null) {
+            return this;
+        }
+        return nodeFromPartialArray(newMask, newArray, newPrefixes, newOffset, depth);
+    }
+
+    @Override
+    public <R> Node<K, R> mapValues(final Function<? super V, ? extends R> mapperFn) {
+        final Object[] newArray = new Object[packedArray.length];
+        for (int offset = 0; offset < packedArray.length; offset += 2) {
+            final Object keyOrNull = packedArray[offset];
+            newArray[offset] = keyOrNull;
+            if (keyOrNull == null) {
+                @SuppressWarnings("unchecked")
+                final Node<K, V> child = (Node<K, V>)packedArray[offset + 1];
+                newArray[offset + 1] = child.mapValues(mapperFn);
+            } else {
+                @SuppressWarnings("unchecked")
+                final V value = (V)packedArray[offset + 1];
+                final R newValue = mapperFn.apply(value);
+                if (newValue == null) throw new NullPointerException();
+                newArray[offset + 1] = newValue;
+            }
+        }
+        // the new node is never edited in place, and the keys are the same, so the prefixes can be shared
+        return NodeFactory.createPackedNode(null, mask, newArray, hashPrefixes);
+    }
+
+    /**
+     * Gets a node of this layout as a PackedArrayDualNode, copying a FixedArityNode, an ArrayNode or the first level of a
+     * CompressedPathNode, or null for a node of any other type
+     */
+    private static PackedArrayDualNode<?, ?> asPackedArrayNode(final Node<?, ?> node) {
+        if (node instanceof PackedArrayDualNode) {
+            return (PackedArrayDualNode<?, ?>)node;
+        }
+        if (node instanceof FixedArityNode) {
+            return ((FixedArityNode<?, ?>)node).expand();
+        }
+        if (node instanceof ArrayNode) {
+            return ((ArrayNode<?, ?>)node).pack();
+        }
+        if (node instanceof CompressedPathNode) {
+            return ((CompressedPathNode<?, ?>)node).expand();
+        }
+        return null;
+    }
+
+    /**
+     * Creates the result of a structural operation from the first length items of array, following the same conventions as
+     * the other operations: null if empty, and a SingleEntryNode if only one entry is left below the root.
+     */
+    private static <K, V> Node<K, V> nodeFromPartialArray(final int mask, final Object[] array, final int[] prefixes,
+                                                          final int length, final int depth) {
+        if (length == 0) {
+            return null;
+        }
+        if (length == 2 && depth > 0 && array[0] != null) {
+            @SuppressWarnings("unchecked")
+            final K key = (K)array[0];
+            @SuppressWarnings("unchecked")
+            final V value = (V)array[1];
+            return new SingleEntryNode<>(key, value, prefixes[0]);
+        }
+        if (length == 2 && depth > 0) {
+            @SuppressWarnings("unchecked")
+            final Node<K, V> child = (Node<K, V>)array[1];
+            return CompressedPathNode.compress(null, Integer.numberOfTrailingZeros(mask), child);
+        }
+        if (length == array.length) {
+            return NodeFactory.createPackedNode(null, mask, array, prefixes);
+        }
+        return NodeFactory.createPackedNode(null, mask, Arrays.copyOf(array, length), Arrays.copyOf(prefixes, length >>> 1));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void diff(final Node<K, V> otherNode, final int depth,
+                     final ImmutableMap.DiffVisitor<? super K, ? super V> visitor) {
+
+        if (otherNode == this) {
+            // shared subtree, nothing changed
+            return;
+        }
+
+        final PackedArrayDualNode<K, V> other = (PackedArrayDualNode<K, V>)asPackedArrayNode(otherNode);
+        if (other == null) {
+            diffEntries(this, otherNode, visitor);
+            return;
+        }
+
+        final Object[] otherArray = other.packedArray;
+        int offset = 0;
+        int otherOffset = 0;
+
+        // walk both nodes in bit order
+        int remaining = mask | other.mask;
+        while (remaining != 0) {
+            final int bit = remaining & -remaining;
+            remaining ^= bit;
+
+            if ((other.mask & bit) == 0) {
+                // branch was removed
+                final Object keyOrNull = packedArray[offset];
+                if (keyOrNull == null) {
+                    ((Node<K, V>)packedArray[offset + 1]).forEachEntry(visitor::removed);
+                } else {
+                    visitor.removed((K)keyOrNull, (V)packedArray[offset + 1]);
+                }
+                offset += 2;
+                continue;
+            }
+
+            if ((mask & bit) == 0) {
+                // branch was added
+                final Object otherKeyOrNull = otherArray[otherOffset];
+                if (otherKeyOrNull == null) {
+                    ((Node<K, V>)otherArray[otherOffset + 1]).forEachEntry(visitor::added);
+                } else {
+                    visitor.added((K)otherKeyOrNull, (V)otherArray[otherOffset + 1]);
+                }
+                otherOffset += 2;
+                continue;
+            }
+
+            final Object keyOrNull = packedArray[offset];
+            final Object valueOrChild = packedArray[offset + 1];
+            final Object otherKeyOrNull = otherArray[otherOffset];
+            final Object otherValueOrChild = otherArray[otherOffset + 1];
+            final int prefix = hashPrefixes[offset >>> 1];
+            final int otherPrefix = other.hashPrefixes[otherOffset >>> 1];
+            offset += 2;
+            otherOffset += 2;
+
+            if (keyOrNull == null && otherKeyOrNull == null) {
+                // both are children, compare them
+                ((Node<K, V>)valueOrChild).diff((Node<K, V>)otherValueOrChild, depth + 1, visitor);
+            } else if (keyOrNull != null && otherKeyOrNull != null) {
+                final K key = (K)keyOrNull;
+                final V value = (V)valueOrChild;
+                final K otherKey = (K)otherKeyOrNull;
+                final V otherValue = (V)otherValueOrChild;
+                if (prefix == otherPrefix && key.equals(otherKey)) {
+                    if (!value.equals(otherValue)) {
+                        visitor.changed(key, value, otherValue);
+                    }
+                } else {
+                    visitor.removed(key, value);
+                    visitor.added(otherKey, otherValue);
+                }
+            } else if (keyOrNull != null) {
+                // entry became a child, which may or may not still contain the entry
+                final K key = (K)keyOrNull;
+                final V value = (V)valueOrChild;
+                final Node<K, V> otherChild = (Node<K, V>)otherValueOrChild;
+                final V otherValue = otherChild.get(key, prefix << 5);
+                otherChild.forEachEntry((k, v) -> {
+                    if (v != otherValue || !k.equals(key)) {
+                        visitor.added(k, v);
+                    }
+                });
+                if (otherValue == null) {
+                    visitor.removed(key, value);
+                } else if (!value.equals(otherValue)) {
+                    visitor.changed(key, value, otherValue);
+                }
+            } else {
+                // child was collapsed into an entry, which may or may not have been in the child
+                final K otherKey = (K)otherKeyOrNull;
+                final V otherValue = (V)otherValueOrChild;
+                final Node<K, V> child = (Node<K, V>)valueOrChild;
+                final V value = child.get(otherKey, otherPrefix << 5);
+                child.forEachEntry((k, v) -> {
+                    if (v != value || !k.equals(otherKey)) {
+                        visitor.removed(k, v);
+                    }
+                });
+                if (value == null) {
+                    visitor.added(otherKey, otherValue);
+                } else if (!value.equals(otherValue)) {
+                    visitor.changed(otherKey, value, otherValue);
+                }
+            }
+        }
+    }
+
+    @Override
+    public int computeSize() {
+        int total = 0;
+        for (int offset = 0; offset < packedArray.length; offset += 2) {
+            if (packedArray[offset] == null) {
+                @SuppressWarnings("unchecked")
+                final Node<K, V> child = (Node<K, V>)packedArray[offset + 1];
+                total += child.computeSize();
+            } else {
+                total++;
+            }
+        }
+        return total;
     }
 
     @Override
@@ -436,28 +1178,24 @@ class PackedArrayDualNode<K, V> implements Node<K, V> {
     }
 
     @Override
-    public void computeIteration(int i, NodeEntryIterator<K, V>.Callback callback) {
-        final int i2 = i * 2;
-        if (i2 == packedArray.length) {
-            callback.exitNode();
-        } else {
-            @SuppressWarnings("unchecked")
-            final K keyOrNull = (K)packedArray[i2];
-            if (keyOrNull == null) {
-                @SuppressWarnings("unchecked")
-                final Node<K, V> node = (Node<K, V>)packedArray[i2 + 1];
-                callback.enterNode(node);
-            } else {
-                @SuppressWarnings("unchecked")
-                final V value = (V)packedArray[i2 + 1];
-                callback.offer(keyOrNull, value);
-            }
-        }
+    public int slotCount() {
+        return packedArray.length >>> 1;
+    }
+
+    @Override
+    public Object slotKey(int slot) {
+        return packedArray[slot << 1];
+    }
+
+    @Override
+    public Object slotValue(int slot) {
+        return packedArray[(slot << 1) + 1];
     }
 
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
+        if (o instanceof FixedArityNode || o instanceof ArrayNode) return o.equals(this);
         if (o == null || !(o instanceof PackedArrayDualNode)) return false;
         PackedArrayDualNode<?, ?> that = (PackedArrayDualNode<?, ?>) o;
         if (mask != that.mask) return false;
@@ -498,11 +1236,17 @@ class PackedArrayDualNode<K, V> implements Node<K, V> {
         assertNotEqual("mask must not be 0", 0, mask);
         assertNotNull("packedArray must not be null", packedArray);
         assertEqual("packedArray length must match set mask bits", packedArray.length, Integer.bitCount(mask) * 2);
+        assertNotNull("hashPrefixes must not be null", hashPrefixes);
+        assertEqual("hashPrefixes length must match set mask bits", hashPrefixes.length, Integer.bitCount(mask));
+        assertThat("a node with enough slots must be an ArrayNode", hashPrefixes.length < ArrayNode.MIN_SLOTS);
+        assertThat("a lone child below the root must be a compressed path", depth == 0 || packedArray.length > 2 || packedArray[0] != null);
         for (int offset = 0; offset < packedArray.length; offset += 2) {
             final Object keyOrNull = packedArray[offset];
             final Object valueOrChild = packedArray[offset + 1];
             if (keyOrNull == null) {
-                assertValidType("child", valueOrChild, false, PackedArrayDualNode.class, PackedArrayCollisionNode.class);
+                if (!(valueOrChild instanceof FixedArityNode)) {
+                    assertValidType("child", valueOrChild, false, PackedArrayDualNode.class, ArrayNode.class, CompressedPathNode.class, PackedArrayCollisionNode.class);
+                }
                 @SuppressWarnings("unchecked")
                 final Node<K, V> child = (Node<K, V>)valueOrChild;
                 int bitIndex = nthSetBitPosition(mask, offset / 2);
@@ -511,6 +1255,7 @@ class PackedArrayDualNode<K, V> implements Node<K, V> {
                 total++;
                 assertThat("if key is not null, value must not be a node", !(valueOrChild instanceof Node));
                 assertEqualBinary("computed hash suffix must match structural location", suffix, computeHashSuffix(keyOrNull, depth));
+                assertEqualBinary("stored hash prefix must match the key", computeHashPrefix(keyOrNull, depth), hashPrefixes[offset / 2]);
             }
         }
         return total;
@@ -0,0 +1,246 @@
+package com.gotcake.collections.immutable;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+
+import static com.gotcake.collections.immutable.Util.*;
+
+/**
+ * Fork/join tasks over a tree of Nodes. A task covers a range of slots in a node, and forks by dividing the range,
+ * or by descending into a child when only one slot is left, until the estimated number of entries is small
+ * enough to walk sequentially. Subtrees of a trie share nothing, so they can be walked independently.
+ * @author Aaron Cake
+ */
+final class ParallelNodeTasks {
+
+    /**
+     * Subtrees with fewer estimated entries than this are walked on a single thread
+     */
+    static final int SEQUENTIAL_THRESHOLD = 1 << 13;
+
+    private ParallelNodeTasks() {}
+
+    static <K, V> void forEach(final Node<K, V> root, final int size, final BiConsumer<? super K, ? super V> action) {
+        if (size <= SEQUENTIAL_THRESHOLD) {
+            root.forEachEntry(action);
+            return;
+        }
+        ForkJoinPool.commonPool().invoke(new ForEachTask<>(root, 0, root.slotCount(), size, action));
+    }
+
+    static <K, V, R> R reduce(final Node<K, V> root, final int size, final R identity,
+                              final BiFunction<? super K, ? super V, ? extends R> mapper,
+                              final BinaryOperator<R> combiner) {
+        final ReduceTask<K, V, R> task = new ReduceTask<>(root, 0, root.slotCount(), size, identity, mapper, combiner);
+        if (size <= SEQUENTIAL_THRESHOLD) {
+            return task.compute();
+        }
+        return ForkJoinPool.commonPool().invoke(task);
+    }
+
+    /**
+     * Computes new values for every entry, with one task per child of the root.
+     * Each task updates its own subtree in a single pass, so every node of the subtree is copied at most once,
+     * and the new root is assembled from the results.
+     * @return the new root, which is the given root if nothing changed, or null if every entry was removed
+     */
+    static <K, V> Node<K, V> updateAll(final Node<K, V> root, final BiFunction<? super K, ? super V, ? extends V> updateFn,
+                                       final SizeChangeSink size) {
+        return ForkJoinPool.commonPool().invoke(new UpdateRootTask<>(root, updateFn, size));
+    }
+
+    /**
+     * Estimates the number of entries in the slots [from, middle) of a node, given the estimate for [from, to)
+     */
+    private static long estimatePrefix(final long estimate, final int from, final int middle, final int to) {
+        return estimate * (middle - from) / (to - from);
+    }
+
+    private static final class ForEachTask<K, V> extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Node<K, V> node;
+        private final int from;
+        private final int to;
+        private final long estimate;
+        private final BiConsumer<? super K, ? super V> action;
+
+        ForEachTask(final Node<K, V> node, final int from, final int to, final long estimate,
+                    final BiConsumer<? super K, ? super V> action) {
+            this.node = node;
+            this.from = from;
+            this.to = to;
+            this.estimate = estimate;
+            this.action = action;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected void compute() {
+            if (to - from == 1 && node.slotKey(from) == null) {
+                // a lone child, divide it instead
+                final Node<K, V> child = (Node<K, V>)node.slotValue(from);
+                new ForEachTask<>(child, 0, child.slotCount(), estimate, action).compute();
+                return;
+            }
+            if (estimate <= SEQUENTIAL_THRESHOLD || to - from == 1) {
+                for (int i = from; i < to; i++) {
+                    final Object keyOrNull = node.slotKey(i);
+                    if (keyOrNull == null) {
+                        ((Node<K, V>)node.slotValue(i)).forEachEntry(action);
+                    } else {
+                        action.accept((K)keyOrNull, (V)node.slotValue(i));
+                    }
+                }
+                return;
+            }
+            final int middle = (from + to) >>> 1;
+            final long prefixEstimate = estimatePrefix(estimate, from, middle, to);
+            final ForEachTask<K, V> prefix = new ForEachTask<>(node, from, middle, prefixEstimate, action);
+            prefix.fork();
+            new ForEachTask<>(node, middle, to, estimate - prefixEstimate, action).compute();
+            prefix.join();
+        }
+
+    }
+
+    private static final class UpdateRootTask<K, V> extends RecursiveTask<Node<K, V>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Node<K, V> root;
+        private final BiFunction<? super K, ? super V, ? extends V> updateFn;
+        private final SizeChangeSink size;
+
+        UpdateRootTask(final Node<K, V> root, final BiFunction<? super K, ? super V, ? extends V> updateFn,
+                       final SizeChangeSink size) {
+            this.root = root;
+            this.updateFn = updateFn;
+            this.size = size;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected Node<K, V> compute() {
+            final int count = root.slotCount();
+            final UpdateSubtreeTask<?, ?>[] tasks = new UpdateSubtreeTask<?, ?>[count];
+            for (int i = 0; i < count; i++) {
+                if (root.slotKey(i) == null) {
+                    tasks[i] = new UpdateSubtreeTask<>((Node<K, V>)root.slotValue(i), updateFn);
+                    tasks[i].fork();
+                }
+            }
+            final Object[] slots = new Object[count * 2];
+            for (int i = count - 1; i >= 0; i--) {
+                final Object keyOrNull = root.slotKey(i);
+                if (keyOrNull == null) {
+                    slots[i * 2 + 1] = tasks[i].join();
+                    size.sizeChange += tasks[i].size.sizeChange;
+                    size.hashChange += tasks[i].size.hashChange;
+                    continue;
+                }
+                // entries in the root are cheap, update them here
+                final K key = (K)keyOrNull;
+                final V value = (V)root.slotValue(i);
+                final V newValue = updateFn.apply(key, value);
+                slots[i * 2] = key;
+                if (newValue == null) {
+                    size.sizeChange--;
+                    size.hashChange -= entryHash(key, value);
+                } else if (newValue.equals(value)) {
+                    slots[i * 2 + 1] = value;
+                } else {
+                    size.hashChange += entryHash(key, newValue) - entryHash(key, value);
+                    slots[i * 2 + 1] = newValue;
+                }
+            }
+            return root.replaceSlots(slots, 0);
+        }
+
+    }
+
+    private static final class UpdateSubtreeTask<K, V> extends RecursiveTask<Node<K, V>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Node<K, V> child;
+        private final BiFunction<? super K, ? super V, ? extends V> updateFn;
+        final SizeChangeSink size = new SizeChangeSink();
+
+        /**
+         * @param child a child of the root
+         */
+        UpdateSubtreeTask(final Node<K, V> child, final BiFunction<? super K, ? super V, ? extends V> updateFn) {
+            this.child = child;
+            this.updateFn = updateFn;
+        }
+
+        @Override
+        protected Node<K, V> compute() {
+            return child.updateAll(1, updateFn, size);
+        }
+
+    }
+
+    private static final class ReduceTask<K, V, R> extends RecursiveTask<R> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Node<K, V> node;
+        private final int from;
+        private final int to;
+        private final long estimate;
+        private final R identity;
+        private final BiFunction<? super K, ? super V, ? extends R> mapper;
+        private final BinaryOperator<R> combiner;
+
+        ReduceTask(final Node<K, V> node, final int from, final int to, final long estimate, final R identity,
+                   final BiFunction<? super K, ? super V, ? extends R> mapper, final BinaryOperator<R> combiner) {
+            this.node = node;
+            this.from = from;
+            this.to = to;
+            this.estimate = estimate;
+            this.identity = identity;
+            this.mapper = mapper;
+            this.combiner = combiner;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected R compute() {
+            if (to - from == 1 && node.slotKey(from) == null) {
+                // a lone child, divide it instead
+                final Node<K, V> child = (Node<K, V>)node.slotValue(from);
+                return new ReduceTask<>(child, 0, child.slotCount(), estimate, identity, mapper, combiner).compute();
+            }
+            if (estimate <= SEQUENTIAL_THRESHOLD || to - from == 1) {
+                final Object[] result = { identity };
+                for (int i = from; i < to; i++) {
+                    final Object keyOrNull = node.slotKey(i);
+                    if (keyOrNull == null) {
+                        ((Node<K, V>)node.slotValue(i)).forEachEntry((key, value) ->
+                                result[0] = combiner.apply((R)result[0], mapper.apply(key, value)));
+                    } else {
+                        result[0] = combiner.apply((R)result[0], mapper.apply((K)keyOrNull, (V)node.slotValue(i)));
+                    }
+                }
+                return (R)result[0];
+            }
+            final int middle = (from + to) >>> 1;
+            final long prefixEstimate = estimatePrefix(estimate, from, middle, to);
+            final ReduceTask<K, V, R> prefix =
+                    new ReduceTask<>(node, from, middle, prefixEstimate, identity, mapper, combiner);
+            prefix.fork();
+            final R suffixResult =
+                    new ReduceTask<>(node, middle, to, estimate - prefixEstimate, identity, mapper, combiner).compute();
+            return combiner.apply(prefix.join(), suffixResult);
+        }
+
+    }
+
+}
@@ -1,11 +1,16 @@
 package com.gotcake.collections.immutable;
 
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Set;
+import java.util.Spliterator;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.BiPredicate;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 import static com.gotcake.collections.immutable.Util.*;
 
@@ -19,19 +24,36 @@ final class RegularImmutableTrieMap<K, V> implements ImmutableMap<K, V>, Validat
     final Node<K, V> root;
     final int size;
 
-    private RegularImmutableTrieMap(int size, Node<K, V> root) {
+    /**
+     * The sum of the entry hashes, or 0 if it hasn't been computed yet or is 0, which hashIsZero tells apart.
+     * Like String.hashCode(), racing threads can only compute the same value, and each field is only ever set to one
+     * value, so reading hash before hashIsZero is safe without synchronization.
+     */
+    private int hash;
+    private boolean hashIsZero;
+
+    RegularImmutableTrieMap(int size, Node<K, V> root) {
         this.size = size;
         this.root = root;
     }
 
+    RegularImmutableTrieMap(int size, Node<K, V> root, int hash) {
+        this.size = size;
+        this.root = root;
+        this.hash = hash;
+        this.hashIsZero = hash == 0;
+    }
+
     RegularImmutableTrieMap(K key, V value) {
         if (key == null || value == null) { throw new NullPointerException(); }
         size = 1;
         this.root = NodeFactory.createNodeWithSingleEntry(
-                computeSmearHash(key) >>> 27,
+                computeSmearHash(key),
                 key,
                 value
         );
+        this.hash = entryHash(key, value);
+        this.hashIsZero = hash == 0;
     }
 
     RegularImmutableTrieMap(K key1, V value1, K key2, V value2) {
@@ -39,17 +61,20 @@ final class RegularImmutableTrieMap<K, V> implements ImmutableMap<K, V>, Validat
         if (key1.equals(key2)) {
             size = 1;
             this.root = NodeFactory.createNodeWithSingleEntry(
-                    computeSmearHash(key1) >>> 27,
+                    computeSmearHash(key1),
                     key1,
                     value2
             );
+            this.hash = entryHash(key1, value2);
+            this.hashIsZero = hash == 0;
         } else {
             size = 2;
-            this.root = NodeFactory.createNodeWithTwoEntries(
-                    0,
+            this.root = NodeFactory.createRootWithTwoEntries(
                     computeSmearHash(key2), key2, value2,
                     computeSmearHash(key1), key1, value1
             );
+            this.hash = entryHash(key1, value1) + entryHash(key2, value2);
+            this.hashIsZero = hash == 0;
         }
     }
 
@@ -57,36 +82,43 @@ final class RegularImmutableTrieMap<K, V> implements ImmutableMap<K, V>, Validat
         if (sourceMap.isEmpty()) {
             throw new IllegalArgumentException("sourceMap must not be empty");
         }
-        @SuppressWarnings("unchecked")
-        final Iterator<Map.Entry<K, V>> it = (Iterator)sourceMap.entrySet().iterator();
-        Map.Entry<K, V> entry = it.next();
-        final int bitIndex = computeSmearHash(entry.getKey()) >>> 27;
-        Node<K, V> root = NodeFactory.createNodeWithSingleEntry(bitIndex, entry.getKey(), entry.getValue());
-        while (it.hasNext()) {
-            entry = it.next();
-            final int hash = computeSmearHash(entry.getKey());
-            root = root.setIfNotExists(entry.getKey(), entry.getValue(), hash, 0);
-        }
-        this.root = root;
-        this.size = sourceMap.size();
+        final SizeChangeSink sink = new SizeChangeSink();
+        this.root = TrieBuilder.buildRoot(sourceMap, sink);
+        this.size = sink.sizeChange;
     }
 
-    RegularImmutableTrieMap(final Set<? extends K> keys, final V valueForAll) {
+    RegularImmutableTrieMap(final Collection<? extends K> keys, final V valueForAll) {
         if (keys.isEmpty()) {
             throw new IllegalArgumentException("key set must not be empty");
         }
-        @SuppressWarnings("unchecked")
-        final Iterator<K> it = (Iterator)keys.iterator();
-        K key = it.next();
-        final int bitIndex = computeSmearHash(key) >>> 27;
-        Node<K, V> root = NodeFactory.createNodeWithSingleEntry(bitIndex, key, valueForAll);
-        while (it.hasNext()) {
-            key = it.next();
-            final int hash = computeSmearHash(key);
-            root = root.setIfNotExists(key, valueForAll, hash, 0);
+        final SizeChangeSink sink = new SizeChangeSink();
+        final Object[] keyArray = keys.toArray();
+        this.root = TrieBuilder.buildRoot(keyArray, null, valueForAll, keyArray.length, sink);
+        this.size = sink.sizeChange;
+    }
+
+    /**
+     * Creates a map from parallel arrays of keys and values. If a key appears more than once, the last value wins.
+     */
+    RegularImmutableTrieMap(final Object[] keys, final Object[] values, final int length) {
+        if (length <= 0) {
+            throw new IllegalArgumentException("there must be at least one entry");
         }
-        this.root = root;
-        this.size = keys.size();
+        final SizeChangeSink sink = new SizeChangeSink();
+        this.root = TrieBuilder.buildRoot(keys, values, null, length, sink);
+        this.size = sink.sizeChange;
+    }
+
+    /**
+     * Creates the map for a trie which may have shrunk, demoting it to a SmallImmutableMap if it fits in one
+     * @param hash the sum of the entry hashes, only used if hashKnown
+     */
+    static <K, V> ImmutableMap<K, V> withRoot(final int size, final Node<K, V> root, final int hash,
+                                              final boolean hashKnown) {
+        if (SmallImmutableMap.fits(size)) {
+            return SmallImmutableMap.copyOf(root, size);
+        }
+        return hashKnown ? new RegularImmutableTrieMap<>(size, root, hash) : new RegularImmutableTrieMap<>(size, root);
     }
 
     /**
@@ -131,6 +163,19 @@ final class RegularImmutableTrieMap<K, V> implements ImmutableMap<K, V>, Validat
         return root.get((K)key, prefix);
     }
 
+    /**
+     * Gets the value with the given key, using the key's hash if it was hashed by the standard strategy
+     * @param key the hashed key
+     * @return the value, or null if no entry exists
+     */
+    @Override
+    public V get(final HashedKey<? extends K> key) {
+        if (!key.isHashedBy(HashStrategies.STANDARD)) {
+            return get((Object)key.key);
+        }
+        return root.get(key.key, key.hash);
+    }
+
     @Override
     public int size() {
         return size;
@@ -161,9 +206,14 @@ final class RegularImmutableTrieMap<K, V> implements ImmutableMap<K, V>, Validat
         if (!(other instanceof Map)) return false;
         final Map<?, ?> map = (Map<?, ?>)other;
         if (size != map.size()) return false;
-        // if it's an RegularImmutableTrieMap do a structural comparison
-        if (other instanceof RegularImmutableTrieMap) {
+        // if it's an RegularImmutableTrieMap with the same layout do a structural comparison
+        if (other instanceof RegularImmutableTrieMap
+                && NodeFactory.Layout.of(((RegularImmutableTrieMap<?, ?>) other).root) == NodeFactory.Layout.of(root)) {
             final RegularImmutableTrieMap<?, ?> iMap = (RegularImmutableTrieMap<?, ?>) other;
+            // if both hashes are already known, they can rule out equality without a traversal
+            final int h1 = hash;
+            final int h2 = iMap.hash;
+            if (h1 != 0 && h2 != 0 && h1 != h2) return false;
             return root.equals(iMap.root);
         }
         for (final Map.Entry<?, ?> entry : map.entrySet()) {
@@ -221,7 +271,7 @@ final class RegularImmutableTrieMap<K, V> implements ImmutableMap<K, V>, Validat
 
     /**
      * Returns an iterator over all of the entries in this map.
-     * WARNING: This will create a new Map.Entry object for each entry iterated over.
+     * WARNING: This will create a new Map.Entry object for each entry iterated over, use cursor to avoid this.
      * @return an iterator over entries
      */
     @Override
@@ -229,6 +279,131 @@ final class RegularImmutableTrieMap<K, V> implements ImmutableMap<K, V>, Validat
         return new NodeEntryIterator.EntryIterator<>(root);
     }
 
+    /**
+     * Gets a cursor over the entries of this map, which walks the trie without allocating after it is created
+     * @return a cursor positioned before the first entry
+     */
+    @Override
+    public MapCursor<K, V> cursor() {
+        return new NodeEntryIterator.Cursor<>(root);
+    }
+
+    /**
+     * Gets a Spliterator over the keys of this map, which splits by dividing the trie's nodes
+     * @return a key spliterator
+     */
+    @Override
+    public Spliterator<K> keySpliterator() {
+        return new NodeSpliterator<>(root, size, (key, value) -> key,
+                Spliterator.IMMUTABLE | Spliterator.DISTINCT | Spliterator.NONNULL);
+    }
+
+    /**
+     * Gets a Spliterator over the values of this map, which splits by dividing the trie's nodes
+     * @return a value spliterator
+     */
+    @Override
+    public Spliterator<V> valueSpliterator() {
+        return new NodeSpliterator<>(root, size, (key, value) -> value,
+                Spliterator.IMMUTABLE | Spliterator.NONNULL);
+    }
+
+    /**
+     * Gets a Spliterator over the entries of this map, which splits by dividing the trie's nodes
+     * WARNING: This will create a new Map.Entry object for each entry iterated over.
+     * @return an entry spliterator
+     */
+    @Override
+    public Spliterator<Map.Entry<K, V>> entrySpliterator() {
+        return new NodeSpliterator<>(root, size, Entry::new,
+                Spliterator.IMMUTABLE | Spliterator.DISTINCT | Spliterator.NONNULL);
+    }
+
+    /**
+     * Calls action for every entry of this map, forking tasks for the top levels of the trie,
+     * and walking subtrees sequentially once they are small enough.
+     * @param action the action to call for each entry
+     */
+    @Override
+    public void parallelForEach(final BiConsumer<? super K, ? super V> action) {
+        if (action == null) throw new NullPointerException();
+        ParallelNodeTasks.forEach(root, size, action);
+    }
+
+    /**
+     * Computes new values for all the entries in this map in a single pass over the trie,
+     * so each node is copied at most once, and subtrees without changes are reused as they are.
+     * @param mapperFn a function which maps the value, or returns null to remove the entry
+     * @return the new map instance, or the this instance if no modifications were necessary
+     */
+    @Override
+    public ImmutableMap<K, V> updateAll(final BiFunction<? super K, ? super V, ? extends V> mapperFn) {
+        if (mapperFn == null) throw new NullPointerException();
+        final SizeChangeSink sink = new SizeChangeSink();
+        return mapWithUpdatedRoot(root.updateAll(0, mapperFn, sink), sink);
+    }
+
+    @Override
+    public ImmutableMap<K, V> filter(final BiPredicate<K, V> predicate) {
+        if (predicate == null) throw new NullPointerException();
+        return updateAll((k, v) -> predicate.test(k, v) ? v : null);
+    }
+
+    @Override
+    public ImmutableMap<K, V> filterKeys(final Predicate<K> predicate) {
+        if (predicate == null) throw new NullPointerException();
+        return updateAll((k, v) -> predicate.test(k) ? v : null);
+    }
+
+    /**
+     * Computes a new map with the same trie as this map, with only the values replaced.
+     * @param mapperFn a function which maps each value, which must not return null
+     * @param <R> the new value type
+     * @return the new map instance
+     */
+    @Override
+    public <R> ImmutableMap<K, R> mapValues(final Function<? super V, ? extends R> mapperFn) {
+        if (mapperFn == null) throw new NullPointerException();
+        return new RegularImmutableTrieMap<>(size, root.mapValues(mapperFn));
+    }
+
+    /**
+     * Creates the result of an operation which recorded its changes in sink, reusing this map if the root did not change
+     */
+    private ImmutableMap<K, V> mapWithUpdatedRoot(final Node<K, V> newRoot, final SizeChangeSink sink) {
+        if (newRoot == root) {
+            return this;
+        }
+        if (newRoot == null) {
+            return EmptyImmutableMap.getInstance();
+        }
+        final int h = hash;
+        return withRoot(size + sink.sizeChange, newRoot, h + sink.hashChange, isHashKnown(h));
+    }
+
+    /**
+     * Computes new values for all the entries in this map, updating each child of the root in a separate task.
+     * Subtrees without changes are reused as they are.
+     * @param mapperFn a function which maps the value, or returns null to remove the entry
+     * @return the new map instance, or the this instance if no modifications were necessary
+     */
+    @Override
+    public ImmutableMap<K, V> parallelUpdateAll(final BiFunction<? super K, ? super V, ? extends V> mapperFn) {
+        if (mapperFn == null) throw new NullPointerException();
+        if (size <= ParallelNodeTasks.SEQUENTIAL_THRESHOLD) {
+            return updateAll(mapperFn);
+        }
+        final SizeChangeSink sink = new SizeChangeSink();
+        return mapWithUpdatedRoot(ParallelNodeTasks.updateAll(root, mapperFn, sink), sink);
+    }
+
+    @Override
+    public <R> R parallelReduce(final R identity, final BiFunction<? super K, ? super V, ? extends R> mapper,
+                                final BinaryOperator<R> combiner) {
+        if (mapper == null || combiner == null) throw new NullPointerException();
+        return ParallelNodeTasks.reduce(root, size, identity, mapper, combiner);
+    }
+
     /**
      * Calls action for every key of this map
      * @param action the Consumer to call
@@ -249,25 +424,27 @@ final class RegularImmutableTrieMap<K, V> implements ImmutableMap<K, V>, Validat
     public ImmutableMap<K, V> update(K key, BiFunction<? super K, ? super V, ? extends V> mapperFn) {
         if (key == null || mapperFn == null) throw new NullPointerException();
         final SizeChangeSink sink = new SizeChangeSink();
-        final Node<K, V> newRoot = root.update(key, computeSmearHash(key), 0, mapperFn, sink);
-        if (newRoot == null) {
-            return EmptyImmutableMap.getInstance();
-        }
-        if (newRoot != root) {
-            return new RegularImmutableTrieMap<>(size + sink.sizeChange, newRoot);
-        }
-        return this;
+        return mapWithUpdatedRoot(root.update(key, computeSmearHash(key), 0, mapperFn, sink), sink);
     }
 
     @Override
     public ImmutableMap<K, V> set(K key, V value) {
         if (key == null || value == null) { throw new NullPointerException(); }
-        final SizeChangeSink sink = new SizeChangeSink();
-        final Node<K, V> newRoot = root.set(key, value, computeSmearHash(key), 0, sink);
-        if (newRoot != root) {
-            return new RegularImmutableTrieMap<>(size + sink.sizeChange, newRoot);
+        return setWithHash(key, computeSmearHash(key), value);
+    }
+
+    @Override
+    public ImmutableMap<K, V> set(final HashedKey<? extends K> key, final V value) {
+        if (!key.isHashedBy(HashStrategies.STANDARD)) {
+            return set(key.key, value);
         }
-        return this;
+        if (value == null) { throw new NullPointerException(); }
+        return setWithHash(key.key, key.hash, value);
+    }
+
+    private ImmutableMap<K, V> setWithHash(final K key, final int hash, final V value) {
+        final SizeChangeSink sink = new SizeChangeSink();
+        return mapWithUpdatedRoot(root.set(key, value, hash, 0, sink), sink);
     }
 
     @Override
@@ -275,7 +452,10 @@ final class RegularImmutableTrieMap<K, V> implements ImmutableMap<K, V>, Validat
         if (key == null || value == null) { throw new NullPointerException(); }
         final Node<K, V> newRoot = root.setIfNotExists(key, value, computeSmearHash(key), 0);
         if (newRoot != root) {
-            return new RegularImmutableTrieMap<>(size + 1, newRoot);
+            final int h = hash;
+            return isHashKnown(h)
+                    ? new RegularImmutableTrieMap<>(size + 1, newRoot, h + entryHash(key, value))
+                    : new RegularImmutableTrieMap<>(size + 1, newRoot);
         }
         return this;
     }
@@ -283,11 +463,8 @@ final class RegularImmutableTrieMap<K, V> implements ImmutableMap<K, V>, Validat
     @Override
     public ImmutableMap<K, V> setIfPresent(K key, V value) {
         if (key == null || value == null) { throw new NullPointerException(); }
-        final Node<K, V> newRoot = root.setIfExists(key, value, computeSmearHash(key), 0);
-        if (newRoot != root) {
-            return new RegularImmutableTrieMap<>(size, newRoot);
-        }
-        return this;
+        final SizeChangeSink sink = new SizeChangeSink();
+        return mapWithUpdatedRoot(root.setIfExists(key, value, computeSmearHash(key), 0, sink), sink);
     }
 
     @Override
@@ -295,29 +472,136 @@ final class RegularImmutableTrieMap<K, V> implements ImmutableMap<K, V>, Validat
         if (key == null) {
             return this;
         }
-        final Node<K, V> newRoot = root.delete(key, computeSmearHash(key), 0);
+        return deleteWithHash(key, computeSmearHash(key));
+    }
+
+    @Override
+    public ImmutableMap<K, V> delete(final HashedKey<? extends K> key) {
+        if (!key.isHashedBy(HashStrategies.STANDARD)) {
+            return delete(key.key);
+        }
+        return deleteWithHash(key.key, key.hash);
+    }
+
+    private ImmutableMap<K, V> deleteWithHash(final K key, final int hash) {
+        final SizeChangeSink sink = new SizeChangeSink();
+        return mapWithUpdatedRoot(root.delete(key, hash, 0, sink), sink);
+    }
+
+    @Override
+    public ImmutableMap<K, V> merge(final ImmutableMap<K, V> other,
+                                    final BiFunction<? super V, ? super V, ? extends V> resolver) {
+        if (resolver == null) {
+            throw new NullPointerException();
+        }
+        if (other == this || other.isEmpty()) {
+            return this;
+        }
+        if (!(other instanceof RegularImmutableTrieMap)) {
+            return ImmutableMap.super.merge(other, resolver);
+        }
+        final RegularImmutableTrieMap<K, V> that = (RegularImmutableTrieMap<K, V>)other;
+        final SizeChangeSink sink = new SizeChangeSink();
+        // walk from the larger map, so subtrees found only on the larger side are reused without sizing them
+        if (that.size > size) {
+            final Node<K, V> newRoot = that.root.merge(root, 0, (a, b) -> resolver.apply(b, a), sink);
+            return mergeResult(that, newRoot, that.size + sink.sizeChange);
+        }
+        final Node<K, V> newRoot = root.merge(that.root, 0, resolver, sink);
+        return mergeResult(that, newRoot, size + sink.sizeChange);
+    }
+
+    private ImmutableMap<K, V> mergeResult(final RegularImmutableTrieMap<K, V> that, final Node<K, V> newRoot, final int newSize) {
+        if (newRoot == that.root) {
+            return that;
+        }
+        return mapWithRoot(newRoot, newSize);
+    }
+
+    private ImmutableMap<K, V> mapWithRoot(final Node<K, V> newRoot, final int newSize) {
+        if (newRoot == root) {
+            return this;
+        }
         if (newRoot == null) {
             return EmptyImmutableMap.getInstance();
         }
-        if (newRoot != root) {
-            return new RegularImmutableTrieMap<>(size - 1, newRoot);
+        return withRoot(newSize, newRoot, 0, false);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public ImmutableMap<K, V> intersect(final ImmutableMap<? extends K, ?> other) {
+        if (other == this) {
+            return this;
         }
-        return this;
+        if (!(other instanceof RegularImmutableTrieMap)) {
+            return ImmutableMap.super.intersect(other);
+        }
+        final SizeChangeSink sink = new SizeChangeSink();
+        final Node<K, V> newRoot = root.intersect(((RegularImmutableTrieMap<K, ?>)other).root, 0, sink);
+        // intersect counts the entries kept rather than the change
+        return mapWithRoot(newRoot, sink.sizeChange);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public ImmutableMap<K, V> subtract(final ImmutableMap<? extends K, ?> other) {
+        if (!(other instanceof RegularImmutableTrieMap)) {
+            return ImmutableMap.super.subtract(other);
+        }
+        final SizeChangeSink sink = new SizeChangeSink();
+        final Node<K, V> newRoot = root.subtract(((RegularImmutableTrieMap<K, ?>)other).root, 0, sink);
+        return mapWithRoot(newRoot, size + sink.sizeChange);
+    }
+
+    @Override
+    public void diff(final ImmutableMap<K, V> other, final DiffVisitor<? super K, ? super V> visitor) {
+        if (visitor == null) {
+            throw new NullPointerException();
+        }
+        if (other instanceof RegularImmutableTrieMap) {
+            root.diff(((RegularImmutableTrieMap<K, V>)other).root, 0, visitor);
+        } else {
+            ImmutableMap.super.diff(other, visitor);
+        }
+    }
+
+    @Override
+    public TransientMap<K, V> toTransient() {
+        final int h = hash;
+        return new TransientTrieMap<>(this, root, size, h, isHashKnown(h));
     }
 
     @Override
     public int hashCode() {
-        final NodeEntryIterator.HashIterator it = new NodeEntryIterator.HashIterator<>(root);
-        int hash = 0;
-        while (it.hasNext()) {
-            hash += it.next();
+        int h = hash;
+        if (h == 0 && !hashIsZero) {
+            final NodeEntryIterator.HashIterator<K, V> it = new NodeEntryIterator.HashIterator<>(root);
+            while (it.hasNext()) {
+                h += it.next();
+            }
+            if (h == 0) {
+                hashIsZero = true;
+            } else {
+                hash = h;
+            }
         }
-        return hash;
+        return h;
+    }
+
+    /**
+     * Checks if the sum of the entry hashes is known without a traversal
+     * @param h the value of hash, which must be read before calling this
+     */
+    private boolean isHashKnown(final int h) {
+        return h != 0 || hashIsZero;
     }
 
     @Override
     public void assertValid() {
-        assertValidType("root", root, false, PackedArrayDualNode.class);
+        if (!(root instanceof FixedArityNode)) {
+            assertValidType("root", root, false, PackedArrayDualNode.class, ArrayNode.class, ChampNode.class);
+        }
         int computedSize = root.assertValidAndComputeSize(0, 0);
         assertEqual("Size must equal computed size", size, computedSize);
     }
@@ -0,0 +1,467 @@
+package com.gotcake.collections.immutable;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import static com.gotcake.collections.immutable.Util.*;
+
+/**
+ * An immutable set stored in its own trie of SetNodes, which hold only the elements, so it needs about half the
+ * memory of a set backed by an ImmutableMap. The root is never null, the empty set is EmptyImmutableSet.
+ * Bulk operations open a batch like TransientTrieMap does: the first change to a shared node copies it, and later
+ * changes edit the copy in place.
+ * @author Aaron Cake
+ */
+final class RegularImmutableTrieSet<T> extends AbstractImmutableSet<T> implements Validatable {
+
+    final SetNode<T> root;
+    final int size;
+
+    /**
+     * The sum of the element hashes, or 0 if it hasn't been computed yet.
+     * Like String.hashCode(), racing threads can only compute the same value.
+     */
+    private int hash;
+
+    RegularImmutableTrieSet(final SetNode<T> root, final int size, final int hash) {
+        this.root = root;
+        this.size = size;
+        this.hash = hash;
+    }
+
+    RegularImmutableTrieSet(final T element) {
+        if (element == null) throw new NullPointerException();
+        this.root = new ChampSetNode<>(null, computeSmearHash(element), element);
+        this.size = 1;
+        this.hash = element.hashCode();
+    }
+
+    /**
+     * Creates a set with the given elements, dropping duplicates
+     * @throws NullPointerException if an element is null
+     */
+    static <T> ImmutableSet<T> copyOf(final Iterable<? extends T> elements) {
+        return withInserted(null, 0, 0, elements);
+    }
+
+    /**
+     * Inserts elements into a trie in a single batch
+     * @param root the root of the trie, or null if it is empty
+     * @param hash the sum of the element hashes, or 0 if it is unknown
+     * @return the new set, or null if no element was inserted
+     */
+    private static <T> ImmutableSet<T> withInserted(final SetNode<T> root, final int size, final int hash,
+                                                    final Iterable<? extends T> elements) {
+        final EditOwner owner = new EditOwner();
+        final SizeChangeSink sink = new SizeChangeSink();
+        SetNode<T> newRoot = root;
+        for (final T element: elements) {
+            if (element == null) throw new NullPointerException();
+            final int smearHash = computeSmearHash(element);
+            if (newRoot == null) {
+                newRoot = new ChampSetNode<>(owner, smearHash, element);
+                sink.sizeChange++;
+                sink.hashChange += element.hashCode();
+            } else {
+                newRoot = newRoot.insert(owner, element, smearHash, 0, sink);
+            }
+        }
+        if (sink.sizeChange == 0) {
+            return null;
+        }
+        final boolean hashKnown = root == null || hash != 0;
+        return withRoot(newRoot, size + sink.sizeChange, hashKnown ? hash + sink.hashChange : 0);
+    }
+
+    /**
+     * Creates the set for a trie which may be small, demoting it to a SmallImmutableSet if it fits in one
+     * @param hash the sum of the element hashes, or 0 if it is unknown
+     */
+    static <T> ImmutableSet<T> withRoot(final SetNode<T> root, final int size, final int hash) {
+        if (SmallImmutableMap.fits(size)) {
+            return SmallImmutableSet.copyOf(root, size);
+        }
+        return new RegularImmutableTrieSet<>(root, size, hash);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return false;
+    }
+
+    @Override
+    public boolean contains(final Object o) {
+        return o != null && root.contains(o, computeSmearHash(o));
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new ElementIterator<>(root);
+    }
+
+    @Override
+    public void forEach(final Consumer<? super T> action) {
+        root.forEach(action);
+    }
+
+    /**
+     * Creates a spliterator which splits along the trie, like the key spliterator of RegularImmutableTrieMap
+     * @return an element spliterator
+     */
+    @Override
+    public Spliterator<T> spliterator() {
+        return new ElementSpliterator<>(root, size);
+    }
+
+    @Override
+    public ImmutableSet<T> insert(final T element) {
+        if (element == null) throw new NullPointerException();
+        final SizeChangeSink sink = new SizeChangeSink();
+        final SetNode<T> newRoot = root.insert(null, element, computeSmearHash(element), 0, sink);
+        if (newRoot == root) {
+            return this;
+        }
+        return new RegularImmutableTrieSet<>(newRoot, size + sink.sizeChange, hash != 0 ? hash + sink.hashChange : 0);
+    }
+
+    @Override
+    public ImmutableSet<T> delete(final T element) {
+        if (element == null) {
+            return this;
+        }
+        final SizeChangeSink sink = new SizeChangeSink();
+        final SetNode<T> newRoot = root.delete(null, element, computeSmearHash(element), 0, sink);
+        if (newRoot == root) {
+            return this;
+        }
+        if (newRoot == null) {
+            return EmptyImmutableSet.getInstance();
+        }
+        return withRoot(newRoot, size + sink.sizeChange, hash != 0 ? hash + sink.hashChange : 0);
+    }
+
+    @Override
+    public ImmutableSet<T> filter(final Predicate<T> predicate) {
+        if (predicate == null) throw new NullPointerException();
+        final SizeChangeSink sink = new SizeChangeSink();
+        return setWithRoot(root.filter(predicate, 0, sink), sink.sizeChange);
+    }
+
+    /**
+     * Inserts all the elements in a single batch, so each node is copied at most once
+     */
+    @Override
+    public ImmutableSet<T> insertAll(final Collection<? extends T> elements) {
+        final ImmutableSet<T> newSet = withInserted(root, size, hash, elements);
+        return newSet == null ? this : newSet;
+    }
+
+    /**
+     * Deletes all the elements in a single batch, so each node is copied at most once.
+     * Trie sets are subtracted node by node instead.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public ImmutableSet<T> deleteAll(final Collection<? extends T> elements) {
+        if (elements instanceof RegularImmutableTrieSet) {
+            return subtract((RegularImmutableTrieSet<? extends T>)elements);
+        }
+        final EditOwner owner = new EditOwner();
+        final SizeChangeSink sink = new SizeChangeSink();
+        SetNode<T> newRoot = root;
+        for (final Object element: elements) {
+            if (element != null) {
+                newRoot = newRoot.delete(owner, element, computeSmearHash(element), 0, sink);
+                if (newRoot == null) {
+                    return EmptyImmutableSet.getInstance();
+                }
+            }
+        }
+        if (sink.sizeChange == 0) {
+            return this;
+        }
+        return withRoot(newRoot, size + sink.sizeChange, hash != 0 ? hash + sink.hashChange : 0);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public ImmutableSet<T> keepAll(final Collection<? extends T> elements) {
+        if (elements instanceof RegularImmutableTrieSet) {
+            return intersect((RegularImmutableTrieSet<? extends T>)elements);
+        }
+        return super.keepAll(elements);
+    }
+
+    @Override
+    public ImmutableSet<T> intersect(final ImmutableSet<? extends T> other) {
+        if (other instanceof RegularImmutableTrieSet) {
+            final SizeChangeSink sink = new SizeChangeSink();
+            final SetNode<T> newRoot = root.retain(((RegularImmutableTrieSet<? extends T>)other).root, true, 0, sink);
+            return setWithRoot(newRoot, sink.sizeChange);
+        }
+        return super.keepAll(other);
+    }
+
+    @Override
+    public ImmutableSet<T> subtract(final ImmutableSet<? extends T> other) {
+        if (other instanceof RegularImmutableTrieSet) {
+            final SizeChangeSink sink = new SizeChangeSink();
+            final SetNode<T> newRoot = root.retain(((RegularImmutableTrieSet<? extends T>)other).root, false, 0, sink);
+            return setWithRoot(newRoot, sink.sizeChange);
+        }
+        return deleteAll(other);
+    }
+
+    private ImmutableSet<T> setWithRoot(final SetNode<T> newRoot, final int newSize) {
+        if (newRoot == root) {
+            return this;
+        }
+        if (newRoot == null) {
+            return EmptyImmutableSet.getInstance();
+        }
+        return withRoot(newRoot, newSize, 0);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0) {
+            h = super.hashCode();
+            hash = h;
+        }
+        return h;
+    }
+
+    /**
+     * Compares this set to another as Set specifies. Two trie sets with the same elements have the same shape,
+     * so they are compared node by node.
+     */
+    @Override
+    public boolean equals(final Object obj) {
+        if (obj == this) return true;
+        if (obj instanceof RegularImmutableTrieSet) {
+            final RegularImmutableTrieSet<?> other = (RegularImmutableTrieSet<?>)obj;
+            if (size != other.size || (hash != 0 && other.hash != 0 && hash != other.hash)) {
+                return false;
+            }
+            return root.equalTo(other.root);
+        }
+        if (!(obj instanceof Set) || ((Set<?>)obj).size() != size) {
+            return false;
+        }
+        for (final T element: this) {
+            if (!((Set<?>)obj).contains(element)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void assertValid() {
+        assertNotNull("root must not be null", root);
+        assertEqual("size must match the trie", size, root.assertValidAndComputeSize(0, 0));
+        if (hash != 0) {
+            assertEqualBinary("hash must match the elements", super.hashCode(), hash);
+        }
+    }
+
+    /**
+     * Iterates over the elements of a trie of SetNodes, keeping the path to the current element in fixed size arrays
+     * like NodeEntryIterator
+     */
+    private static final class ElementIterator<T> implements Iterator<T> {
+
+        // a trie has at most 7 levels of ChampSetNodes, plus a collision node
+        private final SetNode<?>[] nodes = new SetNode<?>[NodeEntryIterator.MAX_DEPTH];
+        private final int[] positions = new int[NodeEntryIterator.MAX_DEPTH];
+        private int top;
+        private Object next;
+
+        ElementIterator(final SetNode<T> root) {
+            nodes[0] = root;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null || tryComputeNext();
+        }
+
+        private boolean tryComputeNext() {
+            while (top >= 0) {
+                final SetNode<?> node = nodes[top];
+                final int position = positions[top];
+                if (position == node.slotCount()) {
+                    // node is done, go back to its parent
+                    nodes[top--] = null;
+                    continue;
+                }
+                positions[top] = position + 1;
+                final Object slot = node.slot(position);
+                if (position >= node.elementCount()) {
+                    // descend into child
+                    top++;
+                    nodes[top] = (SetNode<?>)slot;
+                    positions[top] = 0;
+                    continue;
+                }
+                next = slot;
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final T element = (T)next;
+            next = null;
+            return element;
+        }
+
+    }
+
+    /**
+     * A Spliterator over a trie of SetNodes, which splits by handing off half of the remaining slots of a node like
+     * NodeSpliterator. It is only SIZED until it splits, since the elements below a child are not counted.
+     */
+    private static final class ElementSpliterator<T> implements Spliterator<T> {
+
+        private static final int CHARACTERISTICS = Spliterator.IMMUTABLE | Spliterator.DISTINCT | Spliterator.NONNULL;
+
+        // the stack of nodes being iterated, the bottom node is only iterated up to fence
+        private final SetNode<?>[] nodes = new SetNode<?>[NodeEntryIterator.MAX_DEPTH];
+        private final int[] positions = new int[NodeEntryIterator.MAX_DEPTH];
+        private int top;
+        private int fence;
+
+        private long estimate;
+        private boolean sized;
+
+        ElementSpliterator(final SetNode<T> root, final int size) {
+            this(root, 0, root.slotCount(), size);
+            this.sized = true;
+        }
+
+        private ElementSpliterator(final SetNode<?> node, final int origin, final int fence, final long estimate) {
+            this.nodes[0] = node;
+            this.positions[0] = origin;
+            this.fence = fence;
+            this.estimate = estimate;
+            this.top = 0;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean tryAdvance(final Consumer<? super T> action) {
+            while (top >= 0) {
+                final SetNode<?> node = nodes[top];
+                final int position = positions[top];
+                if (position == (top == 0 ? fence : node.slotCount())) {
+                    // node is done, go back to its parent
+                    nodes[top--] = null;
+                    continue;
+                }
+                positions[top] = position + 1;
+                final Object slot = node.slot(position);
+                if (position >= node.elementCount()) {
+                    // descend into child
+                    nodes[++top] = (SetNode<?>)slot;
+                    positions[top] = 0;
+                    continue;
+                }
+                if (estimate > 0) {
+                    estimate--;
+                }
+                action.accept((T)slot);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void forEachRemaining(final Consumer<? super T> action) {
+            // finish the child we are part way through, if any
+            while (top > 0) {
+                tryAdvance(action);
+            }
+            if (top < 0) {
+                return;
+            }
+            final SetNode<?> node = nodes[0];
+            final int elementCount = node.elementCount();
+            for (int position = positions[0]; position < fence; position++) {
+                final Object slot = node.slot(position);
+                if (position >= elementCount) {
+                    ((SetNode<T>)slot).forEach(action);
+                } else {
+                    action.accept((T)slot);
+                }
+            }
+            positions[0] = fence;
+            nodes[0] = null;
+            top = -1;
+            estimate = 0;
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            if (top != 0) {
+                // part way through a child (or done), only split before starting a child
+                return null;
+            }
+            SetNode<?> node = nodes[0];
+            int origin = positions[0];
+            while (fence - origin == 1 && origin >= node.elementCount()) {
+                // a lone child is left, split it instead
+                node = (SetNode<?>)node.slot(origin);
+                origin = 0;
+                fence = node.slotCount();
+                nodes[0] = node;
+                positions[0] = 0;
+            }
+            if (fence - origin < 2) {
+                return null;
+            }
+            final int middle = (origin + fence) >>> 1;
+            // the elements come before the children, so the element slots in a range are where it overlaps them
+            final int elementCount = node.elementCount();
+            final int elements = Math.max(Math.min(fence, elementCount) - origin, 0);
+            final int prefixElements = Math.max(Math.min(middle, elementCount) - origin, 0);
+            final int children = fence - origin - elements;
+            final int prefixChildren = middle - origin - prefixElements;
+            final long childEstimate = Math.max(estimate - elements, 0);
+            final long prefixEstimate = prefixElements + (children == 0 ? 0 : childEstimate * prefixChildren / children);
+            positions[0] = middle;
+            estimate -= prefixEstimate;
+            sized = false;
+            return new ElementSpliterator<>(node, origin, middle, prefixEstimate);
+        }
+
+        @Override
+        public long estimateSize() {
+            return estimate;
+        }
+
+        @Override
+        public int characteristics() {
+            return sized ? CHARACTERISTICS | Spliterator.SIZED : CHARACTERISTICS;
+        }
+
+    }
+
+}
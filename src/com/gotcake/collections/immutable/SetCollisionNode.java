@@ -0,0 +1,162 @@
+package com.gotcake.collections.immutable;
+
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import static com.gotcake.collections.immutable.Util.*;
+
+/**
+ * A set node at the bottom of the trie for holding multiple elements with the same hash value.
+ * Collisions are rare, so the elements are scanned with equals and every change copies the node.
+ * @author Aaron Cake
+ */
+final class SetCollisionNode<T> implements SetNode<T> {
+
+    final Object[] elements;
+
+    SetCollisionNode(final Object[] elements) {
+        this.elements = elements;
+    }
+
+    private int indexOf(final Object element) {
+        for (int i = 0; i < elements.length; i++) {
+            if (elements[i].equals(element)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean contains(final Object element, final int prefix) {
+        return indexOf(element) >= 0;
+    }
+
+    @Override
+    public SetNode<T> insert(final EditOwner owner, final T element, final int prefix, final int depth,
+                             final SizeChangeSink size) {
+        if (indexOf(element) >= 0) {
+            return this;
+        }
+        size.sizeChange++;
+        size.hashChange += element.hashCode();
+        final Object[] newElements = new Object[elements.length + 1];
+        System.arraycopy(elements, 0, newElements, 0, elements.length);
+        newElements[elements.length] = element;
+        return new SetCollisionNode<>(newElements);
+    }
+
+    @Override
+    public SetNode<T> delete(final EditOwner owner, final Object element, final int prefix, final int depth,
+                             final SizeChangeSink size) {
+        final int index = indexOf(element);
+        if (index < 0) {
+            return this;
+        }
+        size.sizeChange--;
+        size.hashChange -= elements[index].hashCode();
+        if (elements.length == 1) {
+            return null;
+        }
+        // a single element left is inlined by the parent
+        final Object[] newElements = new Object[elements.length - 1];
+        System.arraycopy(elements, 0, newElements, 0, index);
+        System.arraycopy(elements, index + 1, newElements, index, newElements.length - index);
+        return new SetCollisionNode<>(newElements);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public SetNode<T> filter(final Predicate<? super T> predicate, final int depth, final SizeChangeSink size) {
+        final Object[] kept = new Object[elements.length];
+        int count = 0;
+        for (final Object element: elements) {
+            if (predicate.test((T)element)) {
+                kept[count++] = element;
+            }
+        }
+        size.sizeChange += count;
+        if (count == elements.length) {
+            return this;
+        }
+        if (count == 0) {
+            return null;
+        }
+        final Object[] newElements = new Object[count];
+        System.arraycopy(kept, 0, newElements, 0, count);
+        return new SetCollisionNode<>(newElements);
+    }
+
+    @Override
+    public SetNode<T> retain(final SetNode<?> other, final boolean keepCommon, final int depth,
+                             final SizeChangeSink size) {
+        if (other == this) {
+            if (keepCommon) {
+                size.sizeChange += elements.length;
+                return this;
+            }
+            return null;
+        }
+        return filter(element -> other.contains(element, 0) == keepCommon, depth, size);
+    }
+
+    @Override
+    public boolean equalTo(final SetNode<?> other) {
+        if (other == this) {
+            return true;
+        }
+        if (!(other instanceof SetCollisionNode) || ((SetCollisionNode<?>)other).elements.length != elements.length) {
+            return false;
+        }
+        // the elements are distinct, so containing all of them means the same elements
+        for (final Object element: elements) {
+            if (!other.contains(element, 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int slotCount() {
+        return elements.length;
+    }
+
+    @Override
+    public int elementCount() {
+        return elements.length;
+    }
+
+    @Override
+    public Object slot(final int index) {
+        return elements[index];
+    }
+
+    @Override
+    public int computeSize() {
+        return elements.length;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEach(final Consumer<? super T> action) {
+        for (final Object element: elements) {
+            action.accept((T)element);
+        }
+    }
+
+    @Override
+    public int assertValidAndComputeSize(final int depth, final int path) {
+        assertEqual("collision nodes must be at depth 7", 7, depth);
+        assertThat("collision node must hold more than one element", elements.length > 1);
+        for (int i = 0; i < elements.length; i++) {
+            assertNotNull("element must not be null", elements[i]);
+            assertEqualBinary("element must have the colliding hash", path, computeSmearHash(elements[i]));
+            for (int j = i + 1; j < elements.length; j++) {
+                assertThat("elements must be distinct", !elements[i].equals(elements[j]));
+            }
+        }
+        return elements.length;
+    }
+
+}
@@ -0,0 +1,67 @@
+package com.gotcake.collections.immutable;
+
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * A node of a RegularImmutableTrieSet. Unlike a map Node, it stores only the elements, with no value beside each one.
+ * Below the root a node always holds at least two elements in its subtree. An operation which leaves a single
+ * element in a node returns that node anyway, and the parent inlines the element in its place.
+ * @author Aaron Cake
+ */
+interface SetNode<T> {
+
+    boolean contains(Object element, int prefix);
+    SetNode<T> insert(EditOwner owner, T element, int prefix, int depth, SizeChangeSink size);
+    SetNode<T> delete(EditOwner owner, Object element, int prefix, int depth, SizeChangeSink size);
+
+    /**
+     * Keeps the elements of this subtree which match the predicate. Like Node.intersect, the number of elements
+     * kept is added to the size. Returns this node if every element is kept, and null if none are.
+     */
+    SetNode<T> filter(Predicate<? super T> predicate, int depth, SizeChangeSink size);
+
+    /**
+     * Keeps the elements of this subtree which are in another node at the same depth if keepCommon is true, or the
+     * ones which are not if it is false. Subtrees shared by both are kept or dropped without visiting them.
+     * The number of elements kept is added to the size.
+     */
+    SetNode<T> retain(SetNode<?> other, boolean keepCommon, int depth, SizeChangeSink size);
+
+    /**
+     * Compares the elements of this subtree with another node at the same depth. Tries with the same elements have
+     * the same shape, so this is a structural walk.
+     */
+    boolean equalTo(SetNode<?> other);
+
+    /**
+     * Gets the number of slots. The first elementCount() slots are elements, and the rest are children.
+     */
+    int slotCount();
+    int elementCount();
+    Object slot(int index);
+
+    /**
+     * Checks if this node holds a single element and no children, so its parent should inline the element
+     */
+    default boolean isSingleElement() {
+        return slotCount() == 1 && elementCount() == 1;
+    }
+
+    /**
+     * Counts the elements in this subtree.
+     * WARNING: this executes in linear O(n) time.
+     */
+    int computeSize();
+
+    void forEach(Consumer<? super T> action);
+
+    /**
+     * Asserts this subtree is valid
+     * @param depth the depth of this node
+     * @param path the hash bits leading to this node, in its upper 5 * depth bits
+     * @return the number of elements in this subtree
+     */
+    int assertValidAndComputeSize(int depth, int path);
+
+}
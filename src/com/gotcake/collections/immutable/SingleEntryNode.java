@@ -2,6 +2,7 @@ package com.gotcake.collections.immutable;
 
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
+import java.util.function.Function;
 
 /**
  * A temporary node used when only a single entry is left and it should be collapsed into the parent node
@@ -11,39 +12,78 @@ class SingleEntryNode<K, V> implements Node<K, V> {
 
     final K key;
     final V value;
+    /**
+     * The hash prefix of the key at the depth of the node this entry is collapsing out of,
+     * which is always 0 for a collision node, since every bit of the hash has been used by then
+     */
+    final int prefix;
 
-    SingleEntryNode(final K key, final V value) {
+    SingleEntryNode(final K key, final V value, final int prefix) {
         this.key = key;
         this.value = value;
+        this.prefix = prefix;
+    }
+
+    /**
+     * Computes the hash prefix of this entry at the depth of the node it collapses into, from the child at the given bit,
+     * restoring the bits that were consumed by that node from the bit index
+     */
+    int prefixInParent(final int bit) {
+        return (Integer.numberOfTrailingZeros(bit) << 27) | (prefix >>> 5);
+    }
+
+    @Override
+    public V get(K key, int prefix, HashStrategy<? super K> equivalence) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Node<K, V> set(EditOwner owner, K key, V value, int prefix, int depth, SizeChangeSink size, HashStrategy<? super K> equivalence) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Node<K, V> setIfExists(K key, V value, int prefix, int depth, SizeChangeSink size, HashStrategy<? super K> equivalence) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Node<K, V> setIfNotExists(K key, V value, int prefix, int depth, HashStrategy<? super K> equivalence) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Node<K, V> delete(EditOwner owner, K key, int prefix, int depth, SizeChangeSink size, HashStrategy<? super K> equivalence) {
+        throw new UnsupportedOperationException();
     }
 
     @Override
-    public V get(K key, int prefix) {
+    public Node<K, V> update(EditOwner owner, K key, int prefix, int depth, BiFunction<? super K, ? super V, ? extends V> updateFn, SizeChangeSink size, HashStrategy<? super K> equivalence) {
         throw new UnsupportedOperationException();
     }
 
     @Override
-    public Node<K, V> set(K key, V value, int prefix, int depth, SizeChangeSink size) {
+    public Node<K, V> merge(Node<K, V> other, int depth, BiFunction<? super V, ? super V, ? extends V> resolver, SizeChangeSink size) {
         throw new UnsupportedOperationException();
     }
 
     @Override
-    public Node<K, V> setIfExists(K key, V value, int prefix, int depth) {
+    public void diff(Node<K, V> other, int depth, ImmutableMap.DiffVisitor<? super K, ? super V> visitor) {
         throw new UnsupportedOperationException();
     }
 
     @Override
-    public Node<K, V> setIfNotExists(K key, V value, int prefix, int depth) {
+    public Node<K, V> intersect(Node<K, ?> other, int depth, SizeChangeSink size) {
         throw new UnsupportedOperationException();
     }
 
     @Override
-    public Node<K, V> delete(K key, int prefix, int depth) {
+    public Node<K, V> subtract(Node<K, ?> other, int depth, SizeChangeSink size) {
         throw new UnsupportedOperationException();
     }
 
     @Override
-    public Node<K, V> update(K key, int prefix, int depth, BiFunction<? super K, ? super V, ? extends V> updateFn, SizeChangeSink size) {
+    public int computeSize() {
         throw new UnsupportedOperationException();
     }
 
@@ -58,7 +98,32 @@ class SingleEntryNode<K, V> implements Node<K, V> {
     }
 
     @Override
-    public void computeIteration(int i, NodeEntryIterator<K, V>.Callback callback) {
+    public Node<K, V> updateAll(int depth, BiFunction<? super K, ? super V, ? extends V> updateFn, SizeChangeSink size) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <R> Node<K, R> mapValues(Function<? super V, ? extends R> mapperFn) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Node<K, V> replaceSlots(Object[] slots, int depth) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int slotCount() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object slotKey(int slot) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object slotValue(int slot) {
         throw new UnsupportedOperationException();
     }
 
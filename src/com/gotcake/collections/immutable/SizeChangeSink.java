@@ -1,11 +1,12 @@
 package com.gotcake.collections.immutable;
 
 /**
- * A container used for keeping track of size changes
+ * A container used for keeping track of size changes, and changes to the sum of entry hashes
  * @author Aaron Cake
  */
 class SizeChangeSink {
 
     public int sizeChange = 0;
+    public int hashChange = 0;
 
 }
@@ -0,0 +1,525 @@
+package com.gotcake.collections.immutable;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static com.gotcake.collections.immutable.Util.*;
+
+/**
+ * An immutable map of at most MAX_ENTRIES entries, stored as key, value pairs in one flat array.
+ * Lookups scan the keys with equals, so keys are never hashed, and a map of one entry is a wrapper and a four slot
+ * array instead of a wrapper, a node and its array. A map which grows past MAX_ENTRIES is promoted to a
+ * RegularImmutableTrieMap, and a trie map which shrinks to MAX_ENTRIES is demoted back.
+ * @author Aaron Cake
+ */
+final class SmallImmutableMap<K, V> implements ImmutableMap<K, V>, Validatable {
+
+    /**
+     * The most entries a small map holds. Scanning 8 keys with equals is about as fast as hashing one key and
+     * walking a node.
+     */
+    static final int MAX_ENTRIES = 8;
+
+    /**
+     * Whether maps and sets of at most MAX_ENTRIES are stored flat. Tries are used for every size if the
+     * com.gotcake.collections.immutable.smallCollections system property is set to false.
+     */
+    static boolean enabled = Boolean.parseBoolean(
+            System.getProperty("com.gotcake.collections.immutable.smallCollections", "true"));
+
+    /**
+     * The entries as key, value pairs in the order they were first set
+     */
+    final Object[] entries;
+
+    private SmallImmutableMap(final Object[] entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * Checks if a map or set of the given size should be stored flat
+     */
+    static boolean fits(final int size) {
+        return enabled && size <= MAX_ENTRIES;
+    }
+
+    static <K, V> ImmutableMap<K, V> of(final K key, final V value) {
+        if (key == null || value == null) { throw new NullPointerException(); }
+        return new SmallImmutableMap<>(new Object[] { key, value });
+    }
+
+    /**
+     * Creates a map from parallel arrays of keys and values. If a key appears more than once, the last value wins.
+     * @param length the number of entries to read, which must fit in a small map
+     */
+    static <K, V> ImmutableMap<K, V> copyOf(final Object[] keys, final Object[] values, final int length) {
+        final Object[] entries = new Object[length * 2];
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            final Object key = keys[i];
+            final Object value = values[i];
+            if (key == null || value == null) { throw new NullPointerException(); }
+            final int offset = indexOf(entries, count, key);
+            if (offset < 0) {
+                entries[count++] = key;
+                entries[count++] = value;
+            } else {
+                entries[offset + 1] = value;
+            }
+        }
+        return new SmallImmutableMap<>(count == entries.length ? entries : copyOf(entries, count));
+    }
+
+    /**
+     * Creates a map with all the entries of a map which fits in a small map
+     */
+    static <K, V> ImmutableMap<K, V> copyOf(final Map<? extends K, ? extends V> map) {
+        final Object[] entries = new Object[map.size() * 2];
+        int count = 0;
+        for (final Map.Entry<? extends K, ? extends V> entry: map.entrySet()) {
+            final Object key = entry.getKey();
+            final Object value = entry.getValue();
+            if (key == null || value == null) { throw new NullPointerException(); }
+            // keys of a map which doesn't compare with equals may be equal here, and the last one wins like in the trie
+            final int offset = indexOf(entries, count, key);
+            if (offset < 0) {
+                entries[count++] = key;
+                entries[count++] = value;
+            } else {
+                entries[offset] = key;
+                entries[offset + 1] = value;
+            }
+        }
+        return new SmallImmutableMap<>(count == entries.length ? entries : copyOf(entries, count));
+    }
+
+    /**
+     * Collects the entries of a trie which fits in a small map
+     * @param root the root of the trie
+     * @param size the number of entries in the trie
+     */
+    static <K, V> ImmutableMap<K, V> copyOf(final Node<K, V> root, final int size) {
+        final Object[] entries = new Object[size * 2];
+        final MapCursor<K, V> cursor = new NodeEntryIterator.Cursor<>(root);
+        int count = 0;
+        while (cursor.advance()) {
+            entries[count++] = cursor.key();
+            entries[count++] = cursor.value();
+        }
+        return new SmallImmutableMap<>(entries);
+    }
+
+    private static Object[] copyOf(final Object[] array, final int length) {
+        final Object[] copy = new Object[length];
+        System.arraycopy(array, 0, copy, 0, length);
+        return copy;
+    }
+
+    /**
+     * Finds a key among the first length slots of an entry array
+     * @return the offset of the key, or -1 if it isn't there
+     */
+    private static int indexOf(final Object[] entries, final int length, final Object key) {
+        for (int offset = 0; offset < length; offset += 2) {
+            if (entries[offset].equals(key)) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    private int indexOf(final Object key) {
+        return key == null ? -1 : indexOf(entries, entries.length, key);
+    }
+
+    @Override
+    public int size() {
+        return entries.length >> 1;
+    }
+
+    /**
+     * Always returns false since SmallImmutableMap cannot be empty
+     */
+    @Override
+    public boolean isEmpty() {
+        return false;
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public boolean containsEntry(final K key, final V value) {
+        if (value == null) {
+            return false;
+        }
+        final int offset = indexOf(key);
+        return offset >= 0 && entries[offset + 1].equals(value);
+    }
+
+    /**
+     * Returns true if the map contains the given value.
+     * WARNING: this executes in linear O(n) time.
+     * @param value the value to search for
+     * @return true if the map contains the value, false otherwise
+     */
+    @Override
+    public boolean containsValue(final Object value) {
+        if (value == null) {
+            return false;
+        }
+        for (int offset = 1; offset < entries.length; offset += 2) {
+            if (entries[offset].equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(final Object key) {
+        final int offset = indexOf(key);
+        return offset < 0 ? null : (V)entries[offset + 1];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V getOrDefault(final Object key, final V defaultValue) {
+        final int offset = indexOf(key);
+        return offset < 0 ? defaultValue : (V)entries[offset + 1];
+    }
+
+    @Override
+    public ImmutableMap<K, V> set(final K key, final V value) {
+        if (key == null || value == null) { throw new NullPointerException(); }
+        final int offset = indexOf(entries, entries.length, key);
+        if (offset >= 0) {
+            return entries[offset + 1].equals(value) ? this : withEntryAt(offset, key, value);
+        }
+        return withEntryAdded(key, value);
+    }
+
+    @Override
+    public ImmutableMap<K, V> setIfAbsent(final K key, final V value) {
+        if (key == null || value == null) { throw new NullPointerException(); }
+        return indexOf(entries, entries.length, key) >= 0 ? this : withEntryAdded(key, value);
+    }
+
+    @Override
+    public ImmutableMap<K, V> setIfPresent(final K key, final V value) {
+        if (key == null || value == null) { throw new NullPointerException(); }
+        final int offset = indexOf(entries, entries.length, key);
+        if (offset < 0 || entries[offset + 1].equals(value)) {
+            return this;
+        }
+        return withEntryAt(offset, key, value);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public ImmutableMap<K, V> update(final K key, final BiFunction<? super K, ? super V, ? extends V> mapperFn) {
+        if (key == null || mapperFn == null) throw new NullPointerException();
+        final int offset = indexOf(entries, entries.length, key);
+        if (offset < 0) {
+            final V value = mapperFn.apply(key, null);
+            return value == null ? this : withEntryAdded(key, value);
+        }
+        final V oldValue = (V)entries[offset + 1];
+        final V newValue = mapperFn.apply(key, oldValue);
+        if (newValue == null) {
+            return withEntryRemoved(offset);
+        }
+        return newValue.equals(oldValue) ? this : withEntryAt(offset, key, newValue);
+    }
+
+    @Override
+    public ImmutableMap<K, V> delete(final K key) {
+        final int offset = indexOf(key);
+        return offset < 0 ? this : withEntryRemoved(offset);
+    }
+
+    /**
+     * Computes new values for all the entries in this map, copying the entries at most once
+     * @param mapperFn a function which maps the value, or returns null to remove the entry
+     * @return the new map instance, or the this instance if no modifications were necessary
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public ImmutableMap<K, V> updateAll(final BiFunction<? super K, ? super V, ? extends V> mapperFn) {
+        if (mapperFn == null) throw new NullPointerException();
+        Object[] newEntries = null;
+        int count = 0;
+        for (int offset = 0; offset < entries.length; offset += 2) {
+            final Object oldValue = entries[offset + 1];
+            final Object newValue = mapperFn.apply((K)entries[offset], (V)oldValue);
+            if (newEntries == null) {
+                if (newValue != null && newValue.equals(oldValue)) {
+                    continue;
+                }
+                // first change, so the entries before this one are kept
+                newEntries = new Object[entries.length];
+                System.arraycopy(entries, 0, newEntries, 0, offset);
+                count = offset;
+            }
+            if (newValue != null) {
+                newEntries[count++] = entries[offset];
+                newEntries[count++] = newValue;
+            }
+        }
+        if (newEntries == null) {
+            return this;
+        }
+        if (count == 0) {
+            return EmptyImmutableMap.getInstance();
+        }
+        return new SmallImmutableMap<>(count == newEntries.length ? newEntries : copyOf(newEntries, count));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <R> ImmutableMap<K, R> mapValues(final Function<? super V, ? extends R> mapperFn) {
+        if (mapperFn == null) throw new NullPointerException();
+        final Object[] newEntries = new Object[entries.length];
+        for (int offset = 0; offset < entries.length; offset += 2) {
+            final R value = mapperFn.apply((V)entries[offset + 1]);
+            if (value == null) { throw new NullPointerException(); }
+            newEntries[offset] = entries[offset];
+            newEntries[offset + 1] = value;
+        }
+        return new SmallImmutableMap<>(newEntries);
+    }
+
+    /**
+     * Replaces the entry at the given offset. Like the trie, the new key replaces the equal key stored before it.
+     */
+    private ImmutableMap<K, V> withEntryAt(final int offset, final K key, final V value) {
+        final Object[] newEntries = entries.clone();
+        newEntries[offset] = key;
+        newEntries[offset + 1] = value;
+        return new SmallImmutableMap<>(newEntries);
+    }
+
+    /**
+     * Adds an entry for a key which isn't in this map, promoting it to a trie if it no longer fits
+     */
+    private ImmutableMap<K, V> withEntryAdded(final K key, final V value) {
+        final int length = entries.length;
+        if (!fits((length >> 1) + 1)) {
+            final int size = (length >> 1) + 1;
+            final Object[] keys = new Object[size];
+            final Object[] values = new Object[size];
+            for (int i = 0; i < size - 1; i++) {
+                keys[i] = entries[i << 1];
+                values[i] = entries[(i << 1) + 1];
+            }
+            keys[size - 1] = key;
+            values[size - 1] = value;
+            return new RegularImmutableTrieMap<>(keys, values, size);
+        }
+        final Object[] newEntries = new Object[length + 2];
+        System.arraycopy(entries, 0, newEntries, 0, length);
+        newEntries[length] = key;
+        newEntries[length + 1] = value;
+        return new SmallImmutableMap<>(newEntries);
+    }
+
+    private ImmutableMap<K, V> withEntryRemoved(final int offset) {
+        if (entries.length == 2) {
+            return EmptyImmutableMap.getInstance();
+        }
+        final Object[] newEntries = new Object[entries.length - 2];
+        System.arraycopy(entries, 0, newEntries, 0, offset);
+        System.arraycopy(entries, offset + 2, newEntries, offset, newEntries.length - offset);
+        return new SmallImmutableMap<>(newEntries);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEach(final BiConsumer<? super K, ? super V> action) {
+        for (int offset = 0; offset < entries.length; offset += 2) {
+            action.accept((K)entries[offset], (V)entries[offset + 1]);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEachKey(final Consumer<? super K> action) {
+        for (int offset = 0; offset < entries.length; offset += 2) {
+            action.accept((K)entries[offset]);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEachValue(final Consumer<? super V> action) {
+        for (int offset = 1; offset < entries.length; offset += 2) {
+            action.accept((V)entries[offset]);
+        }
+    }
+
+    @Override
+    public Iterator<K> keyIterator() {
+        return new SlotIterator<>(entries, 0);
+    }
+
+    @Override
+    public Iterator<V> valueIterator() {
+        return new SlotIterator<>(entries, 1);
+    }
+
+    /**
+     * Returns an iterator over all of the entries in this map.
+     * WARNING: This will create a new Map.Entry object for each entry iterated over, use cursor to avoid this.
+     * @return an iterator over entries
+     */
+    @Override
+    public Iterator<Map.Entry<K, V>> entryIterator() {
+        final MapCursor<K, V> cursor = cursor();
+        return new Iterator<Map.Entry<K, V>>() {
+            private int remaining = size();
+
+            @Override
+            public boolean hasNext() {
+                return remaining > 0;
+            }
+
+            @Override
+            public Map.Entry<K, V> next() {
+                if (!cursor.advance()) {
+                    throw new NoSuchElementException();
+                }
+                remaining--;
+                return new Entry<>(cursor.key(), cursor.value());
+            }
+        };
+    }
+
+    @Override
+    public MapCursor<K, V> cursor() {
+        return new EntryCursor<>(entries);
+    }
+
+    /**
+     * Opens a batch over a trie copied from this map. If the batch changes nothing, persistent returns this map.
+     */
+    @Override
+    public TransientMap<K, V> toTransient() {
+        final int size = size();
+        final Object[] keys = new Object[size];
+        final Object[] values = new Object[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = entries[i << 1];
+            values[i] = entries[(i << 1) + 1];
+        }
+        final Node<K, V> root = TrieBuilder.buildRoot(keys, values, null, size, new SizeChangeSink());
+        return new TransientTrieMap<>(this, root, size, hashCode(), true);
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        if (this == other) return true;
+        if (!(other instanceof Map)) return false;
+        final Map<?, ?> map = (Map<?, ?>)other;
+        if (size() != map.size()) return false;
+        for (int offset = 0; offset < entries.length; offset += 2) {
+            if (!entries[offset + 1].equals(map.get(entries[offset]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = 0;
+        for (int offset = 0; offset < entries.length; offset += 2) {
+            h += entryHash(entries[offset], entries[offset + 1]);
+        }
+        return h;
+    }
+
+    @Override
+    public void assertValid() {
+        assertThat("entries must be key, value pairs", (entries.length & 1) == 0);
+        final int size = entries.length >> 1;
+        assertThat("a small map must hold between 1 and MAX_ENTRIES entries", size >= 1 && size <= MAX_ENTRIES);
+        for (int offset = 0; offset < entries.length; offset += 2) {
+            assertNotNull("key must not be null", entries[offset]);
+            assertNotNull("value must not be null", entries[offset + 1]);
+            assertEqual("keys must be distinct", offset, indexOf(entries, entries.length, entries[offset]));
+        }
+    }
+
+    /**
+     * Iterates over every other slot of the entry array, which is either the keys or the values
+     */
+    private static final class SlotIterator<T> implements Iterator<T> {
+
+        private final Object[] entries;
+        private int offset;
+
+        SlotIterator(final Object[] entries, final int offset) {
+            this.entries = entries;
+            this.offset = offset;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return offset < entries.length;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T next() {
+            if (offset >= entries.length) {
+                throw new NoSuchElementException();
+            }
+            final T slot = (T)entries[offset];
+            offset += 2;
+            return slot;
+        }
+
+    }
+
+    private static final class EntryCursor<K, V> implements MapCursor<K, V> {
+
+        private final Object[] entries;
+        private int offset = -2;
+
+        EntryCursor(final Object[] entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public boolean advance() {
+            if (offset + 2 >= entries.length) {
+                offset = entries.length;
+                return false;
+            }
+            offset += 2;
+            return true;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public K key() {
+            return (K)entries[offset];
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V value() {
+            return (V)entries[offset + 1];
+        }
+
+    }
+
+}
@@ -0,0 +1,215 @@
+package com.gotcake.collections.immutable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import static com.gotcake.collections.immutable.Util.*;
+
+/**
+ * An immutable set of at most SmallImmutableMap.MAX_ENTRIES elements, stored in one flat array and scanned with
+ * equals, so elements are never hashed. Like SmallImmutableMap, it is promoted to a RegularImmutableTrieSet when it
+ * grows past the limit, and a trie set which shrinks to the limit is demoted back.
+ * @author Aaron Cake
+ */
+final class SmallImmutableSet<T> extends AbstractImmutableSet<T> implements Validatable {
+
+    /**
+     * The elements in the order they were inserted
+     */
+    final Object[] elements;
+
+    private SmallImmutableSet(final Object[] elements) {
+        this.elements = elements;
+    }
+
+    static <T> ImmutableSet<T> of(final T element) {
+        if (element == null) throw new NullPointerException();
+        return new SmallImmutableSet<>(new Object[] { element });
+    }
+
+    /**
+     * Creates a set with the given elements, dropping duplicates
+     * @param size the number of elements, which must fit in a small set
+     * @throws NullPointerException if an element is null
+     */
+    static <T> ImmutableSet<T> copyOf(final Iterable<? extends T> elements, final int size) {
+        final Object[] distinct = new Object[size];
+        int count = 0;
+        for (final T element: elements) {
+            if (element == null) throw new NullPointerException();
+            if (indexOf(distinct, count, element) < 0) {
+                distinct[count++] = element;
+            }
+        }
+        return new SmallImmutableSet<>(count == size ? distinct : Arrays.copyOf(distinct, count));
+    }
+
+    /**
+     * Collects the elements of a trie which fits in a small set
+     * @param root the root of the trie
+     * @param size the number of elements in the trie
+     */
+    static <T> ImmutableSet<T> copyOf(final SetNode<T> root, final int size) {
+        final Object[] elements = new Object[size];
+        final int[] count = new int[1];
+        root.forEach(element -> elements[count[0]++] = element);
+        return new SmallImmutableSet<>(elements);
+    }
+
+    private static int indexOf(final Object[] elements, final int length, final Object element) {
+        for (int i = 0; i < length; i++) {
+            if (elements[i].equals(element)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int size() {
+        return elements.length;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return false;
+    }
+
+    @Override
+    public boolean contains(final Object o) {
+        return o != null && indexOf(elements, elements.length, o) >= 0;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                return index < elements.length;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public T next() {
+                if (index >= elements.length) {
+                    throw new NoSuchElementException();
+                }
+                return (T)elements[index++];
+            }
+        };
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEach(final Consumer<? super T> action) {
+        for (final Object element: elements) {
+            action.accept((T)element);
+        }
+    }
+
+    /**
+     * Inserts an element, promoting this set to a trie if it no longer fits
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public ImmutableSet<T> insert(final T element) {
+        if (element == null) throw new NullPointerException();
+        if (indexOf(elements, elements.length, element) >= 0) {
+            return this;
+        }
+        final Object[] newElements = Arrays.copyOf(elements, elements.length + 1);
+        newElements[elements.length] = element;
+        if (!SmallImmutableMap.fits(newElements.length)) {
+            return RegularImmutableTrieSet.copyOf(Arrays.asList((T[])newElements));
+        }
+        return new SmallImmutableSet<>(newElements);
+    }
+
+    @Override
+    public ImmutableSet<T> delete(final T element) {
+        final int index = element == null ? -1 : indexOf(elements, elements.length, element);
+        if (index < 0) {
+            return this;
+        }
+        if (elements.length == 1) {
+            return EmptyImmutableSet.getInstance();
+        }
+        final Object[] newElements = new Object[elements.length - 1];
+        System.arraycopy(elements, 0, newElements, 0, index);
+        System.arraycopy(elements, index + 1, newElements, index, newElements.length - index);
+        return new SmallImmutableSet<>(newElements);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public ImmutableSet<T> filter(final Predicate<T> predicate) {
+        if (predicate == null) throw new NullPointerException();
+        final Object[] kept = new Object[elements.length];
+        int count = 0;
+        for (final Object element: elements) {
+            if (predicate.test((T)element)) {
+                kept[count++] = element;
+            }
+        }
+        if (count == elements.length) {
+            return this;
+        }
+        if (count == 0) {
+            return EmptyImmutableSet.getInstance();
+        }
+        return new SmallImmutableSet<>(Arrays.copyOf(kept, count));
+    }
+
+    /**
+     * Inserts all the elements, building a trie in a single batch if they won't fit
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public ImmutableSet<T> insertAll(final Collection<? extends T> elements) {
+        if (SmallImmutableMap.fits(this.elements.length + elements.size())) {
+            return super.insertAll(elements);
+        }
+        final List<T> all = new ArrayList<>(this.elements.length + elements.size());
+        all.addAll(Arrays.asList((T[])this.elements));
+        all.addAll(elements);
+        final ImmutableSet<T> newSet = RegularImmutableTrieSet.copyOf(all);
+        // every element of this set is in the new one, so the same size means nothing was inserted
+        return newSet.size() == this.elements.length ? this : newSet;
+    }
+
+    /**
+     * Deletes all the elements. A set is checked against this set's elements, so a large set is not walked.
+     */
+    @Override
+    public ImmutableSet<T> deleteAll(final Collection<? extends T> elements) {
+        if (elements instanceof Set) {
+            return filter(element -> !elements.contains(element));
+        }
+        return super.deleteAll(elements);
+    }
+
+    @Override
+    public ImmutableSet<T> subtract(final ImmutableSet<? extends T> other) {
+        return filter(element -> !other.contains(element));
+    }
+
+    @Override
+    public void assertValid() {
+        assertThat("a small set must hold between 1 and MAX_ENTRIES elements",
+                elements.length >= 1 && elements.length <= SmallImmutableMap.MAX_ENTRIES);
+        for (int i = 0; i < elements.length; i++) {
+            assertNotNull("element must not be null", elements[i]);
+            assertEqual("elements must be distinct", i, indexOf(elements, elements.length, elements[i]));
+        }
+    }
+
+}
@@ -0,0 +1,409 @@
+package com.gotcake.collections.immutable;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static com.gotcake.collections.immutable.Util.*;
+
+/**
+ * An immutable map which hashes and compares its keys with a {@link HashStrategy}.
+ * The keys are kept in a trie of regular nodes, indexed by the strategy's hash, and the nodes compare them with the
+ * strategy's equivalence, so nothing is allocated to look a key up. Handles passed to get, set and delete are looked
+ * up by their hash if they have this map's strategy, and every other key is hashed by the strategy.
+ * Merges, intersections, subtractions, diffs and updateAll go entry by entry, since the structural walks of the nodes
+ * compare keys with equals.
+ * @author Aaron Cake
+ */
+final class StrategyImmutableMap<K, V> implements ImmutableMap<K, V>, Validatable {
+
+    final HashStrategy<K> strategy;
+    /**
+     * The equivalence the nodes compare keys with, which is null for the built in strategies which compare with equals
+     */
+    final HashStrategy<? super K> equivalence;
+    /**
+     * The root of the trie, or null if the map is empty
+     */
+    final Node<K, V> root;
+    final int size;
+
+    /**
+     * The sum of key.hashCode() ^ value.hashCode() for every entry as Map specifies, or 0 if it hasn't been computed
+     * yet or is 0, which hashIsZero tells apart. Identity maps use System.identityHashCode(key) like IdentityHashMap,
+     * since the keys' own hashCode may not agree with their identity.
+     * Like String.hashCode(), racing threads can only compute the same value.
+     */
+    private int hash;
+    private boolean hashIsZero;
+
+    StrategyImmutableMap(final HashStrategy<K> strategy, final int size, final Node<K, V> root) {
+        this.strategy = strategy;
+        this.equivalence = equivalenceOf(strategy);
+        this.size = size;
+        this.root = root;
+    }
+
+    StrategyImmutableMap(final HashStrategy<K> strategy, final int size, final Node<K, V> root, final int hash) {
+        this(strategy, size, root);
+        this.hash = hash;
+        this.hashIsZero = hash == 0;
+    }
+
+    /**
+     * Gets an empty map with the given strategy
+     */
+    static <K, V> StrategyImmutableMap<K, V> empty(final HashStrategy<K> strategy) {
+        return new StrategyImmutableMap<>(strategy, 0, null, 0);
+    }
+
+    /**
+     * Gets the equivalence nodes should compare keys of the strategy with, or null if they can use equals
+     */
+    static <K> HashStrategy<? super K> equivalenceOf(final HashStrategy<K> strategy) {
+        return strategy instanceof HashStrategies && strategy != HashStrategies.IDENTITY ? null : strategy;
+    }
+
+    /**
+     * Gets the hash of a handle under this map's strategy, which is the handle's own if it has this map's strategy
+     */
+    int hashOf(final HashedKey<? extends K> key) {
+        return key.isHashedBy(strategy) ? key.hash : strategy.hash(key.key);
+    }
+
+    /**
+     * Creates the result of an operation which recorded its changes in sink, reusing this map if the root did not change
+     */
+    private ImmutableMap<K, V> mapWithUpdatedRoot(final Node<K, V> newRoot, final SizeChangeSink sink) {
+        if (newRoot == root) {
+            return this;
+        }
+        if (newRoot == null) {
+            return empty(strategy);
+        }
+        final int h = hash;
+        return isHashKnown(h)
+                ? new StrategyImmutableMap<>(strategy, size + sink.sizeChange, newRoot, h + sink.hashChange)
+                : new StrategyImmutableMap<>(strategy, size + sink.sizeChange, newRoot);
+    }
+
+    private ImmutableMap<K, V> mapWithSingleEntry(final K key, final int hash, final V value) {
+        return new StrategyImmutableMap<>(strategy, 1, NodeFactory.createNodeWithSingleEntry(hash, key, value),
+                entryHash(key, value, equivalence));
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public boolean containsValue(final Object value) {
+        return root != null && root.containsValue(value);
+    }
+
+    @Override
+    public boolean containsEntry(final K key, final V value) {
+        return value != null && value.equals(get(key));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(final Object key) {
+        if (key == null || root == null) {
+            return null;
+        }
+        return root.get((K)key, strategy.hash((K)key), equivalence);
+    }
+
+    @Override
+    public V get(final HashedKey<? extends K> key) {
+        if (root == null) {
+            return null;
+        }
+        return root.get(key.key, hashOf(key), equivalence);
+    }
+
+    @Override
+    public V getOrDefault(final Object key, final V defaultValue) {
+        final V value = get(key);
+        return value == null ? defaultValue : value;
+    }
+
+    @Override
+    public ImmutableMap<K, V> set(final K key, final V value) {
+        if (key == null || value == null) throw new NullPointerException();
+        return setWithHash(key, strategy.hash(key), value);
+    }
+
+    @Override
+    public ImmutableMap<K, V> set(final HashedKey<? extends K> key, final V value) {
+        if (value == null) throw new NullPointerException();
+        return setWithHash(key.key, hashOf(key), value);
+    }
+
+    private ImmutableMap<K, V> setWithHash(final K key, final int hash, final V value) {
+        if (root == null) {
+            return mapWithSingleEntry(key, hash, value);
+        }
+        final SizeChangeSink sink = new SizeChangeSink();
+        return mapWithUpdatedRoot(root.set(null, key, value, hash, 0, sink, equivalence), sink);
+    }
+
+    @Override
+    public ImmutableMap<K, V> setIfAbsent(final K key, final V value) {
+        if (key == null || value == null) throw new NullPointerException();
+        final int keyHash = strategy.hash(key);
+        if (root == null) {
+            return mapWithSingleEntry(key, keyHash, value);
+        }
+        final Node<K, V> newRoot = root.setIfNotExists(key, value, keyHash, 0, equivalence);
+        if (newRoot == root) {
+            return this;
+        }
+        final int h = hash;
+        return isHashKnown(h)
+                ? new StrategyImmutableMap<>(strategy, size + 1, newRoot, h + entryHash(key, value, equivalence))
+                : new StrategyImmutableMap<>(strategy, size + 1, newRoot);
+    }
+
+    @Override
+    public ImmutableMap<K, V> setIfPresent(final K key, final V value) {
+        if (key == null || value == null) throw new NullPointerException();
+        if (root == null) {
+            return this;
+        }
+        final SizeChangeSink sink = new SizeChangeSink();
+        return mapWithUpdatedRoot(root.setIfExists(key, value, strategy.hash(key), 0, sink, equivalence), sink);
+    }
+
+    @Override
+    public ImmutableMap<K, V> delete(final K key) {
+        if (key == null) {
+            return this;
+        }
+        return deleteWithHash(key, strategy.hash(key));
+    }
+
+    @Override
+    public ImmutableMap<K, V> delete(final HashedKey<? extends K> key) {
+        return deleteWithHash(key.key, hashOf(key));
+    }
+
+    private ImmutableMap<K, V> deleteWithHash(final K key, final int hash) {
+        if (root == null) {
+            return this;
+        }
+        final SizeChangeSink sink = new SizeChangeSink();
+        return mapWithUpdatedRoot(root.delete(null, key, hash, 0, sink, equivalence), sink);
+    }
+
+    @Override
+    public ImmutableMap<K, V> update(final K key, final BiFunction<? super K, ? super V, ? extends V> mapperFn) {
+        if (key == null || mapperFn == null) throw new NullPointerException();
+        final int keyHash = strategy.hash(key);
+        if (root == null) {
+            final V value = mapperFn.apply(key, null);
+            return value == null ? this : mapWithSingleEntry(key, keyHash, value);
+        }
+        final SizeChangeSink sink = new SizeChangeSink();
+        return mapWithUpdatedRoot(root.update(null, key, keyHash, 0, mapperFn, sink, equivalence), sink);
+    }
+
+    /**
+     * Computes a new map with the same trie as this map, with only the values replaced.
+     */
+    @Override
+    public <R> ImmutableMap<K, R> mapValues(final Function<? super V, ? extends R> mapperFn) {
+        if (mapperFn == null) throw new NullPointerException();
+        if (root == null) {
+            return empty(strategy);
+        }
+        return new StrategyImmutableMap<>(strategy, size, root.mapValues(mapperFn));
+    }
+
+    @Override
+    public void forEach(final BiConsumer<? super K, ? super V> action) {
+        if (root != null) {
+            root.forEachEntry(action);
+        }
+    }
+
+    @Override
+    public void parallelForEach(final BiConsumer<? super K, ? super V> action) {
+        if (action == null) throw new NullPointerException();
+        if (root != null) {
+            ParallelNodeTasks.forEach(root, size, action);
+        }
+    }
+
+    @Override
+    public void forEachKey(final Consumer<? super K> action) {
+        forEach((key, value) -> action.accept(key));
+    }
+
+    @Override
+    public void forEachValue(final Consumer<? super V> action) {
+        forEach((key, value) -> action.accept(value));
+    }
+
+    @Override
+    public Iterator<K> keyIterator() {
+        return root == null ? EmptyImmutableMap.<K, V>getInstance().keyIterator() : new NodeEntryIterator.KeyIterator<>(root);
+    }
+
+    @Override
+    public Iterator<V> valueIterator() {
+        return root == null ? EmptyImmutableMap.<K, V>getInstance().valueIterator() : new NodeEntryIterator.ValueIterator<>(root);
+    }
+
+    /**
+     * Returns an iterator over all of the entries in this map.
+     * WARNING: This will create a new Map.Entry object for each entry iterated over, use cursor to avoid this.
+     * @return an iterator over entries
+     */
+    @Override
+    public Iterator<Map.Entry<K, V>> entryIterator() {
+        return root == null ? EmptyImmutableMap.<K, V>getInstance().entryIterator() : new NodeEntryIterator.EntryIterator<>(root);
+    }
+
+    @Override
+    public MapCursor<K, V> cursor() {
+        return root == null ? EmptyImmutableMap.<K, V>getInstance().cursor() : new NodeEntryIterator.Cursor<>(root);
+    }
+
+    @Override
+    public Spliterator<K> keySpliterator() {
+        if (root == null) {
+            return ImmutableMap.super.keySpliterator();
+        }
+        return new NodeSpliterator<>(root, size, (key, value) -> key,
+                Spliterator.IMMUTABLE | Spliterator.DISTINCT | Spliterator.NONNULL);
+    }
+
+    @Override
+    public Spliterator<V> valueSpliterator() {
+        if (root == null) {
+            return ImmutableMap.super.valueSpliterator();
+        }
+        return new NodeSpliterator<>(root, size, (key, value) -> value,
+                Spliterator.IMMUTABLE | Spliterator.NONNULL);
+    }
+
+    @Override
+    public Spliterator<Map.Entry<K, V>> entrySpliterator() {
+        if (root == null) {
+            return ImmutableMap.super.entrySpliterator();
+        }
+        return new NodeSpliterator<>(root, size, Entry::new,
+                Spliterator.IMMUTABLE | Spliterator.DISTINCT | Spliterator.NONNULL);
+    }
+
+    @Override
+    public TransientMap<K, V> toTransient() {
+        final int h = hash;
+        return new TransientStrategyMap<>(this, h, isHashKnown(h));
+    }
+
+    /**
+     * Returns this map, since a frozen table hashes its keys with hashCode, which would lose the strategy
+     */
+    @Override
+    public ImmutableMap<K, V> freeze() {
+        return this;
+    }
+
+    /**
+     * Returns this map, since a lookup filter hashes its keys with hashCode, which would lose the strategy
+     */
+    @Override
+    public ImmutableMap<K, V> withLookupFilter() {
+        return this;
+    }
+
+    /**
+     * Compares this map to another as Map specifies, looking up the other map's keys with this map's strategy
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean equals(final Object other) {
+        if (this == other) return true;
+        if (!(other instanceof Map)) return false;
+        final Map<?, ?> map = (Map<?, ?>)other;
+        if (size != map.size()) return false;
+        for (final Map.Entry<?, ?> entry: map.entrySet()) {
+            if (!containsEntry((K)entry.getKey(), (V)entry.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0 && !hashIsZero) {
+            h = computeHash();
+            if (h == 0) {
+                hashIsZero = true;
+            } else {
+                hash = h;
+            }
+        }
+        return h;
+    }
+
+    private int computeHash() {
+        int h = 0;
+        final MapCursor<K, V> cursor = cursor();
+        while (cursor.advance()) {
+            h += entryHash(cursor.key(), cursor.value(), equivalence);
+        }
+        return h;
+    }
+
+    /**
+     * Checks if the sum of the entry hashes is known without a traversal
+     * @param h the value of hash, which must be read before calling this
+     */
+    private boolean isHashKnown(final int h) {
+        return h != 0 || hashIsZero;
+    }
+
+    /**
+     * Checks the map without the nodes' own checks, which hash the keys with hashCode rather than the strategy
+     */
+    @Override
+    public void assertValid() {
+        assertSame("equivalence must match the strategy", equivalenceOf(strategy), equivalence);
+        if (root == null) {
+            assertEqual("an empty map must have no entries", 0, size);
+            return;
+        }
+        final int[] computedSize = new int[1];
+        root.forEachEntry((key, value) -> {
+            computedSize[0]++;
+            assertSame("every key must be found by the strategy's hash", value, root.get(key, strategy.hash(key), equivalence));
+        });
+        assertEqual("Size must equal computed size", size, computedSize[0]);
+        final int h = hash;
+        if (isHashKnown(h)) {
+            assertEqualBinary("stored hash must match the entries", computeHash(), h);
+        }
+    }
+
+}
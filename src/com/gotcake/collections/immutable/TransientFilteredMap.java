@@ -0,0 +1,81 @@
+package com.gotcake.collections.immutable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+/**
+ * A TransientMap over the map of a FilteredImmutableMap, which applies the batch to a transient of the map and
+ * remembers the keys it adds, so the filter can be carried over to the result like a single write would
+ * @author Aaron Cake
+ */
+final class TransientFilteredMap<K, V> implements TransientMap<K, V> {
+
+    private final FilteredImmutableMap<K, V> source;
+    private final TransientMap<K, V> map;
+    private final List<K> added = new ArrayList<>();
+
+    TransientFilteredMap(final FilteredImmutableMap<K, V> source) {
+        this.source = source;
+        this.map = source.map.toTransient();
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    @Override
+    public V get(final Object key) {
+        return map.get(key);
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return map.containsKey(key);
+    }
+
+    @Override
+    public TransientMap<K, V> set(final K key, final V value) {
+        final int size = map.size();
+        map.set(key, value);
+        if (map.size() > size) {
+            added.add(key);
+        }
+        return this;
+    }
+
+    @Override
+    public TransientMap<K, V> setAll(final Map<? extends K, ? extends V> sourceMap) {
+        sourceMap.forEach(this::set);
+        return this;
+    }
+
+    @Override
+    public TransientMap<K, V> delete(final K key) {
+        map.delete(key);
+        return this;
+    }
+
+    @Override
+    public TransientMap<K, V> update(final K key, final BiFunction<? super K, ? super V, ? extends V> mapperFn) {
+        final int size = map.size();
+        map.update(key, mapperFn);
+        if (map.size() > size) {
+            added.add(key);
+        }
+        return this;
+    }
+
+    @Override
+    public ImmutableMap<K, V> persistent() {
+        return source.derive(map.persistent(), added);
+    }
+
+}
@@ -0,0 +1,80 @@
+package com.gotcake.collections.immutable;
+
+import java.util.Map;
+import java.util.function.BiFunction;
+
+/**
+ * A mutable view of an ImmutableMap used to apply a batch of changes without copying every node along the path
+ * of every change. Nodes are copied the first time the batch touches them and edited in place after that.
+ * Calling {@link #persistent()} ends the batch and returns the resulting ImmutableMap; the map this transient was
+ * created from is never modified.
+ * A TransientMap is not thread-safe and must not be used after {@link #persistent()} has been called.
+ * @author Aaron Cake
+ */
+public interface TransientMap<K, V> {
+
+    int size();
+
+    boolean isEmpty();
+
+    /**
+     * Gets the value with the given key, or null if no entry exists
+     * @param key the key
+     * @return the value, or null if no entry exists
+     */
+    V get(Object key);
+
+    /**
+     * Checks if this map contains the given key
+     * @param key the key to check for
+     * @return true if this map contains the key, false otherwise
+     */
+    boolean containsKey(Object key);
+
+    /**
+     * Sets the value for the given key
+     * @param key the key
+     * @param value the value to set
+     * @return this transient
+     * @throws NullPointerException if key and/or value are null
+     * @throws IllegalStateException if the transient has already been made persistent
+     */
+    TransientMap<K, V> set(K key, V value);
+
+    /**
+     * Sets all the key value pairs in the given map
+     * @param sourceMap the map containing all the entries to set
+     * @return this transient
+     * @throws NullPointerException if a key or value in the map is null
+     * @throws IllegalStateException if the transient has already been made persistent
+     */
+    TransientMap<K, V> setAll(Map<? extends K, ? extends V> sourceMap);
+
+    /**
+     * Deletes the entry with the given key, if it exists
+     * @param key the key
+     * @return this transient
+     * @throws IllegalStateException if the transient has already been made persistent
+     */
+    TransientMap<K, V> delete(K key);
+
+    /**
+     * Computes a new value for the entry with the given key. The mapper is called with null if no entry exists,
+     * and the entry is deleted if the mapper returns null.
+     * @param key the key
+     * @param mapperFn a function which maps the value
+     * @return this transient
+     * @throws NullPointerException if key and/or mapperFn is null
+     * @throws IllegalStateException if the transient has already been made persistent
+     */
+    TransientMap<K, V> update(K key, BiFunction<? super K, ? super V, ? extends V> mapperFn);
+
+    /**
+     * Ends the batch and returns the resulting map. If no changes were made, the map this transient was created
+     * from is returned.
+     * @return the resulting ImmutableMap
+     * @throws IllegalStateException if the transient has already been made persistent
+     */
+    ImmutableMap<K, V> persistent();
+
+}
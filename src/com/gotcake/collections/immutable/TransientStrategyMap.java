@@ -0,0 +1,157 @@
+package com.gotcake.collections.immutable;
+
+import java.util.Map;
+import java.util.function.BiFunction;
+
+import static com.gotcake.collections.immutable.Util.*;
+
+/**
+ * A TransientMap over the trie of a StrategyImmutableMap, which hashes every key with the map's strategy and compares
+ * keys with its equivalence. Like TransientTrieMap, the nodes created while the batch is open are owned by its
+ * {@link EditOwner}, so they are edited in place.
+ * @author Aaron Cake
+ */
+final class TransientStrategyMap<K, V> implements TransientMap<K, V> {
+
+    private final StrategyImmutableMap<K, V> source;
+    private final HashStrategy<K> strategy;
+    private final HashStrategy<? super K> equivalence;
+    private final SizeChangeSink sink = new SizeChangeSink();
+    private EditOwner owner = new EditOwner();
+    private Node<K, V> root;
+    private int size;
+
+    /**
+     * The sum of the entry hashes, only tracked if it was known for the source
+     */
+    private int hash;
+    private final boolean hashKnown;
+
+    /**
+     * @param hash the source's hash, only used if hashKnown
+     */
+    TransientStrategyMap(final StrategyImmutableMap<K, V> source, final int hash, final boolean hashKnown) {
+        this.source = source;
+        this.strategy = source.strategy;
+        this.equivalence = source.equivalence;
+        this.root = source.root;
+        this.size = source.size;
+        this.hash = hash;
+        this.hashKnown = hashKnown;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(final Object key) {
+        if (key == null || root == null) {
+            return null;
+        }
+        return root.get((K)key, strategy.hash((K)key), equivalence);
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public TransientMap<K, V> set(final K key, final V value) {
+        if (key == null || value == null) throw new NullPointerException();
+        ensureEditable();
+        final int keyHash = strategy.hash(key);
+        if (root == null) {
+            setSingleEntry(key, keyHash, value);
+            return this;
+        }
+        resetSink();
+        root = root.set(owner, key, value, keyHash, 0, sink, equivalence);
+        applySink();
+        return this;
+    }
+
+    @Override
+    public TransientMap<K, V> setAll(final Map<? extends K, ? extends V> sourceMap) {
+        ensureEditable();
+        sourceMap.forEach(this::set);
+        return this;
+    }
+
+    @Override
+    public TransientMap<K, V> delete(final K key) {
+        ensureEditable();
+        if (key == null || root == null) {
+            return this;
+        }
+        resetSink();
+        root = root.delete(owner, key, strategy.hash(key), 0, sink, equivalence);
+        applySink();
+        return this;
+    }
+
+    @Override
+    public TransientMap<K, V> update(final K key, final BiFunction<? super K, ? super V, ? extends V> mapperFn) {
+        if (key == null || mapperFn == null) throw new NullPointerException();
+        ensureEditable();
+        final int keyHash = strategy.hash(key);
+        if (root == null) {
+            final V value = mapperFn.apply(key, null);
+            if (value != null) {
+                setSingleEntry(key, keyHash, value);
+            }
+            return this;
+        }
+        resetSink();
+        root = root.update(owner, key, keyHash, 0, mapperFn, sink, equivalence);
+        applySink();
+        return this;
+    }
+
+    @Override
+    public ImmutableMap<K, V> persistent() {
+        ensureEditable();
+        owner = null;
+        if (root == source.root) {
+            // nodes we own are always copies, so an unchanged root means nothing changed
+            return source;
+        }
+        if (root == null) {
+            return StrategyImmutableMap.empty(strategy);
+        }
+        return hashKnown
+                ? new StrategyImmutableMap<>(strategy, size, root, hash)
+                : new StrategyImmutableMap<>(strategy, size, root);
+    }
+
+    private void setSingleEntry(final K key, final int keyHash, final V value) {
+        root = NodeFactory.createNodeWithSingleEntry(owner, keyHash, key, value);
+        size = 1;
+        hash = entryHash(key, value, equivalence);
+    }
+
+    private void resetSink() {
+        sink.sizeChange = 0;
+        sink.hashChange = 0;
+    }
+
+    private void applySink() {
+        size += sink.sizeChange;
+        hash += sink.hashChange;
+    }
+
+    private void ensureEditable() {
+        if (owner == null) {
+            throw new IllegalStateException("TransientMap has already been made persistent");
+        }
+    }
+
+}
@@ -0,0 +1,158 @@
+package com.gotcake.collections.immutable;
+
+import java.util.Map;
+import java.util.function.BiFunction;
+
+import static com.gotcake.collections.immutable.Util.*;
+
+/**
+ * A TransientMap over a trie of Nodes. Every node created while the batch is open is owned by this transient's
+ * {@link EditOwner}, so the first change to a shared node copies it and later changes edit the copy in place.
+ * @author Aaron Cake
+ */
+final class TransientTrieMap<K, V> implements TransientMap<K, V> {
+
+    private final ImmutableMap<K, V> source;
+    private final Node<K, V> sourceRoot;
+    private final SizeChangeSink sink = new SizeChangeSink();
+    private EditOwner owner = new EditOwner();
+    Node<K, V> root;
+    int size;
+
+    /**
+     * The sum of the entry hashes, only tracked if it was known for the source
+     */
+    private int hash;
+    private final boolean hashKnown;
+
+    /**
+     * @param hash the source's hash, only used if hashKnown
+     */
+    TransientTrieMap(final ImmutableMap<K, V> source, final Node<K, V> sourceRoot, final int size, final int hash,
+                     final boolean hashKnown) {
+        this.source = source;
+        this.sourceRoot = sourceRoot;
+        this.root = sourceRoot;
+        this.size = size;
+        this.hash = hash;
+        this.hashKnown = hashKnown;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(final Object key) {
+        if (key == null || root == null) {
+            return null;
+        }
+        return root.get((K)key, computeSmearHash(key));
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public TransientMap<K, V> set(final K key, final V value) {
+        if (key == null || value == null) { throw new NullPointerException(); }
+        ensureEditable();
+        final int smearHash = computeSmearHash(key);
+        if (root == null) {
+            root = NodeFactory.createNodeWithSingleEntry(owner, smearHash, key, value);
+            size = 1;
+            hash = entryHash(key, value);
+            return this;
+        }
+        resetSink();
+        root = root.set(owner, key, value, smearHash, 0, sink);
+        applySink();
+        return this;
+    }
+
+    @Override
+    public TransientMap<K, V> setAll(final Map<? extends K, ? extends V> sourceMap) {
+        ensureEditable();
+        sourceMap.forEach(this::set);
+        return this;
+    }
+
+    @Override
+    public TransientMap<K, V> delete(final K key) {
+        ensureEditable();
+        if (key == null || root == null) {
+            return this;
+        }
+        resetSink();
+        root = root.delete(owner, key, computeSmearHash(key), 0, sink);
+        applySink();
+        return this;
+    }
+
+    @Override
+    public TransientMap<K, V> update(final K key, final BiFunction<? super K, ? super V, ? extends V> mapperFn) {
+        if (key == null || mapperFn == null) throw new NullPointerException();
+        ensureEditable();
+        final int smearHash = computeSmearHash(key);
+        if (root == null) {
+            final V value = mapperFn.apply(key, null);
+            if (value != null) {
+                root = NodeFactory.createNodeWithSingleEntry(owner, smearHash, key, value);
+                size = 1;
+                hash = entryHash(key, value);
+            }
+            return this;
+        }
+        resetSink();
+        root = root.update(owner, key, smearHash, 0, mapperFn, sink);
+        applySink();
+        return this;
+    }
+
+    @Override
+    public ImmutableMap<K, V> persistent() {
+        seal();
+        if (root == sourceRoot) {
+            // nodes we own are always copies, so an unchanged root means nothing changed
+            return source;
+        }
+        if (root == null) {
+            return EmptyImmutableMap.getInstance();
+        }
+        return RegularImmutableTrieMap.withRoot(size, root, hash, hashKnown);
+    }
+
+    private void resetSink() {
+        sink.sizeChange = 0;
+        sink.hashChange = 0;
+    }
+
+    private void applySink() {
+        size += sink.sizeChange;
+        hash += sink.hashChange;
+    }
+
+    /**
+     * Ends the batch without creating a map, so the current root can be shared
+     */
+    void seal() {
+        ensureEditable();
+        owner = null;
+    }
+
+    private void ensureEditable() {
+        if (owner == null) {
+            throw new IllegalStateException("TransientMap has already been made persistent");
+        }
+    }
+
+}
@@ -0,0 +1,137 @@
+package com.gotcake.collections.immutable;
+
+import java.util.Map;
+import java.util.function.BiFunction;
+
+import static com.gotcake.collections.immutable.Util.*;
+
+/**
+ * A TransientMap over the WideNodes of a WideImmutableTrieMap, which edits nodes owned by its {@link EditOwner}
+ * in place like TransientTrieMap. The root is never null, an emptied batch falls back to an empty WideNode.
+ * @author Aaron Cake
+ */
+final class TransientWideTrieMap<K, V> implements TransientMap<K, V> {
+
+    private final ImmutableMap<K, V> source;
+    private final Node<K, V> sourceRoot;
+    private final SizeChangeSink sink = new SizeChangeSink();
+    private EditOwner owner = new EditOwner();
+    Node<K, V> root;
+    int size;
+
+    /**
+     * The sum of the entry hashes, only tracked if it was known for the source
+     */
+    private int hash;
+    private final boolean hashKnown;
+
+    /**
+     * @param hash the source's hash, or 0 if it is unknown
+     */
+    TransientWideTrieMap(final ImmutableMap<K, V> source, final Node<K, V> sourceRoot, final int size, final int hash) {
+        this.source = source;
+        this.sourceRoot = sourceRoot;
+        this.root = sourceRoot;
+        this.size = size;
+        this.hash = hash;
+        this.hashKnown = size == 0 || hash != 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(final Object key) {
+        if (key == null) {
+            return null;
+        }
+        return root.get((K)key, computeSmearHash(key));
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public TransientMap<K, V> set(final K key, final V value) {
+        if (key == null || value == null) { throw new NullPointerException(); }
+        ensureEditable();
+        resetSink();
+        root = root.set(owner, key, value, computeSmearHash(key), 0, sink);
+        applySink();
+        return this;
+    }
+
+    @Override
+    public TransientMap<K, V> setAll(final Map<? extends K, ? extends V> sourceMap) {
+        ensureEditable();
+        sourceMap.forEach(this::set);
+        return this;
+    }
+
+    @Override
+    public TransientMap<K, V> delete(final K key) {
+        ensureEditable();
+        if (key == null) {
+            return this;
+        }
+        resetSink();
+        root = rootOrEmpty(root.delete(owner, key, computeSmearHash(key), 0, sink));
+        applySink();
+        return this;
+    }
+
+    @Override
+    public TransientMap<K, V> update(final K key, final BiFunction<? super K, ? super V, ? extends V> mapperFn) {
+        if (key == null || mapperFn == null) throw new NullPointerException();
+        ensureEditable();
+        resetSink();
+        root = rootOrEmpty(root.update(owner, key, computeSmearHash(key), 0, mapperFn, sink));
+        applySink();
+        return this;
+    }
+
+    @Override
+    public ImmutableMap<K, V> persistent() {
+        ensureEditable();
+        owner = null;
+        if (root == sourceRoot) {
+            // nodes we own are always copies, so an unchanged root means nothing changed
+            return source;
+        }
+        if (size == 0) {
+            return WideImmutableTrieMap.empty();
+        }
+        return new WideImmutableTrieMap<>(size, root, hashKnown ? hash : 0);
+    }
+
+    private static <K, V> Node<K, V> rootOrEmpty(final Node<K, V> newRoot) {
+        return newRoot == null ? WideNode.empty() : newRoot;
+    }
+
+    private void resetSink() {
+        sink.sizeChange = 0;
+        sink.hashChange = 0;
+    }
+
+    private void applySink() {
+        size += sink.sizeChange;
+        hash += sink.hashChange;
+    }
+
+    private void ensureEditable() {
+        if (owner == null) {
+            throw new IllegalStateException("TransientMap has already been made persistent");
+        }
+    }
+
+}
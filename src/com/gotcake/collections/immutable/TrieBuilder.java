@@ -0,0 +1,334 @@
+package com.gotcake.collections.immutable;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiFunction;
+
+import static com.gotcake.collections.immutable.Util.*;
+
+/**
+ * Builds a trie bottom-up from a known set of entries.
+ * All the smear hashes are computed and sorted once, so entries sharing a hash prefix end up next to each other
+ * and every node can be emitted exactly once at its final size, instead of being copied once per level per key.
+ * The resulting trie is identical to the one built by setting the entries one at a time.
+ * @author Aaron Cake
+ */
+final class TrieBuilder {
+
+    /**
+     * The longest run of entries with the same hash which is deduplicated by comparing every pair of keys
+     */
+    private static final int MAX_SCANNED_RUN = 8;
+
+    private final Object[] keys;
+    private final Object[] values;
+    private final Object valueForAll;
+    private final NodeFactory.Layout layout;
+
+    /**
+     * For each entry: the smear hash (with its sign bit flipped so signed order matches unsigned order)
+     * in the upper 32 bits, and the entry's index in the lower 32 bits
+     */
+    private long[] sorted;
+
+    private TrieBuilder(final Object[] keys, final Object[] values, final Object valueForAll,
+                        final NodeFactory.Layout layout) {
+        this.keys = keys;
+        this.values = values;
+        this.valueForAll = valueForAll;
+        this.layout = layout;
+    }
+
+    /**
+     * Builds a root node from all the entries in the given map
+     * @param sourceMap the map, which must not be empty
+     * @param size receives the number of entries in the trie
+     * @return the new root node
+     */
+    static <K, V> Node<K, V> buildRoot(final Map<? extends K, ? extends V> sourceMap, final SizeChangeSink size) {
+        final int length = sourceMap.size();
+        final Object[] keys = new Object[length];
+        final Object[] values = new Object[length];
+        int i = 0;
+        if (sourceMap instanceof ImmutableMap) {
+            // avoid creating an entry per element
+            final MapCursor<? extends K, ? extends V> cursor = ((ImmutableMap<? extends K, ? extends V>)sourceMap).cursor();
+            while (cursor.advance()) {
+                keys[i] = cursor.key();
+                values[i] = cursor.value();
+                i++;
+            }
+        } else {
+            for (final Map.Entry<? extends K, ? extends V> entry: sourceMap.entrySet()) {
+                keys[i] = entry.getKey();
+                values[i] = entry.getValue();
+                i++;
+            }
+        }
+        return buildRoot(keys, values, null, i, size);
+    }
+
+    /**
+     * Builds a root node in the current layout from the given keys and values. If a key appears more than once,
+     * the last value wins.
+     * @param keys the keys
+     * @param values the values, or null to use valueForAll for every key
+     * @param valueForAll the value for every key if values is null
+     * @param length the number of entries to read, which must be greater than 0
+     * @param size receives the number of distinct entries in the trie
+     * @return the new root node
+     * @throws NullPointerException if a key or value is null
+     */
+    @SuppressWarnings("unchecked")
+    static <K, V> Node<K, V> buildRoot(final Object[] keys, final Object[] values, final V valueForAll,
+                                       final int length, final SizeChangeSink size) {
+        if (length <= 0) {
+            throw new IllegalArgumentException("there must be at least one entry");
+        }
+        final TrieBuilder builder = new TrieBuilder(keys, values, valueForAll, NodeFactory.layout);
+        final int count = builder.sortAndDeduplicate(length);
+        size.sizeChange = count;
+        return (Node<K, V>)builder.buildNode(0, count, 0);
+    }
+
+    /**
+     * Builds a subtree from the given keys and values, which must all share the same hash prefix up to depth.
+     * Follows the same conventions as the node operations: null is returned if there are no entries, and a
+     * SingleEntryNode is returned below the root if there is only one entry.
+     * @param keys the keys, which must be distinct
+     * @param values the values
+     * @param length the number of entries to read
+     * @param depth the depth the subtree will be placed at
+     * @param layout the layout of the trie the subtree will be placed in
+     * @return the new subtree
+     */
+    @SuppressWarnings("unchecked")
+    static <K, V> Node<K, V> buildSubtree(final Object[] keys, final Object[] values, final int length, final int depth,
+                                          final NodeFactory.Layout layout) {
+        if (length == 0) {
+            return null;
+        }
+        if (length == 1 && depth > 0) {
+            return new SingleEntryNode<>((K)keys[0], (V)values[0], depth < 7 ? computeHashPrefix(keys[0], depth) : 0);
+        }
+        final TrieBuilder builder = new TrieBuilder(keys, values, null, layout);
+        final int count = builder.sortAndDeduplicate(length);
+        return (Node<K, V>)builder.buildNode(0, count, depth);
+    }
+
+    /**
+     * Merges two subtrees of different node types by collecting their entries and building a new subtree.
+     * This is the fallback for Node.merge when a structural walk isn't possible.
+     * The size change is relative to the first subtree.
+     */
+    static <K, V> Node<K, V> mergeByRebuilding(final Node<K, V> node, final Node<K, V> other, final int depth,
+                                               final BiFunction<? super V, ? super V, ? extends V> resolver,
+                                               final SizeChangeSink size) {
+        final Map<K, V> entries = new HashMap<>();
+        node.forEachEntry(entries::put);
+        other.forEachEntry((key, otherValue) -> {
+            final V value = entries.get(key);
+            if (value == null) {
+                size.sizeChange++;
+                entries.put(key, otherValue);
+            } else if (!value.equals(otherValue)) {
+                final V newValue = resolver.apply(value, otherValue);
+                if (newValue == null) {
+                    size.sizeChange--;
+                    entries.remove(key);
+                } else {
+                    entries.put(key, newValue);
+                }
+            }
+        });
+        final Object[] keys = new Object[entries.size()];
+        final Object[] values = new Object[entries.size()];
+        int i = 0;
+        for (final Map.Entry<K, V> entry: entries.entrySet()) {
+            keys[i] = entry.getKey();
+            values[i++] = entry.getValue();
+        }
+        return buildSubtree(keys, values, i, depth, NodeFactory.Layout.of(node));
+    }
+
+    /**
+     * Keeps the entries of a subtree whose keys are in the other subtree, by collecting them and building a new subtree.
+     * This is the fallback for Node.intersect when a structural walk isn't possible.
+     * The number of entries kept is added to the size.
+     */
+    static <K, V> Node<K, V> intersectByRebuilding(final Node<K, V> node, final Node<K, ?> other, final int depth,
+                                                   final SizeChangeSink size) {
+        final int total = node.computeSize();
+        final Object[] keys = new Object[total];
+        final Object[] values = new Object[total];
+        final int kept = collectRetained(node, other, depth, true, keys, values);
+        size.sizeChange += kept;
+        return kept == total ? node : buildSubtree(keys, values, kept, depth, NodeFactory.Layout.of(node));
+    }
+
+    /**
+     * Keeps the entries of a subtree whose keys are not in the other subtree, by collecting them and building a new subtree.
+     * This is the fallback for Node.subtract when a structural walk isn't possible.
+     * The size change is relative to the first subtree.
+     */
+    static <K, V> Node<K, V> subtractByRebuilding(final Node<K, V> node, final Node<K, ?> other, final int depth,
+                                                  final SizeChangeSink size) {
+        final int total = node.computeSize();
+        final Object[] keys = new Object[total];
+        final Object[] values = new Object[total];
+        final int kept = collectRetained(node, other, depth, false, keys, values);
+        size.sizeChange -= total - kept;
+        return kept == total ? node : buildSubtree(keys, values, kept, depth, NodeFactory.Layout.of(node));
+    }
+
+    private static <K, V> int collectRetained(final Node<K, V> node, final Node<K, ?> other, final int depth,
+                                              final boolean keepCommon, final Object[] keys, final Object[] values) {
+        final int[] count = new int[1];
+        node.forEachEntry((key, value) -> {
+            // collision nodes at the bottom of the trie don't look at the prefix
+            final int prefix = depth < 7 ? computeHashPrefix(key, depth) : 0;
+            if ((other.get(key, prefix) != null) == keepCommon) {
+                keys[count[0]] = key;
+                values[count[0]++] = value;
+            }
+        });
+        return count[0];
+    }
+
+    private int sortAndDeduplicate(final int length) {
+        if (values == null && valueForAll == null) {
+            throw new NullPointerException();
+        }
+        sorted = new long[length];
+        for (int i = 0; i < length; i++) {
+            final Object key = keys[i];
+            if (key == null || (values != null && values[i] == null)) {
+                throw new NullPointerException();
+            }
+            sorted[i] = ((long)(computeSmearHash(key) ^ Integer.MIN_VALUE) << 32) | i;
+        }
+        // entries with equal hashes are ordered by index, so the last duplicate of a key is the one to keep
+        Arrays.sort(sorted);
+        int count = 0;
+        int runStart = 0;
+        while (runStart < length) {
+            final int hash = hashAt(runStart);
+            int runEnd = runStart + 1;
+            while (runEnd < length && hashAt(runEnd) == hash) {
+                runEnd++;
+            }
+            count = deduplicateRun(runStart, runEnd, count);
+            runStart = runEnd;
+        }
+        return count;
+    }
+
+    /**
+     * Moves the last duplicate of each key in the run of entries [start, end), which all have the same hash, down to
+     * the given index
+     * @return the index after the last entry kept
+     */
+    private int deduplicateRun(final int start, final int end, int count) {
+        if (end - start <= MAX_SCANNED_RUN) {
+            for (int i = start; i < end; i++) {
+                if (!hasLaterDuplicate(i, end)) {
+                    sorted[count++] = sorted[i];
+                }
+            }
+            return count;
+        }
+        // comparing every pair of a long run is quadratic, so find the last duplicates from the end instead, which a
+        // HashSet does in O(log n) per key for keys which are Comparable, as colliding keys are kept in a tree
+        final Set<Object> seen = new HashSet<>();
+        final boolean[] keep = new boolean[end - start];
+        for (int i = end - 1; i >= start; i--) {
+            keep[i - start] = seen.add(keyAt(i));
+        }
+        for (int i = start; i < end; i++) {
+            if (keep[i - start]) {
+                sorted[count++] = sorted[i];
+            }
+        }
+        return count;
+    }
+
+    private boolean hasLaterDuplicate(final int i, final int end) {
+        final Object key = keyAt(i);
+        for (int j = i + 1; j < end; j++) {
+            if (key.equals(keyAt(j))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int hashAt(final int i) {
+        return (int)(sorted[i] >>> 32) ^ Integer.MIN_VALUE;
+    }
+
+    private Object keyAt(final int i) {
+        return keys[(int)sorted[i]];
+    }
+
+    private Object valueAt(final int i) {
+        return values == null ? valueForAll : values[(int)sorted[i]];
+    }
+
+    private static int bitIndexAt(final int hash, final int depth) {
+        return (hash << (5 * depth)) >>> 27;
+    }
+
+    /**
+     * Builds the node holding the sorted entries [start, end), which all share the same hash prefix up to depth
+     */
+    private Node<Object, Object> buildNode(final int start, final int end, final int depth) {
+
+        if (depth == 7) {
+            // all the entries have the same hash
+            final Object[] packedArray = new Object[(end - start) * 2];
+            for (int i = start, offset = 0; i < end; i++, offset += 2) {
+                packedArray[offset] = keyAt(i);
+                packedArray[offset + 1] = valueAt(i);
+            }
+            return NodeFactory.createCollisionNode(packedArray);
+        }
+
+        // first pass, compute the mask so the node can be allocated at its final size
+        int mask = 0;
+        for (int i = start; i < end; i++) {
+            mask |= 1 << bitIndexAt(hashAt(i), depth);
+        }
+
+        if (Integer.bitCount(mask) == 1 && depth > 0 && layout == NodeFactory.Layout.PACKED_ARRAY) {
+            // every entry is in the same child, so this level joins a compressed path
+            return CompressedPathNode.compress(null, Integer.numberOfTrailingZeros(mask), buildNode(start, end, depth + 1));
+        }
+
+        final Object[] packedArray = new Object[Integer.bitCount(mask) * 2];
+        final int[] hashPrefixes = new int[packedArray.length >>> 1];
+        int offset = 0;
+        int groupStart = start;
+        while (groupStart < end) {
+            final int bitIndex = bitIndexAt(hashAt(groupStart), depth);
+            int groupEnd = groupStart + 1;
+            while (groupEnd < end && bitIndexAt(hashAt(groupEnd), depth) == bitIndex) {
+                groupEnd++;
+            }
+            if (groupEnd - groupStart == 1) {
+                packedArray[offset] = keyAt(groupStart);
+                packedArray[offset + 1] = valueAt(groupStart);
+                hashPrefixes[offset >>> 1] = hashAt(groupStart) << (5 * depth);
+            } else {
+                packedArray[offset + 1] = buildNode(groupStart, groupEnd, depth + 1);
+            }
+            offset += 2;
+            groupStart = groupEnd;
+        }
+
+        return NodeFactory.createNodeFromPackedArray(layout, mask, packedArray, hashPrefixes);
+    }
+
+}
@@ -3,6 +3,7 @@ package com.gotcake.collections.immutable;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.*;
+import java.util.function.BiFunction;
 
 /**
  * Just some utilities
@@ -31,7 +32,17 @@ public final class Util {
      * @return the smeared hash
      */
     public static int computeSmearHash(final Object obj) {
-        final int a = obj.hashCode() * C1;
+        return computeSmearHash(obj.hashCode());
+    }
+
+    /**
+     * Smears a hash code the same way as {@link #computeSmearHash(Object)}, for hash codes which don't come from
+     * the object's hashCode
+     * @param hashCode the hash code
+     * @return the smeared hash
+     */
+    static int computeSmearHash(final int hashCode) {
+        final int a = hashCode * C1;
         return C2 * ((a << 15) | (a >>> 17));
     }
 
@@ -145,6 +156,83 @@ public final class Util {
         return Integer.bitCount(mask & ((1 << bitIndex) - 1));
     }
 
+    /**
+     * Computes the hash of an entry, as defined by Map.Entry.hashCode()
+     * @param key the key
+     * @param value the value
+     * @return the entry hash
+     */
+    static int entryHash(final Object key, final Object value) {
+        return key.hashCode() ^ value.hashCode();
+    }
+
+    /**
+     * Computes the hash of an entry for a map with the given equivalence, which hashes the key by identity if the map
+     * compares keys by identity, like IdentityHashMap
+     * @param key the key
+     * @param value the value
+     * @param equivalence the equivalence of the map's HashStrategy, or null if it compares keys with equals
+     * @return the entry hash
+     */
+    static int entryHash(final Object key, final Object value, final HashStrategy<?> equivalence) {
+        if (equivalence == HashStrategies.IDENTITY) {
+            return System.identityHashCode(key) ^ value.hashCode();
+        }
+        return entryHash(key, value);
+    }
+
+    /**
+     * Checks if a key in a node is the key being looked for
+     * @param nodeKey the key in the node
+     * @param key the key being looked for
+     * @param equivalence the equivalence of the map's HashStrategy, or null to compare the keys with equals
+     * @return true if the keys are the same key
+     */
+    @SuppressWarnings("unchecked")
+    static boolean keysEqual(final Object nodeKey, final Object key, final HashStrategy<?> equivalence) {
+        if (equivalence == null) {
+            return nodeKey.equals(key);
+        }
+        return ((HashStrategy<Object>)equivalence).equivalent(nodeKey, key);
+    }
+
+    /**
+     * Resolves the value for a key present in both maps being merged. Equal values are kept as they are,
+     * otherwise the resolver decides, with null meaning the entry should be removed.
+     * @param value the value in the map being merged into
+     * @param otherValue the value in the other map
+     * @param resolver the resolver
+     * @return the resolved value, or null if the entry should be removed
+     */
+    static <V> V resolveMergedValue(final V value, final V otherValue,
+                                    final BiFunction<? super V, ? super V, ? extends V> resolver) {
+        if (value == otherValue || value.equals(otherValue)) {
+            return value;
+        }
+        return resolver.apply(value, otherValue);
+    }
+
+    /**
+     * Reports the differences between two subtrees entry by entry, for nodes which cannot be compared structurally.
+     * @param node the old subtree
+     * @param other the new subtree
+     * @param visitor the visitor
+     */
+    static <K, V> void diffEntries(final Node<K, V> node, final Node<K, V> other,
+                                   final ImmutableMap.DiffVisitor<? super K, ? super V> visitor) {
+        final Map<K, V> entries = new HashMap<>();
+        node.forEachEntry(entries::put);
+        other.forEachEntry((key, otherValue) -> {
+            final V value = entries.remove(key);
+            if (value == null) {
+                visitor.added(key, otherValue);
+            } else if (!value.equals(otherValue)) {
+                visitor.changed(key, value, otherValue);
+            }
+        });
+        entries.forEach(visitor::removed);
+    }
+
     static void assertThat(final String msg, final boolean test) {
         if (!test) {
             throw new IllegalStateException("Assertion Failed: " + msg);
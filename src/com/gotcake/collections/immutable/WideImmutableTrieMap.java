@@ -0,0 +1,358 @@
+package com.gotcake.collections.immutable;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import static com.gotcake.collections.immutable.Util.*;
+
+/**
+ * An immutable map over a 64-way trie of WideNodes, which uses 6 bits of the hash per level instead of 5.
+ * The trie is at most 6 levels deep instead of 7, so lookups visit fewer nodes, at the cost of copying
+ * wider nodes on every change. Maps derived from a wide map stay wide, including empty ones.
+ * @author Aaron Cake
+ */
+final class WideImmutableTrieMap<K, V> implements ImmutableMap<K, V>, Validatable {
+
+    @SuppressWarnings("rawtypes")
+    private static final WideImmutableTrieMap EMPTY = new WideImmutableTrieMap<>(0, WideNode.empty(), 0);
+
+    /**
+     * Never null, the root of an empty map is an empty WideNode
+     */
+    final Node<K, V> root;
+    final int size;
+
+    /**
+     * The sum of the entry hashes, or 0 if it hasn't been computed yet.
+     * Like String.hashCode(), racing threads can only compute the same value.
+     */
+    private int hash;
+
+    WideImmutableTrieMap(int size, Node<K, V> root, int hash) {
+        this.size = size;
+        this.root = root;
+        this.hash = hash;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> WideImmutableTrieMap<K, V> empty() {
+        return (WideImmutableTrieMap<K, V>)EMPTY;
+    }
+
+    /**
+     * Creates a map with all the entries of the given map, using a transient batch
+     */
+    static <K, V> ImmutableMap<K, V> copyOf(final Map<? extends K, ? extends V> sourceMap) {
+        return WideImmutableTrieMap.<K, V>empty().toTransient().setAll(sourceMap).persistent();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean containsKey(final Object key) {
+        if (key == null) {
+            return false;
+        }
+        return root.get((K)key, computeSmearHash(key)) != null;
+    }
+
+    @Override
+    public boolean containsEntry(final K key, final V value) {
+        if (key == null || value == null) {
+            return false;
+        }
+        return value.equals(root.get(key, computeSmearHash(key)));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(final Object key) {
+        if (key == null) {
+            return null;
+        }
+        return root.get((K)key, computeSmearHash(key));
+    }
+
+    @Override
+    public V get(final HashedKey<? extends K> key) {
+        if (!key.isHashedBy(HashStrategies.STANDARD)) {
+            return get((Object)key.key);
+        }
+        return root.get(key.key, key.hash);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V getOrDefault(final Object key, final V defaultValue) {
+        if (key == null) {
+            return defaultValue;
+        }
+        final V existingValue = root.get((K)key, computeSmearHash(key));
+        return existingValue == null ? defaultValue : existingValue;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns true if the map contains the given value.
+     * WARNING: this executes in linear O(n) time.
+     * @param value the value to search for
+     * @return true if the map contains the value, false otherwise
+     */
+    @Override
+    public boolean containsValue(final Object value) {
+        return root.containsValue(value);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean equals(Object other) {
+        if (this == other)  return true;
+        if (!(other instanceof Map)) return false;
+        final Map<?, ?> map = (Map<?, ?>)other;
+        if (size != map.size()) return false;
+        if (other instanceof WideImmutableTrieMap) {
+            // if both hashes are already known, they can rule out equality without a traversal
+            final int h1 = hash;
+            final int h2 = ((WideImmutableTrieMap<?, ?>)other).hash;
+            if (h1 != 0 && h2 != 0 && h1 != h2) return false;
+            return root.equals(((WideImmutableTrieMap<?, ?>)other).root);
+        }
+        for (final Map.Entry<?, ?> entry : map.entrySet()) {
+            if (!containsEntry((K) entry.getKey(), (V) entry.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void forEach(final BiConsumer<? super K, ? super V> action) {
+        root.forEachEntry(action);
+    }
+
+    @Override
+    public void forEachKey(final Consumer<? super K> action) {
+        root.forEachEntry((key, value) -> action.accept(key));
+    }
+
+    @Override
+    public void forEachValue(final Consumer<? super V> action) {
+        root.forEachEntry((key, value) -> action.accept(value));
+    }
+
+    @Override
+    public Iterator<K> keyIterator() {
+        return new NodeEntryIterator.KeyIterator<>(root);
+    }
+
+    @Override
+    public Iterator<V> valueIterator() {
+        return new NodeEntryIterator.ValueIterator<>(root);
+    }
+
+    /**
+     * Returns an iterator over all of the entries in this map.
+     * WARNING: This will create a new Map.Entry object for each entry iterated over, use cursor to avoid this.
+     * @return an iterator over entries
+     */
+    @Override
+    public Iterator<Map.Entry<K, V>> entryIterator() {
+        return new NodeEntryIterator.EntryIterator<>(root);
+    }
+
+    @Override
+    public MapCursor<K, V> cursor() {
+        return new NodeEntryIterator.Cursor<>(root);
+    }
+
+    @Override
+    public Spliterator<K> keySpliterator() {
+        return new NodeSpliterator<>(root, size, (key, value) -> key,
+                Spliterator.IMMUTABLE | Spliterator.DISTINCT | Spliterator.NONNULL);
+    }
+
+    @Override
+    public Spliterator<V> valueSpliterator() {
+        return new NodeSpliterator<>(root, size, (key, value) -> value,
+                Spliterator.IMMUTABLE | Spliterator.NONNULL);
+    }
+
+    @Override
+    public Spliterator<Map.Entry<K, V>> entrySpliterator() {
+        return new NodeSpliterator<>(root, size, Entry::new,
+                Spliterator.IMMUTABLE | Spliterator.DISTINCT | Spliterator.NONNULL);
+    }
+
+    @Override
+    public void parallelForEach(final BiConsumer<? super K, ? super V> action) {
+        if (action == null) throw new NullPointerException();
+        ParallelNodeTasks.forEach(root, size, action);
+    }
+
+    /**
+     * Computes new values for all the entries in this map in a single pass over the trie,
+     * so each node is copied at most once, and subtrees without changes are reused as they are.
+     * @param mapperFn a function which maps the value, or returns null to remove the entry
+     * @return the new map instance, or the this instance if no modifications were necessary
+     */
+    @Override
+    public ImmutableMap<K, V> updateAll(final BiFunction<? super K, ? super V, ? extends V> mapperFn) {
+        if (mapperFn == null) throw new NullPointerException();
+        final SizeChangeSink sink = new SizeChangeSink();
+        return mapWithUpdatedRoot(root.updateAll(0, mapperFn, sink), sink);
+    }
+
+    @Override
+    public ImmutableMap<K, V> parallelUpdateAll(final BiFunction<? super K, ? super V, ? extends V> mapperFn) {
+        if (mapperFn == null) throw new NullPointerException();
+        if (size <= ParallelNodeTasks.SEQUENTIAL_THRESHOLD) {
+            return updateAll(mapperFn);
+        }
+        final SizeChangeSink sink = new SizeChangeSink();
+        return mapWithUpdatedRoot(ParallelNodeTasks.updateAll(root, mapperFn, sink), sink);
+    }
+
+    @Override
+    public ImmutableMap<K, V> filter(final BiPredicate<K, V> predicate) {
+        if (predicate == null) throw new NullPointerException();
+        return updateAll((k, v) -> predicate.test(k, v) ? v : null);
+    }
+
+    @Override
+    public ImmutableMap<K, V> filterKeys(final Predicate<K> predicate) {
+        if (predicate == null) throw new NullPointerException();
+        return updateAll((k, v) -> predicate.test(k) ? v : null);
+    }
+
+    /**
+     * Computes a new map with the same trie as this map, with only the values replaced.
+     * @param mapperFn a function which maps each value, which must not return null
+     * @param <R> the new value type
+     * @return the new map instance
+     */
+    @Override
+    public <R> ImmutableMap<K, R> mapValues(final Function<? super V, ? extends R> mapperFn) {
+        if (mapperFn == null) throw new NullPointerException();
+        return new WideImmutableTrieMap<>(size, root.mapValues(mapperFn), 0);
+    }
+
+    @Override
+    public ImmutableMap<K, V> update(K key, BiFunction<? super K, ? super V, ? extends V> mapperFn) {
+        if (key == null || mapperFn == null) throw new NullPointerException();
+        final SizeChangeSink sink = new SizeChangeSink();
+        return mapWithUpdatedRoot(root.update(key, computeSmearHash(key), 0, mapperFn, sink), sink);
+    }
+
+    @Override
+    public ImmutableMap<K, V> set(K key, V value) {
+        if (key == null || value == null) { throw new NullPointerException(); }
+        return setWithHash(key, computeSmearHash(key), value);
+    }
+
+    @Override
+    public ImmutableMap<K, V> set(final HashedKey<? extends K> key, final V value) {
+        if (!key.isHashedBy(HashStrategies.STANDARD)) {
+            return set(key.key, value);
+        }
+        if (value == null) { throw new NullPointerException(); }
+        return setWithHash(key.key, key.hash, value);
+    }
+
+    private ImmutableMap<K, V> setWithHash(final K key, final int hash, final V value) {
+        final SizeChangeSink sink = new SizeChangeSink();
+        return mapWithUpdatedRoot(root.set(key, value, hash, 0, sink), sink);
+    }
+
+    @Override
+    public ImmutableMap<K, V> setIfAbsent(K key, V value) {
+        if (key == null || value == null) { throw new NullPointerException(); }
+        final Node<K, V> newRoot = root.setIfNotExists(key, value, computeSmearHash(key), 0);
+        if (newRoot != root) {
+            final int oldHash = hash;
+            return new WideImmutableTrieMap<>(size + 1, newRoot, oldHash == 0 ? 0 : oldHash + entryHash(key, value));
+        }
+        return this;
+    }
+
+    @Override
+    public ImmutableMap<K, V> setIfPresent(K key, V value) {
+        if (key == null || value == null) { throw new NullPointerException(); }
+        final SizeChangeSink sink = new SizeChangeSink();
+        return mapWithUpdatedRoot(root.setIfExists(key, value, computeSmearHash(key), 0, sink), sink);
+    }
+
+    @Override
+    public ImmutableMap<K, V> delete(K key) {
+        if (key == null) {
+            return this;
+        }
+        return deleteWithHash(key, computeSmearHash(key));
+    }
+
+    @Override
+    public ImmutableMap<K, V> delete(final HashedKey<? extends K> key) {
+        if (!key.isHashedBy(HashStrategies.STANDARD)) {
+            return delete(key.key);
+        }
+        return deleteWithHash(key.key, key.hash);
+    }
+
+    private ImmutableMap<K, V> deleteWithHash(final K key, final int hash) {
+        final SizeChangeSink sink = new SizeChangeSink();
+        return mapWithUpdatedRoot(root.delete(key, hash, 0, sink), sink);
+    }
+
+    /**
+     * Creates the result of an operation which recorded its changes in sink, reusing this map if the root did not change
+     */
+    private ImmutableMap<K, V> mapWithUpdatedRoot(final Node<K, V> newRoot, final SizeChangeSink sink) {
+        if (newRoot == root) {
+            return this;
+        }
+        if (newRoot == null) {
+            return empty();
+        }
+        final int h = hash;
+        return new WideImmutableTrieMap<>(size + sink.sizeChange, newRoot, h == 0 ? 0 : h + sink.hashChange);
+    }
+
+    @Override
+    public TransientMap<K, V> toTransient() {
+        return new TransientWideTrieMap<>(this, root, size, hash);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0) {
+            final NodeEntryIterator.HashIterator<K, V> it = new NodeEntryIterator.HashIterator<>(root);
+            while (it.hasNext()) {
+                h += it.next();
+            }
+            hash = h;
+        }
+        return h;
+    }
+
+    @Override
+    public void assertValid() {
+        assertValidType("root", root, false, WideNode.class);
+        int computedSize = root.assertValidAndComputeSize(0, 0);
+        assertEqual("Size must equal computed size", size, computedSize);
+    }
+}
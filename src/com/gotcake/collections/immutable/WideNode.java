@@ -0,0 +1,792 @@
+package com.gotcake.collections.immutable;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import static com.gotcake.collections.immutable.Util.*;
+
+/**
+ * A node of WideImmutableTrieMap, which branches 64 ways on 6 bits of the hash prefix per level instead of 32 ways on 5.
+ * Like PackedArrayDualNode, it packs [key, value] and [null, child] pairs in bit order, but with a long mask.
+ * A 32 bit hash is used up after 6 levels, so keys with equal hashes share a PackedArrayCollisionNode at depth 6.
+ * The prefix of a key at depth d is its hash shifted left by 6 * d bits, one level at a time, so the lowest 2 bits
+ * of the hash are the highest bits of the prefix at depth 5, and the prefix of every key at depth 6 is 0.
+ * WideImmutableTrieMap combines maps entry by entry, so merge, diff, intersect and subtract are not supported.
+ * @author Aaron Cake
+ */
+class WideNode<K, V> implements Node<K, V> {
+
+    /**
+     * The depth of the collision nodes, below the 6 levels of WideNodes
+     */
+    static final int MAX_DEPTH = 6;
+
+    @SuppressWarnings("rawtypes")
+    private static final WideNode EMPTY = new WideNode<>(null, 0L, new Object[0], new int[0]);
+
+    long mask;
+    Object[] packedArray;
+    /**
+     * The hash prefix of the key in each slot at the depth of this node, or 0 for a child,
+     * following the same rules as PackedArrayDualNode.hashPrefixes
+     */
+    int[] hashPrefixes;
+    final EditOwner owner;
+
+    WideNode(final EditOwner owner, final long mask, final Object[] packedArray, final int[] hashPrefixes) {
+        this.owner = owner;
+        this.mask = mask;
+        this.packedArray = packedArray;
+        this.hashPrefixes = hashPrefixes;
+    }
+
+    /**
+     * Gets the root of an empty map, which is the only WideNode without slots
+     */
+    @SuppressWarnings("unchecked")
+    static <K, V> WideNode<K, V> empty() {
+        return (WideNode<K, V>)EMPTY;
+    }
+
+    /**
+     * Creates a new node containing the given keys and values at any depth, where it is not known how many bits of the
+     * prefixes collide
+     */
+    static <K, V> Node<K, V> createNodeWithTwoEntries(final EditOwner owner, final int depth,
+                                                      final int prefix1, final K key1, final V value1,
+                                                      final int prefix2, final K key2, final V value2) {
+        if (depth == MAX_DEPTH) {
+            // hash collision
+            return new PackedArrayCollisionNode<>(owner, key1, value1, key2, value2);
+        }
+        final int bitIndex1 = prefix1 >>> 26;
+        final int bitIndex2 = prefix2 >>> 26;
+        if (bitIndex1 == bitIndex2) {
+            final Node<K, V> child = createNodeWithTwoEntries(
+                    owner,
+                    depth + 1,
+                    prefix1 << 6, key1, value1,
+                    prefix2 << 6, key2, value2
+            );
+            return new WideNode<>(owner, 1L << bitIndex1, new Object[]{ null, child }, new int[1]);
+        }
+        if (bitIndex1 > bitIndex2) {
+            return new WideNode<>(owner, (1L << bitIndex1) | (1L << bitIndex2),
+                    new Object[]{ key2, value2, key1, value1 }, new int[]{ prefix2, prefix1 });
+        }
+        return new WideNode<>(owner, (1L << bitIndex1) | (1L << bitIndex2),
+                new Object[]{ key1, value1, key2, value2 }, new int[]{ prefix1, prefix2 });
+    }
+
+    /**
+     * Computes the prefix of an entry collapsed from a child into the given slot, from its prefix in the child
+     */
+    private static int prefixInParent(final int bitIndex, final SingleEntryNode<?, ?> entry) {
+        return (bitIndex << 26) | (entry.prefix >>> 6);
+    }
+
+    @Override
+    public V get(K key, int prefix, HashStrategy<? super K> equivalence) {
+
+        final long bit = 1L << (prefix >>> 26);
+
+        if ((bit & mask) == 0) {
+            // bit not in mask, branch does not exist, return null
+            return null;
+        }
+
+        final int offset = Long.bitCount(mask & (bit - 1)) * 2;
+        final Object keyOrNull = packedArray[offset];
+
+        if (keyOrNull == null) {
+            // we have a child, descend further
+            @SuppressWarnings("unchecked")
+            final Node<K, V> child = (Node<K, V>)packedArray[offset + 1];
+            return child.get(key, prefix << 6, equivalence);
+        }
+
+        if (hashPrefixes[offset >>> 1] == prefix && keysEqual(keyOrNull, key, equivalence)) {
+            // key matches, return value
+            @SuppressWarnings("unchecked")
+            final V value = (V)packedArray[offset + 1];
+            return value;
+        }
+
+        // key does not match, return null
+        return null;
+
+    }
+
+    @Override
+    public Node<K, V> set(EditOwner owner, K key, V value, int prefix, int depth, SizeChangeSink size, HashStrategy<? super K> equivalence) {
+
+        final long bit = 1L << (prefix >>> 26);
+        final int offset = Long.bitCount(mask & (bit - 1)) * 2;
+
+        if ((bit & mask) == 0) {
+            // bit not set, branch does not exist, insert entry
+            size.sizeChange++;
+            size.hashChange += entryHash(key, value, equivalence);
+            return nodeByInsertingAtOffset(owner, bit, offset, key, value, prefix);
+        }
+
+        @SuppressWarnings("unchecked")
+        final K keyOrNull = (K)packedArray[offset];
+
+        if (keyOrNull == null) {
+            // we have a child, descend further
+            @SuppressWarnings("unchecked")
+            final Node<K, V> child = (Node<K, V>)packedArray[offset + 1];
+            final Node<K, V> newChild = child.set(owner, key, value, prefix << 6, depth + 1, size, equivalence);
+            if (child != newChild) {
+                // child changed, replace child
+                return nodeByReplacingOffset(owner, offset, null, newChild, 0);
+            }
+            // child did not change or was edited in place, return this
+            return this;
+        }
+
+        final int ourPrefix = hashPrefixes[offset >>> 1];
+        if (ourPrefix == prefix && keysEqual(keyOrNull, key, equivalence)) {
+            // key matches
+            if (packedArray[offset + 1].equals(value)) {
+                // value matches, do nothing
+                return this;
+            }
+            // value doesn't match, replace it
+            size.hashChange += entryHash(key, value, equivalence) - entryHash(keyOrNull, packedArray[offset + 1], equivalence);
+            return nodeByReplacingOffset(owner, offset, key, value, prefix);
+        }
+
+        // key does not match, create new branch
+        @SuppressWarnings("unchecked")
+        final V ourValue = (V)packedArray[offset + 1];
+        final Node<K, V> newNode = createNodeWithTwoEntries(
+                owner,
+                depth + 1,
+                prefix << 6, key, value,
+                ourPrefix << 6, keyOrNull, ourValue
+        );
+        size.sizeChange++;
+        size.hashChange += entryHash(key, value, equivalence);
+        return nodeByReplacingOffset(owner, offset, null, newNode, 0);
+
+    }
+
+    @Override
+    public Node<K, V> setIfExists(K key, V value, int prefix, int depth, SizeChangeSink size, HashStrategy<? super K> equivalence) {
+
+        final long bit = 1L << (prefix >>> 26);
+
+        if ((bit & mask) == 0) {
+            // bit not set, branch does not exist, return this
+            return this;
+        }
+
+        final int offset = Long.bitCount(mask & (bit - 1)) * 2;
+        final Object keyOrNull = packedArray[offset];
+
+        if (keyOrNull == null) {
+            // we have a child, descend further
+            @SuppressWarnings("unchecked")
+            final Node<K, V> child = (Node<K, V>)packedArray[offset + 1];
+            final Node<K, V> newChild = child.setIfExists(key, value, prefix << 6, depth + 1, size, equivalence);
+            if (child != newChild) {
+                // child changed, replace child
+                return nodeByReplacingOffset(null, offset, null, newChild, 0);
+            }
+            // child did not change, return this
+            return this;
+        }
+
+        if (hashPrefixes[offset >>> 1] == prefix && keysEqual(keyOrNull, key, equivalence)) {
+            // key matches
+            if (packedArray[offset + 1].equals(value)) {
+                // value matches, do nothing
+                return this;
+            }
+            // value doesn't match, replace it
+            size.hashChange += entryHash(key, value, equivalence) - entryHash(keyOrNull, packedArray[offset + 1], equivalence);
+            return nodeByReplacingOffset(null, offset, key, value, prefix);
+        }
+
+        // key does not match, return this
+        return this;
+
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Node<K, V> setIfNotExists(K key, V value, int prefix, int depth, HashStrategy<? super K> equivalence) {
+
+        final long bit = 1L << (prefix >>> 26);
+        final int offset = Long.bitCount(mask & (bit - 1)) * 2;
+
+        if ((bit & mask) == 0) {
+            // bit not set, branch does not exist, insert entry
+            return nodeByInsertingAtOffset(null, bit, offset, key, value, prefix);
+        }
+
+        final Object keyOrNull = packedArray[offset];
+
+        if (keyOrNull == null) {
+            // we have a child, descend further
+            final Node<K, V> child = (Node<K, V>)packedArray[offset + 1];
+            final Node<K, V> newChild = child.setIfNotExists(key, value, prefix << 6, depth + 1, equivalence);
+            if (child != newChild) {
+                // child changed, replace child
+                return nodeByReplacingOffset(null, offset, null, newChild, 0);
+            }
+            // child did not change, return this
+            return this;
+        }
+
+        final int ourPrefix = hashPrefixes[offset >>> 1];
+        if (ourPrefix == prefix && keysEqual(keyOrNull, key, equivalence)) {
+            // key matches, do nothing
+            return this;
+        }
+
+        // key does not match, create new branch
+        final Node<K, V> newNode = createNodeWithTwoEntries(
+                null,
+                depth + 1,
+                prefix << 6, key, value,
+                ourPrefix << 6, (K)keyOrNull, (V)packedArray[offset + 1]
+        );
+        return nodeByReplacingOffset(null, offset, null, newNode, 0);
+
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Node<K, V> delete(EditOwner owner, K key, int prefix, int depth, SizeChangeSink size, HashStrategy<? super K> equivalence) {
+
+        final long bit = 1L << (prefix >>> 26);
+
+        if ((bit & mask) == 0) {
+            // bit not set, branch does not exist, return this
+            return this;
+        }
+
+        final int offset = Long.bitCount(mask & (bit - 1)) * 2;
+        final Object keyOrNull = packedArray[offset];
+
+        if (keyOrNull == null) {
+            // we have a child, descend further
+            final Node<K, V> child = (Node<K, V>)packedArray[offset + 1];
+            final Node<K, V> newChild = child.delete(owner, key, prefix << 6, depth + 1, size, equivalence);
+            return nodeByReplacingChild(owner, offset, prefix >>> 26, depth, child, newChild);
+        }
+
+        if (hashPrefixes[offset >>> 1] == prefix && keysEqual(keyOrNull, key, equivalence)) {
+            // key matches, remove entry
+            size.sizeChange--;
+            size.hashChange -= entryHash(keyOrNull, packedArray[offset + 1], equivalence);
+            return nodeByRemovingOffset(owner, offset, bit, depth);
+        }
+
+        // key does not match, return this
+        return this;
+
+    }
+
+    @Override
+    public Node<K, V> update(EditOwner owner, K key, int prefix, int depth, BiFunction<? super K, ? super V, ? extends V> updateFn, SizeChangeSink size, HashStrategy<? super K> equivalence) {
+
+        final long bit = 1L << (prefix >>> 26);
+        final int offset = Long.bitCount(mask & (bit - 1)) * 2;
+
+        if ((bit & mask) == 0) {
+            // bit not set, branch does not exist, possibly insert entry
+            final V newValue = updateFn.apply(key, null);
+            if (newValue != null) {
+                size.sizeChange++;
+                size.hashChange += entryHash(key, newValue, equivalence);
+                return nodeByInsertingAtOffset(owner, bit, offset, key, newValue, prefix);
+            }
+            return this;
+        }
+
+        @SuppressWarnings("unchecked")
+        final K keyOrNull = (K)packedArray[offset];
+
+        if (keyOrNull == null) {
+            // we have a child, descend further
+            @SuppressWarnings("unchecked")
+            final Node<K, V> child = (Node<K, V>)packedArray[offset + 1];
+            final Node<K, V> newChild = child.update(owner, key, prefix << 6, depth + 1, updateFn, size, equivalence);
+            return nodeByReplacingChild(owner, offset, prefix >>> 26, depth, child, newChild);
+        }
+
+        final int ourPrefix = hashPrefixes[offset >>> 1];
+        if (ourPrefix == prefix && keysEqual(keyOrNull, key, equivalence)) {
+            // key matches
+
+            @SuppressWarnings("unchecked")
+            final V curValue = (V)packedArray[offset + 1];
+            final V newValue = updateFn.apply(key, curValue);
+
+            if (newValue == null) {
+                size.sizeChange--;
+                size.hashChange -= entryHash(keyOrNull, curValue, equivalence);
+                return nodeByRemovingOffset(owner, offset, bit, depth);
+            }
+
+            if (newValue.equals(curValue)) {
+                // value matches, do nothing
+                return this;
+            }
+            // value doesn't match, replace it
+            size.hashChange += entryHash(key, newValue, equivalence) - entryHash(keyOrNull, curValue, equivalence);
+            return nodeByReplacingOffset(owner, offset, key, newValue, prefix);
+        }
+
+        // key does not match, create new branch
+        final V newValue = updateFn.apply(key, null);
+        if (newValue != null) {
+            size.sizeChange++;
+            size.hashChange += entryHash(key, newValue, equivalence);
+            @SuppressWarnings("unchecked")
+            final V ourValue = (V)packedArray[offset + 1];
+            final Node<K, V> newNode = createNodeWithTwoEntries(
+                    owner,
+                    depth + 1,
+                    prefix << 6, key, newValue,
+                    ourPrefix << 6, keyOrNull, ourValue
+            );
+            return nodeByReplacingOffset(owner, offset, null, newNode, 0);
+        }
+
+        return this;
+
+    }
+
+    /**
+     * Checks if this node belongs to the given transient batch, and so may be changed in place
+     */
+    private boolean isEditableBy(final EditOwner owner) {
+        return owner != null && owner == this.owner;
+    }
+
+    /**
+     * Puts the result of removing from the child at offset in its place, removing the slot if the child was removed,
+     * and collapsing a lone entry into the slot
+     */
+    private Node<K, V> nodeByReplacingChild(final EditOwner owner, final int offset, final int bitIndex, final int depth,
+                                            final Node<K, V> child, final Node<K, V> newChild) {
+        if (child == newChild) {
+            // child did not change or was edited in place, return this
+            return this;
+        }
+        if (newChild == null) {
+            // child removed
+            return nodeByRemovingOffset(owner, offset, 1L << bitIndex, depth);
+        }
+        if (newChild instanceof SingleEntryNode) {
+            // collapse entry into this node
+            final SingleEntryNode<K, V> entry = (SingleEntryNode<K, V>)newChild;
+            final int prefix = prefixInParent(bitIndex, entry);
+            // the root must always be a real node, so only collapse further when below it
+            if (packedArray.length == 2 && depth > 0) {
+                return new SingleEntryNode<>(entry.key, entry.value, prefix);
+            }
+            return nodeByReplacingOffset(owner, offset, entry.key, entry.value, prefix);
+        }
+        // child changed, replace child
+        return nodeByReplacingOffset(owner, offset, null, newChild, 0);
+    }
+
+    private Node<K, V> nodeByInsertingAtOffset(final EditOwner owner, final long bit, final int offset,
+                                               final Object o1, final Object o2, final int prefix) {
+        final Object[] newArray = new Object[packedArray.length + 2];
+        final int[] newPrefixes = new int[hashPrefixes.length + 1];
+        final int slot = offset >>> 1;
+        if (offset > 0) {
+            System.arraycopy(packedArray, 0, newArray, 0, offset);
+            System.arraycopy(hashPrefixes, 0, newPrefixes, 0, slot);
+        }
+        newArray[offset] = o1;
+        newArray[offset + 1] = o2;
+        newPrefixes[slot] = prefix;
+        if (offset < packedArray.length) {
+            System.arraycopy(packedArray, offset, newArray, offset + 2, packedArray.length - offset);
+            System.arraycopy(hashPrefixes, slot, newPrefixes, slot + 1, hashPrefixes.length - slot);
+        }
+        if (isEditableBy(owner)) {
+            mask |= bit;
+            packedArray = newArray;
+            hashPrefixes = newPrefixes;
+            return this;
+        }
+        return new WideNode<>(owner, mask | bit, newArray, newPrefixes);
+    }
+
+    private Node<K, V> nodeByReplacingOffset(final EditOwner owner, final int offset,
+                                             final Object o1, final Object o2, final int prefix) {
+        final int slot = offset >>> 1;
+        if (isEditableBy(owner)) {
+            packedArray[offset] = o1;
+            packedArray[offset + 1] = o2;
+            hashPrefixes[slot] = prefix;
+            return this;
+        }
+        final Object[] newArray = packedArray.clone();
+        newArray[offset] = o1;
+        newArray[offset + 1] = o2;
+        // an editable copy needs its own prefixes, otherwise they can be shared while unchanged
+        int[] newPrefixes = hashPrefixes;
+        if (owner != null || hashPrefixes[slot] != prefix) {
+            newPrefixes = hashPrefixes.clone();
+            newPrefixes[slot] = prefix;
+        }
+        return new WideNode<>(owner, mask, newArray, newPrefixes);
+    }
+
+    private Node<K, V> nodeByRemovingOffset(final EditOwner owner, final int offset, final long bit, final int depth) {
+        final int lenMinus2 = packedArray.length - 2;
+        if (lenMinus2 <= 0) {
+            return null;
+        }
+        // if there's only one entry left below the root, return a SingleEntryNode to collapse into the parent
+        if (lenMinus2 == 2 && depth > 0) {
+            final int other = offset == 0 ? 2 : 0;
+            if (packedArray[other] != null) {
+                @SuppressWarnings("unchecked")
+                final K key = (K)packedArray[other];
+                @SuppressWarnings("unchecked")
+                final V value = (V)packedArray[other + 1];
+                return new SingleEntryNode<>(key, value, hashPrefixes[other >>> 1]);
+            }
+        }
+        final Object[] newArray = new Object[lenMinus2];
+        final int[] newPrefixes = new int[hashPrefixes.length - 1];
+        final int slot = offset >>> 1;
+        if (offset > 0) {
+            System.arraycopy(packedArray, 0, newArray, 0, offset);
+            System.arraycopy(hashPrefixes, 0, newPrefixes, 0, slot);
+        }
+        if (offset < lenMinus2) {
+            System.arraycopy(packedArray, offset + 2, newArray, offset, lenMinus2 - offset);
+            System.arraycopy(hashPrefixes, slot + 1, newPrefixes, slot, newPrefixes.length - slot);
+        }
+        if (isEditableBy(owner)) {
+            mask &= ~bit;
+            packedArray = newArray;
+            hashPrefixes = newPrefixes;
+            return this;
+        }
+        return new WideNode<>(owner, mask & ~bit, newArray, newPrefixes);
+    }
+
+    /**
+     * Creates the result of an operation over the slots from the first length items of array: null if empty,
+     * and a SingleEntryNode if only one entry is left below the root
+     */
+    private static <K, V> Node<K, V> nodeFromPartialArray(final long mask, final Object[] array, final int[] prefixes,
+                                                          final int length, final int depth) {
+        if (length == 0) {
+            return null;
+        }
+        if (length == 2 && depth > 0 && array[0] != null) {
+            @SuppressWarnings("unchecked")
+            final K key = (K)array[0];
+            @SuppressWarnings("unchecked")
+            final V value = (V)array[1];
+            return new SingleEntryNode<>(key, value, prefixes[0]);
+        }
+        if (length == array.length) {
+            return new WideNode<>(null, mask, array, prefixes);
+        }
+        return new WideNode<>(null, mask, Arrays.copyOf(array, length), Arrays.copyOf(prefixes, length >>> 1));
+    }
+
+    @Override
+    public Node<K, V> merge(Node<K, V> other, int depth, BiFunction<? super V, ? super V, ? extends V> resolver, SizeChangeSink size) {
+        throw new UnsupportedOperationException("WideImmutableTrieMap merges entry by entry");
+    }
+
+    @Override
+    public void diff(Node<K, V> other, int depth, ImmutableMap.DiffVisitor<? super K, ? super V> visitor) {
+        throw new UnsupportedOperationException("WideImmutableTrieMap diffs entry by entry");
+    }
+
+    @Override
+    public Node<K, V> intersect(Node<K, ?> other, int depth, SizeChangeSink size) {
+        throw new UnsupportedOperationException("WideImmutableTrieMap intersects entry by entry");
+    }
+
+    @Override
+    public Node<K, V> subtract(Node<K, ?> other, int depth, SizeChangeSink size) {
+        throw new UnsupportedOperationException("WideImmutableTrieMap subtracts entry by entry");
+    }
+
+    @Override
+    public Node<K, V> replaceSlots(final Object[] slots, final int depth) {
+        final Object[] newArray = new Object[packedArray.length];
+        final int[] newPrefixes = new int[hashPrefixes.length];
+        long newMask = 0;
+        int newOffset = 0;
+        boolean sameAsThis = true;
+        long remaining = mask;
+        for (int offset = 0; offset < packedArray.length; offset += 2) {
+            final long bit = remaining & -remaining;
+            remaining ^= bit;
+            Object newKey = slots[offset];
+            Object newValue = slots[offset + 1];
+            // keys stay in their slots, so their prefixes are unchanged
+            int newPrefix = hashPrefixes[offset >>> 1];
+            if (newValue == null) {
+                // slot was removed
+                sameAsThis = false;
+                continue;
+            }
+            if (newValue instanceof SingleEntryNode) {
+                // collapse entry into this node
+                @SuppressWarnings("unchecked")
+                final SingleEntryNode<K, V> entry = (SingleEntryNode<K, V>)newValue;
+                newKey = entry.key;
+                newValue = entry.value;
+                newPrefix = prefixInParent(Long.numberOfTrailingZeros(bit), entry);
+            }
+            sameAsThis &= newKey == packedArray[offset] && newValue == packedArray[offset + 1];
+            newMask |= bit;
+            newArray[newOffset] = newKey;
+            newArray[newOffset + 1] = newValue;
+            newPrefixes[newOffset >>> 1] = newPrefix;
+            newOffset += 2;
+        }
+        if (sameAsThis) {
+            return this;
+        }
+        return nodeFromPartialArray(newMask, newArray, newPrefixes, newOffset, depth);
+    }
+
+    @Override
+    public Node<K, V> updateAll(final int depth, final BiFunction<? super K, ? super V, ? extends V> updateFn,
+                                final SizeChangeSink size) {
+        // only allocated once something changes
+        Object[] newArray = null;
+        int[] newPrefixes = null;
+        long newMask = 0;
+        int newOffset = 0;
+        long remaining = mask;
+        for (int offset = 0; offset < packedArray.length; offset += 2) {
+            final long bit = remaining & -remaining;
+            remaining ^= bit;
+            final Object oldValue = packedArray[offset + 1];
+            Object newKey = packedArray[offset];
+            Object newValue;
+            int newPrefix = hashPrefixes[offset >>> 1];
+            if (newKey == null) {
+                @SuppressWarnings("unchecked")
+                final Node<K, V> child = (Node<K, V>)oldValue;
+                newValue = child.updateAll(depth + 1, updateFn, size);
+                if (newValue instanceof SingleEntryNode) {
+                    // collapse entry into this node
+                    @SuppressWarnings("unchecked")
+                    final SingleEntryNode<K, V> entry = (SingleEntryNode<K, V>)newValue;
+                    newKey = entry.key;
+                    newValue = entry.value;
+                    newPrefix = prefixInParent(Long.numberOfTrailingZeros(bit), entry);
+                }
+            } else {
+                @SuppressWarnings("unchecked")
+                final K key = (K)newKey;
+                @SuppressWarnings("unchecked")
+                final V value = (V)oldValue;
+                newValue = updateFn.apply(key, value);
+                if (newValue == null) {
+                    size.sizeChange--;
+                    size.hashChange -= entryHash(key, value);
+                } else if (newValue.equals(value)) {
+                    newValue = value;
+                } else {
+                    size.hashChange += entryHash(key, newValue) - entryHash(key, value);
+                }
+            }
+            if (newArray == null) {
+                if (newValue == oldValue) {
+                    continue;
+                }
+                // first change, copy the unchanged slots before it
+                newArray = new Object[packedArray.length];
+                newPrefixes = new int[hashPrefixes.length];
+                System.arraycopy(packedArray, 0, newArray, 0, offset);
+                System.arraycopy(hashPrefixes, 0, newPrefixes, 0, offset >>> 1);
+                newMask = mask & (bit - 1);
+                newOffset = offset;
+            }
+            if (newValue != null) {
+                newMask |= bit;
+                newArray[newOffset] = newKey;
+                newArray[newOffset + 1] = newValue;
+                newPrefixes[newOffset >>> 1] = newPrefix;
+                newOffset += 2;
+            }
+        }
+        if (newArray == null) {
+            return this;
+        }
+        return nodeFromPartialArray(newMask, newArray, newPrefixes, newOffset, depth);
+    }
+
+    @Override
+    public <R> Node<K, R> mapValues(final Function<? super V, ? extends R> mapperFn) {
+        final Object[] newArray = new Object[packedArray.length];
+        for (int offset = 0; offset < packedArray.length; offset += 2) {
+            final Object keyOrNull = packedArray[offset];
+            newArray[offset] = keyOrNull;
+            if (keyOrNull == null) {
+                @SuppressWarnings("unchecked")
+                final Node<K, V> child = (Node<K, V>)packedArray[offset + 1];
+                newArray[offset + 1] = child.mapValues(mapperFn);
+            } else {
+                @SuppressWarnings("unchecked")
+                final V value = (V)packedArray[offset + 1];
+                final R newValue = mapperFn.apply(value);
+                if (newValue == null) throw new NullPointerException();
+                newArray[offset + 1] = newValue;
+            }
+        }
+        // the new node is never edited in place, and the keys are the same, so the prefixes can be shared
+        return new WideNode<>(null, mask, newArray, hashPrefixes);
+    }
+
+    @Override
+    public int computeSize() {
+        int total = 0;
+        for (int offset = 0; offset < packedArray.length; offset += 2) {
+            if (packedArray[offset] == null) {
+                @SuppressWarnings("unchecked")
+                final Node<K, V> child = (Node<K, V>)packedArray[offset + 1];
+                total += child.computeSize();
+            } else {
+                total++;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public void forEachEntry(BiConsumer<? super K, ? super V> action) {
+        for (int offset = 0; offset < packedArray.length; offset += 2) {
+            @SuppressWarnings("unchecked")
+            final K keyOrNull = (K)packedArray[offset];
+            if (keyOrNull == null) {
+                @SuppressWarnings("unchecked")
+                final Node<K, V> child = (Node<K, V>)packedArray[offset + 1];
+                child.forEachEntry(action);
+            } else {
+                @SuppressWarnings("unchecked")
+                final V value = (V)packedArray[offset + 1];
+                action.accept(keyOrNull, value);
+            }
+        }
+    }
+
+    @Override
+    public boolean containsValue(final Object value) {
+        for (int offset = 0; offset < packedArray.length; offset += 2) {
+            if (packedArray[offset] == null) {
+                @SuppressWarnings("unchecked")
+                final Node<K, V> child = (Node<K, V>)packedArray[offset + 1];
+                if (child.containsValue(value)) {
+                    return true;
+                }
+            } else if (packedArray[offset + 1].equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int slotCount() {
+        return packedArray.length >>> 1;
+    }
+
+    @Override
+    public Object slotKey(int slot) {
+        return packedArray[slot << 1];
+    }
+
+    @Override
+    public Object slotValue(int slot) {
+        return packedArray[(slot << 1) + 1];
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof WideNode)) return false;
+        final WideNode<?, ?> that = (WideNode<?, ?>) o;
+        if (mask != that.mask) return false;
+        for (int i = 0; i < packedArray.length; i++) {
+            if (!Objects.equals(packedArray[i], that.packedArray[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = 1;
+        result = result * 31 + Long.hashCode(mask);
+        for (final Object el : packedArray) {
+            result = result * 31 + (el == null ? 0 : el.hashCode());
+        }
+        return result;
+    }
+
+    /**
+     * Checks this subtree, where suffix holds the hash bits which lead to this node, in their places in the hash
+     */
+    @Override
+    public int assertValidAndComputeSize(int suffix, int depth) {
+        int total = 0;
+        assertThat("only the root may be empty", mask != 0 || depth == 0);
+        assertNotNull("packedArray must not be null", packedArray);
+        assertEqual("packedArray length must match set mask bits", packedArray.length, Long.bitCount(mask) * 2);
+        assertNotNull("hashPrefixes must not be null", hashPrefixes);
+        assertEqual("hashPrefixes length must match set mask bits", hashPrefixes.length, Long.bitCount(mask));
+        assertThat("a node below the root must not hold a lone entry", depth == 0 || packedArray.length > 2 || packedArray[0] == null);
+        final int pathMask = depth == 0 ? 0 : -1 << (32 - 6 * depth);
+        long remaining = mask;
+        for (int offset = 0; offset < packedArray.length; offset += 2) {
+            final int bitIndex = Long.numberOfTrailingZeros(remaining);
+            remaining &= remaining - 1;
+            final Object keyOrNull = packedArray[offset];
+            final Object valueOrChild = packedArray[offset + 1];
+            final int childSuffix = suffix | ((bitIndex << 26) >>> (6 * depth));
+            if (keyOrNull == null) {
+                @SuppressWarnings("unchecked")
+                final Node<K, V> child = (Node<K, V>)valueOrChild;
+                if (depth + 1 == MAX_DEPTH) {
+                    assertValidType("child", valueOrChild, false, PackedArrayCollisionNode.class);
+                    for (int slot = 0; slot < child.slotCount(); slot++) {
+                        assertEqualBinary("colliding keys must have the hash of their location",
+                                childSuffix, computeSmearHash(child.slotKey(slot)));
+                    }
+                    total += child.slotCount();
+                } else {
+                    assertValidType("child", valueOrChild, false, WideNode.class);
+                    total += child.assertValidAndComputeSize(childSuffix, depth + 1);
+                }
+            } else {
+                total++;
+                assertThat("if key is not null, value must not be a node", !(valueOrChild instanceof Node));
+                final int hash = computeSmearHash(keyOrNull);
+                assertEqualBinary("hash must match structural location", suffix, hash & pathMask);
+                assertEqualBinary("stored hash prefix must match the key", (hash << (3 * depth)) << (3 * depth), hashPrefixes[offset >>> 1]);
+                assertEqual("stored hash prefix must match the slot", bitIndex, hashPrefixes[offset >>> 1] >>> 26);
+            }
+        }
+        return total;
+    }
+
+}
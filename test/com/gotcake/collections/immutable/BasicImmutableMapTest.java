@@ -205,7 +205,34 @@ public class BasicImmutableMapTest {
         assertSame(ImmutableMap.of(), map);
     }
 
+    @Test
+    public void testRemoveCollapsesIntoRoot() throws Exception {
+        // find two keys that share the same first 5 hash bits, so the root only holds a single child
+        final String key1 = "a0";
+        final int bitIndex = Util.computeSmearHash(key1) >>> 27;
+        String key2 = null;
+        for (int i = 1; key2 == null; i++) {
+            final String candidate = "a" + i;
+            if (Util.computeSmearHash(candidate) >>> 27 == bitIndex) {
+                key2 = candidate;
+            }
+        }
+        ImmutableMap<String, Integer> map = ImmutableMap.of(key1, 1, key2, 2);
+        Validatable.tryAssertValid(map);
+        map = map.delete(key2);
+        Validatable.tryAssertValid(map);
+        assertEquals(1, map.size());
+        assertEquals((Integer)1, map.get(key1));
+        assertEquals(ImmutableMap.of(key1, 1), map);
+    }
 
+    @Test
+    public void testHashCollisionInsertionOrder() throws Exception {
+        final ImmutableMap<String, Integer> map1 = ImmutableMap.of("Aa", 1, "BB", 2).set("foo", 3);
+        final ImmutableMap<String, Integer> map2 = ImmutableMap.of("BB", 2, "Aa", 1).set("foo", 3);
+        assertEquals(map1, map2);
+        assertEquals(map1.hashCode(), map2.hashCode());
+        assertNotEquals(map1, map2.set("Aa", 4));
+    }
 
-
-}
\ No newline at end of file
+}
@@ -95,61 +95,68 @@ public class ImmutableMapPartiyTest {
 
     @Test
     public void testParity1() throws Exception {
-        runParityTest("test/resources/parity_test_data_1.txt", ImmutableMap.of(), new HashMap<>());
+        TestHelper.runParityTest("test/resources/parity_test_data_1.txt", ImmutableMap.of(), new HashMap<>());
     }
 
     @Test
     public void testParity2() throws Exception {
-        runParityTest("test/resources/parity_test_data_2.txt", ImmutableMap.of(), new HashMap<>());
+        TestHelper.runParityTest("test/resources/parity_test_data_2.txt", ImmutableMap.of(), new HashMap<>());
     }
 
     @Test
     public void testParity3() throws Exception {
-        runParityTest("test/resources/parity_test_data_3.txt", ImmutableMap.of(), new HashMap<>());
+        TestHelper.runParityTest("test/resources/parity_test_data_3.txt", ImmutableMap.of(), new HashMap<>());
     }
 
-    private static void runParityTest(final String file, ImmutableMap<String, String> map, final Map<String, String> reference) throws IOException {
+    @Test
+    public void testParityTransient() throws Exception {
+        runTransientParityTest("test/resources/parity_test_data_1.txt");
+    }
+
+    /**
+     * Replays the parity data through a TransientMap, taking a persistent snapshot at every check and making sure
+     * earlier snapshots are never changed by later edits
+     */
+    private static void runTransientParityTest(final String file) throws IOException {
+        final Map<String, String> reference = new HashMap<>();
+        final List<ImmutableMap<String, String>> snapshots = new ArrayList<>();
+        final List<Map<String, String>> expectedSnapshots = new ArrayList<>();
+        TransientMap<String, String> map = ImmutableMap.<String, String>of().toTransient();
         try (final BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            String line, key, val;
-            ImmutableMap<String, String> tmp;
+            String line;
             while ((line = reader.readLine()) != null) {
                 final String trimmed = line.trim();
                 if (trimmed.isEmpty()) {
                     continue;
                 }
                 final String[] parts = trimmed.split("\\s+");
-                if (parts.length == 0) {
-                    continue;
-                }
                 switch (parts[0]) {
                     case "c":
-                        Validatable.tryAssertValid(map);
-                        assertTrue(map.equals(reference));
+                        final ImmutableMap<String, String> snapshot = map.persistent();
+                        Validatable.tryAssertValid(snapshot);
+                        assertTrue(snapshot.equals(reference));
+                        if (snapshots.size() < 100) {
+                            snapshots.add(snapshot);
+                            expectedSnapshots.add(new HashMap<>(reference));
+                        }
+                        map = snapshot.toTransient();
                         break;
                     case "r":
-                        key = parts[1];
-                        tmp = map.delete(key);
-                        if (reference.remove(key) == null) {
-                            assertSame(map, tmp);
-                        } else {
-                            assertNotSame(map, tmp);
-                            map = tmp;
-                        }
+                        map.delete(parts[1]);
+                        reference.remove(parts[1]);
+                        assertEquals(reference.size(), map.size());
                         break;
                     case "p":
-                        key = parts[1];
-                        val = parts[2];
-                        tmp = map.set(key, val);
-                        if (val.equals(reference.put(key, val))) {
-                            assertSame(map, tmp);
-                        } else {
-                            assertNotSame(map, tmp);
-                            map = tmp;
-                        }
+                        map.set(parts[1], parts[2]);
+                        reference.put(parts[1], parts[2]);
+                        assertEquals(reference.size(), map.size());
                         break;
                 }
             }
         }
+        for (int i = 0; i < snapshots.size(); i++) {
+            assertTrue(snapshots.get(i).equals(expectedSnapshots.get(i)));
+        }
     }
 
 }
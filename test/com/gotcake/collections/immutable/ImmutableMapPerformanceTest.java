@@ -4,9 +4,10 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
-import java.util.HashMap;
-import java.util.Random;
-import java.util.TreeMap;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.stream.StreamSupport;
 
 /**
  * A set of micro-benchmarks for ImmutableTrieMap vs other types of maps
@@ -52,6 +53,542 @@ public class ImmutableMapPerformanceTest {
         System.out.println("ImmutableTrieMap GET: " + (System.nanoTime() - time) / 1000000f);
     }
 
+    @Test
+    public void testTrieMapBulkLoad() {
+        final HashMap<String, Integer> source = new HashMap<>();
+        for (int i = 0; i < KEYS.length; i++) {
+            source.put(KEYS[i], i);
+        }
+        long time = System.nanoTime();
+        ImmutableMap<String, Integer> map = ImmutableMap.of();
+        for (final Map.Entry<String, Integer> entry: source.entrySet()) {
+            map = map.set(entry.getKey(), entry.getValue());
+        }
+        System.out.println("ImmutableTrieMap LOAD (set one by one): " + (System.nanoTime() - time) / 1000000f);
+        time = System.nanoTime();
+        map = ImmutableMap.of(source);
+        System.out.println("ImmutableTrieMap LOAD (bulk): " + (System.nanoTime() - time) / 1000000f);
+    }
+
+    /**
+     * Gets the number of bytes allocated by this thread so far, or 0 if the JVM can't tell
+     */
+    private static long allocatedBytes() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    @Test
+    public void testTrieMapIteration() {
+        final Integer[] values = new Integer[KEYS.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i;
+        }
+        final ImmutableMap<String, Integer> map = ImmutableMap.ofArrays(KEYS, values);
+        for (int j = 0; j < 5; j++) {
+            long time = System.nanoTime();
+            int count = 0;
+            final Iterator<String> keyIterator = map.keyIterator();
+            while (keyIterator.hasNext()) {
+                keyIterator.next();
+                count++;
+            }
+            System.out.println("ImmutableTrieMap ITERATE (keys): " + (System.nanoTime() - time) / 1000000f);
+            time = System.nanoTime();
+            long sum = 0;
+            final Iterator<Integer> valueIterator = map.valueIterator();
+            while (valueIterator.hasNext()) {
+                sum += valueIterator.next();
+            }
+            System.out.println("ImmutableTrieMap ITERATE (values): " + (System.nanoTime() - time) / 1000000f);
+            time = System.nanoTime();
+            long allocated = allocatedBytes();
+            for (final Map.Entry<String, Integer> entry: map.entrySet()) {
+                sum += entry.getValue();
+            }
+            System.out.println("ImmutableTrieMap ITERATE (entries): " + (System.nanoTime() - time) / 1000000f +
+                    ", allocated bytes: " + (allocatedBytes() - allocated));
+            time = System.nanoTime();
+            allocated = allocatedBytes();
+            final MapCursor<String, Integer> cursor = map.cursor();
+            while (cursor.advance()) {
+                sum += cursor.value();
+            }
+            System.out.println("ImmutableTrieMap ITERATE (cursor): " + (System.nanoTime() - time) / 1000000f +
+                    ", allocated bytes: " + (allocatedBytes() - allocated));
+            // a fresh map, so the hash isn't cached yet
+            final ImmutableMap<String, Integer> copy = ImmutableMap.ofArrays(KEYS, values);
+            time = System.nanoTime();
+            copy.hashCode();
+            System.out.println("ImmutableTrieMap ITERATE (hashCode): " + (System.nanoTime() - time) / 1000000f);
+        }
+    }
+
+    @Test
+    public void testTrieMapMerge() {
+        final Integer[] values = new Integer[KEYS.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i;
+        }
+        final ImmutableMap<String, Integer> base = ImmutableMap.ofArrays(KEYS, values);
+        final HashMap<String, Integer> overlaySource = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            overlaySource.put(KEYS[i * 997 % KEYS.length], -i);
+            overlaySource.put("overlay" + i, i);
+        }
+        final ImmutableMap<String, Integer> overlay = ImmutableMap.of(overlaySource);
+        long time = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            base.setAll(overlay);
+        }
+        System.out.println("ImmutableTrieMap MERGE (setAll x 100): " + (System.nanoTime() - time) / 1000000f);
+        time = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            base.merge(overlay, (a, b) -> b);
+        }
+        System.out.println("ImmutableTrieMap MERGE (structural x 100): " + (System.nanoTime() - time) / 1000000f);
+    }
+
+    @Test
+    public void testTrieMapDiff() {
+        final Integer[] values = new Integer[KEYS.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i;
+        }
+        final ImmutableMap<String, Integer> before = ImmutableMap.ofArrays(KEYS, values);
+        ImmutableMap<String, Integer> after = before;
+        for (int i = 0; i < 100; i++) {
+            after = after.set(KEYS[i * 997], -i).delete(KEYS[i * 991 + 1]).set("new" + i, i);
+        }
+        final int[] counts = new int[1];
+        final ImmutableMap.DiffVisitor<String, Integer> visitor = new ImmutableMap.DiffVisitor<String, Integer>() {
+            @Override public void added(String key, Integer value) { counts[0]++; }
+            @Override public void removed(String key, Integer value) { counts[0]++; }
+            @Override public void changed(String key, Integer oldValue, Integer newValue) { counts[0]++; }
+        };
+        long time = System.nanoTime();
+        for (final Map.Entry<String, Integer> entry: before.entrySet()) {
+            if (!entry.getValue().equals(after.get(entry.getKey()))) counts[0]++;
+        }
+        for (final Map.Entry<String, Integer> entry: after.entrySet()) {
+            if (!before.containsKey(entry.getKey())) counts[0]++;
+        }
+        System.out.println("ImmutableTrieMap DIFF (entrySet): " + (System.nanoTime() - time) / 1000000f);
+        time = System.nanoTime();
+        before.diff(after, visitor);
+        System.out.println("ImmutableTrieMap DIFF (structural): " + (System.nanoTime() - time) / 1000000f);
+    }
+
+    @Test
+    public void testTrieSetIntersectSubtract() {
+        final ImmutableSet<String> a = ImmutableSet.of(Arrays.asList(KEYS).subList(0, 100000));
+        final ImmutableSet<String> b = ImmutableSet.of(Arrays.asList(KEYS).subList(50000, 150000));
+        long time = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            a.filter(b::contains);
+            ImmutableSet<String> set = a;
+            for (final String element: b) {
+                set = set.delete(element);
+            }
+        }
+        System.out.println("ImmutableTrieSet INTERSECT+SUBTRACT (filter/delete x 10): " + (System.nanoTime() - time) / 1000000f);
+        time = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            a.intersect(b);
+            a.subtract(b);
+        }
+        System.out.println("ImmutableTrieSet INTERSECT+SUBTRACT (structural x 10): " + (System.nanoTime() - time) / 1000000f);
+    }
+
+    @Test
+    public void testTrieMapHashCode() {
+        final Integer[] values = new Integer[KEYS.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i;
+        }
+        ImmutableMap<String, Integer> map = ImmutableMap.ofArrays(KEYS, values);
+        long time = System.nanoTime();
+        int hash = map.hashCode();
+        System.out.println("ImmutableTrieMap HASHCODE (first): " + (System.nanoTime() - time) / 1000000f);
+        time = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            map = map.set(KEYS[i], -i);
+            hash += map.hashCode();
+        }
+        System.out.println("ImmutableTrieMap HASHCODE (set + hashCode x 1000): " + (System.nanoTime() - time) / 1000000f);
+    }
+
+    @Test
+    public void testTrieMapParallelStream() {
+        final Integer[] values = new Integer[KEYS.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i;
+        }
+        final ImmutableMap<String, Integer> map = ImmutableMap.ofArrays(KEYS, values);
+        for (int i = 0; i < 3; i++) {
+            long time = System.nanoTime();
+            StreamSupport.stream(Spliterators.spliterator(map.keyIterator(), map.size(), Spliterator.IMMUTABLE), true)
+                    .mapToInt(String::length).sum();
+            System.out.println("ImmutableTrieMap PARALLEL STREAM (iterator spliterator): " + (System.nanoTime() - time) / 1000000f);
+            time = System.nanoTime();
+            map.keySet().parallelStream().mapToInt(String::length).sum();
+            System.out.println("ImmutableTrieMap PARALLEL STREAM (node spliterator): " + (System.nanoTime() - time) / 1000000f);
+        }
+    }
+
+    @Test
+    public void testTrieMapParallelReduce() {
+        final Integer[] values = new Integer[KEYS.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i;
+        }
+        final ImmutableMap<String, Integer> map = ImmutableMap.ofArrays(KEYS, values);
+        for (int i = 0; i < 3; i++) {
+            long time = System.nanoTime();
+            final long[] sum = new long[1];
+            map.forEach((key, value) -> sum[0] += key.length() + value);
+            System.out.println("ImmutableTrieMap REDUCE (forEach): " + (System.nanoTime() - time) / 1000000f);
+            time = System.nanoTime();
+            map.parallelReduce(0L, (key, value) -> (long)(key.length() + value), Long::sum);
+            System.out.println("ImmutableTrieMap REDUCE (parallelReduce): " + (System.nanoTime() - time) / 1000000f);
+        }
+    }
+
+    @Test
+    public void testTrieMapUpdateAll() {
+        final Integer[] values = new Integer[KEYS.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i;
+        }
+        final ImmutableMap<String, Integer> map = ImmutableMap.ofArrays(KEYS, values);
+        for (int i = 0; i < 3; i++) {
+            long time = System.nanoTime();
+            final TransientMap<String, Integer> transientMap = map.toTransient();
+            for (final String key: KEYS) {
+                transientMap.update(key, (k, value) -> value == null || value % 3 == 0 ? null : value + 1);
+            }
+            transientMap.persistent();
+            System.out.println("ImmutableTrieMap UPDATE_ALL (transient update): " + (System.nanoTime() - time) / 1000000f);
+            time = System.nanoTime();
+            map.updateAll((key, value) -> value % 3 == 0 ? null : value + 1);
+            System.out.println("ImmutableTrieMap UPDATE_ALL (single pass): " + (System.nanoTime() - time) / 1000000f);
+            time = System.nanoTime();
+            map.mapValues(value -> value + 1);
+            System.out.println("ImmutableTrieMap UPDATE_ALL (mapValues): " + (System.nanoTime() - time) / 1000000f);
+        }
+    }
+
+    @Test
+    public void testTrieMapParallelUpdateAll() {
+        final Integer[] values = new Integer[KEYS.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i;
+        }
+        final ImmutableMap<String, Integer> map = ImmutableMap.ofArrays(KEYS, values);
+        for (int i = 0; i < 3; i++) {
+            long time = System.nanoTime();
+            map.updateAll((key, value) -> value % 2 == 0 ? value + 1 : value);
+            System.out.println("ImmutableTrieMap UPDATE_ALL (updateAll): " + (System.nanoTime() - time) / 1000000f);
+            time = System.nanoTime();
+            map.parallelUpdateAll((key, value) -> value % 2 == 0 ? value + 1 : value);
+            System.out.println("ImmutableTrieMap UPDATE_ALL (parallelUpdateAll): " + (System.nanoTime() - time) / 1000000f);
+        }
+    }
+
+    @Test
+    public void testTrieMapFixedArityNodes() {
+        final Integer[] values = new Integer[KEYS.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i;
+        }
+        try {
+            for (int j = 0; j < 3; j++) {
+                for (final boolean specialize: new boolean[]{ false, true }) {
+                    NodeFactory.specializeSmallNodes = specialize;
+                    final ImmutableMap<String, Integer> map = ImmutableMap.ofArrays(KEYS, values);
+                    final String label = specialize ? "fixed arity nodes" : "packed array nodes";
+                    long time = System.nanoTime();
+                    for (int i = 0; i < KEYS.length; i++) {
+                        map.get(KEYS[i]);
+                    }
+                    System.out.println("ImmutableTrieMap GET (" + label + "): " + (System.nanoTime() - time) / 1000000f);
+                    time = System.nanoTime();
+                    ImmutableMap<String, Integer> updated = map;
+                    for (int i = 0; i < KEYS.length; i += 4) {
+                        updated = updated.set(KEYS[i], -i);
+                    }
+                    System.out.println("ImmutableTrieMap PUT (" + label + "): " + (System.nanoTime() - time) / 1000000f);
+                }
+            }
+        } finally {
+            NodeFactory.specializeSmallNodes = false;
+        }
+    }
+
+    /**
+     * Adds the depth of every entry below the node to depths[0], and the deepest level seen to depths[1]
+     */
+    private static void sumEntryDepths(final Node<?, ?> node, final int depth, final long[] depths) {
+        depths[1] = Math.max(depths[1], depth);
+        for (int slot = 0; slot < node.slotCount(); slot++) {
+            if (node.slotKey(slot) == null) {
+                sumEntryDepths((Node<?, ?>)node.slotValue(slot), depth + 1, depths);
+            } else {
+                depths[0] += depth;
+            }
+        }
+    }
+
+    private static String describeDepth(final Node<?, ?> root, final int size) {
+        final long[] depths = new long[2];
+        sumEntryDepths(root, 1, depths);
+        return "average depth: " + (float)depths[0] / size + ", max depth: " + depths[1];
+    }
+
+    /**
+     * Compares 32-way and 64-way tries by depth, lookup latency, and the cost of copying the path of a single set,
+     * for sizes from 1k growing tenfold up to the com.gotcake.collections.immutable.wideBenchmarkMaxSize property.
+     * It is 100k by default to keep the suite quick; set it to up to 50M to see the tries outgrow the caches.
+     */
+    @Test
+    public void testTrieMapWideNodes() {
+        final int maxSize = Integer.getInteger("com.gotcake.collections.immutable.wideBenchmarkMaxSize", 100000);
+        final Random random = new Random(872341);
+        for (int size = 1000; size <= maxSize; size = size < maxSize ? Math.min(size * 10, maxSize) : maxSize + 1) {
+            final Integer[] keys = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = random.nextInt();
+            }
+            for (final boolean wide: new boolean[]{ false, true }) {
+                final String label = (wide ? "64-way" : "32-way") + ", " + size + " entries";
+                final TransientMap<Integer, Integer> batch = (wide ? ImmutableMap.<Integer, Integer>wide() : ImmutableMap.<Integer, Integer>of()).toTransient();
+                for (int i = 0; i < size; i++) {
+                    batch.set(keys[i], i);
+                }
+                final ImmutableMap<Integer, Integer> map = batch.persistent();
+                final Node<Integer, Integer> root = TestHelper.rootOf(map);
+                System.out.println("ImmutableTrieMap DEPTH (" + label + "): " + describeDepth(root, map.size()));
+                final int lookups = Math.max(size, 1000000);
+                long sum = 0;
+                long time = System.nanoTime();
+                for (int i = 0; i < lookups; i++) {
+                    final Integer value = map.get(keys[i % size]);
+                    sum += value == null ? 0 : value;
+                }
+                System.out.println("ImmutableTrieMap GET (" + label + "): " + (float)(System.nanoTime() - time) / lookups + " ns/op, checksum " + sum);
+                final int sets = Math.min(size, 100000);
+                long allocated = allocatedBytes();
+                time = System.nanoTime();
+                for (int i = 0; i < sets; i++) {
+                    // each set copies the path from the same root, so the copies don't accumulate
+                    map.set(keys[i], -i);
+                }
+                System.out.println("ImmutableTrieMap PUT (" + label + "): " + (float)(System.nanoTime() - time) / sets + " ns/op, " +
+                        (allocatedBytes() - allocated) / sets + " bytes/op");
+            }
+        }
+    }
+
+    /**
+     * Compares lookups in a trie, the same map frozen, and a HashMap, for keys which are all present and keys which
+     * are all missing
+     */
+    @Test
+    public void testFrozenMapLookups() {
+        final int lookups = 2000000;
+        for (int size = 1000; size <= 1000000; size *= 10) {
+            final HashMap<String, Integer> hashMap = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                hashMap.put(KEYS[i], i);
+            }
+            final ImmutableMap<String, Integer> trie = ImmutableMap.of(hashMap);
+            final ImmutableMap<String, Integer> frozen = trie.freeze();
+            final String[] misses = Arrays.copyOfRange(KEYS, KEYS.length - size, KEYS.length);
+            final List<Map<String, Integer>> maps = Arrays.asList(trie, frozen, hashMap);
+            final List<String> labels = Arrays.asList("ImmutableTrieMap", "FrozenImmutableMap", "HashMap");
+            // the first rounds warm up the JIT
+            for (int round = 0; round < 3; round++) {
+                for (int m = 0; m < maps.size(); m++) {
+                    final Map<String, Integer> map = maps.get(m);
+                    long sum = 0;
+                    long time = System.nanoTime();
+                    for (int i = 0; i < lookups; i++) {
+                        final Integer value = map.get(KEYS[i % size]);
+                        sum += value == null ? 0 : value;
+                    }
+                    final float hitTime = (float)(System.nanoTime() - time) / lookups;
+                    time = System.nanoTime();
+                    for (int i = 0; i < lookups; i++) {
+                        sum += map.get(misses[i % size]) == null ? 0 : 1;
+                    }
+                    final float missTime = (float)(System.nanoTime() - time) / lookups;
+                    if (round == 2) {
+                        System.out.println(labels.get(m) + " GET (" + size + " entries): hits " + hitTime + " ns/op, misses " +
+                                missTime + " ns/op, checksum " + sum);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Compares lookups where 19 in 20 keys are missing, in a trie and a frozen map with and without a lookup filter,
+     * a HashMap, and a set with and without a lookup filter
+     */
+    @Test
+    public void testLookupFilterMisses() {
+        final int lookups = 2000000;
+        for (int size = 1000; size <= 1000000; size *= 10) {
+            final HashMap<String, Integer> hashMap = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                hashMap.put(KEYS[i], i);
+            }
+            final String[] keys = new String[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = i % 20 == 0 ? KEYS[i] : KEYS[KEYS.length - 1 - i];
+            }
+            final ImmutableMap<String, Integer> trie = ImmutableMap.of(hashMap);
+            final ImmutableMap<String, Integer> frozen = trie.freeze();
+            final ImmutableSet<String> set = ImmutableSet.of(hashMap.keySet());
+            final List<Map<String, Integer>> maps = Arrays.asList(trie, trie.withLookupFilter(), frozen,
+                    frozen.withLookupFilter(), hashMap);
+            final List<String> labels = Arrays.asList("ImmutableTrieMap", "ImmutableTrieMap with filter",
+                    "FrozenImmutableMap", "FrozenImmutableMap with filter", "HashMap");
+            final List<Set<String>> sets = Arrays.asList(set, set.withLookupFilter());
+            final List<String> setLabels = Arrays.asList("ImmutableSet", "ImmutableSet with filter");
+            // the first rounds warm up the JIT
+            for (int round = 0; round < 3; round++) {
+                for (int m = 0; m < maps.size(); m++) {
+                    final Map<String, Integer> map = maps.get(m);
+                    long sum = 0;
+                    final long time = System.nanoTime();
+                    for (int i = 0; i < lookups; i++) {
+                        final Integer value = map.get(keys[i % size]);
+                        sum += value == null ? 0 : value;
+                    }
+                    if (round == 2) {
+                        System.out.println(labels.get(m) + " GET (" + size + " entries, 95% misses): " +
+                                (float)(System.nanoTime() - time) / lookups + " ns/op, checksum " + sum);
+                    }
+                }
+                for (int s = 0; s < sets.size(); s++) {
+                    final Set<String> lookupSet = sets.get(s);
+                    long sum = 0;
+                    final long time = System.nanoTime();
+                    for (int i = 0; i < lookups; i++) {
+                        sum += lookupSet.contains(keys[i % size]) ? 1 : 0;
+                    }
+                    if (round == 2) {
+                        System.out.println(setLabels.get(s) + " CONTAINS (" + size + " elements, 95% misses): " +
+                                (float)(System.nanoTime() - time) / lookups + " ns/op, checksum " + sum);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A key whose hashCode and equals walk all of its parts, like a composite key would
+     */
+    private static final class CompositeKey {
+
+        static long equalsCalls = 0;
+
+        private final String[] parts;
+
+        CompositeKey(final String... parts) {
+            this.parts = parts;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            equalsCalls++;
+            return o instanceof CompositeKey && Arrays.equals(parts, ((CompositeKey)o).parts);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(parts);
+        }
+
+    }
+
+    @Test
+    public void testTrieMapCompositeKeyMisses() {
+        // the keys share their leading parts, so equals has to compare most of each key
+        final String shared = KEYS_SMALL[0];
+        final int count = 500000;
+        final Map<CompositeKey, Integer> source = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            source.put(new CompositeKey(shared, shared, KEYS[i]), i);
+        }
+        final CompositeKey[] misses = new CompositeKey[count];
+        for (int i = 0; i < count; i++) {
+            misses[i] = new CompositeKey(shared, shared, KEYS[count + i]);
+        }
+        final ImmutableMap<CompositeKey, Integer> map = ImmutableMap.of(source);
+        for (int j = 0; j < 3; j++) {
+            CompositeKey.equalsCalls = 0;
+            long time = System.nanoTime();
+            for (final CompositeKey key: misses) {
+                map.get(key);
+            }
+            System.out.println("ImmutableTrieMap GET (composite key misses): " + (System.nanoTime() - time) / 1000000f +
+                    ", equals calls: " + CompositeKey.equalsCalls);
+            CompositeKey.equalsCalls = 0;
+            time = System.nanoTime();
+            for (final CompositeKey key: misses) {
+                source.get(key);
+            }
+            System.out.println("HashMap GET (composite key misses): " + (System.nanoTime() - time) / 1000000f +
+                    ", equals calls: " + CompositeKey.equalsCalls);
+        }
+    }
+
+    /**
+     * Fills a single bucket with keys of the same hash, as an attacker picking keys could, and measures the cost per
+     * operation as the bucket grows. String keys switch to the sorted layout, while CompositeKeys aren't Comparable
+     * and are still scanned, which shows the linear cost the sorted layout avoids. Since the scans make filling the
+     * bucket quadratic, it only grows to 1k keys unless the com.gotcake.collections.immutable.floodingBenchmarkMaxSize
+     * property asks for more, up to 16k.
+     */
+    @Test
+    public void testTrieMapHashFlooding() throws IOException {
+        final int maxSize = Integer.getInteger("com.gotcake.collections.immutable.floodingBenchmarkMaxSize", 1024);
+        final List<String> strings = TestHelper.generateCollidingStrings(maxSize + 1);
+        for (int size = 16; size < strings.size(); size *= 4) {
+            for (final boolean comparable: new boolean[]{ true, false }) {
+                final Object[] keys = new Object[size + 1];
+                for (int i = 0; i <= size; i++) {
+                    keys[i] = comparable ? strings.get(i) : new CompositeKey(strings.get(i));
+                }
+                final String label = (comparable ? "String" : "CompositeKey") + ", " + size + " colliding keys";
+                long time = System.nanoTime();
+                final TransientMap<Object, Integer> batch = ImmutableMap.<Object, Integer>of().toTransient();
+                for (int i = 0; i < size; i++) {
+                    batch.set(keys[i], i);
+                }
+                final ImmutableMap<Object, Integer> map = batch.persistent();
+                System.out.println("ImmutableTrieMap PUT (" + label + "): " + (float)(System.nanoTime() - time) / size + " ns/op");
+                final int lookups = Math.max(size, 100000);
+                long sum = 0;
+                time = System.nanoTime();
+                for (int i = 0; i < lookups; i++) {
+                    sum += map.get(keys[i % size]);
+                }
+                System.out.println("ImmutableTrieMap GET (" + label + "): " + (float)(System.nanoTime() - time) / lookups + " ns/op, checksum " + sum);
+                time = System.nanoTime();
+                for (int i = 0; i < lookups; i++) {
+                    map.get(keys[size]);
+                }
+                System.out.println("ImmutableTrieMap GET (" + label + ", misses): " + (float)(System.nanoTime() - time) / lookups + " ns/op");
+            }
+        }
+    }
+
     @Test
     public void testHashMap() {
         HashMap<String, Integer> map = new HashMap<>();
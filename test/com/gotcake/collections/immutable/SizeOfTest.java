@@ -3,6 +3,8 @@ package com.gotcake.collections.immutable;
 import com.javamex.classmexer.MemoryUtil;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
 /**
@@ -27,4 +29,80 @@ public class SizeOfTest {
         }
     }
 
+    @Test
+    public void testSizeWithFixedArityNodes() {
+        final boolean specializeSmallNodes = NodeFactory.specializeSmallNodes;
+        SmallImmutableMap.enabled = false;
+        try {
+            for (final boolean specialize: new boolean[]{ false, true }) {
+                NodeFactory.specializeSmallNodes = specialize;
+                ImmutableMap<Integer, Integer> map = ImmutableMap.of();
+                final Random random = new Random(0x45181145);
+                for (int i = 0; i < 150000; i++) {
+                    map = map.set(random.nextInt(), random.nextInt());
+                    double log10 = Math.log10(map.size());
+                    if (Math.floor(log10) == log10) {
+                        final long bytes = MemoryUtil.deepMemoryUsageOf(map);
+                        System.out.println("sizeof(" + map.size() + ", specialized=" + specialize + "): " + bytes +
+                                ", per entry: " + (float)bytes / map.size());
+                    }
+                }
+            }
+        } finally {
+            NodeFactory.specializeSmallNodes = specializeSmallNodes;
+            SmallImmutableMap.enabled = true;
+        }
+    }
+
+    @Test
+    public void testSmallCollectionSize() {
+        final Random random = new Random(0x45181145);
+        final List<Integer> keys = new ArrayList<>();
+        final List<Integer> values = new ArrayList<>();
+        try {
+            while (keys.size() < SmallImmutableMap.MAX_ENTRIES) {
+                keys.add(random.nextInt());
+                values.add(random.nextInt());
+                // the keys and values themselves are measured separately, so only the collections are counted
+                final long keyBytes = MemoryUtil.deepMemoryUsageOfAll(keys);
+                final long valueBytes = MemoryUtil.deepMemoryUsageOfAll(values);
+                final long[] mapBytes = new long[2];
+                final long[] setBytes = new long[2];
+                for (final boolean small: new boolean[]{ false, true }) {
+                    SmallImmutableMap.enabled = small;
+                    ImmutableMap<Integer, Integer> map = ImmutableMap.of();
+                    for (int i = 0; i < keys.size(); i++) {
+                        map = map.set(keys.get(i), values.get(i));
+                    }
+                    mapBytes[small ? 1 : 0] = MemoryUtil.deepMemoryUsageOf(map) - keyBytes - valueBytes;
+                    setBytes[small ? 1 : 0] = MemoryUtil.deepMemoryUsageOf(ImmutableSet.of(keys)) - keyBytes;
+                }
+                System.out.println("sizeof(" + keys.size() + "): map trie " + mapBytes[0] + ", flat " + mapBytes[1] +
+                        "; set trie " + setBytes[0] + ", flat " + setBytes[1]);
+            }
+        } finally {
+            SmallImmutableMap.enabled = true;
+        }
+    }
+
+    @Test
+    public void testSetSize() {
+        final Random random = new Random(0x45181145);
+        final List<Integer> elements = new ArrayList<>();
+        for (int size = 10; size <= 1000000; size *= 10) {
+            while (elements.size() < size) {
+                elements.add(random.nextInt());
+            }
+            // the elements themselves are measured separately, so only the trie is counted
+            final long elementBytes = MemoryUtil.deepMemoryUsageOfAll(elements);
+            final ImmutableSet<Integer> mapBacked = new MapBackedImmutableTrieSet<>(new RegularImmutableTrieMap<>(elements, Boolean.TRUE));
+            final ImmutableSet<Integer> trieSet = ImmutableSet.of(elements);
+            final long mapBackedBytes = MemoryUtil.deepMemoryUsageOf(mapBacked) - elementBytes;
+            final long trieSetBytes = MemoryUtil.deepMemoryUsageOf(trieSet) - elementBytes;
+            System.out.println("sizeof(" + trieSet.size() + "): map backed " + mapBackedBytes +
+                    ", per element: " + (float)mapBackedBytes / mapBacked.size() +
+                    "; trie set " + trieSetBytes + ", per element: " + (float)trieSetBytes / trieSet.size());
+        }
+    }
+
 }
@@ -0,0 +1,125 @@
+package com.gotcake.collections.immutable;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.util.*;
+
+import static com.gotcake.collections.immutable.TestHelper.rootOf;
+import static org.junit.Assert.*;
+
+/**
+ * Tests switching between PackedArrayDualNode and ArrayNode as the root fills up and empties
+ * @author Aaron Cake
+ */
+public class TestArrayNode {
+
+    // these tests look at the roots of tries too small to be kept as tries otherwise
+    @Rule
+    public final TestRule smallCollections = TestHelper.disableSmallCollections();
+
+    /**
+     * Whether the node holds its slots packed, as a PackedArrayDualNode or a fixed arity node standing in for a small one
+     */
+    private static boolean isPacked(final Node<?, ?> node) {
+        return node instanceof PackedArrayDualNode || node instanceof FixedArityNode;
+    }
+
+    /**
+     * Picks a key for each slot of the root, in slot order
+     */
+    private static List<Integer> keyPerRootSlot() {
+        final Integer[] keys = new Integer[32];
+        int found = 0;
+        for (int i = 0; found < 32; i++) {
+            final int bitIndex = Util.computeSmearHash(i) >>> 27;
+            if (keys[bitIndex] == null) {
+                keys[bitIndex] = i;
+                found++;
+            }
+        }
+        return Arrays.asList(keys);
+    }
+
+    @Test
+    public void testSwitchesWithHysteresis() {
+        final List<Integer> keys = keyPerRootSlot();
+        ImmutableMap<Integer, Integer> map = ImmutableMap.of();
+        for (int i = 0; i < ArrayNode.MIN_SLOTS - 1; i++) {
+            map = map.set(keys.get(i), i);
+            assertTrue(isPacked(rootOf(map)));
+        }
+        for (int i = ArrayNode.MIN_SLOTS - 1; i < 32; i++) {
+            map = map.set(keys.get(i), i);
+            assertTrue(rootOf(map) instanceof ArrayNode);
+            Validatable.tryAssertValid(map);
+        }
+        // shrinking stays dense until few enough slots are left
+        for (int i = 31; i > ArrayNode.MAX_SLOTS_TO_PACK; i--) {
+            map = map.delete(keys.get(i));
+            assertTrue(rootOf(map) instanceof ArrayNode);
+            Validatable.tryAssertValid(map);
+        }
+        map = map.delete(keys.get(ArrayNode.MAX_SLOTS_TO_PACK));
+        assertTrue(isPacked(rootOf(map)));
+        Validatable.tryAssertValid(map);
+        for (int i = 0; i < 32; i++) {
+            assertEquals(i < ArrayNode.MAX_SLOTS_TO_PACK ? Integer.valueOf(i) : null, map.get(keys.get(i)));
+        }
+    }
+
+    @Test
+    public void testEqualsAcrossRepresentations() {
+        final List<Integer> keys = keyPerRootSlot();
+        ImmutableMap<Integer, Integer> dense = ImmutableMap.of();
+        for (int i = 0; i < 32; i++) {
+            dense = dense.set(keys.get(i), i);
+        }
+        for (int i = 12; i < 32; i++) {
+            dense = dense.delete(keys.get(i));
+        }
+        ImmutableMap<Integer, Integer> packed = ImmutableMap.of();
+        for (int i = 0; i < 12; i++) {
+            packed = packed.set(keys.get(i), i);
+        }
+        assertTrue(rootOf(dense) instanceof ArrayNode);
+        assertTrue(isPacked(rootOf(packed)));
+        assertEquals(rootOf(packed), rootOf(dense));
+        assertEquals(rootOf(dense), rootOf(packed));
+        assertEquals(rootOf(packed).hashCode(), rootOf(dense).hashCode());
+        assertTrue(dense.equals(packed));
+        assertTrue(packed.equals(dense));
+        assertEquals(packed, dense.merge(packed, (a, b) -> b));
+        assertTrue(dense.subtract(packed).isEmpty());
+    }
+
+    @Test
+    public void testTransientBatch() {
+        final Map<Integer, Integer> reference = new HashMap<>();
+        final TransientMap<Integer, Integer> batch = ImmutableMap.<Integer, Integer>of().toTransient();
+        for (int i = 0; i < 20000; i++) {
+            batch.set(i, i);
+            reference.put(i, i);
+        }
+        final ImmutableMap<Integer, Integer> full = batch.persistent();
+        Validatable.tryAssertValid(full);
+        assertTrue(rootOf(full) instanceof ArrayNode);
+        assertEquals(reference, full);
+
+        final TransientMap<Integer, Integer> shrinking = full.toTransient();
+        for (int i = 0; i < 20000; i++) {
+            if (i % 5000 != 0) {
+                shrinking.delete(i);
+                reference.remove(i);
+            }
+        }
+        final ImmutableMap<Integer, Integer> sparse = shrinking.persistent();
+        Validatable.tryAssertValid(sparse);
+        Validatable.tryAssertValid(full);
+        assertEquals(reference, sparse);
+        assertEquals(20000, full.size());
+        assertTrue(isPacked(rootOf(sparse)));
+    }
+
+}
@@ -0,0 +1,102 @@
+package com.gotcake.collections.immutable;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests ChampNode against PackedArrayDualNode, and checks that its tries stay canonical
+ * @author Aaron Cake
+ */
+public class TestChampNode {
+
+    @After
+    public void restoreLayout() {
+        NodeFactory.layout = NodeFactory.Layout.PACKED_ARRAY;
+    }
+
+    private static ImmutableMap<String, String> emptyMap(final NodeFactory.Layout layout) {
+        NodeFactory.layout = layout;
+        return ImmutableMap.of();
+    }
+
+    /**
+     * Replays the parity data into a CHAMP map, validating it and checking it against a HashMap at every 100th check
+     */
+    private static void runParityTest(final String file) throws IOException {
+        final Map<String, String> reference = new HashMap<>();
+        final ImmutableMap<String, String> map = TestHelper.runParityTest(file, emptyMap(NodeFactory.Layout.CHAMP), reference, 100);
+        assertEquals(reference.hashCode(), map.hashCode());
+    }
+
+    @Test
+    public void testParity1() throws Exception {
+        runParityTest("test/resources/parity_test_data_1.txt");
+    }
+
+    @Test
+    public void testParity2() throws Exception {
+        runParityTest("test/resources/parity_test_data_2.txt");
+    }
+
+    @Test
+    public void testParity3() throws Exception {
+        runParityTest("test/resources/parity_test_data_3.txt");
+    }
+
+    @Test
+    public void testCanonicalAfterDeletes() throws IOException {
+        final List<String> keys = new ArrayList<>(TestHelper.readHashCollisions(2000));
+        for (int i = 0; i < 5000; i++) {
+            keys.add(Integer.toString(i * 7919, 36));
+        }
+        ImmutableMap<String, String> map = emptyMap(NodeFactory.Layout.CHAMP);
+        for (final String key: keys) {
+            map = map.set(key, key);
+        }
+        final Random random = new Random(0xc4a3);
+        final Map<String, String> remaining = new HashMap<>(map);
+        for (final String key: keys) {
+            if (random.nextInt(4) != 0) {
+                map = map.delete(key);
+                remaining.remove(key);
+            }
+        }
+        Validatable.tryAssertValid(map);
+        // a trie built from scratch has the same shape as one the entries were deleted from
+        final RegularImmutableTrieMap<String, String> rebuilt = (RegularImmutableTrieMap<String, String>)ImmutableMap.of(remaining);
+        assertEquals(rebuilt.root, ((RegularImmutableTrieMap<String, String>)map).root);
+        assertTrue(rebuilt.equals(map));
+    }
+
+    @Test
+    public void testStructuralOperationsAcrossLayouts() {
+        final Map<Integer, Integer> left = new HashMap<>();
+        final Map<Integer, Integer> right = new HashMap<>();
+        for (int i = 0; i < 5000; i++) {
+            if (i % 3 != 0) left.put(i, i);
+            if (i % 2 != 0) right.put(i, -i);
+        }
+        NodeFactory.layout = NodeFactory.Layout.CHAMP;
+        final ImmutableMap<Integer, Integer> champ = ImmutableMap.of(left);
+        NodeFactory.layout = NodeFactory.Layout.PACKED_ARRAY;
+        final ImmutableMap<Integer, Integer> packed = ImmutableMap.of(right);
+
+        final Map<Integer, Integer> merged = new HashMap<>(left);
+        merged.putAll(right);
+        final ImmutableMap<Integer, Integer> mergedMap = champ.merge(packed, (a, b) -> b);
+        Validatable.tryAssertValid(mergedMap);
+        assertEquals(merged, mergedMap);
+
+        final Map<Integer, Integer> subtracted = new HashMap<>(left);
+        subtracted.keySet().removeAll(right.keySet());
+        final ImmutableMap<Integer, Integer> subtractedMap = champ.subtract(packed);
+        Validatable.tryAssertValid(subtractedMap);
+        assertEquals(subtracted, subtractedMap);
+    }
+
+}
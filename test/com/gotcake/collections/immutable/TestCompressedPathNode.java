@@ -0,0 +1,125 @@
+package com.gotcake.collections.immutable;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.io.IOException;
+import java.util.*;
+
+import static com.gotcake.collections.immutable.TestHelper.rootOf;
+import static org.junit.Assert.*;
+
+/**
+ * Tests compressing chains of single child nodes into CompressedPathNodes, and splitting and extending them again
+ * @author Aaron Cake
+ */
+public class TestCompressedPathNode {
+
+    // these tests look at the roots of tries too small to be kept as tries otherwise
+    @Rule
+    public final TestRule smallCollections = TestHelper.disableSmallCollections();
+
+    /**
+     * Finds two integers whose hashes share exactly the given number of leading 5 bit levels
+     */
+    private static int[] keysSharingLevels(final int levels) {
+        final Map<Integer, Integer> byPrefix = new HashMap<>();
+        for (int i = 0; ; i++) {
+            final int hash = Util.computeSmearHash(i);
+            final Integer other = byPrefix.putIfAbsent(hash >>> (32 - 5 * levels), i);
+            if (other != null && (Util.computeSmearHash(other) ^ hash) >>> (27 - 5 * levels) != 0) {
+                return new int[]{ other, i };
+            }
+        }
+    }
+
+    @Test
+    public void testCollidingKeysShareOnePath() throws IOException {
+        final List<String> keys = TestHelper.generateCollidingStrings(4);
+        final ImmutableMap<String, String> map = ImmutableMap.of(keys.get(0), "a", keys.get(1), "b");
+        Validatable.tryAssertValid(map);
+        final Object path = rootOf(map).slotValue(0);
+        assertTrue(path instanceof CompressedPathNode);
+        assertEquals(6, ((CompressedPathNode<?, ?>)path).levels);
+        assertTrue(((CompressedPathNode<?, ?>)path).child instanceof PackedArrayCollisionNode);
+        assertEquals("a", map.get(keys.get(0)));
+        assertEquals("b", map.get(keys.get(1)));
+        // the bulk builder compresses the same way
+        assertEquals(rootOf(map), rootOf(ImmutableMap.of(new HashMap<>(map))));
+    }
+
+    @Test
+    public void testSplitAndRecompress() {
+        for (int levels = 2; levels <= 5; levels++) {
+            final int[] shared = keysSharingLevels(levels);
+            final ImmutableMap<Integer, Integer> pair = ImmutableMap.of(shared[0], 0, shared[1], 1);
+            final Object path = rootOf(pair).slotValue(0);
+            assertTrue(path instanceof CompressedPathNode);
+            assertEquals(levels - 1, ((CompressedPathNode<?, ?>)path).levels);
+            ImmutableMap<Integer, Integer> map = pair;
+            // every key in the same root slot splits the path somewhere, or goes below it
+            final Map<Integer, Integer> reference = new HashMap<>(pair);
+            final int rootBits = Util.computeSmearHash(shared[0]) >>> 27;
+            for (int i = 0; reference.size() < 40; i++) {
+                if (Util.computeSmearHash(i) >>> 27 == rootBits && !reference.containsKey(i)) {
+                    map = map.set(i, i);
+                    reference.put(i, i);
+                    Validatable.tryAssertValid(map);
+                }
+            }
+            assertEquals(reference, map);
+            for (final Integer key: new ArrayList<>(reference.keySet())) {
+                if (key != shared[0] && key != shared[1]) {
+                    map = map.delete(key);
+                    reference.remove(key);
+                    Validatable.tryAssertValid(map);
+                    assertEquals(reference, map);
+                }
+            }
+            // removing the keys which split the path leaves it compressed again
+            assertEquals(rootOf(pair), rootOf(map));
+        }
+    }
+
+    @Test
+    public void testDeleteCollapsesPath() throws IOException {
+        final List<String> keys = TestHelper.generateCollidingStrings(4);
+        ImmutableMap<String, String> map = ImmutableMap.of();
+        for (final String key: keys) {
+            map = map.set(key, key);
+        }
+        for (int i = 0; i < keys.size() - 1; i++) {
+            map = map.delete(keys.get(i));
+            Validatable.tryAssertValid(map);
+        }
+        assertEquals(ImmutableMap.of(keys.get(keys.size() - 1), keys.get(keys.size() - 1)), map);
+        assertTrue(rootOf(map).slotKey(0) != null);
+    }
+
+    @Test
+    public void testTransientBatch() {
+        final int[] shared = keysSharingLevels(5);
+        final ImmutableMap<Integer, Integer> pair = ImmutableMap.of(shared[0], 0, shared[1], 1);
+        final Map<Integer, Integer> reference = new HashMap<>(pair);
+        final TransientMap<Integer, Integer> batch = pair.toTransient();
+        for (int i = 0; i < 5000; i++) {
+            if (i != shared[0] && i != shared[1]) {
+                batch.set(i, i);
+                reference.put(i, i);
+            }
+        }
+        for (int i = 0; i < 5000; i++) {
+            if (i != shared[0] && i != shared[1]) {
+                batch.delete(i);
+                reference.remove(i);
+            }
+        }
+        final ImmutableMap<Integer, Integer> edited = batch.persistent();
+        Validatable.tryAssertValid(edited);
+        Validatable.tryAssertValid(pair);
+        assertEquals(reference, edited);
+        assertEquals(rootOf(pair), rootOf(edited));
+    }
+
+}
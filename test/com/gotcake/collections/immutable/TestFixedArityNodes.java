@@ -0,0 +1,141 @@
+package com.gotcake.collections.immutable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.io.IOException;
+import java.util.*;
+
+import static com.gotcake.collections.immutable.TestHelper.rootOf;
+import static org.junit.Assert.*;
+
+/**
+ * Tests tries built from the generated fixed arity nodes against tries of only PackedArrayDualNodes
+ * @author Aaron Cake
+ */
+public class TestFixedArityNodes {
+
+    // the specialized nodes are only used by tries too small to be kept as tries otherwise
+    @Rule
+    public final TestRule smallCollections = TestHelper.disableSmallCollections();
+
+    private boolean specializeSmallNodes;
+
+    @Before
+    public void enableSpecialization() {
+        specializeSmallNodes = NodeFactory.specializeSmallNodes;
+        NodeFactory.specializeSmallNodes = true;
+    }
+
+    @After
+    public void restoreSpecialization() {
+        NodeFactory.specializeSmallNodes = specializeSmallNodes;
+    }
+
+    /**
+     * Replays the parity data into a specialized map, validating it and checking it against a HashMap at every 100th check
+     */
+    private static void runParityTest(final String file) throws IOException {
+        final Map<String, String> reference = new HashMap<>();
+        final ImmutableMap<String, String> map = TestHelper.runParityTest(file, ImmutableMap.of(), reference, 100);
+        assertEquals(reference.hashCode(), map.hashCode());
+    }
+
+    @Test
+    public void testParity1() throws Exception {
+        runParityTest("test/resources/parity_test_data_1.txt");
+    }
+
+    @Test
+    public void testParity2() throws Exception {
+        runParityTest("test/resources/parity_test_data_2.txt");
+    }
+
+    @Test
+    public void testSmallNodesAreSpecialized() {
+        // pick keys which land in different slots of the root
+        final List<Integer> keys = new ArrayList<>();
+        int usedBits = 0;
+        for (int i = 0; keys.size() <= FixedArityNodes.MAX_ARITY; i++) {
+            final int bit = 1 << (Util.computeSmearHash(i) >>> 27);
+            if ((usedBits & bit) == 0) {
+                usedBits |= bit;
+                keys.add(i);
+            }
+        }
+        ImmutableMap<Integer, Integer> map = ImmutableMap.of();
+        for (int i = 0; i < FixedArityNodes.MAX_ARITY; i++) {
+            map = map.set(keys.get(i), i);
+            assertTrue(rootOf(map) instanceof FixedArityNode);
+            assertEquals(i + 1, rootOf(map).slotCount());
+        }
+        map = map.set(keys.get(FixedArityNodes.MAX_ARITY), FixedArityNodes.MAX_ARITY);
+        assertTrue(rootOf(map) instanceof PackedArrayDualNode);
+        map = map.delete(keys.get(0));
+        assertTrue(rootOf(map) instanceof FixedArityNode);
+        for (int i = 1; i <= FixedArityNodes.MAX_ARITY; i++) {
+            assertEquals(Integer.valueOf(i), map.get(keys.get(i)));
+        }
+        assertNull(map.get(keys.get(0)));
+        Validatable.tryAssertValid(map);
+    }
+
+    @Test
+    public void testTransientBatchEditsExpandedNodes() {
+        final Map<Integer, Integer> reference = new HashMap<>();
+        for (int i = 0; i < 2000; i++) {
+            reference.put(i, i);
+        }
+        final ImmutableMap<Integer, Integer> map = ImmutableMap.of(reference);
+        final TransientMap<Integer, Integer> batch = map.toTransient();
+        for (int i = 0; i < 3000; i += 3) {
+            batch.set(i, -i);
+            reference.put(i, -i);
+        }
+        for (int i = 1; i < 2000; i += 7) {
+            batch.delete(i);
+            reference.remove(i);
+        }
+        final ImmutableMap<Integer, Integer> edited = batch.persistent();
+        Validatable.tryAssertValid(edited);
+        Validatable.tryAssertValid(map);
+        assertEquals(reference, edited);
+        assertEquals(2000, map.size());
+        assertEquals(Integer.valueOf(3), map.get(3));
+    }
+
+    @Test
+    public void testStructuralOperationsAgainstRegularNodes() {
+        final Map<Integer, Integer> left = new HashMap<>();
+        final Map<Integer, Integer> right = new HashMap<>();
+        for (int i = 0; i < 5000; i++) {
+            if (i % 3 != 0) left.put(i, i);
+            if (i % 2 != 0) right.put(i, -i);
+        }
+        final ImmutableMap<Integer, Integer> specialized = ImmutableMap.of(left);
+        NodeFactory.specializeSmallNodes = false;
+        final ImmutableMap<Integer, Integer> regular = ImmutableMap.of(right);
+
+        final Map<Integer, Integer> merged = new HashMap<>(left);
+        merged.putAll(right);
+        final ImmutableMap<Integer, Integer> mergedMap = specialized.merge(regular, (a, b) -> b);
+        Validatable.tryAssertValid(mergedMap);
+        assertEquals(merged, mergedMap);
+
+        final Map<Integer, Integer> intersected = new HashMap<>(left);
+        intersected.keySet().retainAll(right.keySet());
+        final ImmutableMap<Integer, Integer> intersectedMap = specialized.intersect(regular);
+        Validatable.tryAssertValid(intersectedMap);
+        assertEquals(intersected, intersectedMap);
+
+        final Map<Integer, Integer> subtracted = new HashMap<>(right);
+        subtracted.keySet().removeAll(left.keySet());
+        final ImmutableMap<Integer, Integer> subtractedMap = regular.subtract(specialized);
+        Validatable.tryAssertValid(subtractedMap);
+        assertEquals(subtracted, subtractedMap);
+    }
+
+}
@@ -0,0 +1,136 @@
+package com.gotcake.collections.immutable;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the read-only maps made by ImmutableMap.freeze(), and thawing them back into tries
+ * @author Aaron Cake
+ */
+public class TestFrozenMap {
+
+    private static <K, V> void assertSameEntries(final Map<K, V> expected, final ImmutableMap<K, V> actual) {
+        Validatable.tryAssertValid(actual);
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected, actual);
+        assertEquals(actual, expected);
+        assertEquals(expected.hashCode(), actual.hashCode());
+        final Map<K, V> iterated = new HashMap<>();
+        for (final Map.Entry<K, V> entry: actual.entrySet()) {
+            assertNull(iterated.put(entry.getKey(), entry.getValue()));
+        }
+        assertEquals(expected, iterated);
+        assertEquals(expected.keySet(), new HashSet<>(actual.keySet()));
+    }
+
+    @Test
+    public void testMatchesSource() {
+        final Random random = new Random(0xf203e);
+        final Map<Integer, Integer> reference = new HashMap<>();
+        while (reference.size() < 100000) {
+            reference.put(random.nextInt(), random.nextInt());
+        }
+        final ImmutableMap<Integer, Integer> trie = ImmutableMap.of(reference);
+        final ImmutableMap<Integer, Integer> frozen = trie.freeze();
+        assertTrue(frozen instanceof FrozenImmutableMap);
+        assertSame(frozen, frozen.freeze());
+        assertSameEntries(reference, frozen);
+        assertEquals(trie, frozen);
+        assertEquals(frozen, trie);
+        for (final Map.Entry<Integer, Integer> entry: reference.entrySet()) {
+            assertEquals(entry.getValue(), frozen.get(entry.getKey()));
+            assertEquals(entry.getValue(), frozen.get(HashedKey.of(entry.getKey())));
+            assertTrue(frozen.containsEntry(entry.getKey(), entry.getValue()));
+        }
+        for (int i = 0; i < 100000; i++) {
+            final int key = random.nextInt();
+            assertEquals(reference.get(key), frozen.get(key));
+            assertEquals(reference.containsKey(key), frozen.containsKey(key));
+        }
+        assertNull(frozen.get((Object)null));
+        assertNull(frozen.get("not an integer"));
+
+        final ImmutableMap<Integer, Integer> thawed = frozen.thaw();
+        assertTrue(thawed instanceof RegularImmutableTrieMap);
+        assertSameEntries(reference, thawed);
+        assertSame(thawed, thawed.thaw());
+        assertSame(ImmutableMap.of(), ImmutableMap.of().freeze());
+    }
+
+    @Test
+    public void testWritesThaw() {
+        final Map<String, Integer> reference = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            reference.put("key" + i, i);
+        }
+        final ImmutableMap<String, Integer> frozen = ImmutableMap.of(reference).freeze();
+
+        // writes which change nothing keep the frozen map
+        assertSame(frozen, frozen.set("key1", 1));
+        assertSame(frozen, frozen.setIfAbsent("key1", -1));
+        assertSame(frozen, frozen.setIfPresent("missing", 1));
+        assertSame(frozen, frozen.delete("missing"));
+        assertSame(frozen, frozen.update("missing", (key, value) -> null));
+        assertSame(frozen, frozen.update("key2", (key, value) -> value));
+        assertSame(frozen, frozen.updateAll((key, value) -> value));
+        assertSame(frozen, frozen.toTransient().persistent());
+
+        final ImmutableMap<String, Integer> set = frozen.set("key1", -1);
+        assertTrue(set instanceof RegularImmutableTrieMap);
+        reference.put("key1", -1);
+        assertSameEntries(reference, set);
+        assertSameEntries(reference, frozen.update("key1", (key, value) -> -value));
+        reference.remove("key2");
+        assertSameEntries(reference, set.delete("key2"));
+        assertSameEntries(reference, frozen.freeze().toTransient().set("key1", -1).delete("key2").persistent());
+
+        final ImmutableMap<String, Integer> doubled = frozen.mapValues(value -> value * 2);
+        assertTrue(doubled instanceof FrozenImmutableMap);
+        Validatable.tryAssertValid(doubled);
+        assertEquals(Integer.valueOf(20), doubled.get("key10"));
+
+        final ImmutableMap<String, Integer> even = frozen.filter((key, value) -> value % 2 == 0);
+        assertEquals(500, even.size());
+        Validatable.tryAssertValid(even);
+        // the original frozen map is unchanged by all of the above
+        assertEquals(Integer.valueOf(1), frozen.get("key1"));
+        assertEquals(1000, frozen.size());
+        Validatable.tryAssertValid(frozen);
+    }
+
+    @Test
+    public void testCollidingKeys() throws IOException {
+        final List<String> colliding = TestHelper.generateCollidingStrings(64);
+        final Map<String, Integer> reference = new HashMap<>();
+        for (int i = 0; i < colliding.size(); i++) {
+            reference.put(colliding.get(i), i);
+        }
+        reference.put("apple", -1);
+        final ImmutableMap<String, Integer> frozen = ImmutableMap.of(reference).freeze();
+        assertSameEntries(reference, frozen);
+        for (final String key: colliding) {
+            assertEquals(reference.get(key), frozen.get(key));
+        }
+        assertNull(frozen.get(colliding.get(0) + colliding.get(1)));
+    }
+
+    @Test
+    public void testStrategyMapKeepsStrategy() {
+        final String key = new String("key");
+        final String equalKey = new String("key");
+        final ImmutableMap<String, Integer> frozen = ImmutableMap.<String, Integer>identity().set(key, 1).set(equalKey, 2).freeze();
+        Validatable.tryAssertValid(frozen);
+        assertEquals(2, frozen.size());
+        assertEquals(Integer.valueOf(1), frozen.get(key));
+        assertEquals(Integer.valueOf(2), frozen.get(equalKey));
+        assertNull(frozen.get("key"));
+        final ImmutableMap<String, Integer> thawed = frozen.thaw();
+        assertEquals(frozen, thawed);
+        assertEquals(Integer.valueOf(2), thawed.get(equalKey));
+    }
+
+}
@@ -0,0 +1,114 @@
+package com.gotcake.collections.immutable;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that the hash prefixes stored in nodes stay in sync with their keys as entries are split, collapsed and moved
+ * @author Aaron Cake
+ */
+public class TestHashPrefixes {
+
+    private static <K> void assertMatches(final Map<K, Integer> reference, final ImmutableMap<K, Integer> map,
+                                          final Collection<K> allKeys) {
+        Validatable.tryAssertValid(map);
+        assertEquals(reference.size(), map.size());
+        for (final K key: allKeys) {
+            assertEquals(reference.get(key), map.get(key));
+        }
+    }
+
+    private static <K> void runRandomOperations(final List<K> keys, final Random random) {
+        ImmutableMap<K, Integer> map = ImmutableMap.of();
+        final Map<K, Integer> reference = new HashMap<>();
+        for (int i = 0; i < 20000; i++) {
+            final K key = keys.get(random.nextInt(keys.size()));
+            switch (random.nextInt(5)) {
+                case 0:
+                    map = map.set(key, i);
+                    reference.put(key, i);
+                    break;
+                case 1:
+                    map = map.delete(key);
+                    reference.remove(key);
+                    break;
+                case 2:
+                    map = map.setIfAbsent(key, i);
+                    reference.putIfAbsent(key, i);
+                    break;
+                case 3:
+                    final int threshold = i;
+                    map = map.update(key, (k, v) -> v == null ? threshold : null);
+                    reference.compute(key, (k, v) -> v == null ? threshold : null);
+                    break;
+                default:
+                    final TransientMap<K, Integer> transientMap = map.toTransient();
+                    for (int j = 0; j < 20; j++) {
+                        final K transientKey = keys.get(random.nextInt(keys.size()));
+                        if (random.nextBoolean()) {
+                            transientMap.set(transientKey, j);
+                            reference.put(transientKey, j);
+                        } else {
+                            transientMap.delete(transientKey);
+                            reference.remove(transientKey);
+                        }
+                    }
+                    map = transientMap.persistent();
+                    break;
+            }
+            if (i % 500 == 0) {
+                assertMatches(reference, map, keys);
+            }
+        }
+        assertMatches(reference, map, keys);
+    }
+
+    @Test
+    public void testRandomOperations() {
+        final List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            keys.add(i * 7919);
+        }
+        runRandomOperations(keys, new Random(0x7e57));
+    }
+
+    @Test
+    public void testRandomOperationsWithCollisions() throws IOException {
+        // collisions are collapsed out of the bottom of the trie, where there are no hash bits left to store
+        runRandomOperations(TestHelper.readHashCollisions(5000), new Random(0xc011));
+    }
+
+    @Test
+    public void testStructuralOperations() throws IOException {
+        final List<String> keys = TestHelper.readHashCollisions(5000);
+        final Map<String, Integer> left = new HashMap<>();
+        final Map<String, Integer> right = new HashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            if (i % 3 != 0) left.put(keys.get(i), i);
+            if (i % 2 != 0) right.put(keys.get(i), -i);
+        }
+        final ImmutableMap<String, Integer> leftMap = ImmutableMap.of(left);
+        final ImmutableMap<String, Integer> rightMap = ImmutableMap.of(right);
+
+        final Map<String, Integer> merged = new HashMap<>(left);
+        merged.putAll(right);
+        assertMatches(merged, leftMap.merge(rightMap, (a, b) -> b), keys);
+
+        final Map<String, Integer> intersected = new HashMap<>(left);
+        intersected.keySet().retainAll(right.keySet());
+        assertMatches(intersected, leftMap.intersect(rightMap), keys);
+
+        final Map<String, Integer> subtracted = new HashMap<>(left);
+        subtracted.keySet().removeAll(right.keySet());
+        assertMatches(subtracted, leftMap.subtract(rightMap), keys);
+
+        final Map<String, Integer> filtered = new HashMap<>(left);
+        filtered.values().removeIf(value -> value % 5 != 0);
+        assertMatches(filtered, leftMap.filter((key, value) -> value % 5 == 0), keys);
+    }
+
+}
@@ -0,0 +1,236 @@
+package com.gotcake.collections.immutable;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests maps with a HashStrategy, and looking up HashedKeys
+ * @author Aaron Cake
+ */
+public class TestHashStrategy {
+
+    /**
+     * Compares strings ignoring their case
+     */
+    private static final HashStrategy<String> CASE_INSENSITIVE = new HashStrategy<String>() {
+        @Override
+        public int hash(final String key) {
+            return Util.computeSmearHash(key.toLowerCase(Locale.ROOT));
+        }
+
+        @Override
+        public boolean equivalent(final String key1, final String key2) {
+            return key1.equalsIgnoreCase(key2);
+        }
+    };
+
+    /**
+     * A key which counts the calls to its hashCode
+     */
+    private static final class CountingKey {
+
+        static int hashCodeCalls = 0;
+
+        private final int id;
+
+        CountingKey(final int id) {
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof CountingKey && ((CountingKey)o).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            hashCodeCalls++;
+            return id;
+        }
+
+    }
+
+    @Test
+    public void testStrategiesMatchHashMap() {
+        for (final HashStrategy<Integer> strategy: Arrays.<HashStrategy<Integer>>asList(HashStrategy.unmixed(), HashStrategy.avalanche())) {
+            final Random random = new Random(0x2020);
+            ImmutableMap<Integer, Integer> map = ImmutableMap.withStrategy(strategy);
+            final Map<Integer, Integer> reference = new HashMap<>();
+            for (int i = 0; i < 20000; i++) {
+                final int key = random.nextInt(5000);
+                if (random.nextInt(3) == 0) {
+                    map = map.delete(key);
+                    reference.remove(key);
+                } else {
+                    map = map.set(key, i);
+                    reference.put(key, i);
+                }
+            }
+            Validatable.tryAssertValid(map);
+            assertTrue(map instanceof StrategyImmutableMap);
+            assertEquals(reference, map);
+            assertEquals(map, reference);
+            assertEquals(reference.hashCode(), map.hashCode());
+            assertEquals(reference.keySet(), map.keySet());
+            final ImmutableMap<Integer, Integer> copy = ImmutableMap.withStrategy(strategy, reference);
+            Validatable.tryAssertValid(copy);
+            assertEquals(map, copy);
+        }
+        assertSame(ImmutableMap.of(), ImmutableMap.withStrategy(HashStrategy.standard()));
+    }
+
+    @Test
+    public void testCustomEquivalence() {
+        ImmutableMap<String, Integer> map = ImmutableMap.withStrategy(CASE_INSENSITIVE);
+        map = map.set("Apple", 1).set("banana", 2).set("APPLE", 3);
+        Validatable.tryAssertValid(map);
+        assertEquals(2, map.size());
+        assertEquals(Integer.valueOf(3), map.get("apple"));
+        assertTrue(map.containsKey("BANANA"));
+        final Set<String> lowerCaseKeys = new HashSet<>();
+        map.forEachKey(key -> lowerCaseKeys.add(key.toLowerCase(Locale.ROOT)));
+        assertEquals(new HashSet<>(Arrays.asList("apple", "banana")), lowerCaseKeys);
+        map = map.delete("Banana");
+        assertEquals(1, map.size());
+        assertFalse(map.containsKey("banana"));
+
+        final ImmutableMap<String, Integer> other = ImmutableMap.withStrategy(CASE_INSENSITIVE, ImmutableMap.of("aPPLE", 4, "Cherry", 5));
+        final ImmutableMap<String, Integer> merged = map.merge(other, (a, b) -> a + b);
+        Validatable.tryAssertValid(merged);
+        assertEquals(Integer.valueOf(7), merged.get("APPLE"));
+        assertEquals(Integer.valueOf(5), merged.get("cherry"));
+        assertEquals(1, merged.intersect(map).size());
+        assertEquals(Integer.valueOf(5), merged.subtract(map).get("CHERRY"));
+        assertEquals(Integer.valueOf(14), merged.mapValues(v -> v * 2).get("apple"));
+
+        final List<String> changes = new ArrayList<>();
+        map.diff(merged, new ImmutableMap.DiffVisitor<String, Integer>() {
+            @Override public void added(String key, Integer value) { changes.add("+" + key.toLowerCase(Locale.ROOT)); }
+            @Override public void removed(String key, Integer value) { changes.add("-" + key.toLowerCase(Locale.ROOT)); }
+            @Override public void changed(String key, Integer oldValue, Integer newValue) { changes.add("~" + key.toLowerCase(Locale.ROOT)); }
+        });
+        Collections.sort(changes);
+        assertEquals(Arrays.asList("+cherry", "~apple"), changes);
+
+        final TransientMap<String, Integer> batch = merged.toTransient();
+        batch.set("CHERRY", 6).delete("apple").update("date", (k, v) -> 8);
+        final ImmutableMap<String, Integer> edited = batch.persistent();
+        Validatable.tryAssertValid(edited);
+        assertTrue(edited instanceof StrategyImmutableMap);
+        assertEquals(2, edited.size());
+        assertEquals(Integer.valueOf(6), edited.get("cherry"));
+        assertEquals(Integer.valueOf(8), edited.get("DATE"));
+        assertSame(merged, merged.toTransient().persistent());
+    }
+
+    @After
+    public void enableSmallMaps() {
+        SmallImmutableMap.enabled = true;
+    }
+
+    @Test
+    public void testHashedKeysSkipHashCode() {
+        // a small map is promoted by hashing its plain keys, so count the calls of a trie from the first key
+        SmallImmutableMap.enabled = false;
+        final List<HashedKey<CountingKey>> keys = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            keys.add(HashedKey.of(new CountingKey(i)));
+        }
+        for (final ImmutableMap<CountingKey, Integer> empty: Arrays.asList(ImmutableMap.<CountingKey, Integer>of(), ImmutableMap.<CountingKey, Integer>wide())) {
+            ImmutableMap<CountingKey, Integer> map = empty.set(keys.get(0).key(), 0);
+            CountingKey.hashCodeCalls = 0;
+            for (int i = 1; i < keys.size(); i++) {
+                map = map.set(keys.get(i), i);
+            }
+            for (int i = 0; i < keys.size(); i += 2) {
+                map = map.delete(keys.get(i));
+            }
+            // only to keep the map's hashCode up to date, the key isn't hashed to find its place in the trie
+            assertEquals(999 + 500, CountingKey.hashCodeCalls);
+            CountingKey.hashCodeCalls = 0;
+            for (int i = 1; i < keys.size(); i += 2) {
+                assertEquals(Integer.valueOf(i), map.get(keys.get(i)));
+            }
+            assertEquals(0, CountingKey.hashCodeCalls);
+            Validatable.tryAssertValid(map);
+            assertEquals(500, map.size());
+            assertNull(map.get(keys.get(0)));
+            assertEquals(Integer.valueOf(1), map.get(new CountingKey(1)));
+        }
+    }
+
+    @Test
+    public void testStrategyMapStoresPlainKeys() {
+        final int[] hashCalls = new int[1];
+        final HashStrategy<String> counting = new HashStrategy<String>() {
+            @Override
+            public int hash(final String key) {
+                hashCalls[0]++;
+                return CASE_INSENSITIVE.hash(key);
+            }
+
+            @Override
+            public boolean equivalent(final String key1, final String key2) {
+                return CASE_INSENSITIVE.equivalent(key1, key2);
+            }
+        };
+        final List<String> keys = new ArrayList<>();
+        ImmutableMap<String, Integer> map = ImmutableMap.withStrategy(counting);
+        for (int i = 0; i < 1000; i++) {
+            keys.add("Key" + i);
+            map = map.set(keys.get(i), i);
+        }
+        Validatable.tryAssertValid(map);
+        // the trie holds the keys themselves
+        final Set<String> stored = Collections.newSetFromMap(new IdentityHashMap<>());
+        map.forEachKey(stored::add);
+        assertEquals(keys.size(), stored.size());
+        for (final String key: keys) {
+            assertTrue(stored.contains(key));
+        }
+        final List<HashedKey<String>> handles = new ArrayList<>();
+        for (final String key: keys) {
+            handles.add(counting.hashed(key.toUpperCase(Locale.ROOT)));
+        }
+        hashCalls[0] = 0;
+        for (int i = 0; i < handles.size(); i++) {
+            assertEquals(Integer.valueOf(i), map.get(handles.get(i)));
+        }
+        for (int i = 0; i < handles.size(); i += 2) {
+            map = map.set(handles.get(i), -i).delete(handles.get(i + 1));
+        }
+        // the handles' hashes go into the trie as they are
+        assertEquals(0, hashCalls[0]);
+        Validatable.tryAssertValid(map);
+        assertEquals(500, map.size());
+        assertEquals(Integer.valueOf(-2), map.get("key2"));
+    }
+
+    @Test
+    public void testHashedKeysOfAnotherStrategy() {
+        final HashedKey<String> standard = HashedKey.of("Apple");
+        final HashedKey<String> caseInsensitive = CASE_INSENSITIVE.hashed("APPLE");
+        final ImmutableMap<String, Integer> regular = ImmutableMap.of("Apple", 1);
+        assertEquals(Integer.valueOf(1), regular.get(standard));
+        // the handle is rehashed with the map's strategy
+        assertNull(regular.get(caseInsensitive));
+        assertEquals(Integer.valueOf(2), regular.set(HashStrategy.<String>avalanche().hashed("Apple"), 2).get("Apple"));
+
+        final ImmutableMap<String, Integer> custom = ImmutableMap.withStrategy(CASE_INSENSITIVE, regular);
+        assertEquals(Integer.valueOf(1), custom.get(caseInsensitive));
+        assertEquals(Integer.valueOf(1), custom.get(standard));
+        assertTrue(custom.delete(standard).isEmpty());
+        assertEquals(Integer.valueOf(3), custom.set(caseInsensitive, 3).get("apple"));
+
+        assertEquals(caseInsensitive, CASE_INSENSITIVE.hashed("apple"));
+        assertEquals(caseInsensitive.hash(), caseInsensitive.hashCode());
+        assertEquals(standard.hash(), standard.hashCode());
+        assertNotEquals(standard, HashedKey.of("apple"));
+        assertNotEquals(standard, HashStrategy.<String>avalanche().hashed("Apple"));
+    }
+
+}
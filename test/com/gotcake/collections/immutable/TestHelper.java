@@ -1,9 +1,14 @@
 package com.gotcake.collections.immutable;
 
+import org.junit.rules.ExternalResource;
+import org.junit.rules.TestRule;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
 import java.util.*;
 
-import static org.junit.Assert.assertNotNull;
-import static org.junit.Assert.fail;
+import static org.junit.Assert.*;
 
 /**
  * Static helper methods for tests
@@ -68,6 +73,201 @@ public final class TestHelper {
         }
     }
 
+    /**
+     * Builds an ImmutableMap by setting the entries one at a time, which goes through different code than building
+     * it in bulk
+     */
+    public static <K, V> ImmutableMap<K, V> setOneByOne(final Map<K, V> entries) {
+        ImmutableMap<K, V> map = ImmutableMap.of();
+        for (final Map.Entry<K, V> entry: entries.entrySet()) {
+            map = map.set(entry.getKey(), entry.getValue());
+        }
+        return map;
+    }
+
+    /**
+     * Generates size entries with keys picked from [0, keySpace) and values from [0, valueSpace)
+     */
+    public static Map<Integer, Integer> randomEntries(final Random random, final int size, final int keySpace,
+                                                      final int valueSpace) {
+        final Map<Integer, Integer> entries = new HashMap<>();
+        while (entries.size() < size) {
+            entries.put(random.nextInt(keySpace), random.nextInt(valueSpace));
+        }
+        return entries;
+    }
+
+    /**
+     * Generates size entries with keys picked from all ints and values from [0, valueSpace)
+     */
+    public static Map<Integer, Integer> randomEntries(final Random random, final int size, final int valueSpace) {
+        final Map<Integer, Integer> entries = new HashMap<>();
+        while (entries.size() < size) {
+            entries.put(random.nextInt(), random.nextInt(valueSpace));
+        }
+        return entries;
+    }
+
+    /**
+     * Reads strings from test/resources/hash_collisions.txt a line at a time, until there are at least count of them
+     * or the file runs out. The strings on each line share a hash code, so they make many small buckets; use
+     * generateCollidingStrings for a single large bucket.
+     */
+    public static List<String> readHashCollisions(final int count) throws IOException {
+        final List<String> strings = new ArrayList<>();
+        try (final BufferedReader reader = new BufferedReader(new FileReader("test/resources/hash_collisions.txt"))) {
+            String line;
+            while (strings.size() < count && (line = reader.readLine()) != null) {
+                strings.addAll(Arrays.asList(line.trim().split("\\s+")));
+            }
+        }
+        return strings;
+    }
+
+    /**
+     * Generates strings which all have the same hash code, however many are asked for.
+     * Equal length strings with equal hashes can be swapped for each other inside a longer string without changing
+     * its hash, so every string is a concatenation of one word from each of the first groups of
+     * test/resources/hash_collisions.txt, and count strings need only about log(count) groups.
+     */
+    public static List<String> generateCollidingStrings(final int count) throws IOException {
+        List<String> strings = Collections.singletonList("");
+        try (final BufferedReader reader = new BufferedReader(new FileReader("test/resources/hash_collisions.txt"))) {
+            String line;
+            while (strings.size() < count && (line = reader.readLine()) != null) {
+                final String[] words = line.trim().split("\\s+");
+                if (Arrays.stream(words).anyMatch(word -> word.length() != words[0].length())) {
+                    continue;
+                }
+                final List<String> longer = new ArrayList<>(strings.size() * words.length);
+                for (final String string: strings) {
+                    for (final String word: words) {
+                        longer.add(string + word);
+                    }
+                }
+                strings = longer;
+            }
+        }
+        return strings.subList(0, Math.min(count, strings.size()));
+    }
+
+    /**
+     * Replays a parity data file of puts (p), removes (r) and checks (c) into the map and the reference map, checking
+     * at each set and delete whether a new map is returned exactly when something changed, and validating the map and
+     * comparing it to the reference at every check
+     * @return the map after the last line
+     */
+    public static ImmutableMap<String, String> runParityTest(final String file, final ImmutableMap<String, String> map,
+                                                           final Map<String, String> reference) throws IOException {
+        return runParityTest(file, map, reference, 1);
+    }
+
+    /**
+     * Replays a parity data file like runParityTest(file, map, reference), but only validates the map and compares it
+     * to the reference at every checkInterval-th check, and once more at the end
+     */
+    public static ImmutableMap<String, String> runParityTest(final String file, ImmutableMap<String, String> map,
+                                                           final Map<String, String> reference,
+                                                           final int checkInterval) throws IOException {
+        int checks = 0;
+        try (final BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line, key, val;
+            ImmutableMap<String, String> tmp;
+            while ((line = reader.readLine()) != null) {
+                final String trimmed = line.trim();
+                if (trimmed.isEmpty()) {
+                    continue;
+                }
+                final String[] parts = trimmed.split("\\s+");
+                if (parts.length == 0) {
+                    continue;
+                }
+                switch (parts[0]) {
+                    case "c":
+                        if (checks++ % checkInterval == 0) {
+                            Validatable.tryAssertValid(map);
+                            assertTrue(map.equals(reference));
+                        }
+                        break;
+                    case "r":
+                        key = parts[1];
+                        tmp = map.delete(key);
+                        if (reference.remove(key) == null) {
+                            assertSame(map, tmp);
+                        } else {
+                            assertNotSame(map, tmp);
+                            map = tmp;
+                        }
+                        break;
+                    case "p":
+                        key = parts[1];
+                        val = parts[2];
+                        tmp = map.set(key, val);
+                        if (val.equals(reference.put(key, val))) {
+                            assertSame(map, tmp);
+                        } else {
+                            assertNotSame(map, tmp);
+                            map = tmp;
+                        }
+                        break;
+                }
+            }
+        }
+        Validatable.tryAssertValid(map);
+        assertTrue(map.equals(reference));
+        return map;
+    }
+
+    /**
+     * Gets the root node of a 32-way or 64-way trie map
+     */
+    public static <K, V> Node<K, V> rootOf(final ImmutableMap<K, V> map) {
+        if (map instanceof WideImmutableTrieMap) {
+            return ((WideImmutableTrieMap<K, V>)map).root;
+        }
+        return ((RegularImmutableTrieMap<K, V>)map).root;
+    }
+
+    /**
+     * Splits recursively up to the given depth, then drains each part with a mix of tryAdvance and forEachRemaining
+     */
+    public static <T> void splitAndCollect(final Spliterator<T> spliterator, final int depth, final List<T> out) {
+        if (depth > 0) {
+            final Spliterator<T> prefix = spliterator.trySplit();
+            if (prefix != null) {
+                splitAndCollect(prefix, depth - 1, out);
+            }
+            splitAndCollect(spliterator, depth - 1, out);
+            return;
+        }
+        spliterator.tryAdvance(out::add);
+        spliterator.forEachRemaining(out::add);
+        assertFalse(spliterator.tryAdvance(out::add));
+    }
+
+    /**
+     * A rule which keeps maps and sets of up to 8 entries as tries for the duration of each test, for tests which look
+     * at the roots of tries that small. Use it as a public @Rule field.
+     */
+    public static TestRule disableSmallCollections() {
+        return new ExternalResource() {
+
+            private boolean enabled;
+
+            @Override
+            protected void before() {
+                enabled = SmallImmutableMap.enabled;
+                SmallImmutableMap.enabled = false;
+            }
+
+            @Override
+            protected void after() {
+                SmallImmutableMap.enabled = enabled;
+            }
+
+        };
+    }
+
     private TestHelper() { throw new UnsupportedOperationException(); }
 
 }
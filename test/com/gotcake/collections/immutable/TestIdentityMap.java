@@ -0,0 +1,168 @@
+package com.gotcake.collections.immutable;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests maps which compare keys by reference
+ * @author Aaron Cake
+ */
+public class TestIdentityMap {
+
+    /**
+     * A key which fails if the map ever calls its equals or hashCode
+     */
+    private static final class OpaqueKey {
+
+        private final int id;
+
+        OpaqueKey(final int id) {
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            throw new AssertionError("equals called on key " + id);
+        }
+
+        @Override
+        public int hashCode() {
+            throw new AssertionError("hashCode called on key " + id);
+        }
+
+    }
+
+    @Test
+    public void testEqualKeysAreDistinct() {
+        final String a1 = new String("a");
+        final String a2 = new String("a");
+        ImmutableMap<String, Integer> map = ImmutableMap.identity();
+        map = map.set(a1, 1).set(a2, 2);
+        Validatable.tryAssertValid(map);
+        assertEquals(2, map.size());
+        assertEquals(Integer.valueOf(1), map.get(a1));
+        assertEquals(Integer.valueOf(2), map.get(a2));
+        assertNull(map.get("a"));
+        assertFalse(map.containsKey(new String("a")));
+        assertSame(map, map.delete(new String("a")));
+        assertSame(map, map.setIfPresent(new String("a"), 3));
+        map = map.update(a1, (k, v) -> v + 10);
+        assertEquals(Integer.valueOf(11), map.get(a1));
+        map = map.delete(a2);
+        assertEquals(1, map.size());
+        assertEquals(Integer.valueOf(11), map.get(a1));
+        map.forEachKey(key -> assertSame(a1, key));
+
+        // equal to maps with the same key objects, like IdentityHashMap
+        final Map<String, Integer> reference = new IdentityHashMap<>();
+        reference.put(a1, 11);
+        assertEquals(reference, map);
+        assertEquals(identityHashCode(reference), map.hashCode());
+        assertNotEquals(ImmutableMap.identity().set(new String("a"), 11), map);
+    }
+
+    @Test
+    public void testKeysAreNeverHashedOrCompared() {
+        final List<OpaqueKey> keys = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            keys.add(new OpaqueKey(i));
+        }
+        ImmutableMap<OpaqueKey, Integer> map = ImmutableMap.identity();
+        for (int i = 0; i < keys.size(); i++) {
+            map = map.set(keys.get(i), i);
+        }
+        for (int i = 0; i < keys.size(); i += 2) {
+            map = map.delete(keys.get(i));
+        }
+        Validatable.tryAssertValid(map);
+        assertEquals(1000, map.size());
+        for (int i = 1; i < keys.size(); i += 2) {
+            assertEquals(Integer.valueOf(i), map.get(keys.get(i)));
+            assertEquals(Integer.valueOf(i), map.get(HashStrategy.<OpaqueKey>identity().hashed(keys.get(i))));
+        }
+        assertNull(map.get(new OpaqueKey(1)));
+
+        final TransientMap<OpaqueKey, Integer> batch = map.toTransient();
+        for (int i = 0; i < keys.size(); i++) {
+            batch.update(keys.get(i), (k, v) -> v == null ? -1 : null);
+        }
+        final ImmutableMap<OpaqueKey, Integer> flipped = batch.persistent();
+        Validatable.tryAssertValid(flipped);
+        assertEquals(1000, flipped.size());
+        assertEquals(Integer.valueOf(-1), flipped.get(keys.get(0)));
+        assertNull(flipped.get(keys.get(1)));
+
+        assertEquals(2000, map.merge(flipped, (a, b) -> a).size());
+        assertTrue(map.intersect(flipped).isEmpty());
+        assertEquals(map, map.subtract(flipped));
+        assertEquals(map, ImmutableMap.identity(map));
+        // uses System.identityHashCode, the OpaqueKey would throw
+        assertNotEquals(0, map.hashCode());
+    }
+
+    @Test
+    public void testMatchesIdentityHashMap() {
+        final Random random = new Random(0x2021);
+        final Object[] keys = new Object[200000];
+        for (int i = 0; i < keys.length; i++) {
+            // plenty of equal but distinct keys
+            keys[i] = new String(Integer.toString(i % 1000));
+        }
+        ImmutableMap<Object, Integer> map = ImmutableMap.identity();
+        final Map<Object, Integer> reference = new IdentityHashMap<>();
+        for (int i = 0; i < 300000; i++) {
+            final Object key = keys[random.nextInt(keys.length)];
+            if (random.nextInt(4) == 0) {
+                map = map.delete(key);
+                reference.remove(key);
+            } else {
+                // IdentityHashMap compares values by reference when it is compared to another map
+                final Integer value = i;
+                map = map.set(key, value);
+                reference.put(key, value);
+            }
+        }
+        Validatable.tryAssertValid(map);
+        assertEquals(reference.size(), map.size());
+        for (final Object key: keys) {
+            assertEquals(reference.get(key), map.get(key));
+        }
+        assertEquals(reference, map);
+        assertEquals(map, reference);
+        assertEquals(identityHashCode(reference), map.hashCode());
+    }
+
+    @Test
+    public void testCopyComparesWithEquals() {
+        final String a1 = new String("a");
+        final String a2 = new String("a");
+        final ImmutableMap<String, Integer> identity = ImmutableMap.<String, Integer>identity().set(a1, 1).set("b", 2);
+        final ImmutableMap<String, Integer> copy = ImmutableMap.of(identity);
+        assertNotSame(identity, copy);
+        assertFalse(copy instanceof StrategyImmutableMap);
+        assertEquals(Integer.valueOf(1), copy.get(a2));
+        assertEquals(Integer.valueOf(2), copy.get(new String("b")));
+        assertEquals(identity, copy);
+
+        // keys which are distinct by reference become the same key
+        final ImmutableMap<String, Integer> merged = ImmutableMap.of(identity.set(a2, 3));
+        Validatable.tryAssertValid(merged);
+        assertEquals(2, merged.size());
+        assertTrue(merged.containsKey("a"));
+    }
+
+    /**
+     * Computes the hashCode of an identity map, which unlike IdentityHashMap uses the values' own hashCode
+     */
+    private static int identityHashCode(final Map<?, ?> map) {
+        int h = 0;
+        for (final Map.Entry<?, ?> entry: map.entrySet()) {
+            h += System.identityHashCode(entry.getKey()) ^ entry.getValue().hashCode();
+        }
+        return h;
+    }
+
+}
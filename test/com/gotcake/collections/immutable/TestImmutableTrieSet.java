@@ -0,0 +1,234 @@
+package com.gotcake.collections.immutable;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static com.gotcake.collections.immutable.TestHelper.splitAndCollect;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the keys-only trie behind ImmutableSet
+ * @author Aaron Cake
+ */
+public class TestImmutableTrieSet {
+
+    private static <T> ImmutableSet<T> insertOneByOne(final Collection<T> elements) {
+        ImmutableSet<T> set = ImmutableSet.of();
+        for (final T element: elements) {
+            set = set.insert(element);
+        }
+        return set;
+    }
+
+    private static <T> void assertSameElements(final Set<T> expected, final ImmutableSet<T> actual) {
+        Validatable.tryAssertValid(actual);
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected, actual);
+        assertEquals(actual, expected);
+        assertEquals(expected.hashCode(), actual.hashCode());
+        final List<T> iterated = new ArrayList<>();
+        for (final T element: actual) {
+            iterated.add(element);
+        }
+        assertEquals(expected.size(), iterated.size());
+        assertEquals(expected, new HashSet<>(iterated));
+    }
+
+    @Test
+    public void testMatchesHashSet() {
+        final Random random = new Random(0x2022);
+        ImmutableSet<Integer> set = ImmutableSet.of();
+        final Set<Integer> reference = new HashSet<>();
+        for (int i = 0; i < 50000; i++) {
+            final int element = random.nextInt(20000);
+            if (random.nextInt(3) == 0) {
+                final ImmutableSet<Integer> newSet = set.delete(element);
+                assertEquals(reference.remove(element), newSet != set);
+                set = newSet;
+            } else {
+                final ImmutableSet<Integer> newSet = set.insert(element);
+                assertEquals(reference.add(element), newSet != set);
+                set = newSet;
+            }
+        }
+        assertTrue(set instanceof RegularImmutableTrieSet);
+        assertSameElements(reference, set);
+        for (int i = -100; i < 20100; i++) {
+            assertEquals(reference.contains(i), set.contains(i));
+        }
+        for (final Integer element: reference) {
+            set = set.delete(element);
+        }
+        assertSame(ImmutableSet.of(), set);
+    }
+
+    @Test
+    public void testBuildMatchesInsertingOneByOne() {
+        final Random random = new Random(0x2022);
+        final List<Integer> elements = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            elements.add(random.nextInt(60000));
+        }
+        final Set<Integer> reference = new HashSet<>(elements);
+        final ImmutableSet<Integer> built = ImmutableSet.of(elements);
+        assertSameElements(reference, built);
+        // equals is structural, so this also checks the built trie has the same shape
+        assertEquals(insertOneByOne(elements), built);
+        assertEquals(built, ImmutableSet.of(elements.toArray(new Integer[0])));
+
+        final List<Integer> more = elements.subList(0, 1000);
+        assertSame(built, built.insertAll(more));
+        final List<Integer> extra = Arrays.asList(-1, -2, -3, -1);
+        final ImmutableSet<Integer> extended = built.insertAll(extra);
+        reference.addAll(extra);
+        assertSameElements(reference, extended);
+        // the batch must not have edited the nodes it shares with the source set
+        assertFalse(built.contains(-1));
+        assertEquals(reference.size() - 3, built.size());
+        Validatable.tryAssertValid(built);
+    }
+
+    @Test
+    public void testCollidingElements() throws IOException {
+        final List<String> colliding = TestHelper.generateCollidingStrings(64);
+        final Set<String> reference = new HashSet<>(colliding);
+        reference.add("apple");
+        reference.add("banana");
+        final ImmutableSet<String> set = ImmutableSet.of(reference);
+        assertSameElements(reference, set);
+        for (final String element: colliding) {
+            assertTrue(set.contains(element));
+        }
+        assertFalse(set.contains(colliding.get(0) + colliding.get(1)));
+
+        ImmutableSet<String> shrinking = set;
+        for (final String element: colliding) {
+            shrinking = shrinking.delete(element);
+            Validatable.tryAssertValid(shrinking);
+        }
+        assertEquals(ImmutableSet.of("apple", "banana"), shrinking);
+
+        final ImmutableSet<String> half = ImmutableSet.of(colliding.subList(0, 32));
+        final Set<String> expectedDifference = new HashSet<>(reference);
+        expectedDifference.removeAll(half);
+        assertSameElements(expectedDifference, set.subtract(half));
+        assertSameElements(new HashSet<>(half), set.intersect(half));
+        assertSameElements(new HashSet<>(half), set.filter(element -> element.length() > 6 && half.contains(element)));
+    }
+
+    @Test
+    public void testBulkOperations() {
+        final Random random = new Random(0x5e7);
+        final Set<Integer> a = new HashSet<>();
+        final Set<Integer> b = new HashSet<>();
+        for (int i = 0; i < 20000; i++) {
+            a.add(random.nextInt(50000));
+            b.add(random.nextInt(50000));
+        }
+        final ImmutableSet<Integer> setA = ImmutableSet.of(a);
+        final ImmutableSet<Integer> setB = ImmutableSet.of(b);
+
+        final Set<Integer> intersection = new HashSet<>(a);
+        intersection.retainAll(b);
+        assertSameElements(intersection, setA.intersect(setB));
+        assertSameElements(intersection, setA.keepAll(b));
+        assertEquals(insertOneByOne(intersection), setA.intersect(setB));
+
+        final Set<Integer> difference = new HashSet<>(a);
+        difference.removeAll(b);
+        assertSameElements(difference, setA.subtract(setB));
+        assertSameElements(difference, setA.deleteAll(new ArrayList<>(b)));
+        assertEquals(insertOneByOne(difference), setA.subtract(setB));
+
+        final Set<Integer> union = new HashSet<>(a);
+        union.addAll(b);
+        assertSameElements(union, setA.insertAll(setB));
+
+        final Set<Integer> even = new HashSet<>(a);
+        even.removeIf(element -> element % 2 != 0);
+        assertSameElements(even, setA.filter(element -> element % 2 == 0));
+        assertSame(setA, setA.filter(element -> true));
+        assertSame(ImmutableSet.of(), setA.filter(element -> false));
+
+        // shared subtrees
+        final ImmutableSet<Integer> smaller = setA.delete(a.iterator().next());
+        assertSame(smaller, smaller.intersect(setA));
+        assertEquals(1, setA.subtract(smaller).size());
+        assertSame(ImmutableSet.of(), setA.subtract(setA));
+        assertSame(setA, setA.subtract(ImmutableSet.of(-1, -2)));
+        assertSame(setA, setA.deleteAll(Arrays.asList(-1, -2)));
+    }
+
+    @Test
+    public void testIterator() {
+        final ImmutableSet<String> set = ImmutableSet.of("a", "b", "c");
+        final Iterator<String> it = set.iterator();
+        final Set<String> seen = new HashSet<>();
+        while (it.hasNext()) {
+            assertTrue(it.hasNext());
+            seen.add(it.next());
+        }
+        assertEquals(new HashSet<>(Arrays.asList("a", "b", "c")), seen);
+        try {
+            it.next();
+            fail("expected NoSuchElementException");
+        } catch (NoSuchElementException expected) {
+            // expected
+        }
+        assertEquals(3, set.stream().count());
+    }
+
+
+    private static <T> void assertSplitsCover(final ImmutableSet<T> set, final Set<T> reference) {
+        for (final int depth: new int[]{ 0, 1, 3, 6, 12 }) {
+            final List<T> elements = new ArrayList<>();
+            splitAndCollect(set.spliterator(), depth, elements);
+            assertEquals(reference.size(), elements.size());
+            assertEquals(reference, new HashSet<>(elements));
+        }
+    }
+
+    @Test
+    public void testSpliterator() throws IOException {
+        final Random random = new Random(0x5e75);
+        for (final int size: new int[]{ 9, 33, 1000, 100000 }) {
+            final Set<Integer> reference = new HashSet<>();
+            while (reference.size() < size) {
+                reference.add(random.nextInt());
+            }
+            assertSplitsCover(ImmutableSet.of(reference), reference);
+        }
+        final Set<String> colliding = new HashSet<>(TestHelper.readHashCollisions(20000));
+        assertSplitsCover(ImmutableSet.of(colliding), colliding);
+    }
+
+    @Test
+    public void testSpliteratorSplitsAlongTrie() {
+        final Set<Integer> reference = new HashSet<>();
+        for (int i = 0; i < 100000; i++) {
+            reference.add(i);
+        }
+        final ImmutableSet<Integer> set = ImmutableSet.of(reference);
+        final Spliterator<Integer> spliterator = set.spliterator();
+        assertEquals(100000, spliterator.getExactSizeIfKnown());
+        assertTrue(spliterator.hasCharacteristics(Spliterator.DISTINCT | Spliterator.IMMUTABLE | Spliterator.NONNULL));
+        final Spliterator<Integer> prefix = spliterator.trySplit();
+        assertNotNull(prefix);
+        assertEquals(-1, spliterator.getExactSizeIfKnown());
+        // both halves should be close to half the set, where splitting the iterator would hand off a small batch
+        assertEquals(100000, prefix.estimateSize() + spliterator.estimateSize());
+        assertEquals(50000, prefix.estimateSize(), 5000);
+        final Set<Integer> prefixElements = new HashSet<>();
+        prefix.forEachRemaining(prefixElements::add);
+        assertEquals(50000, prefixElements.size(), 5000);
+        spliterator.forEachRemaining(element -> assertFalse(prefixElements.contains(element)));
+
+        assertEquals(reference, set.parallelStream().collect(Collectors.toSet()));
+        assertEquals(reference.stream().mapToLong(Integer::longValue).sum(),
+                set.parallelStream().mapToLong(Integer::longValue).sum());
+    }
+
+}
@@ -0,0 +1,111 @@
+package com.gotcake.collections.immutable;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for intersect and subtract on ImmutableMap and ImmutableSet
+ * @author Aaron Cake
+ */
+public class TestIntersectSubtract {
+
+    private static <K, V> void assertIntersectAndSubtract(final Map<K, V> a, final Map<K, ?> b) {
+        final Map<K, V> expectedIntersection = new HashMap<>(a);
+        expectedIntersection.keySet().retainAll(b.keySet());
+        final Map<K, V> expectedDifference = new HashMap<>(a);
+        expectedDifference.keySet().removeAll(b.keySet());
+
+        final ImmutableMap<K, V> mapA = ImmutableMap.of(a);
+        final ImmutableMap<K, ?> mapB = ImmutableMap.of(b);
+
+        final ImmutableMap<K, V> intersection = mapA.intersect(mapB);
+        Validatable.tryAssertValid(intersection);
+        assertEquals(expectedIntersection.size(), intersection.size());
+        assertEquals(expectedIntersection, intersection);
+        // RegularImmutableTrieMap.equals is structural, so this also checks the trie has the canonical shape
+        assertEquals(TestHelper.setOneByOne(expectedIntersection), intersection);
+
+        final ImmutableMap<K, V> difference = mapA.subtract(mapB);
+        Validatable.tryAssertValid(difference);
+        assertEquals(expectedDifference.size(), difference.size());
+        assertEquals(expectedDifference, difference);
+        assertEquals(TestHelper.setOneByOne(expectedDifference), difference);
+
+        final ImmutableSet<K> setA = ImmutableSet.of(a.keySet());
+        final ImmutableSet<K> setB = ImmutableSet.of(b.keySet());
+        assertEquals(expectedIntersection.keySet(), setA.intersect(setB));
+        assertEquals(expectedDifference.keySet(), setA.subtract(setB));
+        assertEquals(expectedIntersection.keySet(), setA.keepAll(setB));
+        assertEquals(expectedDifference.keySet(), setA.deleteAll(setB));
+        assertEquals(expectedIntersection.keySet(), mapA.keySet().intersect(setB));
+        assertEquals(expectedDifference.keySet(), mapA.keySet().subtract(setB));
+    }
+
+    @Test
+    public void testMatchesReference() {
+        final Random random = new Random(0x5e75);
+        for (final int sizeA: new int[]{ 1, 2, 33, 1000, 20000 }) {
+            for (final int sizeB: new int[]{ 1, 2, 33, 1000, 20000 }) {
+                final int keySpace = Math.max(sizeA, sizeB) * 2;
+                final Map<Integer, Integer> a = new HashMap<>();
+                while (a.size() < sizeA) {
+                    a.put(random.nextInt(keySpace), random.nextInt());
+                }
+                final Map<Integer, String> b = new HashMap<>();
+                while (b.size() < sizeB) {
+                    b.put(random.nextInt(keySpace), "b");
+                }
+                assertIntersectAndSubtract(a, b);
+            }
+        }
+    }
+
+    @Test
+    public void testHashCollisions() throws IOException {
+        final Map<String, Integer> a = new HashMap<>();
+        final Map<String, Integer> b = new HashMap<>();
+        final Random random = new Random(5);
+        int i = 0;
+        for (final String key: TestHelper.readHashCollisions(20000)) {
+            final int which = random.nextInt(3);
+            if (which != 1) a.put(key, i);
+            if (which != 0) b.put(key, i);
+            i++;
+        }
+        assertIntersectAndSubtract(a, b);
+        assertIntersectAndSubtract(b, a);
+    }
+
+    @Test
+    public void testIdentityReuse() {
+        final Map<Integer, Integer> entries = new HashMap<>();
+        for (int i = 0; i < 5000; i++) {
+            entries.put(i * 7, i);
+        }
+        final ImmutableMap<Integer, Integer> map = ImmutableMap.of(entries);
+        final ImmutableMap<Integer, Integer> bigger = map.set(-1, 1).set(-2, 2);
+        final ImmutableMap<Integer, Integer> disjoint = ImmutableMap.of(-3, 3, -4, 4);
+        assertSame(map, map.intersect(map));
+        assertSame(map, map.intersect(bigger));
+        assertSame(map, map.intersect(ImmutableMap.of(entries)));
+        assertSame(map, map.subtract(disjoint));
+        assertSame(map, map.subtract(ImmutableMap.of()));
+        assertEquals(ImmutableMap.of(), map.subtract(map));
+        assertEquals(ImmutableMap.of(), map.subtract(bigger));
+        assertEquals(ImmutableMap.of(), map.intersect(disjoint));
+        assertEquals(ImmutableMap.of(), map.intersect(ImmutableMap.of()));
+        assertEquals(map, bigger.intersect(map));
+        assertEquals(map, bigger.subtract(disjoint.set(-1, 0).set(-2, 0)));
+
+        final ImmutableSet<Integer> set = ImmutableSet.of(entries.keySet());
+        assertSame(set, set.intersect(set));
+        assertSame(set, set.subtract(ImmutableSet.of(-5, -6)));
+        assertSame(ImmutableSet.of(), set.subtract(set));
+        assertTrue(set.subtract(set).isEmpty());
+    }
+
+}
@@ -0,0 +1,186 @@
+package com.gotcake.collections.immutable;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the lookup filters attached by withLookupFilter(), and carrying them over to derived maps and sets
+ * @author Aaron Cake
+ */
+public class TestLookupFilter {
+
+    private static <K, V> void assertFilteredMap(final Map<K, V> expected, final ImmutableMap<K, V> actual) {
+        // assertValid also checks that the filter does not reject any key of the map
+        Validatable.tryAssertValid(actual);
+        if (!actual.isEmpty()) {
+            assertTrue(actual instanceof FilteredImmutableMap);
+        }
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected, actual);
+        assertEquals(actual, expected);
+        assertEquals(expected.hashCode(), actual.hashCode());
+    }
+
+    @Test
+    public void testFalsePositiveRate() {
+        final Random random = new Random(0xb100f);
+        final Map<Integer, Integer> source = new HashMap<>();
+        while (source.size() < 100000) {
+            source.put(random.nextInt(), 0);
+        }
+        final ImmutableMap<Integer, Integer> map = ImmutableMap.of(source);
+        final LookupFilter filter = LookupFilter.ofKeys(map);
+        for (final Integer key: source.keySet()) {
+            assertTrue(filter.mightContain(Util.computeSmearHash(key)));
+        }
+        int falsePositives = 0;
+        int misses = 0;
+        while (misses < 1000000) {
+            final int key = random.nextInt();
+            if (!source.containsKey(key)) {
+                misses++;
+                if (filter.mightContain(Util.computeSmearHash(key))) {
+                    falsePositives++;
+                }
+            }
+        }
+        assertTrue("false positive rate was " + falsePositives / (float)misses, falsePositives < misses * 3 / 100);
+    }
+
+    @Test
+    public void testMapAcrossVersions() {
+        final Random random = new Random(0xf117e7);
+        final Map<Integer, Integer> reference = new HashMap<>();
+        while (reference.size() < 5000) {
+            reference.put(random.nextInt(20000), random.nextInt());
+        }
+        ImmutableMap<Integer, Integer> map = ImmutableMap.of(reference).withLookupFilter();
+        assertSame(map, map.withLookupFilter());
+        for (int i = 0; i < 60000; i++) {
+            final int key = random.nextInt(20000);
+            // grow the map for the first half of the run and shrink it for the second, so the filter is rebuilt both ways
+            final boolean grow = i < 30000;
+            switch (random.nextInt(4)) {
+                case 0:
+                    map = map.set(key, i);
+                    reference.put(key, i);
+                    break;
+                case 1:
+                    map = map.update(key, (k, v) -> v == null ? (grow ? 1 : null) : (grow ? v + 1 : null));
+                    reference.compute(key, (k, v) -> v == null ? (grow ? 1 : null) : (grow ? v + 1 : null));
+                    break;
+                default:
+                    if (grow) {
+                        map = map.setIfAbsent(key, i);
+                        reference.putIfAbsent(key, i);
+                    } else {
+                        map = map.delete(key);
+                        reference.remove(key);
+                    }
+                    break;
+            }
+            if (i % 1000 == 0) {
+                assertFilteredMap(reference, map);
+                for (int k = 0; k < 20000; k += 7) {
+                    assertEquals(reference.get(k), map.get(k));
+                    assertEquals(reference.containsKey(k), map.containsKey(k));
+                }
+            }
+        }
+        assertFilteredMap(reference, map);
+
+        // a batch carries the filter over too
+        final TransientMap<Integer, Integer> batch = map.toTransient();
+        for (int k = 20000; k < 20100; k++) {
+            batch.set(k, k);
+            reference.put(k, k);
+        }
+        batch.delete(reference.keySet().iterator().next());
+        reference.remove(reference.keySet().iterator().next());
+        final ImmutableMap<Integer, Integer> batched = batch.persistent();
+        assertFilteredMap(reference, batched);
+        assertSame(batched, batched.toTransient().persistent());
+        for (int k = 20000; k < 20100; k++) {
+            assertEquals(Integer.valueOf(k), batched.get(k));
+        }
+
+        final Map<Integer, Integer> even = new HashMap<>(reference);
+        even.keySet().removeIf(k -> k % 2 != 0);
+        assertFilteredMap(even, batched.filterKeys(k -> k % 2 == 0));
+        assertFilteredMap(even, batched.intersect(ImmutableMap.of(even)));
+        assertFilteredMap(reference, batched.mapValues(v -> v));
+        assertSame(ImmutableMap.of(), batched.subtract(batched));
+    }
+
+    @Test
+    public void testFrozenAndStrategyMaps() {
+        final Map<String, Integer> reference = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            reference.put("key" + i, i);
+        }
+        final ImmutableMap<String, Integer> filtered = ImmutableMap.of(reference).withLookupFilter();
+        final ImmutableMap<String, Integer> frozen = filtered.freeze();
+        assertFilteredMap(reference, frozen);
+        assertTrue(((FilteredImmutableMap<String, Integer>)frozen).map instanceof FrozenImmutableMap);
+        assertTrue(((FilteredImmutableMap<String, Integer>)ImmutableMap.of(reference).freeze().withLookupFilter()).map instanceof FrozenImmutableMap);
+        assertSame(((FilteredImmutableMap<String, Integer>)filtered).filter, ((FilteredImmutableMap<String, Integer>)frozen).filter);
+        for (int i = 0; i < 2000; i++) {
+            assertEquals(reference.get("key" + i), frozen.get("key" + i));
+            assertEquals(reference.get("key" + i), frozen.get(HashedKey.of("key" + i)));
+        }
+        reference.put("key1000", 1000);
+        assertFilteredMap(reference, frozen.set("key1000", 1000));
+        assertFilteredMap(reference, frozen.thaw().set("key1000", 1000));
+
+        final String key = new String("key");
+        final ImmutableMap<String, Integer> identity = ImmutableMap.<String, Integer>identity().set(key, 1).withLookupFilter();
+        Validatable.tryAssertValid(identity);
+        assertTrue(identity instanceof StrategyImmutableMap);
+        assertEquals(Integer.valueOf(1), identity.get(key));
+        assertNull(identity.get(new String("key")));
+    }
+
+    @Test
+    public void testSetAcrossVersions() {
+        final Random random = new Random(0x5e7f);
+        final Set<Integer> reference = new HashSet<>();
+        while (reference.size() < 5000) {
+            reference.add(random.nextInt(20000));
+        }
+        ImmutableSet<Integer> set = ImmutableSet.of(reference).withLookupFilter();
+        assertTrue(set instanceof FilteredImmutableSet);
+        assertSame(set, set.withLookupFilter());
+        for (int i = 0; i < 60000; i++) {
+            final int element = random.nextInt(20000);
+            if (i < 30000 ? random.nextInt(4) != 0 : random.nextInt(4) == 0) {
+                set = set.insert(element);
+                reference.add(element);
+            } else {
+                set = set.delete(element);
+                reference.remove(element);
+            }
+            if (i % 1000 == 0) {
+                Validatable.tryAssertValid(set);
+                assertTrue(set instanceof FilteredImmutableSet);
+                assertEquals(reference, set);
+                assertEquals(set, reference);
+                for (int e = 0; e < 20000; e += 7) {
+                    assertEquals(reference.contains(e), set.contains(e));
+                }
+            }
+        }
+        final List<Integer> more = Arrays.asList(-1, -2, -3);
+        final ImmutableSet<Integer> inserted = set.insertAll(more);
+        Validatable.tryAssertValid(inserted);
+        assertTrue(inserted.containsAll(more));
+        assertEquals(reference.size() + 3, inserted.size());
+        final ImmutableSet<Integer> other = ImmutableSet.of(reference).withLookupFilter();
+        assertEquals(set, other);
+        assertSame(ImmutableSet.of(), set.subtract(other));
+        assertEquals(reference, set.intersect(other));
+    }
+
+}
@@ -0,0 +1,73 @@
+package com.gotcake.collections.immutable;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for MapCursor, and the entry set operations built on it
+ * @author Aaron Cake
+ */
+public class TestMapCursor {
+
+    private static <K, V> Map<K, V> drain(final MapCursor<K, V> cursor) {
+        final Map<K, V> seen = new HashMap<>();
+        while (cursor.advance()) {
+            assertNull("each key is visited once", seen.put(cursor.key(), cursor.value()));
+        }
+        assertFalse(cursor.advance());
+        return seen;
+    }
+
+    @Test
+    public void testCursorVisitsEveryEntry() {
+        final Random random = new Random(0xc0c0);
+        for (final int size: new int[]{ 1, 2, 3, 32, 33, 1000, 100000 }) {
+            final Map<Integer, Integer> reference = new HashMap<>();
+            while (reference.size() < size) {
+                reference.put(random.nextInt(), random.nextInt());
+            }
+            assertEquals(reference, drain(ImmutableMap.of(reference).cursor()));
+        }
+        assertEquals(Collections.singletonMap("Aa", 1), drain(ImmutableMap.of("Aa", 1).cursor()));
+        // hash collisions end up in a collision node at the bottom of the trie
+        final ImmutableMap<String, Integer> collisions = ImmutableMap.of("Aa", 1, "BB", 2, "AaAa", 3).set("BBBB", 4);
+        assertEquals(new HashMap<>(collisions), drain(collisions.cursor()));
+    }
+
+    @Test
+    public void testEmptyCursor() {
+        final MapCursor<String, Integer> cursor = ImmutableMap.<String, Integer>of().cursor();
+        assertFalse(cursor.advance());
+        assertFalse(cursor.advance());
+    }
+
+    @Test
+    public void testEntrySetFilterAndEquals() {
+        final Map<Integer, Integer> reference = new HashMap<>();
+        for (int i = 0; i < 5000; i++) {
+            reference.put(i, i % 7);
+        }
+        final ImmutableMap<Integer, Integer> map = ImmutableMap.of(reference);
+        final ImmutableMapEntrySet<Integer, Integer> entries = map.entrySet();
+
+        final ImmutableMapEntrySet<Integer, Integer> filtered = entries.filter(entry -> entry.getValue() == 3);
+        final Map<Integer, Integer> expected = new HashMap<>(reference);
+        expected.values().removeIf(value -> value != 3);
+        assertEquals(expected, filtered.getMap());
+        assertSame(entries, entries.filter(entry -> true));
+
+        assertEquals(reference.entrySet(), entries);
+        assertEquals(entries, reference.entrySet());
+        assertEquals(entries, ImmutableMap.of(reference).entrySet());
+        assertEquals(expected.entrySet(), filtered);
+        assertNotEquals(reference.entrySet(), filtered);
+        final Map<Integer, Integer> changed = new HashMap<>(reference);
+        changed.put(0, -1);
+        assertNotEquals(changed.entrySet(), entries);
+        assertEquals(expected.entrySet(), entries.keepAll(new ArrayList<>(expected.entrySet())));
+    }
+
+}
@@ -0,0 +1,127 @@
+package com.gotcake.collections.immutable;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for ImmutableMap.diff
+ * @author Aaron Cake
+ */
+public class TestMapDiff {
+
+    /**
+     * Collects the differences as maps, failing if a key is reported twice
+     */
+    private static class RecordingVisitor<K, V> implements ImmutableMap.DiffVisitor<K, V> {
+
+        final Map<K, V> added = new HashMap<>();
+        final Map<K, V> removed = new HashMap<>();
+        final Map<K, List<V>> changed = new HashMap<>();
+        final Set<K> seen = new HashSet<>();
+
+        @Override
+        public void added(K key, V value) {
+            assertTrue("reported twice: " + key, seen.add(key));
+            added.put(key, value);
+        }
+
+        @Override
+        public void removed(K key, V value) {
+            assertTrue("reported twice: " + key, seen.add(key));
+            removed.put(key, value);
+        }
+
+        @Override
+        public void changed(K key, V oldValue, V newValue) {
+            assertTrue("reported twice: " + key, seen.add(key));
+            assertNotEquals(oldValue, newValue);
+            changed.put(key, Arrays.asList(oldValue, newValue));
+        }
+
+    }
+
+    private static <K, V> void assertDiff(final Map<K, V> before, final Map<K, V> after,
+                                          final ImmutableMap<K, V> oldMap, final ImmutableMap<K, V> newMap) {
+        final RecordingVisitor<K, V> expected = new RecordingVisitor<>();
+        before.forEach((key, value) -> {
+            final V newValue = after.get(key);
+            if (newValue == null) {
+                expected.removed(key, value);
+            } else if (!value.equals(newValue)) {
+                expected.changed(key, value, newValue);
+            }
+        });
+        after.forEach((key, value) -> {
+            if (!before.containsKey(key)) {
+                expected.added(key, value);
+            }
+        });
+        final RecordingVisitor<K, V> actual = new RecordingVisitor<>();
+        oldMap.diff(newMap, actual);
+        assertEquals(expected.added, actual.added);
+        assertEquals(expected.removed, actual.removed);
+        assertEquals(expected.changed, actual.changed);
+    }
+
+    @Test
+    public void testSuccessiveVersions() {
+        final Random random = new Random(0xd1ff);
+        for (final int size: new int[]{ 1, 2, 40, 1000, 50000 }) {
+            final Map<Integer, Integer> before = new HashMap<>();
+            while (before.size() < size) {
+                before.put(random.nextInt(size * 4), random.nextInt(4));
+            }
+            final ImmutableMap<Integer, Integer> oldMap = ImmutableMap.of(before);
+            for (final int changes: new int[]{ 1, 10, size }) {
+                final Map<Integer, Integer> after = new HashMap<>(before);
+                ImmutableMap<Integer, Integer> newMap = oldMap;
+                for (int i = 0; i < changes; i++) {
+                    final Integer key = random.nextInt(size * 4);
+                    if (random.nextBoolean()) {
+                        after.remove(key);
+                        newMap = newMap.delete(key);
+                    } else {
+                        final Integer value = random.nextInt(4);
+                        after.put(key, value);
+                        newMap = newMap.set(key, value);
+                    }
+                }
+                assertDiff(before, after, oldMap, newMap);
+                assertDiff(after, before, newMap, oldMap);
+            }
+        }
+    }
+
+    @Test
+    public void testIdenticalAndEmpty() {
+        final Map<String, Integer> entries = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            entries.put("key" + i, i);
+        }
+        final ImmutableMap<String, Integer> map = ImmutableMap.of(entries);
+        final ImmutableMap<String, Integer> empty = ImmutableMap.of();
+        assertDiff(entries, entries, map, map);
+        // equal but not shared
+        assertDiff(entries, entries, map, ImmutableMap.of(entries));
+        assertDiff(entries, Collections.emptyMap(), map, empty);
+        assertDiff(Collections.emptyMap(), entries, empty, map);
+    }
+
+    @Test
+    public void testHashCollisions() throws IOException {
+        final Map<String, Integer> before = new HashMap<>();
+        final Map<String, Integer> after = new HashMap<>();
+        final Random random = new Random(17);
+        for (final String key: TestHelper.readHashCollisions(20000)) {
+            final int which = random.nextInt(3);
+            if (which != 1) before.put(key, random.nextInt(2));
+            if (which != 0) after.put(key, random.nextInt(2));
+        }
+        assertDiff(before, after, ImmutableMap.of(before), ImmutableMap.of(after));
+    }
+
+}
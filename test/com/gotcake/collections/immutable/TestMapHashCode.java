@@ -0,0 +1,199 @@
+package com.gotcake.collections.immutable;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the cached and incrementally maintained hashCode of RegularImmutableTrieMap
+ * @author Aaron Cake
+ */
+public class TestMapHashCode {
+
+    private static void assertHashCode(final Map<?, ?> expected, final ImmutableMap<?, ?> map) {
+        assertEquals(expected.hashCode(), map.hashCode());
+        // and again, now that it's cached
+        assertEquals(expected.hashCode(), map.hashCode());
+    }
+
+    private static void runRandomOperations(ImmutableMap<Integer, Integer> map, final Random random) {
+        final Map<Integer, Integer> reference = new HashMap<>(map);
+        for (int i = 0; i < 20000; i++) {
+            final Integer key = random.nextInt(2000);
+            final Integer value = random.nextInt(3);
+            switch (random.nextInt(6)) {
+                case 0:
+                    map = map.set(key, value);
+                    reference.put(key, value);
+                    break;
+                case 1:
+                    map = map.delete(key);
+                    reference.remove(key);
+                    break;
+                case 2:
+                    map = map.update(key, (k, v) -> v == null ? value : (v == 0 ? null : v + value));
+                    reference.compute(key, (k, v) -> v == null ? value : (v == 0 ? null : v + value));
+                    break;
+                case 3:
+                    map = map.setIfAbsent(key, value);
+                    reference.putIfAbsent(key, value);
+                    break;
+                case 4:
+                    map = map.setIfPresent(key, value);
+                    reference.replace(key, value);
+                    break;
+                default:
+                    final TransientMap<Integer, Integer> transientMap = map.toTransient();
+                    for (int j = 0; j < 10; j++) {
+                        final Integer transientKey = random.nextInt(2000);
+                        if (random.nextBoolean()) {
+                            transientMap.set(transientKey, j);
+                            reference.put(transientKey, j);
+                        } else {
+                            transientMap.delete(transientKey);
+                            reference.remove(transientKey);
+                        }
+                    }
+                    map = transientMap.persistent();
+                    break;
+            }
+            if (i % 100 == 0) {
+                assertHashCode(reference, map);
+            }
+        }
+        assertHashCode(reference, map);
+    }
+
+    @Test
+    public void testIncrementalFromSmallMap() {
+        runRandomOperations(ImmutableMap.of(1, 1), new Random(0xaaaa));
+    }
+
+    @Test
+    public void testIncrementalFromBulkLoadedMap() {
+        final Map<Integer, Integer> entries = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            entries.put(i * 2, i % 3);
+        }
+        final ImmutableMap<Integer, Integer> map = ImmutableMap.of(entries);
+        // the first map's hash is computed lazily, later ones are derived from it
+        runRandomOperations(map, new Random(0xbbbb));
+    }
+
+    @Test
+    public void testHashCollisionEntries() {
+        ImmutableMap<String, Integer> map = ImmutableMap.of("Aa", 1);
+        map = map.set("BB", 2).set("AaAa", 3).set("BBBB", 4).set("AaBB", 5);
+        final Map<String, Integer> reference = new HashMap<>(map);
+        assertHashCode(reference, map);
+        map = map.set("BB", 6).delete("Aa").update("AaBB", (k, v) -> v + 1);
+        reference.put("BB", 6);
+        reference.remove("Aa");
+        reference.put("AaBB", 6);
+        assertHashCode(reference, map);
+    }
+
+    /**
+     * A value which counts how often its hash is taken
+     */
+    private static final class CountingValue {
+
+        static int hashCodeCalls = 0;
+
+        final int value;
+
+        CountingValue(final int value) {
+            this.value = value;
+        }
+
+        @Override
+        public int hashCode() {
+            hashCodeCalls++;
+            return value;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            return obj instanceof CountingValue && ((CountingValue)obj).value == value;
+        }
+    }
+
+    /**
+     * Asserts the hash of a map is already known, so no value has to be hashed again to get it
+     */
+    private static void assertHashCodeCached(final Map<?, ?> expected, final ImmutableMap<?, ?> map) {
+        CountingValue.hashCodeCalls = 0;
+        final int hashCode = map.hashCode();
+        assertEquals(0, CountingValue.hashCodeCalls);
+        assertEquals(expected.hashCode(), hashCode);
+    }
+
+    @Test
+    public void testSetIfPresentKeepsCachedHash() {
+        final Map<Integer, CountingValue> reference = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            reference.put(i, new CountingValue(i * 7));
+        }
+        ImmutableMap<Integer, CountingValue> map = ImmutableMap.of(reference);
+        assertHashCode(reference, map);
+        for (int i = 0; i < 1000; i += 10) {
+            final CountingValue value = new CountingValue(-i);
+            map = map.setIfPresent(i, value);
+            reference.put(i, value);
+        }
+        assertSame(map, map.setIfPresent(1000, new CountingValue(0)));
+        Validatable.tryAssertValid(map);
+        // the hash was derived from the first map's
+        assertHashCodeCached(reference, map);
+    }
+
+    @Test
+    public void testZeroHashIsCached() {
+        // each entry maps a key to itself, so every entry hash and their sum are 0
+        final CountingValue zero = new CountingValue(0);
+        final CountingValue one = new CountingValue(1);
+        assertHashCodeCached(Collections.singletonMap(zero, zero), new RegularImmutableTrieMap<>(zero, zero));
+        final Map<CountingValue, CountingValue> reference = new HashMap<>();
+        reference.put(zero, zero);
+        reference.put(one, one);
+        assertHashCodeCached(reference, new RegularImmutableTrieMap<>(zero, zero, one, one));
+
+        for (int i = 2; i < 1000; i++) {
+            final CountingValue x = new CountingValue(i);
+            reference.put(x, x);
+        }
+        ImmutableMap<CountingValue, CountingValue> map = ImmutableMap.of(reference);
+        // a bulk loaded map computes its hash once
+        assertHashCode(reference, map);
+        assertHashCodeCached(reference, map);
+
+        for (int i = 1000; i < 1100; i++) {
+            final CountingValue x = new CountingValue(i);
+            map = i % 2 == 0 ? map.set(x, x) : map.setIfAbsent(x, x);
+            reference.put(x, x);
+        }
+        map = map.delete(zero).update(one, (k, v) -> null);
+        reference.remove(zero);
+        reference.remove(one);
+        assertHashCodeCached(reference, map);
+
+        final TransientMap<CountingValue, CountingValue> transientMap = map.toTransient();
+        final CountingValue x = new CountingValue(2000);
+        transientMap.set(x, x);
+        reference.put(x, x);
+        assertHashCodeCached(reference, transientMap.persistent());
+    }
+
+    @Test
+    public void testEqualsRejectsByHash() {
+        final ImmutableMap<Integer, Integer> map1 = ImmutableMap.of(1, 1, 2, 2).set(3, 3);
+        final ImmutableMap<Integer, Integer> map2 = ImmutableMap.of(1, 1, 2, 2).set(3, 4);
+        final ImmutableMap<Integer, Integer> map3 = ImmutableMap.of(3, 3, 2, 2).set(1, 1);
+        assertNotEquals(map1, map2);
+        assertEquals(map1, map3);
+        assertEquals(map1.hashCode(), map3.hashCode());
+    }
+
+}
@@ -0,0 +1,134 @@
+package com.gotcake.collections.immutable;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.function.BiFunction;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for ImmutableMap.merge
+ * @author Aaron Cake
+ */
+public class TestMapMerge {
+
+    // keeps the sum, unless it is divisible by 5, in which case the entry is removed
+    private static final BiFunction<Integer, Integer, Integer> RESOLVER = (a, b) -> (a + b) % 5 == 0 ? null : a + b;
+
+    private static <K, V> Map<K, V> referenceMerge(final Map<K, V> map, final Map<K, V> other,
+                                                   final BiFunction<? super V, ? super V, ? extends V> resolver) {
+        final Map<K, V> result = new HashMap<>(map);
+        other.forEach((key, otherValue) -> {
+            final V value = result.get(key);
+            if (value == null) {
+                result.put(key, otherValue);
+            } else if (!value.equals(otherValue)) {
+                final V newValue = resolver.apply(value, otherValue);
+                if (newValue == null) {
+                    result.remove(key);
+                } else {
+                    result.put(key, newValue);
+                }
+            }
+        });
+        return result;
+    }
+
+    private static <K, V> void assertMerge(final Map<K, V> a, final Map<K, V> b,
+                                           final BiFunction<? super V, ? super V, ? extends V> resolver) {
+        final Map<K, V> expected = referenceMerge(a, b, resolver);
+        final ImmutableMap<K, V> merged = ImmutableMap.of(a).merge(ImmutableMap.of(b), resolver);
+        Validatable.tryAssertValid(merged);
+        assertEquals(expected.size(), merged.size());
+        assertEquals(expected, merged);
+        // RegularImmutableTrieMap.equals is structural, so this also checks the trie has the canonical shape
+        assertEquals(TestHelper.setOneByOne(expected), merged);
+    }
+
+    @Test
+    public void testMatchesReference() {
+        final Random random = new Random(0x3c3c);
+        for (final int sizeA: new int[]{ 1, 2, 33, 1000, 20000 }) {
+            for (final int sizeB: new int[]{ 1, 2, 33, 1000, 20000 }) {
+                final int keySpace = Math.max(sizeA, sizeB) * 2;
+                assertMerge(TestHelper.randomEntries(random, sizeA, keySpace, 4),
+                        TestHelper.randomEntries(random, sizeB, keySpace, 4), RESOLVER);
+            }
+        }
+    }
+
+    @Test
+    public void testDisjoint() {
+        final Map<String, Integer> a = new HashMap<>();
+        final Map<String, Integer> b = new HashMap<>();
+        for (int i = 0; i < 5000; i++) {
+            a.put("a" + i, i);
+            b.put("b" + i, i);
+        }
+        final ImmutableMap<String, Integer> merged = ImmutableMap.of(a).merge(ImmutableMap.of(b), (x, y) -> {
+            throw new AssertionError("resolver called for disjoint maps");
+        });
+        Validatable.tryAssertValid(merged);
+        assertEquals(10000, merged.size());
+        assertTrue(merged.entrySet().containsAll(a.entrySet()));
+        assertTrue(merged.entrySet().containsAll(b.entrySet()));
+    }
+
+    @Test
+    public void testResolverArgumentOrder() {
+        final ImmutableMap<String, String> base = ImmutableMap.of("a", "base", "b", "base");
+        final ImmutableMap<String, String> overlay = ImmutableMap.of("b", "overlay");
+        assertEquals(ImmutableMap.of("a", "base", "b", "overlay"), base.merge(overlay, (x, y) -> y));
+        assertEquals(ImmutableMap.of("a", "base", "b", "base"), overlay.merge(base, (x, y) -> y));
+        assertEquals(ImmutableMap.of("a", "base", "b", "overlay"), overlay.merge(base, (x, y) -> x));
+    }
+
+    @Test
+    public void testIdentityReuse() {
+        final Map<Integer, Integer> entries = TestHelper.randomEntries(new Random(42), 10000, 100000, 4);
+        final ImmutableMap<Integer, Integer> map = ImmutableMap.of(entries);
+        final ImmutableMap<Integer, Integer> overlay = map.set(-1, 1).set(-2, 2);
+        // shared subtrees are never resolved
+        final BiFunction<Integer, Integer, Integer> failing = (x, y) -> {
+            throw new AssertionError("resolver called for equal values");
+        };
+        assertSame(map, map.merge(map, failing));
+        assertSame(map, map.merge(ImmutableMap.of(), failing));
+        assertSame(map, ImmutableMap.<Integer, Integer>of().merge(map, failing));
+        assertSame(overlay, map.merge(overlay, failing));
+        assertSame(overlay, overlay.merge(map, failing));
+        // equal but not shared values keep this map's instance
+        assertSame(map, map.merge(ImmutableMap.of(entries), failing));
+    }
+
+    @Test
+    public void testRemoveAll() {
+        final Map<Integer, Integer> entries = TestHelper.randomEntries(new Random(7), 3000, 100000, 4);
+        final Map<Integer, Integer> other = new HashMap<>();
+        entries.forEach((key, value) -> other.put(key, value + 1));
+        assertEquals(ImmutableMap.of(), ImmutableMap.of(entries).merge(ImmutableMap.of(other), (x, y) -> null));
+        assertMerge(Collections.singletonMap(1, 1), Collections.singletonMap(1, 2), (x, y) -> null);
+    }
+
+    @Test
+    public void testHashCollisions() throws IOException {
+        final Map<String, Integer> a = new HashMap<>();
+        final Map<String, Integer> b = new HashMap<>();
+        final Random random = new Random(99);
+        for (final String key: TestHelper.readHashCollisions(20000)) {
+            final int which = random.nextInt(3);
+            if (which != 1) a.put(key, random.nextInt(4));
+            if (which != 0) b.put(key, random.nextInt(4));
+        }
+        assertMerge(a, b, RESOLVER);
+        assertMerge(b, a, RESOLVER);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullResolver() {
+        ImmutableMap.of("a", 1).merge(ImmutableMap.of("b", 2), null);
+    }
+
+}
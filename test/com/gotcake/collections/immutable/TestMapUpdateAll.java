@@ -0,0 +1,141 @@
+package com.gotcake.collections.immutable;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.function.BiFunction;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the single pass updateAll, filter, filterKeys and mapValues of RegularImmutableTrieMap
+ * @author Aaron Cake
+ */
+public class TestMapUpdateAll {
+
+    private static <K> void assertUpdateAll(final Map<K, Integer> reference,
+                                            final BiFunction<K, Integer, Integer> updateFn) {
+        final ImmutableMap<K, Integer> map = ImmutableMap.of(reference);
+        final ImmutableMap<K, Integer> updated = map.updateAll(updateFn);
+        final Map<K, Integer> expected = new HashMap<>();
+        for (final Map.Entry<K, Integer> entry: reference.entrySet()) {
+            final Integer value = updateFn.apply(entry.getKey(), entry.getValue());
+            if (value != null) {
+                expected.put(entry.getKey(), value);
+            }
+        }
+        assertEquals(expected, updated);
+        assertEquals(expected.size(), updated.size());
+        assertEquals(expected.hashCode(), updated.hashCode());
+        Validatable.tryAssertValid(updated);
+        // the source map is unchanged
+        assertEquals(reference, map);
+        Validatable.tryAssertValid(map);
+    }
+
+    private static Map<String, Integer> collidingEntries() throws IOException {
+        final Map<String, Integer> reference = new HashMap<>();
+        int i = 0;
+        for (final String key: TestHelper.readHashCollisions(20000)) {
+            reference.put(key, i++);
+        }
+        return reference;
+    }
+
+    @Test
+    public void testUpdateAll() {
+        final Random random = new Random(0x0a11);
+        for (final int size: new int[]{ 1, 2, 3, 32, 33, 1000, 100000 }) {
+            final Map<Integer, Integer> reference = new HashMap<>();
+            while (reference.size() < size) {
+                reference.put(random.nextInt(), random.nextInt(10));
+            }
+            assertUpdateAll(reference, (key, value) -> value + 1);
+            assertUpdateAll(reference, (key, value) -> value < 5 ? null : value);
+            assertUpdateAll(reference, (key, value) -> value < 3 ? null : (value < 6 ? value * 2 : value));
+            assertUpdateAll(reference, (key, value) -> null);
+            // leave a single entry
+            final Integer onlyKey = reference.keySet().iterator().next();
+            assertUpdateAll(reference, (key, value) -> key.equals(onlyKey) ? value : null);
+        }
+    }
+
+    @Test
+    public void testUpdateAllHashCollisions() throws IOException {
+        final Map<String, Integer> reference = collidingEntries();
+        assertUpdateAll(reference, (key, value) -> value + 1);
+        assertUpdateAll(reference, (key, value) -> value % 2 == 0 ? null : value);
+        assertUpdateAll(reference, (key, value) -> value % 7 == 0 ? value : null);
+        assertUpdateAll(reference, (key, value) -> null);
+    }
+
+    @Test
+    @SuppressWarnings("removal")
+    public void testUnchangedReturnsThis() {
+        final Map<Integer, Integer> reference = new HashMap<>();
+        for (int i = 0; i < 10000; i++) {
+            reference.put(i, i);
+        }
+        final ImmutableMap<Integer, Integer> map = ImmutableMap.of(reference);
+        assertSame(map, map.updateAll((key, value) -> value));
+        assertSame(map, map.updateAll((key, value) -> new Integer(value)));
+        assertSame(map, map.filter((key, value) -> true));
+        assertSame(map, map.filterKeys(key -> true));
+        assertTrue(map.filterKeys(key -> false).isEmpty());
+    }
+
+    @Test
+    public void testFilter() {
+        final Map<Integer, Integer> reference = new HashMap<>();
+        for (int i = 0; i < 10000; i++) {
+            reference.put(i * 31, i % 5);
+        }
+        final ImmutableMap<Integer, Integer> map = ImmutableMap.of(reference);
+
+        final ImmutableMap<Integer, Integer> filtered = map.filter((key, value) -> value == 2);
+        final Map<Integer, Integer> expected = new HashMap<>(reference);
+        expected.values().removeIf(value -> value != 2);
+        assertEquals(expected, filtered);
+        Validatable.tryAssertValid(filtered);
+
+        final ImmutableMap<Integer, Integer> filteredKeys = map.filterKeys(key -> key % 2 == 0);
+        final Map<Integer, Integer> expectedKeys = new HashMap<>(reference);
+        expectedKeys.keySet().removeIf(key -> key % 2 != 0);
+        assertEquals(expectedKeys, filteredKeys);
+        Validatable.tryAssertValid(filteredKeys);
+
+        final ImmutableSet<Integer> set = ImmutableSet.of(reference.keySet());
+        final ImmutableSet<Integer> filteredSet = set.filter(key -> key % 3 == 0);
+        for (final Integer key: reference.keySet()) {
+            assertEquals(key % 3 == 0, filteredSet.contains(key));
+        }
+    }
+
+    @Test
+    public void testMapValues() throws IOException {
+        final Map<String, Integer> reference = collidingEntries();
+        for (int i = 0; i < 1000; i++) {
+            reference.put("key" + i, i);
+        }
+        final ImmutableMap<String, Integer> map = ImmutableMap.of(reference);
+        final ImmutableMap<String, String> mapped = map.mapValues(value -> "value" + value);
+        final Map<String, String> expected = new HashMap<>();
+        for (final Map.Entry<String, Integer> entry: reference.entrySet()) {
+            expected.put(entry.getKey(), "value" + entry.getValue());
+        }
+        assertEquals(expected, mapped);
+        assertEquals(expected.hashCode(), mapped.hashCode());
+        Validatable.tryAssertValid(mapped);
+        assertEquals(expected, mapped.set("another", "value").delete("another"));
+
+        assertEquals(ImmutableMap.of(1, "1"), ImmutableMap.of(1, 1).mapValues(String::valueOf));
+        assertTrue(ImmutableMap.<Integer, Integer>of().mapValues(String::valueOf).isEmpty());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testMapValuesRejectsNull() {
+        ImmutableMap.of(1, 1, 2, 2).mapValues(value -> null);
+    }
+
+}
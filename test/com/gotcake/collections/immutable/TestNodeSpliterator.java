@@ -0,0 +1,96 @@
+package com.gotcake.collections.immutable;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import static com.gotcake.collections.immutable.TestHelper.splitAndCollect;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the trie-aware spliterators
+ * @author Aaron Cake
+ */
+public class TestNodeSpliterator {
+
+    private static <K, V> void assertSplitsCover(final ImmutableMap<K, V> map, final Map<K, V> reference) {
+        for (final int depth: new int[]{ 0, 1, 3, 6, 12 }) {
+            final List<K> keys = new ArrayList<>();
+            splitAndCollect(map.keySpliterator(), depth, keys);
+            assertEquals(reference.size(), keys.size());
+            assertEquals(reference.keySet(), new HashSet<>(keys));
+
+            final List<Map.Entry<K, V>> entries = new ArrayList<>();
+            splitAndCollect(map.entrySpliterator(), depth, entries);
+            assertEquals(reference.size(), entries.size());
+            assertEquals(reference.entrySet(), new HashSet<>(entries));
+
+            final List<V> values = new ArrayList<>();
+            splitAndCollect(map.valueSpliterator(), depth, values);
+            assertEquals(reference.size(), values.size());
+        }
+    }
+
+    @Test
+    public void testSplitsCoverAllEntries() {
+        final Random random = new Random(0x5911);
+        for (final int size: new int[]{ 1, 2, 3, 32, 33, 1000, 100000 }) {
+            final Map<Integer, Integer> reference = new HashMap<>();
+            while (reference.size() < size) {
+                reference.put(random.nextInt(), random.nextInt());
+            }
+            assertSplitsCover(ImmutableMap.of(reference), reference);
+        }
+    }
+
+    @Test
+    public void testHashCollisions() throws IOException {
+        final Map<String, Integer> reference = new HashMap<>();
+        int i = 0;
+        for (final String key: TestHelper.readHashCollisions(20000)) {
+            reference.put(key, i++);
+        }
+        assertSplitsCover(ImmutableMap.of(reference), reference);
+    }
+
+    @Test
+    public void testEstimates() {
+        final Map<Integer, Integer> reference = new HashMap<>();
+        for (int i = 0; i < 100000; i++) {
+            reference.put(i, i);
+        }
+        final Spliterator<Integer> spliterator = ImmutableMap.of(reference).keySpliterator();
+        assertEquals(100000, spliterator.getExactSizeIfKnown());
+        assertTrue(spliterator.hasCharacteristics(Spliterator.DISTINCT));
+        final Spliterator<Integer> prefix = spliterator.trySplit();
+        assertNotNull(prefix);
+        assertEquals(-1, spliterator.getExactSizeIfKnown());
+        // both halves should be close to half the map
+        assertEquals(100000, prefix.estimateSize() + spliterator.estimateSize());
+        assertEquals(50000, prefix.estimateSize(), 5000);
+        long count = 0;
+        while (prefix.tryAdvance(key -> {})) {
+            count++;
+        }
+        assertEquals(count, 50000, 5000);
+    }
+
+    @Test
+    public void testParallelStreams() {
+        final Map<Integer, Integer> reference = new HashMap<>();
+        for (int i = 0; i < 200000; i++) {
+            reference.put(i, i * 3);
+        }
+        final ImmutableMap<Integer, Integer> map = ImmutableMap.of(reference);
+        assertEquals(reference.keySet(), map.keySet().parallelStream().collect(Collectors.toSet()));
+        assertEquals(reference.values().stream().mapToLong(Integer::longValue).sum(),
+                map.values().parallelStream().mapToLong(Integer::longValue).sum());
+        assertEquals(reference, map.entrySet().parallelStream()
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)));
+        assertEquals(200000, StreamSupport.stream(map.keySpliterator(), true).count());
+    }
+
+}
@@ -0,0 +1,303 @@
+package com.gotcake.collections.immutable;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests large buckets of keys with the same hash, which switch to a sorted layout
+ * @author Aaron Cake
+ */
+public class TestPackedArrayCollisionNode {
+
+    // these tests look at the roots of tries too small to be kept as tries otherwise
+    @Rule
+    public final TestRule smallCollections = TestHelper.disableSmallCollections();
+
+    private static PackedArrayCollisionNode<?, ?> bucketOf(final ImmutableMap<?, ?> map) {
+        Object node = ((RegularImmutableTrieMap<?, ?>)map).root;
+        while (!(node instanceof PackedArrayCollisionNode)) {
+            final Node<?, ?> parent = (Node<?, ?>)node;
+            node = null;
+            for (int slot = 0; slot < parent.slotCount() && node == null; slot++) {
+                if (parent.slotKey(slot) == null) {
+                    node = parent.slotValue(slot);
+                }
+            }
+        }
+        return (PackedArrayCollisionNode<?, ?>)node;
+    }
+
+    @Test
+    public void testLargeBucket() throws IOException {
+        final List<String> keys = TestHelper.generateCollidingStrings(2001);
+        final String missing = keys.get(2000);
+        ImmutableMap<String, String> map = ImmutableMap.of();
+        final Map<String, String> reference = new HashMap<>();
+        for (int i = 0; i < 2000; i++) {
+            map = map.set(keys.get(i), keys.get(i));
+            reference.put(keys.get(i), keys.get(i));
+            if (i > 0) {
+                assertEquals(i >= PackedArrayCollisionNode.MIN_SORTED_ENTRIES - 1, bucketOf(map).sorted);
+            }
+        }
+        Validatable.tryAssertValid(map);
+        assertEquals(reference, map);
+        assertEquals(ImmutableMap.of(reference), map);
+        for (final String key: keys.subList(0, 2000)) {
+            assertEquals(key, map.get(key));
+        }
+        assertNull(map.get(missing));
+        assertSame(map, map.setIfPresent(missing, "x"));
+        assertEquals("x", map.setIfAbsent(missing, "x").get(missing));
+        final Random random = new Random(0x5eed);
+        for (int i = 0; i < 2000; i++) {
+            final String key = keys.get(random.nextInt(2000));
+            if (random.nextBoolean()) {
+                map = map.delete(key);
+                reference.remove(key);
+            } else {
+                map = map.update(key, (k, v) -> v == null ? k : v + "!");
+                reference.put(key, reference.containsKey(key) ? reference.get(key) + "!" : key);
+            }
+        }
+        Validatable.tryAssertValid(map);
+        assertEquals(reference, map);
+    }
+
+    @Test
+    public void testKeysOfAnotherClass() throws IOException {
+        final List<String> keys = TestHelper.generateCollidingStrings(20);
+        // an Integer has its own value as its hash, so it lands in the same bucket as the strings
+        final Integer other = keys.get(0).hashCode();
+        ImmutableMap<Object, Object> map = ImmutableMap.of();
+        for (final String key: keys) {
+            map = map.set(key, key);
+        }
+        assertTrue(bucketOf(map).sorted);
+        map = map.set(other, other);
+        Validatable.tryAssertValid(map);
+        assertFalse(bucketOf(map).sorted);
+        assertEquals(other, map.get(other));
+        for (final String key: keys) {
+            assertEquals(key, map.get(key));
+        }
+        map = map.set(keys.get(0), "again");
+        assertFalse(bucketOf(map).sorted);
+        assertEquals("again", map.get(keys.get(0)));
+        // removing the only key of another class lets the bucket be sorted again
+        map = map.delete(other);
+        Validatable.tryAssertValid(map);
+        assertTrue(bucketOf(map).sorted);
+        assertNull(map.get(other));
+        assertEquals(20, map.size());
+        for (final String key: keys.subList(1, 20)) {
+            assertEquals(key, map.get(key));
+        }
+    }
+
+    /**
+     * A key which always collides, and counts how often it is compared
+     */
+    private static final class CountingKey implements Comparable<CountingKey> {
+
+        static long comparisons = 0;
+
+        final int value;
+
+        CountingKey(final int value) {
+            this.value = value;
+        }
+
+        @Override
+        public int compareTo(final CountingKey other) {
+            comparisons++;
+            return Integer.compare(value, other.value);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            comparisons++;
+            return o instanceof CountingKey && ((CountingKey)o).value == value;
+        }
+
+        @Override
+        public int hashCode() {
+            return 42;
+        }
+
+    }
+
+    @Test
+    public void testIncrementalFillComparesLogarithmically() {
+        final int count = 4000;
+        // a bound of about 2 log2(n) comparisons per key added
+        final long bound = 24L * count;
+        final Random random = new Random(0xf111);
+        ImmutableMap<CountingKey, Integer> map = ImmutableMap.of();
+        CountingKey.comparisons = 0;
+        for (int i = 0; i < count; i++) {
+            map = map.set(new CountingKey(random.nextInt()), i);
+        }
+        assertTrue(CountingKey.comparisons < bound);
+        assertTrue(bucketOf(map).sorted);
+
+        // a bucket which can't be sorted until a key of another class is removed is sorted once, not on every add
+        ImmutableMap<Object, Integer> mixed = ImmutableMap.of();
+        mixed = mixed.set(42, -1);
+        for (int i = 0; i < count; i++) {
+            mixed = mixed.set(new CountingKey(i), i);
+            if (i == 2 * PackedArrayCollisionNode.MIN_SORTED_ENTRIES) {
+                assertFalse(bucketOf(mixed).sorted);
+            }
+        }
+        CountingKey.comparisons = 0;
+        mixed = mixed.delete(42);
+        assertTrue(bucketOf(mixed).sorted);
+        for (int i = count; i < 2 * count; i++) {
+            mixed = mixed.set(new CountingKey(i), i);
+        }
+        assertTrue(CountingKey.comparisons < 2 * bound);
+        Validatable.tryAssertValid(mixed);
+        assertEquals(2 * count, mixed.size());
+        for (int i = 0; i < 2 * count; i += 97) {
+            assertEquals(Integer.valueOf(i), mixed.get(new CountingKey(i)));
+        }
+    }
+
+    /**
+     * A key which always collides, and is ordered by its major part alone, so many keys compare as equal without being
+     * equal
+     */
+    private static final class Version implements Comparable<Version> {
+
+        final int major;
+        final int minor;
+
+        Version(final int major, final int minor) {
+            this.major = major;
+            this.minor = minor;
+        }
+
+        @Override
+        public int compareTo(final Version other) {
+            return Integer.compare(major, other.major);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof Version && ((Version)o).major == major && ((Version)o).minor == minor;
+        }
+
+        @Override
+        public int hashCode() {
+            return 42;
+        }
+
+    }
+
+    @Test
+    public void testOrderInconsistentWithEquals() {
+        ImmutableMap<Version, Integer> map = ImmutableMap.of();
+        final Map<Version, Integer> reference = new HashMap<>();
+        for (int i = 0; i < 400; i++) {
+            final Version key = new Version(i % 50, i / 50);
+            map = map.set(key, i);
+            reference.put(key, i);
+        }
+        Validatable.tryAssertValid(map);
+        assertTrue(bucketOf(map).sorted);
+        assertEquals(reference, map);
+        for (final Version key: reference.keySet()) {
+            assertEquals(reference.get(key), map.get(new Version(key.major, key.minor)));
+        }
+        assertNull(map.get(new Version(3, 8)));
+        assertNull(map.get(new Version(50, 0)));
+        final Random random = new Random(0xcafe);
+        for (int i = 0; i < 400; i++) {
+            final Version key = new Version(random.nextInt(50), random.nextInt(10));
+            if (random.nextBoolean()) {
+                map = map.delete(key);
+                reference.remove(key);
+            } else {
+                map = map.set(key, -i);
+                reference.put(key, -i);
+            }
+        }
+        Validatable.tryAssertValid(map);
+        assertTrue(bucketOf(map).sorted);
+        assertEquals(reference, map);
+        assertEquals(ImmutableMap.of(reference), map);
+    }
+
+    @Test
+    public void testBulkOperations() throws IOException {
+        final List<String> keys = TestHelper.generateCollidingStrings(300);
+        final Map<String, Integer> first = new HashMap<>();
+        final Map<String, Integer> second = new HashMap<>();
+        for (int i = 0; i < 200; i++) {
+            first.put(keys.get(i), i);
+            second.put(keys.get(i + 100), i % 2 == 0 ? i + 100 : -i);
+        }
+        final ImmutableMap<String, Integer> map1 = ImmutableMap.of(first);
+        final ImmutableMap<String, Integer> map2 = ImmutableMap.of(second);
+        Validatable.tryAssertValid(map1);
+        assertTrue(bucketOf(map1).sorted);
+
+        final ImmutableMap<String, Integer> merged = map1.merge(map2, (a, b) -> b < 0 ? null : a + b);
+        final Map<String, Integer> expected = new HashMap<>(first);
+        // the resolver is only called for values which differ
+        second.forEach((key, value) -> expected.merge(key, value, (a, b) -> a.equals(b) ? a : b < 0 ? null : a + b));
+        Validatable.tryAssertValid(merged);
+        assertEquals(expected, merged);
+
+        final Set<String> common = new HashSet<>(first.keySet());
+        common.retainAll(second.keySet());
+        assertEquals(common, map1.intersect(map2).keySet());
+        final Set<String> remaining = new HashSet<>(first.keySet());
+        remaining.removeAll(second.keySet());
+        assertEquals(remaining, map1.subtract(map2).keySet());
+
+        final int[] counts = new int[3];
+        map1.diff(map2, new ImmutableMap.DiffVisitor<String, Integer>() {
+            @Override public void added(String key, Integer value) { counts[0]++; }
+            @Override public void removed(String key, Integer value) { counts[1]++; }
+            @Override public void changed(String key, Integer oldValue, Integer newValue) { counts[2]++; }
+        });
+        // half of the common keys have the same value in both
+        assertArrayEquals(new int[]{ 100, 100, 50 }, counts);
+
+        final ImmutableMap<String, Integer> updated = map1.updateAll((key, value) -> value % 3 == 0 ? null : value * 2);
+        Validatable.tryAssertValid(updated);
+        assertTrue(bucketOf(updated).sorted);
+        assertEquals(133, updated.size());
+        assertEquals(Integer.valueOf(2), updated.get(keys.get(1)));
+    }
+
+    @Test
+    public void testTransientBatch() throws IOException {
+        final List<String> keys = TestHelper.generateCollidingStrings(500);
+        final ImmutableMap<String, Integer> map = ImmutableMap.of(keys.get(0), 0, keys.get(1), 1);
+        final TransientMap<String, Integer> batch = map.toTransient();
+        for (int i = 0; i < keys.size(); i++) {
+            batch.set(keys.get(i), i);
+        }
+        for (int i = 0; i < keys.size(); i += 2) {
+            batch.delete(keys.get(i));
+        }
+        final ImmutableMap<String, Integer> edited = batch.persistent();
+        Validatable.tryAssertValid(edited);
+        Validatable.tryAssertValid(map);
+        assertEquals(250, edited.size());
+        assertEquals(2, map.size());
+        for (int i = 0; i < keys.size(); i++) {
+            assertEquals(i % 2 == 0 ? null : Integer.valueOf(i), edited.get(keys.get(i)));
+        }
+    }
+
+}
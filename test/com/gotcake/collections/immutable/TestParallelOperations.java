@@ -0,0 +1,116 @@
+package com.gotcake.collections.immutable;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the fork/join operations on ImmutableMap
+ * @author Aaron Cake
+ */
+public class TestParallelOperations {
+
+    @Test
+    public void testParallelForEach() {
+        for (final int size: new int[]{ 0, 1, 100, ParallelNodeTasks.SEQUENTIAL_THRESHOLD + 1, 300000 }) {
+            final Map<Integer, Integer> reference = TestHelper.randomEntries(new Random(size), size, 1000);
+            final ImmutableMap<Integer, Integer> map = ImmutableMap.of(reference);
+            final Map<Integer, Integer> seen = new ConcurrentHashMap<>();
+            final LongAdder calls = new LongAdder();
+            map.parallelForEach((key, value) -> {
+                calls.increment();
+                seen.put(key, value);
+            });
+            assertEquals(size, calls.sum());
+            assertEquals(reference, seen);
+        }
+    }
+
+    @Test
+    public void testParallelReduce() {
+        for (final int size: new int[]{ 0, 1, 100, ParallelNodeTasks.SEQUENTIAL_THRESHOLD + 1, 300000 }) {
+            final Map<Integer, Integer> reference = TestHelper.randomEntries(new Random(size), size, 1000);
+            final ImmutableMap<Integer, Integer> map = ImmutableMap.of(reference);
+            long expectedSum = 0;
+            for (final Integer value: reference.values()) {
+                expectedSum += value;
+            }
+            assertEquals(Long.valueOf(expectedSum), map.parallelReduce(0L, (key, value) -> (long)value, Long::sum));
+            assertEquals(Integer.valueOf(size), map.parallelReduce(0, (key, value) -> 1, Integer::sum));
+        }
+    }
+
+    @Test
+    public void testReduceToCollection() {
+        final Map<Integer, Integer> reference = TestHelper.randomEntries(new Random(7), 5000, 1000);
+        final ImmutableMap<Integer, Integer> map = ImmutableMap.of(reference);
+        final Set<Integer> keys = map.parallelReduce(Collections.<Integer>emptySet(),
+                (key, value) -> Collections.singleton(key),
+                (a, b) -> {
+                    final Set<Integer> union = new HashSet<>(a);
+                    union.addAll(b);
+                    return union;
+                });
+        assertEquals(reference.keySet(), keys);
+    }
+
+    @Test
+    public void testParallelUpdateAll() {
+        for (final int size: new int[]{ 0, 1, 100, ParallelNodeTasks.SEQUENTIAL_THRESHOLD + 1, 100000 }) {
+            final Map<Integer, Integer> reference = TestHelper.randomEntries(new Random(size), size, 1000);
+            final ImmutableMap<Integer, Integer> map = ImmutableMap.of(reference);
+            // remove some entries, change some, and keep the rest
+            final ImmutableMap<Integer, Integer> updated = map.parallelUpdateAll((key, value) ->
+                    value % 3 == 0 ? null : (value % 3 == 1 ? value + 1 : value));
+            final Map<Integer, Integer> expected = new HashMap<>(reference);
+            expected.replaceAll((key, value) -> value % 3 == 0 ? null : (value % 3 == 1 ? value + 1 : value));
+            expected.values().removeIf(Objects::isNull);
+            assertEquals(expected, updated);
+            assertEquals(expected.hashCode(), updated.hashCode());
+            assertEquals(expected.size(), updated.size());
+            Validatable.tryAssertValid(updated);
+            assertEquals(reference, map);
+        }
+    }
+
+    @Test
+    @SuppressWarnings("removal")
+    public void testParallelUpdateAllReusesUnchangedSubtrees() {
+        final Map<Integer, Integer> reference = TestHelper.randomEntries(new Random(11), 100000, 1000);
+        final ImmutableMap<Integer, Integer> map = ImmutableMap.of(reference);
+        assertSame(map, map.parallelUpdateAll((key, value) -> value));
+        assertSame(map, map.parallelUpdateAll((key, value) -> new Integer(value)));
+        assertSame(map, map.parallelFilter((key, value) -> true));
+        // a single change copies only the path to that entry
+        final Integer changedKey = reference.keySet().iterator().next();
+        final ImmutableMap<Integer, Integer> updated = map.parallelUpdateAll((key, value) ->
+                key.equals(changedKey) ? value + 1000 : value);
+        assertNotSame(map, updated);
+        assertEquals(map.set(changedKey, reference.get(changedKey) + 1000), updated);
+        Validatable.tryAssertValid(updated);
+    }
+
+    @Test
+    public void testParallelFilter() {
+        final Map<Integer, Integer> reference = TestHelper.randomEntries(new Random(13), 100000, 1000);
+        final ImmutableMap<Integer, Integer> map = ImmutableMap.of(reference);
+        final ImmutableMap<Integer, Integer> filtered = map.parallelFilter((key, value) -> value < 10);
+        final Map<Integer, Integer> expected = new HashMap<>(reference);
+        expected.values().removeIf(value -> value >= 10);
+        assertEquals(expected, filtered);
+        assertEquals(expected.hashCode(), filtered.hashCode());
+        Validatable.tryAssertValid(filtered);
+        assertEquals(map.filter((key, value) -> value < 10), filtered);
+        assertTrue(map.parallelFilter((key, value) -> false).isEmpty());
+        // leave a single entry, which has to end up in the root
+        final Integer lastKey = reference.keySet().iterator().next();
+        final ImmutableMap<Integer, Integer> single = map.parallelFilter((key, value) -> key.equals(lastKey));
+        assertEquals(Collections.singletonMap(lastKey, reference.get(lastKey)), single);
+        Validatable.tryAssertValid(single);
+    }
+
+}
@@ -0,0 +1,204 @@
+package com.gotcake.collections.immutable;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the flat maps and sets of up to 8 entries, and promoting them to tries and demoting them back
+ * @author Aaron Cake
+ */
+public class TestSmallCollections {
+
+    /**
+     * A key which fails if it is ever hashed
+     */
+    private static final class UnhashableKey {
+
+        private final int id;
+
+        UnhashableKey(final int id) {
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            return obj instanceof UnhashableKey && ((UnhashableKey)obj).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            throw new AssertionError("key was hashed");
+        }
+    }
+
+    private static void assertSmallIfItFits(final Collection<?> collection, final Class<?> smallClass, final Class<?> trieClass) {
+        if (collection.isEmpty()) {
+            return;
+        }
+        if (collection.size() <= SmallImmutableMap.MAX_ENTRIES) {
+            assertEquals(smallClass, collection.getClass());
+        } else {
+            assertEquals(trieClass, collection.getClass());
+        }
+    }
+
+    private static <K, V> void assertSameEntries(final Map<K, V> expected, final ImmutableMap<K, V> actual) {
+        Validatable.tryAssertValid(actual);
+        if (!actual.isEmpty()) {
+            assertEquals(actual.size() <= SmallImmutableMap.MAX_ENTRIES ? SmallImmutableMap.class : RegularImmutableTrieMap.class,
+                    actual.getClass());
+        }
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected, actual);
+        assertEquals(actual, expected);
+        assertEquals(expected.hashCode(), actual.hashCode());
+        final Map<K, V> iterated = new HashMap<>();
+        final MapCursor<K, V> cursor = actual.cursor();
+        while (cursor.advance()) {
+            assertNull(iterated.put(cursor.key(), cursor.value()));
+        }
+        assertEquals(expected, iterated);
+    }
+
+    @Test
+    public void testMapMatchesHashMap() {
+        final Random random = new Random(0x5a11);
+        ImmutableMap<Integer, Integer> map = ImmutableMap.of();
+        final Map<Integer, Integer> reference = new HashMap<>();
+        for (int i = 0; i < 20000; i++) {
+            final int key = random.nextInt(14);
+            final int value = random.nextInt(4);
+            switch (random.nextInt(4)) {
+                case 0:
+                    map = map.delete(key);
+                    reference.remove(key);
+                    break;
+                case 1:
+                    map = map.update(key, (k, v) -> v == null ? Integer.valueOf(value) : (v + value) % 5 == 0 ? null : Integer.valueOf(v + value));
+                    reference.compute(key, (k, v) -> v == null ? Integer.valueOf(value) : (v + value) % 5 == 0 ? null : Integer.valueOf(v + value));
+                    break;
+                case 2:
+                    map = map.setIfAbsent(key, value);
+                    reference.putIfAbsent(key, value);
+                    break;
+                default:
+                    map = map.set(key, value);
+                    reference.put(key, value);
+                    break;
+            }
+            assertSameEntries(reference, map);
+            for (int k = -1; k <= 14; k++) {
+                assertEquals(reference.get(k), map.get(k));
+            }
+            if (i % 100 == 0) {
+                final ImmutableMap<Integer, Integer> filtered = map.filter((k, v) -> v % 2 == 0);
+                final Map<Integer, Integer> expected = new HashMap<>(reference);
+                expected.values().removeIf(v -> v % 2 != 0);
+                assertSameEntries(expected, filtered);
+            }
+        }
+    }
+
+    @Test
+    public void testFactoriesAndBatches() {
+        final Map<Integer, String> source = new HashMap<>();
+        for (int i = 0; i < SmallImmutableMap.MAX_ENTRIES; i++) {
+            source.put(i, "v" + i);
+        }
+        final ImmutableMap<Integer, String> small = ImmutableMap.of(source);
+        assertSameEntries(source, small);
+        assertSame(small, small.toTransient().persistent());
+        assertSame(small, small.set(0, "v0"));
+
+        final Integer[] keys = { 1, 2, 1, 3 };
+        final String[] values = { "a", "b", "c", "d" };
+        final Map<Integer, String> expected = new HashMap<>();
+        expected.put(1, "c");
+        expected.put(2, "b");
+        expected.put(3, "d");
+        assertSameEntries(expected, ImmutableMap.ofArrays(keys, values));
+
+        // growing past the limit in a batch builds a trie, and shrinking back to it demotes the trie
+        final TransientMap<Integer, String> batch = small.toTransient();
+        for (int i = 0; i < 100; i++) {
+            batch.set(i, "v" + i);
+        }
+        final ImmutableMap<Integer, String> large = batch.persistent();
+        assertTrue(large instanceof RegularImmutableTrieMap);
+        final ImmutableMap<Integer, String> shrunk = large.filterKeys(key -> key < SmallImmutableMap.MAX_ENTRIES);
+        assertSameEntries(source, shrunk);
+        assertEquals(small, shrunk);
+        assertEquals(shrunk, small);
+        assertSameEntries(source, large.subtract(large.filterKeys(key -> key >= SmallImmutableMap.MAX_ENTRIES)));
+    }
+
+    @Test
+    public void testKeysAreNotHashed() {
+        ImmutableMap<UnhashableKey, Integer> map = ImmutableMap.of();
+        ImmutableSet<UnhashableKey> set = ImmutableSet.of();
+        for (int i = 0; i < SmallImmutableMap.MAX_ENTRIES; i++) {
+            map = map.set(new UnhashableKey(i), i);
+            set = set.insert(new UnhashableKey(i));
+        }
+        for (int i = 0; i < SmallImmutableMap.MAX_ENTRIES; i++) {
+            assertEquals(Integer.valueOf(i), map.get(new UnhashableKey(i)));
+            assertTrue(set.contains(new UnhashableKey(i)));
+        }
+        assertNull(map.get(new UnhashableKey(-1)));
+        assertFalse(set.contains(new UnhashableKey(-1)));
+        map = map.delete(new UnhashableKey(3)).update(new UnhashableKey(4), (key, value) -> value + 1);
+        set = set.delete(new UnhashableKey(3));
+        assertEquals(SmallImmutableMap.MAX_ENTRIES - 1, map.size());
+        assertEquals(Integer.valueOf(5), map.get(new UnhashableKey(4)));
+        assertEquals(SmallImmutableMap.MAX_ENTRIES - 1, set.size());
+        Validatable.tryAssertValid(map);
+        Validatable.tryAssertValid(set);
+    }
+
+    @Test
+    public void testSetMatchesHashSet() {
+        final Random random = new Random(0x5e75);
+        ImmutableSet<Integer> set = ImmutableSet.of();
+        final Set<Integer> reference = new HashSet<>();
+        for (int i = 0; i < 20000; i++) {
+            final int element = random.nextInt(14);
+            if (random.nextInt(2) == 0) {
+                final ImmutableSet<Integer> newSet = set.delete(element);
+                assertEquals(reference.remove(element), newSet != set);
+                set = newSet;
+            } else {
+                final ImmutableSet<Integer> newSet = set.insert(element);
+                assertEquals(reference.add(element), newSet != set);
+                set = newSet;
+            }
+            Validatable.tryAssertValid(set);
+            assertSmallIfItFits(set, SmallImmutableSet.class, RegularImmutableTrieSet.class);
+            assertEquals(reference, set);
+            assertEquals(set, reference);
+            assertEquals(reference.hashCode(), set.hashCode());
+            if (i % 100 == 0) {
+                final List<Integer> more = Arrays.asList(random.nextInt(20), random.nextInt(20), random.nextInt(20));
+                final Set<Integer> union = new HashSet<>(reference);
+                union.addAll(more);
+                final ImmutableSet<Integer> inserted = set.insertAll(more);
+                Validatable.tryAssertValid(inserted);
+                assertSmallIfItFits(inserted, SmallImmutableSet.class, RegularImmutableTrieSet.class);
+                assertEquals(union, inserted);
+                assertEquals(union.size() == reference.size(), inserted == set);
+
+                final ImmutableSet<Integer> odd = ImmutableSet.of(1, 3, 5, 7, 9, 11, 13);
+                final Set<Integer> difference = new HashSet<>(reference);
+                difference.removeAll(odd);
+                assertEquals(difference, set.subtract(odd));
+                final Set<Integer> intersection = new HashSet<>(reference);
+                intersection.retainAll(odd);
+                assertEquals(intersection, set.intersect(odd));
+                assertSmallIfItFits(set.intersect(odd), SmallImmutableSet.class, RegularImmutableTrieSet.class);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+package com.gotcake.collections.immutable;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for batched changes through TransientMap
+ * @author Aaron Cake
+ */
+public class TestTransientMap {
+
+    private static Map<String, Integer> randomEntries(final int count, final long seed) {
+        final Random random = new Random(seed);
+        final StringBuilder buffer = new StringBuilder();
+        final Map<String, Integer> entries = new LinkedHashMap<>();
+        while (entries.size() < count) {
+            entries.put(TestHelper.generateRandomString(buffer, random, 12), random.nextInt(1000));
+        }
+        return entries;
+    }
+
+    @Test
+    public void testSetMatchesPersistentSets() {
+        final Map<String, Integer> entries = randomEntries(20000, 0x5eed);
+        final TransientMap<String, Integer> transientMap = ImmutableMap.<String, Integer>of().toTransient();
+        for (final Map.Entry<String, Integer> entry: entries.entrySet()) {
+            transientMap.set(entry.getKey(), entry.getValue());
+        }
+        assertEquals(entries.size(), transientMap.size());
+        final ImmutableMap<String, Integer> map = transientMap.persistent();
+        Validatable.tryAssertValid(map);
+        assertEquals(TestHelper.setOneByOne(entries), map);
+        assertEquals(entries, map);
+    }
+
+    @Test
+    public void testSourceIsNotModified() {
+        final Map<String, Integer> entries = randomEntries(5000, 0xabcdef);
+        final ImmutableMap<String, Integer> source = ImmutableMap.of(entries);
+        final HashMap<String, Integer> expected = new HashMap<>(entries);
+        final TransientMap<String, Integer> transientMap = source.toTransient();
+        int i = 0;
+        for (final String key: entries.keySet()) {
+            if (i % 3 == 0) {
+                transientMap.delete(key);
+            } else {
+                transientMap.set(key, -i);
+            }
+            i++;
+        }
+        final ImmutableMap<String, Integer> result = transientMap.persistent();
+        Validatable.tryAssertValid(source);
+        Validatable.tryAssertValid(result);
+        assertEquals(expected, source);
+        assertEquals(entries.size() - (entries.size() + 2) / 3, result.size());
+    }
+
+    @Test
+    public void testUnchangedReturnsSource() {
+        final ImmutableMap<String, Integer> source = ImmutableMap.of("foo", 1, "bar", 2, "baz", 3);
+        final TransientMap<String, Integer> transientMap = source.toTransient();
+        transientMap.set("foo", 1).delete("missing");
+        assertSame(source, transientMap.persistent());
+        assertSame(source, source.setAll(Collections.singletonMap("bar", 2)));
+        assertSame(source, source.deleteAll(Arrays.asList("a", "b")));
+        assertSame(source, source.updateAll((k, v) -> v));
+    }
+
+    @Test
+    public void testDeleteAllToEmpty() {
+        final Map<String, Integer> entries = randomEntries(1000, 0x1234);
+        final ImmutableMap<String, Integer> map = ImmutableMap.of(entries);
+        assertSame(ImmutableMap.of(), map.deleteAll(entries.keySet()));
+    }
+
+    @Test
+    public void testBulkOperations() {
+        final Map<String, Integer> entries = randomEntries(3000, 0x9876);
+        final ImmutableMap<String, Integer> map = ImmutableMap.<String, Integer>of().setAll(entries);
+        Validatable.tryAssertValid(map);
+        assertEquals(entries, map);
+
+        final ImmutableMap<String, Integer> updated = map.updateAll((k, v) -> v % 2 == 0 ? v + 1 : null);
+        Validatable.tryAssertValid(updated);
+        final Map<String, Integer> expected = new HashMap<>();
+        entries.forEach((k, v) -> {
+            if (v % 2 == 0) {
+                expected.put(k, v + 1);
+            }
+        });
+        assertEquals(expected, updated);
+        assertEquals(entries, map);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testUseAfterPersistent() {
+        final TransientMap<String, Integer> transientMap = ImmutableMap.of("foo", 1).toTransient();
+        transientMap.persistent();
+        transientMap.set("bar", 2);
+    }
+
+}
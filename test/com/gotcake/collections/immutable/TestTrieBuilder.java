@@ -0,0 +1,125 @@
+package com.gotcake.collections.immutable;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for building tries bottom-up
+ * @author Aaron Cake
+ */
+public class TestTrieBuilder {
+
+    @Test
+    public void testMatchesIncrementalBuild() {
+        final Random random = new Random(0x8421);
+        final StringBuilder buffer = new StringBuilder();
+        for (final int size: new int[]{ 1, 2, 3, 31, 32, 33, 1000, 100000 }) {
+            final Map<String, Integer> entries = new HashMap<>();
+            while (entries.size() < size) {
+                entries.put(TestHelper.generateRandomString(buffer, random, 20), random.nextInt());
+            }
+            final ImmutableMap<String, Integer> built = ImmutableMap.of(entries);
+            Validatable.tryAssertValid(built);
+            assertEquals(size, built.size());
+            // RegularImmutableTrieMap.equals is structural, so this also checks the tries have the same shape
+            assertEquals(TestHelper.setOneByOne(entries), built);
+            assertEquals(entries, built);
+        }
+    }
+
+    @Test
+    public void testHashCollisions() throws IOException {
+        final Map<String, Integer> entries = new HashMap<>();
+        int i = 0;
+        for (final String key: TestHelper.readHashCollisions(20000)) {
+            entries.put(key, i++);
+        }
+        final ImmutableMap<String, Integer> built = ImmutableMap.of(entries);
+        Validatable.tryAssertValid(built);
+        assertEquals(TestHelper.setOneByOne(entries), built);
+    }
+
+    @Test
+    public void testArraysLastValueWins() {
+        final ImmutableMap<String, Integer> map = ImmutableMap.ofArrays(
+                new String[]{ "foo", "bar", "foo", "Aa", "BB", "Aa" },
+                new Integer[]{ 1, 2, 3, 4, 5, 6 }
+        );
+        Validatable.tryAssertValid(map);
+        assertEquals(ImmutableMap.of("foo", 3, "bar", 2, "Aa", 6).set("BB", 5), map);
+    }
+
+    /**
+     * A key which always collides, and counts how often it is compared
+     */
+    private static final class CountingKey implements Comparable<CountingKey> {
+
+        static long comparisons = 0;
+
+        final int value;
+
+        CountingKey(final int value) {
+            this.value = value;
+        }
+
+        @Override
+        public int compareTo(final CountingKey other) {
+            comparisons++;
+            return Integer.compare(value, other.value);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            comparisons++;
+            return o instanceof CountingKey && ((CountingKey)o).value == value;
+        }
+
+        @Override
+        public int hashCode() {
+            return 42;
+        }
+
+    }
+
+    @Test
+    public void testDuplicateCollidingKeys() {
+        final int count = 5000;
+        final CountingKey[] keys = new CountingKey[count * 2];
+        final Integer[] values = new Integer[count * 2];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new CountingKey(i % count);
+            values[i] = i;
+        }
+        CountingKey.comparisons = 0;
+        final ImmutableMap<CountingKey, Integer> map = ImmutableMap.ofArrays(keys, values);
+        // comparing every pair of keys would take tens of millions of comparisons
+        assertTrue(CountingKey.comparisons < 100L * keys.length);
+        Validatable.tryAssertValid(map);
+        assertEquals(count, map.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(Integer.valueOf(i + count), map.get(new CountingKey(i)));
+        }
+    }
+
+    @Test
+    public void testSetFromElements() {
+        final ImmutableSet<String> set = ImmutableSet.of("a", "b", "a", "c", "b");
+        assertEquals(new HashSet<>(Arrays.asList("a", "b", "c")), set);
+        assertEquals(1, ImmutableSet.of("a", "a").size());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullKey() {
+        ImmutableMap.ofArrays(new String[]{ "foo", null }, new Integer[]{ 1, 2 });
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullValue() {
+        ImmutableMap.ofArrays(new String[]{ "foo", "bar" }, new Integer[]{ 1, null });
+    }
+
+}
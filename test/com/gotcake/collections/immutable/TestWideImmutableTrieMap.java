@@ -0,0 +1,120 @@
+package com.gotcake.collections.immutable;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+
+import static com.gotcake.collections.immutable.TestHelper.rootOf;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the 64-way WideImmutableTrieMap against HashMaps and the regular 32-way trie
+ * @author Aaron Cake
+ */
+public class TestWideImmutableTrieMap {
+
+    /**
+     * Replays the parity data into a wide map, validating it and checking it against a HashMap at every 100th check
+     */
+    private static void runParityTest(final String file) throws IOException {
+        final Map<String, String> reference = new HashMap<>();
+        final ImmutableMap<String, String> map = TestHelper.runParityTest(file, ImmutableMap.wide(), reference, 100);
+        assertTrue(map instanceof WideImmutableTrieMap);
+        assertEquals(reference.hashCode(), map.hashCode());
+    }
+
+    @Test
+    public void testParity1() throws Exception {
+        runParityTest("test/resources/parity_test_data_1.txt");
+    }
+
+    @Test
+    public void testParity2() throws Exception {
+        runParityTest("test/resources/parity_test_data_2.txt");
+    }
+
+    @Test
+    public void testHashCollisions() throws IOException {
+        final List<String> keys = TestHelper.readHashCollisions(2000);
+        ImmutableMap<String, String> map = ImmutableMap.wide();
+        for (final String key: keys) {
+            map = map.set(key, key);
+        }
+        Validatable.tryAssertValid(map);
+        final Random random = new Random(0x64);
+        final Map<String, String> remaining = new HashMap<>(map);
+        for (final String key: keys) {
+            assertEquals(key, map.get(key));
+            if (random.nextInt(4) != 0) {
+                map = map.delete(key);
+                remaining.remove(key);
+            }
+        }
+        Validatable.tryAssertValid(map);
+        assertEquals(remaining, map);
+        // deleting leaves the same trie as building from scratch
+        assertEquals(rootOf(ImmutableMap.wide(remaining)), rootOf(map));
+    }
+
+    @Test
+    public void testTrieIsShallower() {
+        final Map<Integer, Integer> source = new HashMap<>();
+        for (int i = 0; i < 100000; i++) {
+            source.put(i, i);
+        }
+        final ImmutableMap<Integer, Integer> wide = ImmutableMap.wide(source);
+        final ImmutableMap<Integer, Integer> regular = ImmutableMap.of(source);
+        Validatable.tryAssertValid(wide);
+        assertTrue(wide.equals(regular));
+        assertTrue(regular.equals(wide));
+        assertEquals(regular.hashCode(), wide.hashCode());
+        assertEquals(64, rootOf(wide).slotCount());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(Integer.valueOf(i), wide.get(i));
+        }
+        assertNull(wide.get(-1));
+    }
+
+    @Test
+    public void testStaysWide() {
+        ImmutableMap<Integer, Integer> map = ImmutableMap.<Integer, Integer>wide().set(1, 1);
+        assertTrue(map instanceof WideImmutableTrieMap);
+        map = map.delete(1);
+        assertTrue(map.isEmpty());
+        assertTrue(map instanceof WideImmutableTrieMap);
+        assertEquals(ImmutableMap.of(), map);
+        map = map.set(2, 2).merge(ImmutableMap.of(3, 3), (a, b) -> b).updateAll((k, v) -> v + 1);
+        assertTrue(map instanceof WideImmutableTrieMap);
+        assertEquals(ImmutableMap.of(2, 3, 3, 4), map);
+        assertEquals(ImmutableMap.of(3, 4), map.subtract(ImmutableMap.of(2, 0)));
+        assertEquals(ImmutableMap.of(2, 3), map.intersect(ImmutableMap.of(2, 0)));
+    }
+
+    @Test
+    public void testTransientBatch() {
+        final Map<Integer, Integer> reference = new HashMap<>();
+        for (int i = 0; i < 20000; i++) {
+            reference.put(i, i);
+        }
+        final ImmutableMap<Integer, Integer> map = ImmutableMap.wide(reference);
+        final TransientMap<Integer, Integer> batch = map.toTransient();
+        for (int i = 0; i < 30000; i += 3) {
+            batch.set(i, -i);
+            reference.put(i, -i);
+        }
+        for (int i = 1; i < 20000; i += 7) {
+            batch.delete(i);
+            reference.remove(i);
+        }
+        final ImmutableMap<Integer, Integer> edited = batch.persistent();
+        Validatable.tryAssertValid(edited);
+        Validatable.tryAssertValid(map);
+        assertTrue(edited instanceof WideImmutableTrieMap);
+        assertEquals(reference, edited);
+        assertEquals(reference.hashCode(), edited.hashCode());
+        assertEquals(20000, map.size());
+        assertEquals(Integer.valueOf(3), map.get(3));
+    }
+
+}